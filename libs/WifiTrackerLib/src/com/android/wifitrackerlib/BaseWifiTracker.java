@@ -22,10 +22,8 @@ import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 
 import static java.util.stream.Collectors.toList;
 
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
@@ -34,8 +32,11 @@ import android.net.NetworkKey;
 import android.net.NetworkRequest;
 import android.net.NetworkScoreManager;
 import android.net.ScoredNetwork;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiNetworkScoreCache;
+import android.net.wifi.hotspot2.PasspointConfiguration;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
@@ -71,7 +72,8 @@ import java.util.Set;
  *
  * The worker thread
  * - Drives the periodic scan requests
- * - Handles the system broadcasts to update the API return values
+ * - Handles the system broadcasts, received through the process-wide WifiTrackerDataSource, to
+ *   update the API return values
  * - Notifies the listener for updates to the API return values
  *
  * To keep synchronization simple, this means that the vast majority of work is done within the
@@ -88,46 +90,6 @@ public class BaseWifiTracker implements LifecycleObserver {
         return BaseWifiTracker.sVerboseLogging;
     }
 
-    // Registered on the worker thread
-    private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
-        @Override
-        @WorkerThread
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-
-            if (isVerboseLoggingEnabled()) {
-                Log.v(mTag, "Received broadcast: " + action);
-            }
-
-            if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
-                if (mWifiManager.getWifiState() == WifiManager.WIFI_STATE_ENABLED) {
-                    mScanner.start();
-                } else {
-                    mScanner.stop();
-                }
-                notifyOnWifiStateChanged();
-                handleWifiStateChangedAction();
-            } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
-                mNetworkScoreManager.requestScores(mWifiManager.getScanResults().stream()
-                        .map(NetworkKey::createFromScanResult)
-                        .filter(mRequestedScoreKeys::add)
-                        .collect(toList()));
-                handleScanResultsAvailableAction(intent);
-            } else if (WifiManager.PARTIAL_SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
-                mNetworkScoreManager.requestScores(mWifiManager.getScanResults().stream()
-                        .map(NetworkKey::createFromScanResult)
-                        .filter(mRequestedScoreKeys::add)
-                        .collect(toList()));
-                handleScanResultsAvailableAction(intent);
-            } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action)) {
-                handleConfiguredNetworksChangedAction(intent);
-            } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
-                handleNetworkStateChangedAction(intent);
-            } else if (WifiManager.RSSI_CHANGED_ACTION.equals(action)) {
-                handleRssiChangedAction();
-            }
-        }
-    };
     private final BaseWifiTracker.Scanner mScanner;
     private final BaseWifiTrackerCallback mListener;
 
@@ -145,6 +107,8 @@ public class BaseWifiTracker implements LifecycleObserver {
     protected boolean mIsWifiDefaultRoute;
     protected boolean mIsCellDefaultRoute;
     private final Set<NetworkKey> mRequestedScoreKeys = new HashSet<>();
+    // Shared with the other started trackers of this process, null while stopped.
+    @Nullable private volatile WifiTrackerDataSource mDataSource;
 
     // Network request for listening on changes to Wifi link properties and network capabilities
     // such as captive portal availability.
@@ -257,20 +221,13 @@ public class BaseWifiTracker implements LifecycleObserver {
     }
 
     /**
-     * Registers the broadcast receiver and network callbacks and starts the scanning mechanism.
+     * Subscribes to the shared Wi-Fi broadcasts, registers network callbacks and starts the
+     * scanning mechanism.
      */
     @OnLifecycleEvent(Lifecycle.Event.ON_START)
     @MainThread
     public void onStart() {
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
-        filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
-        filter.addAction(WifiManager.PARTIAL_SCAN_RESULTS_AVAILABLE_ACTION);
-        filter.addAction(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
-        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
-        filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
-        mContext.registerReceiver(mBroadcastReceiver, filter,
-                /* broadcastPermission */ null, mWorkerHandler);
+        mDataSource = WifiTrackerDataSource.acquire(mContext, this);
         mConnectivityManager.registerNetworkCallback(mNetworkRequest, mNetworkCallback,
                 mWorkerHandler);
         mConnectivityManager.registerDefaultNetworkCallback(mDefaultNetworkCallback,
@@ -302,13 +259,18 @@ public class BaseWifiTracker implements LifecycleObserver {
     }
 
     /**
-     * Unregisters the broadcast receiver, network callbacks, and pauses the scanning mechanism.
+     * Unsubscribes from the shared Wi-Fi broadcasts, unregisters network callbacks, and pauses the
+     * scanning mechanism.
      */
     @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
     @MainThread
     public void onStop() {
         mWorkerHandler.post(mScanner::stop);
-        mContext.unregisterReceiver(mBroadcastReceiver);
+        final WifiTrackerDataSource dataSource = mDataSource;
+        if (dataSource != null) {
+            dataSource.release(this);
+            mDataSource = null;
+        }
         mConnectivityManager.unregisterNetworkCallback(mNetworkCallback);
         mConnectivityManager.unregisterNetworkCallback(mDefaultNetworkCallback);
         mNetworkScoreManager.unregisterNetworkScoreCache(NetworkKey.TYPE_WIFI,
@@ -330,6 +292,97 @@ public class BaseWifiTracker implements LifecycleObserver {
         return mWifiManager.getWifiState();
     }
 
+    /**
+     * Handles a Wi-Fi broadcast fanned out by the shared {@link WifiTrackerDataSource}.
+     */
+    @WorkerThread
+    void onBroadcastReceived(@NonNull Intent intent) {
+        String action = intent.getAction();
+
+        if (isVerboseLoggingEnabled()) {
+            Log.v(mTag, "Received broadcast: " + action);
+        }
+
+        if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
+            if (mWifiManager.getWifiState() == WifiManager.WIFI_STATE_ENABLED) {
+                mScanner.start();
+            } else {
+                mScanner.stop();
+            }
+            notifyOnWifiStateChanged();
+            handleWifiStateChangedAction();
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            mNetworkScoreManager.requestScores(getScanResultsSnapshot().stream()
+                    .map(NetworkKey::createFromScanResult)
+                    .filter(mRequestedScoreKeys::add)
+                    .collect(toList()));
+            handleScanResultsAvailableAction(intent);
+        } else if (WifiManager.PARTIAL_SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            mNetworkScoreManager.requestScores(getScanResultsSnapshot().stream()
+                    .map(NetworkKey::createFromScanResult)
+                    .filter(mRequestedScoreKeys::add)
+                    .collect(toList()));
+            handleScanResultsAvailableAction(intent);
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action)) {
+            handleConfiguredNetworksChangedAction(intent);
+        } else if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
+            handleNetworkStateChangedAction(intent);
+        } else if (WifiManager.RSSI_CHANGED_ACTION.equals(action)) {
+            handleRssiChangedAction();
+        }
+    }
+
+    /**
+     * Returns the latest scan results, shared with the other started trackers. The returned list
+     * must not be modified.
+     */
+    @WorkerThread
+    @NonNull
+    protected List<ScanResult> getScanResultsSnapshot() {
+        final WifiTrackerDataSource dataSource = mDataSource;
+        return dataSource != null
+                ? dataSource.getScanResults(mWifiManager) : mWifiManager.getScanResults();
+    }
+
+    /**
+     * Returns the latest configured networks, shared with the other started trackers. The returned
+     * list must not be modified.
+     */
+    @WorkerThread
+    @NonNull
+    protected List<WifiConfiguration> getConfiguredNetworksSnapshot() {
+        final WifiTrackerDataSource dataSource = mDataSource;
+        return dataSource != null
+                ? dataSource.getConfiguredNetworks(mWifiManager)
+                : mWifiManager.getConfiguredNetworks();
+    }
+
+    /**
+     * Returns the latest privileged configured networks, shared with the other started trackers.
+     * The returned list must not be modified.
+     */
+    @WorkerThread
+    @NonNull
+    protected List<WifiConfiguration> getPrivilegedConfiguredNetworksSnapshot() {
+        final WifiTrackerDataSource dataSource = mDataSource;
+        return dataSource != null
+                ? dataSource.getPrivilegedConfiguredNetworks(mWifiManager)
+                : mWifiManager.getPrivilegedConfiguredNetworks();
+    }
+
+    /**
+     * Returns the latest Passpoint configurations, shared with the other started trackers. The
+     * returned list must not be modified.
+     */
+    @WorkerThread
+    @NonNull
+    protected List<PasspointConfiguration> getPasspointConfigurationsSnapshot() {
+        final WifiTrackerDataSource dataSource = mDataSource;
+        return dataSource != null
+                ? dataSource.getPasspointConfigurations(mWifiManager)
+                : mWifiManager.getPasspointConfigurations();
+    }
+
     /**
      * Method to run on the worker thread when onStart is invoked.
      * Data that can be updated immediately after onStart should be populated here.
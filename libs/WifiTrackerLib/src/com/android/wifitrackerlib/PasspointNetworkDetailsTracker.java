@@ -237,7 +237,7 @@ class PasspointNetworkDetailsTracker extends NetworkDetailsTracker {
      * Updates the tracked entry's PasspointConfiguration from getPasspointConfigurations()
      */
     private void conditionallyUpdateConfig() {
-        mWifiManager.getPasspointConfigurations().stream()
+        getPasspointConfigurationsSnapshot().stream()
                 .filter(config -> TextUtils.equals(
                         uniqueIdToPasspointWifiEntryKey(config.getUniqueId()),
                         mChosenEntry.getKey()))
@@ -248,6 +248,6 @@ class PasspointNetworkDetailsTracker extends NetworkDetailsTracker {
      * Updates ScanResultUpdater with new ScanResults.
      */
     private void cacheNewScanResults() {
-        mScanResultUpdater.update(mWifiManager.getScanResults());
+        mScanResultUpdater.update(getScanResultsSnapshot());
     }
 }
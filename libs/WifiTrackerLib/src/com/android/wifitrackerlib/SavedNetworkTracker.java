@@ -125,8 +125,8 @@ public class SavedNetworkTracker extends BaseWifiTracker {
     @WorkerThread
     @Override
     protected void handleOnStart() {
-        updateStandardWifiEntryConfigs(mWifiManager.getConfiguredNetworks());
-        updatePasspointWifiEntryConfigs(mWifiManager.getPasspointConfigurations());
+        updateStandardWifiEntryConfigs(getConfiguredNetworksSnapshot());
+        updatePasspointWifiEntryConfigs(getPasspointConfigurationsSnapshot());
         conditionallyUpdateScanResults(true /* lastScanSucceeded */);
         updateSavedWifiEntries();
         updateSubscriptionWifiEntries();
@@ -161,9 +161,9 @@ public class SavedNetworkTracker extends BaseWifiTracker {
             updateStandardWifiEntryConfig(
                     config, (Integer) intent.getExtra(WifiManager.EXTRA_CHANGE_REASON));
         } else {
-            updateStandardWifiEntryConfigs(mWifiManager.getConfiguredNetworks());
+            updateStandardWifiEntryConfigs(getConfiguredNetworksSnapshot());
         }
-        updatePasspointWifiEntryConfigs(mWifiManager.getPasspointConfigurations());
+        updatePasspointWifiEntryConfigs(getPasspointConfigurationsSnapshot());
         updateSavedWifiEntries();
         updateSubscriptionWifiEntries();
     }
@@ -215,7 +215,8 @@ public class SavedNetworkTracker extends BaseWifiTracker {
                 null /* wifiConfigsByKey */,
                 mWifiManager.isWpa3SaeSupported(),
                 mWifiManager.isWpa3SuiteBSupported(),
-                mWifiManager.isEnhancedOpenSupported());
+                mWifiManager.isEnhancedOpenSupported(),
+                mScanResultUpdater);
 
         // Iterate through current entries and update each entry's scan results
         mStandardWifiEntryCache.entrySet().forEach(entry -> {
@@ -271,7 +272,7 @@ public class SavedNetworkTracker extends BaseWifiTracker {
         long scanAgeWindow = mMaxScanAgeMillis;
         if (lastScanSucceeded) {
             // Scan succeeded, cache new scans
-            mScanResultUpdater.update(mWifiManager.getScanResults());
+            mScanResultUpdater.update(getScanResultsSnapshot());
         } else {
             // Scan failed, increase scan age window to prevent WifiEntry list from
             // clearing prematurely.
@@ -17,21 +17,42 @@
 package com.android.wifitrackerlib;
 
 import android.net.wifi.ScanResult;
+import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
 
 import java.time.Clock;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
 
 /**
  * Utility class to keep a running list of scan results merged by BSSID.
  *
+ * Scan results are also indexed by age so that eviction only touches expired scans, and the
+ * age-filtered lists returned by {@link #getScanResults(long)} are cached and shared between
+ * callers until the next update.
+ *
  * Thread-safe.
  */
 public class ScanResultUpdater {
+    // Orders scan results from oldest to newest.
+    private static final Comparator<ScanResult> AGE_COMPARATOR =
+            Comparator.comparingLong((ScanResult result) -> result.timestamp)
+                    .thenComparing(result -> result.BSSID,
+                            Comparator.nullsFirst(Comparator.naturalOrder()));
+
     private HashMap<String, ScanResult> mScanResultsByBssid = new HashMap<>();
+    // The values of mScanResultsByBssid, oldest first.
+    private final TreeSet<ScanResult> mScanResultsByAge = new TreeSet<>(AGE_COMPARATOR);
+    // Results of getScanResults(maxScanAgeMillis) by maxScanAgeMillis, cleared on update.
+    private final HashMap<Long, Snapshot> mSnapshotsByMaxScanAge = new HashMap<>();
+    // Security types of the scan results seen per BSSID, valid while the capabilities match.
+    private final HashMap<String, SecurityTypes> mSecurityTypesByBssid = new HashMap<>();
     private final long mMaxScanAgeMillis;
     private final Object mLock = new Object();
     private final Clock mClock;
@@ -59,14 +80,22 @@ public class ScanResultUpdater {
      */
     public void update(@NonNull List<ScanResult> newResults) {
         synchronized (mLock) {
-            evictOldScans();
+            boolean changed = evictOldScans();
 
             for (ScanResult result : newResults) {
                 ScanResult prevResult = mScanResultsByBssid.get(result.BSSID);
                 if (prevResult == null || (prevResult.timestamp < result.timestamp)) {
+                    if (prevResult != null) {
+                        mScanResultsByAge.remove(prevResult);
+                    }
                     mScanResultsByBssid.put(result.BSSID, result);
+                    mScanResultsByAge.add(result);
+                    changed = true;
                 }
             }
+            if (changed) {
+                mSnapshotsByMaxScanAge.clear();
+            }
         }
     }
 
@@ -79,8 +108,10 @@ public class ScanResultUpdater {
     }
 
     /**
-     * Returns all seen scan results merged by BSSID and newer than maxScanAgeMillis.
+     * Returns all seen scan results merged by BSSID and newer than maxScanAgeMillis, newest first.
      * maxScanAgeMillis must be less than or equal to the mMaxScanAgeMillis field if it was set.
+     *
+     * The returned list is unmodifiable and may be shared with other callers.
      */
     @NonNull
     public List<ScanResult> getScanResults(long maxScanAgeMillis) throws IllegalArgumentException {
@@ -89,20 +120,105 @@ public class ScanResultUpdater {
                     "maxScanAgeMillis argument cannot be greater than mMaxScanAgeMillis!");
         }
         synchronized (mLock) {
+            final long nowMillis = mClock.millis();
+            Snapshot snapshot = mSnapshotsByMaxScanAge.get(maxScanAgeMillis);
+            if (snapshot != null && snapshot.isValid(nowMillis, maxScanAgeMillis)) {
+                return snapshot.scanResults;
+            }
             List<ScanResult> ageFilteredResults = new ArrayList<>();
-            for (ScanResult result : mScanResultsByBssid.values()) {
-                if (mClock.millis() - result.timestamp / 1000 <= maxScanAgeMillis) {
-                    ageFilteredResults.add(result);
+            long oldestTimestampMillis = Long.MAX_VALUE;
+            Iterator<ScanResult> iter = mScanResultsByAge.descendingIterator();
+            while (iter.hasNext()) {
+                ScanResult result = iter.next();
+                if (nowMillis - result.timestamp / 1000 > maxScanAgeMillis) {
+                    // All remaining results are older.
+                    break;
                 }
+                ageFilteredResults.add(result);
+                oldestTimestampMillis = result.timestamp / 1000;
             }
-            return ageFilteredResults;
+            snapshot = new Snapshot(Collections.unmodifiableList(ageFilteredResults), nowMillis,
+                    oldestTimestampMillis);
+            mSnapshotsByMaxScanAge.put(maxScanAgeMillis, snapshot);
+            return snapshot.scanResults;
         }
     }
 
-    private void evictOldScans() {
+    /**
+     * Returns the security types of a scan result as a bitset of (1 << SECURITY type), see
+     * {@link Utils#getSecurityTypeBitsFromScanResult(ScanResult)}. The result is cached per BSSID
+     * for as long as the BSSID is tracked and its capabilities do not change.
+     */
+    public int getSecurityTypeBits(@NonNull ScanResult scanResult) {
+        if (scanResult.BSSID == null) {
+            return Utils.getSecurityTypeBitsFromScanResult(scanResult);
+        }
         synchronized (mLock) {
-            mScanResultsByBssid.entrySet().removeIf((entry) ->
-                    mClock.millis() - entry.getValue().timestamp / 1000 > mMaxScanAgeMillis);
+            SecurityTypes securityTypes = mSecurityTypesByBssid.get(scanResult.BSSID);
+            if (securityTypes == null
+                    || !TextUtils.equals(securityTypes.capabilities, scanResult.capabilities)) {
+                securityTypes = new SecurityTypes(scanResult.capabilities,
+                        Utils.getSecurityTypeBitsFromScanResult(scanResult));
+                mSecurityTypesByBssid.put(scanResult.BSSID, securityTypes);
+            }
+            return securityTypes.bits;
+        }
+    }
+
+    /**
+     * Removes scans older than mMaxScanAgeMillis, oldest first.
+     *
+     * @return true if any scan was removed.
+     */
+    private boolean evictOldScans() {
+        synchronized (mLock) {
+            final long nowMillis = mClock.millis();
+            boolean evicted = false;
+            while (!mScanResultsByAge.isEmpty()
+                    && nowMillis - mScanResultsByAge.first().timestamp / 1000
+                            > mMaxScanAgeMillis) {
+                ScanResult result = mScanResultsByAge.pollFirst();
+                mScanResultsByBssid.remove(result.BSSID);
+                mSecurityTypesByBssid.remove(result.BSSID);
+                evicted = true;
+            }
+            return evicted;
+        }
+    }
+
+    /**
+     * Age-filtered scan results as of a point in time.
+     */
+    private static class Snapshot {
+        public final List<ScanResult> scanResults;
+        public final long createdMillis;
+        // Timestamp of the oldest scan result in scanResults, or Long.MAX_VALUE if it is empty.
+        public final long oldestTimestampMillis;
+
+        Snapshot(List<ScanResult> scanResults, long createdMillis, long oldestTimestampMillis) {
+            this.scanResults = scanResults;
+            this.createdMillis = createdMillis;
+            this.oldestTimestampMillis = oldestTimestampMillis;
+        }
+
+        /**
+         * Returns whether the snapshot still holds the results of the given max scan age. Results
+         * only age as time moves forward, so this is the case until its oldest result expires.
+         */
+        boolean isValid(long nowMillis, long maxScanAgeMillis) {
+            return nowMillis >= createdMillis
+                    && (oldestTimestampMillis == Long.MAX_VALUE
+                            || nowMillis - oldestTimestampMillis <= maxScanAgeMillis);
+        }
+    }
+
+    private static class SecurityTypes {
+        public final String capabilities;
+        public final int bits;
+
+        SecurityTypes(String capabilities, int bits) {
+            this.capabilities = capabilities;
+            this.bits = bits;
         }
     }
 }
@@ -20,7 +20,8 @@ import static androidx.core.util.Preconditions.checkNotNull;
 
 import static com.android.wifitrackerlib.NetworkRequestEntry.wifiConfigToNetworkRequestEntryKey;
 import static com.android.wifitrackerlib.StandardWifiEntry.wifiConfigToStandardWifiEntryKey;
-import static com.android.wifitrackerlib.Utils.getSecurityTypesFromScanResult;
+import static com.android.wifitrackerlib.Utils.getSecurityTypeBitsFromScanResult;
+import static com.android.wifitrackerlib.Utils.hasSecurityType;
 
 import static java.util.stream.Collectors.toList;
 
@@ -168,7 +169,7 @@ class StandardNetworkDetailsTracker extends NetworkDetailsTracker {
      * it to null if it does not exist.
      */
     private void conditionallyUpdateConfig() {
-        WifiConfiguration updatedConfig = mWifiManager.getPrivilegedConfiguredNetworks().stream()
+        WifiConfiguration updatedConfig = getPrivilegedConfiguredNetworksSnapshot().stream()
                 .filter(this::configMatches)
                 .findAny().orElse(null);
         mChosenEntry.updateConfig(updatedConfig);
@@ -178,9 +179,9 @@ class StandardNetworkDetailsTracker extends NetworkDetailsTracker {
      * Updates ScanResultUpdater with new ScanResults matching mChosenEntry.
      */
     private void cacheNewScanResults() {
-        mScanResultUpdater.update(mWifiManager.getScanResults().stream()
+        mScanResultUpdater.update(getScanResultsSnapshot().stream()
                 .filter(scan -> TextUtils.equals(scan.SSID, mChosenEntry.getSsid())
-                        && getSecurityTypesFromScanResult(scan).contains(
+                        && hasSecurityType(getSecurityTypeBitsFromScanResult(scan),
                                 mChosenEntry.getSecurity()))
                 .collect(toList()));
     }
@@ -20,6 +20,7 @@ import static android.net.wifi.WifiConfiguration.NetworkSelectionStatus.NETWORK_
 import static android.net.wifi.WifiConfiguration.NetworkSelectionStatus.NETWORK_SELECTION_PERMANENTLY_DISABLED;
 
 import static com.android.wifitrackerlib.StandardWifiEntry.ssidAndSecurityToStandardWifiEntryKey;
+import static com.android.wifitrackerlib.WifiEntry.NUM_SECURITY_TYPES;
 import static com.android.wifitrackerlib.WifiEntry.SECURITY_EAP;
 import static com.android.wifitrackerlib.WifiEntry.SECURITY_EAP_SUITE_B;
 import static com.android.wifitrackerlib.WifiEntry.SECURITY_NONE;
@@ -35,7 +36,6 @@ import static com.android.wifitrackerlib.WifiEntry.SPEED_VERY_FAST;
 import static com.android.wifitrackerlib.WifiEntry.Speed;
 
 import static java.util.Comparator.comparingInt;
-import static java.util.stream.Collectors.groupingBy;
 
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
@@ -101,29 +101,51 @@ class Utils {
 
     // Returns a list of SECURITY types supported by a ScanResult.
     static List<Integer> getSecurityTypesFromScanResult(@NonNull ScanResult scan) {
-        final List<Integer> securityTypes = new ArrayList<>();
+        return securityTypeBitsToList(getSecurityTypeBitsFromScanResult(scan));
+    }
+
+    // Returns the SECURITY types supported by a ScanResult as a bitset of (1 << SECURITY type).
+    static int getSecurityTypeBitsFromScanResult(@NonNull ScanResult scan) {
         if (scan.capabilities == null) {
-            securityTypes.add(SECURITY_NONE);
+            return securityTypeBit(SECURITY_NONE);
         } else if (scan.capabilities.contains("PSK") && scan.capabilities.contains("SAE")) {
-            securityTypes.add(SECURITY_PSK);
-            securityTypes.add(SECURITY_SAE);
+            return securityTypeBit(SECURITY_PSK) | securityTypeBit(SECURITY_SAE);
         } else if (scan.capabilities.contains("OWE_TRANSITION")) {
-            securityTypes.add(SECURITY_NONE);
-            securityTypes.add(SECURITY_OWE);
+            return securityTypeBit(SECURITY_NONE) | securityTypeBit(SECURITY_OWE);
         } else if (scan.capabilities.contains("OWE")) {
-            securityTypes.add(SECURITY_OWE);
+            return securityTypeBit(SECURITY_OWE);
         } else if (scan.capabilities.contains("WEP")) {
-            securityTypes.add(SECURITY_WEP);
+            return securityTypeBit(SECURITY_WEP);
         } else if (scan.capabilities.contains("SAE")) {
-            securityTypes.add(SECURITY_SAE);
+            return securityTypeBit(SECURITY_SAE);
         } else if (scan.capabilities.contains("PSK")) {
-            securityTypes.add(SECURITY_PSK);
+            return securityTypeBit(SECURITY_PSK);
         } else if (scan.capabilities.contains("EAP_SUITE_B_192")) {
-            securityTypes.add(SECURITY_EAP_SUITE_B);
+            return securityTypeBit(SECURITY_EAP_SUITE_B);
         } else if (scan.capabilities.contains("EAP")) {
-            securityTypes.add(SECURITY_EAP);
+            return securityTypeBit(SECURITY_EAP);
         } else {
-            securityTypes.add(SECURITY_NONE);
+            return securityTypeBit(SECURITY_NONE);
+        }
+    }
+
+    // Returns the bit representing a SECURITY type in a security type bitset.
+    static int securityTypeBit(@WifiEntry.Security int security) {
+        return 1 << security;
+    }
+
+    // Returns whether a security type bitset contains a SECURITY type.
+    static boolean hasSecurityType(int securityTypeBits, @WifiEntry.Security int security) {
+        return (securityTypeBits & securityTypeBit(security)) != 0;
+    }
+
+    // Returns the SECURITY types of a security type bitset in ascending order.
+    static List<Integer> securityTypeBitsToList(int securityTypeBits) {
+        final List<Integer> securityTypes = new ArrayList<>(Integer.bitCount(securityTypeBits));
+        for (int security = 0; security < NUM_SECURITY_TYPES; security++) {
+            if (hasSecurityType(securityTypeBits, security)) {
+                securityTypes.add(security);
+            }
         }
         return securityTypes;
     }
@@ -173,70 +195,89 @@ class Utils {
             boolean isWpa3SaeSupported,
             boolean isWpa3SuiteBSupported,
             boolean isEnhancedOpenSupported) {
+        return mapScanResultsToKey(scanResults, chooseSingleSecurity, wifiConfigsByKey,
+                isWpa3SaeSupported, isWpa3SuiteBSupported, isEnhancedOpenSupported,
+                null /* scanResultUpdater */);
+    }
+
+    /**
+     * Same as {@link #mapScanResultsToKey(List, boolean, Map, boolean, boolean, boolean)}, but
+     * looks up the security types of each ScanResult through the cache of scanResultUpdater if it
+     * is not null.
+     */
+    static Map<String, List<ScanResult>> mapScanResultsToKey(
+            @NonNull List<ScanResult> scanResults,
+            boolean chooseSingleSecurity,
+            @Nullable Map<String, WifiConfiguration> wifiConfigsByKey,
+            boolean isWpa3SaeSupported,
+            boolean isWpa3SuiteBSupported,
+            boolean isEnhancedOpenSupported,
+            @Nullable ScanResultUpdater scanResultUpdater) {
         if (wifiConfigsByKey == null) {
-            wifiConfigsByKey = new HashMap<>();
+            wifiConfigsByKey = Collections.emptyMap();
+        }
+        final Map<String, List<ScanResult>> scanResultsBySsid = new HashMap<>();
+        for (ScanResult scanResult : scanResults) {
+            if (TextUtils.isEmpty(scanResult.SSID)) {
+                continue;
+            }
+            List<ScanResult> ssidScanResults = scanResultsBySsid.get(scanResult.SSID);
+            if (ssidScanResults == null) {
+                ssidScanResults = new ArrayList<>();
+                scanResultsBySsid.put(scanResult.SSID, ssidScanResults);
+            }
+            ssidScanResults.add(scanResult);
+        }
+        // Ignore security types that are unsupported
+        int unsupportedSecurityTypes = 0;
+        if (!isWpa3SaeSupported) {
+            unsupportedSecurityTypes |= securityTypeBit(SECURITY_SAE);
+        }
+        if (!isWpa3SuiteBSupported) {
+            unsupportedSecurityTypes |= securityTypeBit(SECURITY_EAP_SUITE_B);
+        }
+        if (!isEnhancedOpenSupported) {
+            unsupportedSecurityTypes |= securityTypeBit(SECURITY_OWE);
         }
-        final Map<String, List<ScanResult>> scanResultsBySsid = scanResults.stream()
-                .filter(scanResult -> !TextUtils.isEmpty(scanResult.SSID))
-                .collect(groupingBy(scanResult -> scanResult.SSID));
         final Map<String, List<ScanResult>> scanResultsByKey = new HashMap<>();
 
-        for (String ssid : scanResultsBySsid.keySet()) {
-            final boolean pskConfigExists = wifiConfigsByKey.containsKey(
-                    ssidAndSecurityToStandardWifiEntryKey(ssid, SECURITY_PSK));
-            final boolean saeConfigExists = wifiConfigsByKey.containsKey(
-                    ssidAndSecurityToStandardWifiEntryKey(ssid, SECURITY_SAE));
-            final boolean openConfigExists = wifiConfigsByKey.containsKey(
-                    ssidAndSecurityToStandardWifiEntryKey(ssid, SECURITY_NONE));
-            final boolean oweConfigExists = wifiConfigsByKey.containsKey(
-                    ssidAndSecurityToStandardWifiEntryKey(ssid, SECURITY_OWE));
-
-            boolean pskInRange = false;
-            boolean saeInRange = false;
-            boolean oweInRange = false;
-            boolean openInRange = false;
-            for (ScanResult scan : scanResultsBySsid.get(ssid)) {
-                final List<Integer> securityTypes = getSecurityTypesFromScanResult(scan);
-                if (securityTypes.contains(SECURITY_PSK)) {
-                    pskInRange = true;
-                }
-                if (securityTypes.contains(SECURITY_SAE)) {
-                    saeInRange = true;
-                }
-                if (securityTypes.contains(SECURITY_OWE)) {
-                    oweInRange = true;
-                }
-                if (securityTypes.contains(SECURITY_NONE)) {
-                    openInRange = true;
-                }
+        for (Map.Entry<String, List<ScanResult>> ssidEntry : scanResultsBySsid.entrySet()) {
+            final String ssid = ssidEntry.getKey();
+            final List<ScanResult> ssidScanResults = ssidEntry.getValue();
+            final boolean pskConfigExists = configExists(wifiConfigsByKey, ssid, SECURITY_PSK);
+            final boolean saeConfigExists = configExists(wifiConfigsByKey, ssid, SECURITY_SAE);
+            final boolean openConfigExists = configExists(wifiConfigsByKey, ssid, SECURITY_NONE);
+            final boolean oweConfigExists = configExists(wifiConfigsByKey, ssid, SECURITY_OWE);
+
+            final int[] scanSecurityTypes = new int[ssidScanResults.size()];
+            int securityTypesInRange = 0;
+            for (int i = 0; i < scanSecurityTypes.length; i++) {
+                final ScanResult scan = ssidScanResults.get(i);
+                scanSecurityTypes[i] = scanResultUpdater != null
+                        ? scanResultUpdater.getSecurityTypeBits(scan)
+                        : getSecurityTypeBitsFromScanResult(scan);
+                securityTypesInRange |= scanSecurityTypes[i];
             }
-
-            for (ScanResult scan : scanResultsBySsid.get(ssid)) {
-                List<Integer> securityTypes = getSecurityTypesFromScanResult(scan);
-                List<Integer> chosenSecurityTypes = new ArrayList<>();
-                // Ignore security types that are unsupported
-                if (!isWpa3SaeSupported) {
-                    securityTypes.remove((Integer) SECURITY_SAE);
-                }
-                if (!isWpa3SuiteBSupported) {
-                    securityTypes.remove((Integer) SECURITY_EAP_SUITE_B);
-                }
-                if (!isEnhancedOpenSupported) {
-                    securityTypes.remove((Integer) SECURITY_OWE);
-                }
-
-                final boolean isSae = securityTypes.contains(SECURITY_SAE)
-                        && !securityTypes.contains(SECURITY_PSK);
-                final boolean isPsk = securityTypes.contains(SECURITY_PSK)
-                        && !securityTypes.contains(SECURITY_SAE);
-                final boolean isPskSaeTransition = securityTypes.contains(SECURITY_PSK)
-                        && securityTypes.contains(SECURITY_SAE);
-                final boolean isOwe = securityTypes.contains(SECURITY_OWE)
-                        && !securityTypes.contains(SECURITY_NONE);
-                final boolean isOweTransition = securityTypes.contains(SECURITY_NONE)
-                        && securityTypes.contains(SECURITY_OWE);
-                final boolean isOpen = securityTypes.contains(SECURITY_NONE)
-                        && !securityTypes.contains(SECURITY_OWE);
+            final boolean pskInRange = hasSecurityType(securityTypesInRange, SECURITY_PSK);
+            final boolean saeInRange = hasSecurityType(securityTypesInRange, SECURITY_SAE);
+            final boolean oweInRange = hasSecurityType(securityTypesInRange, SECURITY_OWE);
+            final boolean openInRange = hasSecurityType(securityTypesInRange, SECURITY_NONE);
+
+            for (int i = 0; i < scanSecurityTypes.length; i++) {
+                final ScanResult scan = ssidScanResults.get(i);
+                final int securityTypes = scanSecurityTypes[i] & ~unsupportedSecurityTypes;
+                final boolean hasPsk = hasSecurityType(securityTypes, SECURITY_PSK);
+                final boolean hasSae = hasSecurityType(securityTypes, SECURITY_SAE);
+                final boolean hasOwe = hasSecurityType(securityTypes, SECURITY_OWE);
+                final boolean hasNone = hasSecurityType(securityTypes, SECURITY_NONE);
+                int chosenSecurityTypes = 0;
+
+                final boolean isSae = hasSae && !hasPsk;
+                final boolean isPsk = hasPsk && !hasSae;
+                final boolean isPskSaeTransition = hasPsk && hasSae;
+                final boolean isOwe = hasOwe && !hasNone;
+                final boolean isOweTransition = hasNone && hasOwe;
+                final boolean isOpen = hasNone && !hasOwe;
 
                 if (chooseSingleSecurity) {
                     if (isPsk) {
@@ -246,15 +287,15 @@ class Utils {
                             // that the user only has the SAE AP to select.
                             continue;
                         } else {
-                            chosenSecurityTypes.add(SECURITY_PSK);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_PSK);
                         }
                     } else if (isPskSaeTransition) {
                         // Map to SAE if we have an SAE config and no PSK config (use SAE config to
                         // connect). Else, map to PSK for wider compatibility.
                         if (!pskConfigExists && saeConfigExists) {
-                            chosenSecurityTypes.add(SECURITY_SAE);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_SAE);
                         } else {
-                            chosenSecurityTypes.add(SECURITY_PSK);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_PSK);
                         }
                     } else if (isSae) {
                         // Map to SAE if we either
@@ -263,9 +304,9 @@ class Utils {
                         //    network with SAE security).
                         // Else, map to PSK for wider compatibility.
                         if (!pskConfigExists && (saeConfigExists || !pskInRange)) {
-                            chosenSecurityTypes.add(SECURITY_SAE);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_SAE);
                         } else {
-                            chosenSecurityTypes.add(SECURITY_PSK);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_PSK);
                         }
                     } else if (isOwe) {
                         // If an open AP is in range, use it instead if we have a config for it and
@@ -273,7 +314,7 @@ class Utils {
                         if (openInRange && openConfigExists && !oweConfigExists) {
                             continue;
                         } else {
-                            chosenSecurityTypes.add(SECURITY_OWE);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_OWE);
                         }
                     } else if (isOweTransition) {
                         // Map to OWE if we either
@@ -282,9 +323,9 @@ class Utils {
                         // Otherwise, if we have an open config only, map to open security so that
                         // config is used for connection.
                         if (oweConfigExists || !openConfigExists) {
-                            chosenSecurityTypes.add(SECURITY_OWE);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_OWE);
                         } else {
-                            chosenSecurityTypes.add(SECURITY_NONE);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_NONE);
                         }
                     } else if (isOpen) {
                         // If an OWE AP is in-range, then use it instead if we have a config for it
@@ -292,33 +333,46 @@ class Utils {
                         if (oweInRange && (oweConfigExists || !openConfigExists)) {
                             continue;
                         } else {
-                            chosenSecurityTypes.add(SECURITY_NONE);
+                            chosenSecurityTypes |= securityTypeBit(SECURITY_NONE);
                         }
                     } else {
-                        chosenSecurityTypes.addAll(securityTypes);
+                        chosenSecurityTypes |= securityTypes;
                     }
                 } else {
-                    chosenSecurityTypes.addAll(securityTypes);
+                    chosenSecurityTypes |= securityTypes;
                     if (isSae) {
                         // If we don't need to choose a single security type for the user to select,
                         // then SAE scans can also match to PSK configs, which will be dynamically
                         // upgraded to SAE by the framework at connection time.
-                        chosenSecurityTypes.add(SECURITY_PSK);
+                        chosenSecurityTypes |= securityTypeBit(SECURITY_PSK);
                     }
                 }
 
-                for (int security : chosenSecurityTypes) {
+                for (int security = 0; security < NUM_SECURITY_TYPES; security++) {
+                    if (!hasSecurityType(chosenSecurityTypes, security)) {
+                        continue;
+                    }
                     final String key = ssidAndSecurityToStandardWifiEntryKey(ssid, security);
-                    if (!scanResultsByKey.containsKey(key)) {
-                        scanResultsByKey.put(key, new ArrayList<>());
+                    List<ScanResult> keyScanResults = scanResultsByKey.get(key);
+                    if (keyScanResults == null) {
+                        keyScanResults = new ArrayList<>();
+                        scanResultsByKey.put(key, keyScanResults);
                     }
-                    scanResultsByKey.get(key).add(scan);
+                    keyScanResults.add(scan);
                 }
             }
         }
         return scanResultsByKey;
     }
 
+    // Returns whether a config exists for the StandardWifiEntry key of an SSID and security,
+    // without building the key if there are no configs to look up.
+    private static boolean configExists(@NonNull Map<String, WifiConfiguration> wifiConfigsByKey,
+            @NonNull String ssid, @WifiEntry.Security int security) {
+        return !wifiConfigsByKey.isEmpty() && wifiConfigsByKey.containsKey(
+                ssidAndSecurityToStandardWifiEntryKey(ssid, security));
+    }
+
     @Speed
     static int getAverageSpeedFromScanResults(@NonNull WifiNetworkScoreCache scoreCache,
             @NonNull List<ScanResult> scanResults) {
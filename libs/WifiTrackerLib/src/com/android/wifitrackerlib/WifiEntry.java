@@ -34,6 +34,7 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiNetworkScoreCache;
 import android.os.Handler;
+import android.text.TextUtils;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.IntDef;
@@ -812,6 +813,42 @@ public abstract class WifiEntry implements Comparable<WifiEntry> {
         }
     }
 
+    /**
+     * Snapshot of the attributes {@link #compareTo(WifiEntry)} orders by, used to tell whether an
+     * entry needs to be re-sorted. Must be kept in sync with {@link #compareTo(WifiEntry)}.
+     */
+    static class SortKey {
+        private final int mLevel;
+        private final boolean mIsSubscription;
+        private final boolean mIsSaved;
+        private final boolean mIsSuggestion;
+        private final String mTitle;
+
+        SortKey(@NonNull WifiEntry entry) {
+            mLevel = entry.getLevel();
+            mIsSubscription = entry.isSubscription();
+            mIsSaved = entry.isSaved();
+            mIsSuggestion = entry.isSuggestion();
+            mTitle = entry.getTitle();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SortKey)) return false;
+            SortKey otherKey = (SortKey) other;
+            return mLevel == otherKey.mLevel
+                    && mIsSubscription == otherKey.mIsSubscription
+                    && mIsSaved == otherKey.mIsSaved
+                    && mIsSuggestion == otherKey.mIsSuggestion
+                    && TextUtils.equals(mTitle, otherKey.mTitle);
+        }
+
+        @Override
+        public int hashCode() {
+            return mLevel * 31 + (mTitle == null ? 0 : mTitle.hashCode());
+        }
+    }
+
     @Override
     public int compareTo(@NonNull WifiEntry other) {
         if (getLevel() != WIFI_LEVEL_UNREACHABLE && other.getLevel() == WIFI_LEVEL_UNREACHABLE) {
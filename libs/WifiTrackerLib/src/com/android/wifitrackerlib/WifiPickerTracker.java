@@ -22,7 +22,7 @@ import static com.android.wifitrackerlib.NetworkRequestEntry.wifiConfigToNetwork
 import static com.android.wifitrackerlib.OsuWifiEntry.osuProviderToOsuWifiEntryKey;
 import static com.android.wifitrackerlib.PasspointWifiEntry.uniqueIdToPasspointWifiEntryKey;
 import static com.android.wifitrackerlib.StandardWifiEntry.wifiConfigToStandardWifiEntryKey;
-import static com.android.wifitrackerlib.Utils.getSecurityTypesFromScanResult;
+import static com.android.wifitrackerlib.Utils.hasSecurityType;
 import static com.android.wifitrackerlib.Utils.mapScanResultsToKey;
 import static com.android.wifitrackerlib.WifiEntry.CONNECTED_STATE_CONNECTED;
 import static com.android.wifitrackerlib.WifiEntry.CONNECTED_STATE_CONNECTING;
@@ -64,6 +64,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -91,6 +92,9 @@ public class WifiPickerTracker extends BaseWifiTracker {
     private final Object mLock = new Object();
     // List representing return value of the getWifiEntries() API
     @GuardedBy("mLock") private final List<WifiEntry> mWifiEntries = new ArrayList<>();
+    // Sort keys of mWifiEntries as of when each entry was placed, index-aligned with mWifiEntries.
+    @GuardedBy("mLock") private final List<WifiEntry.SortKey> mWifiEntrySortKeys =
+            new ArrayList<>();
     // Reference to the WifiEntry representing the network that is currently connected to
     private WifiEntry mConnectedWifiEntry;
     // NetworkRequestEntry representing a network that was connected through the NetworkRequest API
@@ -187,9 +191,9 @@ public class WifiPickerTracker extends BaseWifiTracker {
     @WorkerThread
     @Override
     protected void handleOnStart() {
-        updateWifiConfigurations(mWifiManager.getPrivilegedConfiguredNetworks());
-        updatePasspointConfigurations(mWifiManager.getPasspointConfigurations());
-        mScanResultUpdater.update(mWifiManager.getScanResults());
+        updateWifiConfigurations(getPrivilegedConfiguredNetworksSnapshot());
+        updatePasspointConfigurations(getPasspointConfigurationsSnapshot());
+        mScanResultUpdater.update(getScanResultsSnapshot());
         conditionallyUpdateScanResults(true /* lastScanSucceeded */);
         final WifiInfo wifiInfo = mWifiManager.getConnectionInfo();
         final Network currentNetwork = mWifiManager.getCurrentNetwork();
@@ -233,9 +237,9 @@ public class WifiPickerTracker extends BaseWifiTracker {
             updateWifiConfiguration(
                     config, (Integer) intent.getExtra(WifiManager.EXTRA_CHANGE_REASON));
         } else {
-            updateWifiConfigurations(mWifiManager.getPrivilegedConfiguredNetworks());
+            updateWifiConfigurations(getPrivilegedConfiguredNetworksSnapshot());
         }
-        updatePasspointConfigurations(mWifiManager.getPasspointConfigurations());
+        updatePasspointConfigurations(getPasspointConfigurationsSnapshot());
         // Update scans since config changes may result in different entries being shown.
         final List<ScanResult> scanResults = mScanResultUpdater.getScanResults();
         updateStandardWifiEntryScans(scanResults);
@@ -312,6 +316,7 @@ public class WifiPickerTracker extends BaseWifiTracker {
      */
     @WorkerThread
     private void updateWifiEntries() {
+        final WifiEntriesDiff diff;
         synchronized (mLock) {
             mConnectedWifiEntry = mStandardWifiEntryCache.values().stream().filter(entry -> {
                 final @WifiEntry.ConnectedState int connectedState = entry.getConnectedState();
@@ -336,7 +341,7 @@ public class WifiPickerTracker extends BaseWifiTracker {
                     && mNetworkRequestEntry.getConnectedState() != CONNECTED_STATE_DISCONNECTED) {
                 mConnectedWifiEntry = mNetworkRequestEntry;
             }
-            mWifiEntries.clear();
+            final List<WifiEntry> wifiEntries = new ArrayList<>();
             for (String key : mStandardWifiEntryCache.keySet()) {
                 // Continue if we're connected to this network with a non-user-shareable config.
                 if (mConnectedWifiEntry != null
@@ -349,29 +354,110 @@ public class WifiPickerTracker extends BaseWifiTracker {
                 if (!entry.isSaved()
                         && suggestedEntry != null && suggestedEntry.isUserShareable()) {
                     if (suggestedEntry.getConnectedState() == CONNECTED_STATE_DISCONNECTED) {
-                        mWifiEntries.add(suggestedEntry);
+                        wifiEntries.add(suggestedEntry);
                     }
                 } else {
                     if (entry.getConnectedState() == CONNECTED_STATE_DISCONNECTED) {
-                        mWifiEntries.add(entry);
+                        wifiEntries.add(entry);
                     }
                 }
 
             }
-            mWifiEntries.addAll(mPasspointWifiEntryCache.values().stream().filter(entry ->
+            wifiEntries.addAll(mPasspointWifiEntryCache.values().stream().filter(entry ->
                     entry.getConnectedState() == CONNECTED_STATE_DISCONNECTED).collect(toList()));
-            mWifiEntries.addAll(mOsuWifiEntryCache.values().stream().filter(entry ->
+            wifiEntries.addAll(mOsuWifiEntryCache.values().stream().filter(entry ->
                     entry.getConnectedState() == CONNECTED_STATE_DISCONNECTED
                             && !entry.isAlreadyProvisioned()).collect(toList()));
-            Collections.sort(mWifiEntries);
+            diff = updateSortedWifiEntries(wifiEntries);
             if (isVerboseLoggingEnabled()) {
                 Log.v(TAG, "Connected WifiEntry: " + mConnectedWifiEntry);
                 Log.v(TAG, "Updated WifiEntries: " + Arrays.toString(mWifiEntries.toArray()));
+                Log.v(TAG, "WifiEntries diff: " + diff);
             }
         }
+        if (!diff.isEmpty()) {
+            notifyOnWifiEntriesDiff(diff);
+        }
         notifyOnWifiEntriesChanged();
     }
 
+    /**
+     * Replaces the contents of mWifiEntries with |wifiEntries| while keeping it sorted.
+     *
+     * Entries whose sort key is unchanged since they were placed keep their relative order and
+     * are not compared again; only new entries and entries whose sort key changed are sorted and
+     * merged back in.
+     *
+     * @return the differences between the previous and the new list.
+     */
+    @GuardedBy("mLock")
+    @WorkerThread
+    private WifiEntriesDiff updateSortedWifiEntries(@NonNull List<WifiEntry> wifiEntries) {
+        final WifiEntriesDiff diff = new WifiEntriesDiff();
+        // WifiEntry#equals() compares keys, but a standard and a suggested entry may share a key.
+        final Set<WifiEntry> candidates = Collections.newSetFromMap(new IdentityHashMap<>());
+        candidates.addAll(wifiEntries);
+        final Set<WifiEntry> previousEntries = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<WifiEntry> stableEntries = new ArrayList<>(mWifiEntries.size());
+        final List<WifiEntry.SortKey> stableSortKeys = new ArrayList<>(mWifiEntries.size());
+        // Position of each re-sorted entry among the entries kept from the previous list.
+        final Map<WifiEntry, Integer> previousRanks = new IdentityHashMap<>();
+        for (int i = 0; i < mWifiEntries.size(); i++) {
+            final WifiEntry entry = mWifiEntries.get(i);
+            if (!candidates.contains(entry)) {
+                diff.removed.add(entry);
+                continue;
+            }
+            final WifiEntry.SortKey sortKey = new WifiEntry.SortKey(entry);
+            if (sortKey.equals(mWifiEntrySortKeys.get(i))) {
+                stableEntries.add(entry);
+                stableSortKeys.add(sortKey);
+            } else {
+                previousRanks.put(entry, previousEntries.size());
+            }
+            previousEntries.add(entry);
+        }
+
+        final List<WifiEntry> resortedEntries = new ArrayList<>();
+        for (WifiEntry entry : wifiEntries) {
+            if (!previousEntries.contains(entry)) {
+                diff.inserted.add(entry);
+                resortedEntries.add(entry);
+            } else if (previousRanks.containsKey(entry)) {
+                resortedEntries.add(entry);
+            }
+        }
+        Collections.sort(resortedEntries);
+
+        mWifiEntries.clear();
+        mWifiEntrySortKeys.clear();
+        int stableIndex = 0;
+        int rank = 0;
+        for (WifiEntry entry : resortedEntries) {
+            while (stableIndex < stableEntries.size()
+                    && stableEntries.get(stableIndex).compareTo(entry) <= 0) {
+                mWifiEntries.add(stableEntries.get(stableIndex));
+                mWifiEntrySortKeys.add(stableSortKeys.get(stableIndex));
+                stableIndex++;
+                rank++;
+            }
+            final Integer previousRank = previousRanks.get(entry);
+            if (previousRank != null) {
+                if (previousRank == rank) {
+                    diff.changed.add(entry);
+                } else {
+                    diff.moved.add(entry);
+                }
+                rank++;
+            }
+            mWifiEntries.add(entry);
+            mWifiEntrySortKeys.add(new WifiEntry.SortKey(entry));
+        }
+        mWifiEntries.addAll(stableEntries.subList(stableIndex, stableEntries.size()));
+        mWifiEntrySortKeys.addAll(stableSortKeys.subList(stableIndex, stableSortKeys.size()));
+        return diff;
+    }
+
     /**
      * Updates or removes scan results for the corresponding StandardWifiEntries.
      * New entries will be created for scan results without an existing entry.
@@ -390,7 +476,8 @@ public class WifiPickerTracker extends BaseWifiTracker {
                 mWifiConfigCache,
                 mWifiManager.isWpa3SaeSupported(),
                 mWifiManager.isWpa3SuiteBSupported(),
-                mWifiManager.isEnhancedOpenSupported());
+                mWifiManager.isEnhancedOpenSupported(),
+                mScanResultUpdater);
 
         // Iterate through current entries and update each entry's scan results
         mStandardWifiEntryCache.entrySet().removeIf(e -> {
@@ -431,7 +518,8 @@ public class WifiPickerTracker extends BaseWifiTracker {
                 mWifiConfigCache,
                 mWifiManager.isWpa3SaeSupported(),
                 mWifiManager.isWpa3SuiteBSupported(),
-                mWifiManager.isEnhancedOpenSupported());
+                mWifiManager.isEnhancedOpenSupported(),
+                mScanResultUpdater);
 
         Map<String, WifiConfiguration> userSharedConfigsByKey =
                 mWifiManager.getWifiConfigForMatchedNetworkSuggestionsSharedWithUser(scanResults)
@@ -566,7 +654,7 @@ public class WifiPickerTracker extends BaseWifiTracker {
 
         List<ScanResult> matchedScans = scanResults.stream().filter(scan ->
                 TextUtils.equals(scan.SSID, ssid)
-                        && getSecurityTypesFromScanResult(scan).contains(security))
+                        && hasSecurityType(mScanResultUpdater.getSecurityTypeBits(scan), security))
                 .collect(toList());
         mNetworkRequestEntry.updateScanResultInfo(matchedScans);
     }
@@ -589,7 +677,7 @@ public class WifiPickerTracker extends BaseWifiTracker {
         long scanAgeWindow = mMaxScanAgeMillis;
         if (lastScanSucceeded) {
             // Scan succeeded, cache new scans
-            mScanResultUpdater.update(mWifiManager.getScanResults());
+            mScanResultUpdater.update(getScanResultsSnapshot());
         } else {
             // Scan failed, increase scan age window to prevent WifiEntry list from
             // clearing prematurely.
@@ -878,6 +966,16 @@ public class WifiPickerTracker extends BaseWifiTracker {
         }
     }
 
+    /**
+     * Posts onWifiEntriesDiff callback on the main thread.
+     */
+    @WorkerThread
+    private void notifyOnWifiEntriesDiff(@NonNull WifiEntriesDiff diff) {
+        if (mListener != null) {
+            mMainHandler.post(() -> mListener.onWifiEntriesDiff(diff));
+        }
+    }
+
     /**
      * Posts onNumSavedNetworksChanged callback on the main thread.
      */
@@ -898,6 +996,35 @@ public class WifiPickerTracker extends BaseWifiTracker {
         }
     }
 
+    /**
+     * Differences between two consecutive values of {@link #getWifiEntries()}.
+     */
+    public static class WifiEntriesDiff {
+        /** Entries added to the list. */
+        @NonNull public final List<WifiEntry> inserted = new ArrayList<>();
+        /** Entries removed from the list. */
+        @NonNull public final List<WifiEntry> removed = new ArrayList<>();
+        /**
+         * Entries whose sort attributes changed and whose position among the entries present in
+         * both lists changed.
+         */
+        @NonNull public final List<WifiEntry> moved = new ArrayList<>();
+        /** Entries whose sort attributes changed but which kept their place in the list. */
+        @NonNull public final List<WifiEntry> changed = new ArrayList<>();
+
+        /** Returns true if the list did not change. */
+        public boolean isEmpty() {
+            return inserted.isEmpty() && removed.isEmpty() && moved.isEmpty()
+                    && changed.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "inserted:" + inserted.size() + ",removed:" + removed.size()
+                    + ",moved:" + moved.size() + ",changed:" + changed.size();
+        }
+    }
+
     /**
      * Listener for changes to the list of visible WifiEntries as well as the number of saved
      * networks and subscriptions.
@@ -913,6 +1040,15 @@ public class WifiPickerTracker extends BaseWifiTracker {
         @MainThread
         void onWifiEntriesChanged();
 
+        /**
+         * Called before {@link #onWifiEntriesChanged()} when entries of
+         * {@link #getWifiEntries()} were inserted, removed, moved or re-sorted, with the
+         * differences from the previous list.
+         */
+        @MainThread
+        default void onWifiEntriesDiff(@NonNull WifiEntriesDiff diff) {
+        }
+
         /**
          * Called when there are changes to
          *      {@link #getNumSavedNetworks()}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.wifitrackerlib;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+import android.net.wifi.hotspot2.PasspointConfiguration;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.GuardedBy;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide source of the Wi-Fi data shared by every started {@link BaseWifiTracker}.
+ *
+ * Trackers acquire the data source in onStart and release it in onStop. While at least one tracker
+ * holds it, a single broadcast receiver is registered on behalf of all of them and each broadcast
+ * is fanned out to every tracker's worker thread.
+ *
+ * Scan results, configured networks and Passpoint configurations are fetched from WifiManager at
+ * most once per invalidating broadcast and handed out as the same unmodifiable snapshot to every
+ * tracker, so several trackers alive at once (e.g. picker + details + saved networks) cost a single
+ * binder transfer per event instead of one per tracker. Snapshots must not be modified by callers.
+ *
+ * The last sticky broadcasts received are kept as well, so that a tracker started while the
+ * receiver is already registered gets them as it would with its own receiver.
+ */
+class WifiTrackerDataSource {
+    private static final String TAG = "WifiTrackerDataSource";
+
+    // Actions of the sticky broadcasts replayed to a receiver when it is registered.
+    private static final String[] STICKY_ACTIONS = {
+            WifiManager.WIFI_STATE_CHANGED_ACTION,
+            WifiManager.NETWORK_STATE_CHANGED_ACTION,
+    };
+
+    /**
+     * Snapshot of a WifiManager list, with a generation bumped on every invalidation so that a
+     * list fetched across an invalidation is not cached.
+     */
+    private static class CachedList<T> {
+        @Nullable List<T> mList;
+        int mGeneration;
+
+        void invalidate() {
+            mList = null;
+            mGeneration++;
+        }
+    }
+
+    private static final Object sLock = new Object();
+    @GuardedBy("sLock")
+    private static final Map<Context, WifiTrackerDataSource> sDataSources = new ArrayMap<>();
+
+    private final Context mContext;
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final List<BaseWifiTracker> mClients = new ArrayList<>();
+    // Worker handler of the client the receiver is currently registered with.
+    @GuardedBy("mLock")
+    @Nullable private Handler mReceiverHandler;
+
+    // Last sticky broadcast received per action.
+    @GuardedBy("mLock")
+    private final Map<String, Intent> mStickyIntents = new ArrayMap<>();
+
+    // Cached snapshots, with a null list if stale.
+    @GuardedBy("mLock")
+    private final CachedList<ScanResult> mScanResults = new CachedList<>();
+    @GuardedBy("mLock")
+    private final CachedList<WifiConfiguration> mConfiguredNetworks = new CachedList<>();
+    @GuardedBy("mLock")
+    private final CachedList<WifiConfiguration> mPrivilegedConfiguredNetworks =
+            new CachedList<>();
+    @GuardedBy("mLock")
+    private final CachedList<PasspointConfiguration> mPasspointConfigurations =
+            new CachedList<>();
+    @GuardedBy("mLock")
+    private int mNumFetches;
+
+    private final BroadcastReceiver mBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        @WorkerThread
+        public void onReceive(Context context, Intent intent) {
+            dispatchBroadcast(intent, isInitialStickyBroadcast());
+        }
+    };
+
+    private WifiTrackerDataSource(@NonNull Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns the data source shared by all trackers of this process and adds the given tracker
+     * as a client of it, registering the shared broadcast receiver if this is the first client.
+     */
+    @MainThread
+    @NonNull
+    static WifiTrackerDataSource acquire(@NonNull Context context,
+            @NonNull BaseWifiTracker tracker) {
+        final Context appContext = context.getApplicationContext();
+        final Context key = appContext != null ? appContext : context;
+        synchronized (sLock) {
+            WifiTrackerDataSource dataSource = sDataSources.get(key);
+            if (dataSource == null) {
+                dataSource = new WifiTrackerDataSource(key);
+                sDataSources.put(key, dataSource);
+            }
+            dataSource.addClient(tracker);
+            return dataSource;
+        }
+    }
+
+    /**
+     * Removes the given tracker as a client. Once the last client is released, the broadcast
+     * receiver is unregistered and the cached snapshots are dropped.
+     */
+    @MainThread
+    void release(@NonNull BaseWifiTracker tracker) {
+        synchronized (sLock) {
+            if (removeClient(tracker)) {
+                sDataSources.remove(mContext);
+            }
+        }
+    }
+
+    @GuardedBy("sLock")
+    private void addClient(@NonNull BaseWifiTracker tracker) {
+        synchronized (mLock) {
+            if (mClients.contains(tracker)) {
+                return;
+            }
+            mClients.add(tracker);
+            if (mReceiverHandler == null) {
+                registerReceiver(tracker.mWorkerHandler);
+                return;
+            }
+            // The sticky broadcasts were already replayed to the registered receiver, hand the
+            // last ones to the new client instead.
+            for (Intent intent : mStickyIntents.values()) {
+                tracker.mWorkerHandler.post(() -> {
+                    if (isClient(tracker)) {
+                        tracker.onBroadcastReceived(intent);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Returns true if the removed client was the last one.
+     */
+    @GuardedBy("sLock")
+    private boolean removeClient(@NonNull BaseWifiTracker tracker) {
+        synchronized (mLock) {
+            if (!mClients.remove(tracker)) {
+                return mClients.isEmpty();
+            }
+            if (mClients.isEmpty()) {
+                mContext.unregisterReceiver(mBroadcastReceiver);
+                mReceiverHandler = null;
+                mStickyIntents.clear();
+                invalidateAll();
+                return true;
+            }
+            // Don't keep receiving broadcasts on the worker thread of stopped trackers only, since
+            // their owner may quit that thread at any time.
+            final Looper receiverLooper = mReceiverHandler.getLooper();
+            for (BaseWifiTracker client : mClients) {
+                if (client.mWorkerHandler.getLooper() == receiverLooper) {
+                    return false;
+                }
+            }
+            mContext.unregisterReceiver(mBroadcastReceiver);
+            registerReceiver(mClients.get(0).mWorkerHandler);
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void registerReceiver(@NonNull Handler handler) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        filter.addAction(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION);
+        filter.addAction(WifiManager.PARTIAL_SCAN_RESULTS_AVAILABLE_ACTION);
+        filter.addAction(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
+        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
+        mContext.registerReceiver(mBroadcastReceiver, filter,
+                /* broadcastPermission */ null, handler);
+        mReceiverHandler = handler;
+    }
+
+    /**
+     * Invalidates the snapshots affected by the broadcast and hands the broadcast to every client.
+     * Clients sharing the receiver's worker thread handle it inline, others on their own thread.
+     *
+     * A sticky broadcast replayed when the receiver is registered again (see removeClient) is
+     * not handed out, since every client already got it.
+     */
+    @WorkerThread
+    private void dispatchBroadcast(@NonNull Intent intent, boolean isInitialStickyBroadcast) {
+        final String action = intent.getAction();
+        final List<BaseWifiTracker> clients;
+        final Looper receiverLooper;
+        synchronized (mLock) {
+            if (mReceiverHandler == null) {
+                return;
+            }
+            final boolean isSticky = isStickyAction(action);
+            if (isSticky && isInitialStickyBroadcast && mStickyIntents.containsKey(action)) {
+                mStickyIntents.put(action, intent);
+                return;
+            }
+            if (isSticky) {
+                mStickyIntents.put(action, intent);
+            }
+            invalidate(action);
+            clients = new ArrayList<>(mClients);
+            receiverLooper = mReceiverHandler.getLooper();
+        }
+        if (BaseWifiTracker.isVerboseLoggingEnabled()) {
+            Log.v(TAG, "Dispatching " + intent.getAction() + " to " + clients.size()
+                    + " trackers");
+        }
+        for (BaseWifiTracker client : clients) {
+            final Handler workerHandler = client.mWorkerHandler;
+            if (workerHandler.getLooper() == receiverLooper) {
+                client.onBroadcastReceived(intent);
+            } else {
+                workerHandler.post(() -> {
+                    if (isClient(client)) {
+                        client.onBroadcastReceived(intent);
+                    }
+                });
+            }
+        }
+    }
+
+    private static boolean isStickyAction(@Nullable String action) {
+        for (String stickyAction : STICKY_ACTIONS) {
+            if (stickyAction.equals(action)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @GuardedBy("mLock")
+    private void invalidate(@Nullable String action) {
+        if (WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
+            invalidateAll();
+        } else if (WifiManager.SCAN_RESULTS_AVAILABLE_ACTION.equals(action)
+                || WifiManager.PARTIAL_SCAN_RESULTS_AVAILABLE_ACTION.equals(action)) {
+            mScanResults.invalidate();
+        } else if (WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION.equals(action)) {
+            mConfiguredNetworks.invalidate();
+            mPrivilegedConfiguredNetworks.invalidate();
+            mPasspointConfigurations.invalidate();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void invalidateAll() {
+        mScanResults.invalidate();
+        mConfiguredNetworks.invalidate();
+        mPrivilegedConfiguredNetworks.invalidate();
+        mPasspointConfigurations.invalidate();
+    }
+
+    private boolean isClient(@NonNull BaseWifiTracker tracker) {
+        synchronized (mLock) {
+            return mClients.contains(tracker);
+        }
+    }
+
+    /**
+     * Returns the shared snapshot of WifiManager#getScanResults(), fetching it with the given
+     * WifiManager if it is stale.
+     */
+    @AnyThread
+    @NonNull
+    List<ScanResult> getScanResults(@NonNull WifiManager wifiManager) {
+        return getOrFetch(mScanResults, wifiManager::getScanResults);
+    }
+
+    /**
+     * Returns the shared snapshot of WifiManager#getConfiguredNetworks(), fetching it with the
+     * given WifiManager if it is stale.
+     */
+    @AnyThread
+    @NonNull
+    List<WifiConfiguration> getConfiguredNetworks(@NonNull WifiManager wifiManager) {
+        return getOrFetch(mConfiguredNetworks, wifiManager::getConfiguredNetworks);
+    }
+
+    /**
+     * Returns the shared snapshot of WifiManager#getPrivilegedConfiguredNetworks(), fetching it
+     * with the given WifiManager if it is stale.
+     */
+    @AnyThread
+    @NonNull
+    List<WifiConfiguration> getPrivilegedConfiguredNetworks(@NonNull WifiManager wifiManager) {
+        return getOrFetch(mPrivilegedConfiguredNetworks,
+                wifiManager::getPrivilegedConfiguredNetworks);
+    }
+
+    /**
+     * Returns the shared snapshot of WifiManager#getPasspointConfigurations(), fetching it with
+     * the given WifiManager if it is stale.
+     */
+    @AnyThread
+    @NonNull
+    List<PasspointConfiguration> getPasspointConfigurations(@NonNull WifiManager wifiManager) {
+        return getOrFetch(mPasspointConfigurations, wifiManager::getPasspointConfigurations);
+    }
+
+    /**
+     * Returns the cached list, or fetches it without holding the lock so that a slow binder call
+     * doesn't block the other trackers. The fetched list is only cached if the list wasn't
+     * invalidated in the meantime.
+     */
+    @AnyThread
+    @NonNull
+    private <T> List<T> getOrFetch(@NonNull CachedList<T> cachedList,
+            @NonNull Supplier<List<T>> fetcher) {
+        final int generation;
+        synchronized (mLock) {
+            if (cachedList.mList != null) {
+                return cachedList.mList;
+            }
+            generation = cachedList.mGeneration;
+        }
+        final List<T> list = snapshot(fetcher.get());
+        synchronized (mLock) {
+            mNumFetches++;
+            if (cachedList.mList == null && cachedList.mGeneration == generation) {
+                cachedList.mList = list;
+            }
+            return cachedList.mList != null ? cachedList.mList : list;
+        }
+    }
+
+    @NonNull
+    private static <T> List<T> snapshot(@Nullable List<T> list) {
+        if (list == null || list.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    /**
+     * Returns the number of lists fetched from WifiManager since this data source was created.
+     */
+    @VisibleForTesting
+    int getNumFetches() {
+        synchronized (mLock) {
+            return mNumFetches;
+        }
+    }
+
+    /**
+     * Drops the data sources of all contexts, so that tests don't share them.
+     */
+    @VisibleForTesting
+    static void clearForTesting() {
+        synchronized (sLock) {
+            sDataSources.clear();
+        }
+    }
+
+    @VisibleForTesting
+    int getNumClients() {
+        synchronized (mLock) {
+            return mClients.size();
+        }
+    }
+}
@@ -41,6 +41,7 @@ import android.os.test.TestLooper;
 
 import androidx.lifecycle.Lifecycle;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -107,6 +108,11 @@ public class SavedNetworkTrackerTest {
                 .thenReturn(mMockNetworkScoreManager);
     }
 
+    @After
+    public void tearDown() {
+        WifiTrackerDataSource.clearForTesting();
+    }
+
     /**
      * Tests that the wifi state is set correctly after onStart, even if no broadcast was received.
      */
@@ -20,6 +20,9 @@ import static com.android.wifitrackerlib.TestUtils.buildScanResult;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
 
@@ -32,6 +35,7 @@ import org.mockito.MockitoAnnotations;
 
 import java.time.Clock;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class ScanResultUpdaterTest {
@@ -145,4 +149,81 @@ public class ScanResultUpdaterTest {
         scanResults = sru.getScanResults();
         assertThat(scanResults).containsExactly(scan1, scan2);
     }
+
+    /**
+     * Verify that cached security types follow changes to the capabilities of a BSSID.
+     */
+    @Test
+    public void testGetSecurityTypeBits_updatedWhenCapabilitiesChange() {
+        ScanResult pskResult = buildScanResult(SSID, BSSID_1, NOW_MILLIS);
+        pskResult.capabilities = "[PSK]";
+        ScanResult saeResult = buildScanResult(SSID, BSSID_1, NOW_MILLIS);
+        saeResult.capabilities = "[SAE]";
+        ScanResultUpdater sru = new ScanResultUpdater(mMockClock);
+        sru.update(Arrays.asList(pskResult));
+
+        assertEquals(Utils.getSecurityTypeBitsFromScanResult(pskResult),
+                sru.getSecurityTypeBits(pskResult));
+        assertEquals(Utils.getSecurityTypeBitsFromScanResult(pskResult),
+                sru.getSecurityTypeBits(pskResult));
+        assertEquals(Utils.getSecurityTypeBitsFromScanResult(saeResult),
+                sru.getSecurityTypeBits(saeResult));
+    }
+
+    /**
+     * Verify that repeated getScanResults calls share the same list until the next update.
+     */
+    @Test
+    public void testGetScanResults_reusesListUntilUpdate() {
+        ScanResultUpdater sru = new ScanResultUpdater(mMockClock, 15_000);
+        ScanResult scan1 = buildScanResult(SSID, BSSID_1, NOW_MILLIS);
+        sru.update(Arrays.asList(scan1));
+
+        List<ScanResult> scanResults = sru.getScanResults();
+        assertSame(scanResults, sru.getScanResults());
+
+        // Updating with an older scan of a known BSSID does not change the results.
+        sru.update(Arrays.asList(buildScanResult(SSID, BSSID_1, NOW_MILLIS - 1)));
+        assertSame(scanResults, sru.getScanResults());
+
+        ScanResult scan2 = buildScanResult(SSID, BSSID_2, NOW_MILLIS);
+        sru.update(Arrays.asList(scan2));
+        assertNotSame(scanResults, sru.getScanResults());
+        assertThat(sru.getScanResults()).containsExactly(scan1, scan2);
+    }
+
+    /**
+     * Verify that cached results are not returned once one of them is too old.
+     */
+    @Test
+    public void testGetScanResults_cachedResultsExpire() {
+        ScanResultUpdater sru = new ScanResultUpdater(mMockClock, 15_000);
+        ScanResult scan1 = buildScanResult(SSID, BSSID_1, NOW_MILLIS - 10_000);
+        ScanResult scan2 = buildScanResult(SSID, BSSID_2, NOW_MILLIS);
+        sru.update(Arrays.asList(scan1, scan2));
+        assertThat(sru.getScanResults()).containsExactly(scan1, scan2);
+
+        when(mMockClock.millis()).thenReturn(NOW_MILLIS + 5_001);
+        assertThat(sru.getScanResults()).containsExactly(scan2);
+    }
+
+    /**
+     * Verify that only expired scans are evicted on update, and that a BSSID replaced by a newer
+     * scan is evicted according to the newer scan's age.
+     */
+    @Test
+    public void testUpdate_evictsOnlyExpiredScans() {
+        ScanResultUpdater sru = new ScanResultUpdater(mMockClock, 15_000);
+        ScanResult oldScan1 = buildScanResult(SSID, BSSID_1, NOW_MILLIS - 14_000);
+        ScanResult scan2 = buildScanResult(SSID, BSSID_2, NOW_MILLIS - 10_000);
+        ScanResult scan3 = buildScanResult(SSID, BSSID_3, NOW_MILLIS - 1_000);
+        sru.update(Arrays.asList(oldScan1, scan2, scan3));
+        ScanResult newScan1 = buildScanResult(SSID, BSSID_1, NOW_MILLIS);
+        sru.update(Arrays.asList(newScan1));
+
+        when(mMockClock.millis()).thenReturn(NOW_MILLIS + 6_000);
+        sru.update(Collections.emptyList());
+
+        assertThat(sru.getScanResults()).containsExactly(newScan1, scan3).inOrder();
+    }
 }
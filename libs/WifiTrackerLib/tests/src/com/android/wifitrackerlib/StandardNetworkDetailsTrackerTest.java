@@ -40,6 +40,7 @@ import android.os.test.TestLooper;
 
 import androidx.lifecycle.Lifecycle;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -103,6 +104,11 @@ public class StandardNetworkDetailsTrackerTest {
                 .thenReturn(mMockNetworkScoreManager);
     }
 
+    @After
+    public void tearDown() {
+        WifiTrackerDataSource.clearForTesting();
+    }
+
     /**
      * Tests that the key of the created WifiEntry matches the key passed into the constructor.
      */
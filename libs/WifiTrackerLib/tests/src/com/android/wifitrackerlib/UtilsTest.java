@@ -25,13 +25,18 @@ import static com.android.wifitrackerlib.Utils.getCarrierNameForSubId;
 import static com.android.wifitrackerlib.Utils.getImsiProtectionDescription;
 import static com.android.wifitrackerlib.Utils.getMeteredDescription;
 import static com.android.wifitrackerlib.Utils.getNetworkSelectionDescription;
+import static com.android.wifitrackerlib.Utils.getSecurityTypeBitsFromScanResult;
+import static com.android.wifitrackerlib.Utils.getSecurityTypesFromScanResult;
 import static com.android.wifitrackerlib.Utils.getSubIdForConfig;
 import static com.android.wifitrackerlib.Utils.isImsiPrivacyProtectionProvided;
 import static com.android.wifitrackerlib.Utils.isSimPresent;
 import static com.android.wifitrackerlib.Utils.linkifyAnnotation;
 import static com.android.wifitrackerlib.Utils.mapScanResultsToKey;
+import static com.android.wifitrackerlib.Utils.securityTypeBitsToList;
 import static com.android.wifitrackerlib.WifiEntry.SECURITY_NONE;
+import static com.android.wifitrackerlib.WifiEntry.SECURITY_OWE;
 import static com.android.wifitrackerlib.WifiEntry.SECURITY_PSK;
+import static com.android.wifitrackerlib.WifiEntry.SECURITY_SAE;
 
 import static com.google.common.truth.Truth.assertThat;
 
@@ -75,7 +80,9 @@ import org.mockito.MockitoAnnotations;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.time.Clock;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -189,6 +196,59 @@ public class UtilsTest {
                 ssidAndSecurityToStandardWifiEntryKey(oweTransitionScan.SSID, SECURITY_NONE));
     }
 
+    @Test
+    public void testGetSecurityTypesFromScanResult_matchesSecurityTypeBits() {
+        final ScanResult wpa3TransitionScan = new ScanResult();
+        wpa3TransitionScan.capabilities = "[PSK+SAE]";
+        final ScanResult oweTransitionScan = new ScanResult();
+        oweTransitionScan.capabilities = "[OWE_TRANSITION]";
+
+        assertThat(getSecurityTypesFromScanResult(wpa3TransitionScan))
+                .containsExactly(SECURITY_PSK, SECURITY_SAE).inOrder();
+        assertThat(getSecurityTypesFromScanResult(oweTransitionScan))
+                .containsExactly(SECURITY_NONE, SECURITY_OWE).inOrder();
+        assertThat(securityTypeBitsToList(getSecurityTypeBitsFromScanResult(oweTransitionScan)))
+                .isEqualTo(getSecurityTypesFromScanResult(oweTransitionScan));
+    }
+
+    /**
+     * Maps a crowded 500-result scan repeatedly with and without the ScanResultUpdater security
+     * type cache, and verifies the cached mapping matches.
+     */
+    @Test
+    public void testMapScanResultsToKey_largeScan_cachedSecurityTypesMatchUncached() {
+        final String[] capabilities = {"", "[PSK]", "[SAE]", "[PSK+SAE]", "[OWE]",
+                "[OWE_TRANSITION]", "[WEP]", "[EAP]", "[EAP_SUITE_B_192]"};
+        final List<ScanResult> scanResults = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            // ~100 SSIDs with several BSSIDs each, and mixed security within some SSIDs.
+            final ScanResult scan = buildScanResult("ssid" + (i % 100),
+                    String.format("02:00:00:00:%02x:%02x", i / 256, i % 256), 0);
+            scan.capabilities = capabilities[(i / 100 + i) % capabilities.length];
+            scanResults.add(scan);
+        }
+        final Map<String, WifiConfiguration> wifiConfigsByKey = new HashMap<>();
+        final WifiConfiguration saeConfig = new WifiConfiguration();
+        saeConfig.SSID = "\"ssid1\"";
+        wifiConfigsByKey.put(ssidAndSecurityToStandardWifiEntryKey("ssid1", SECURITY_SAE),
+                saeConfig);
+        final ScanResultUpdater scanResultUpdater = new ScanResultUpdater(mock(Clock.class));
+        scanResultUpdater.update(scanResults);
+
+        for (int iteration = 0; iteration < 10; iteration++) {
+            for (boolean chooseSingleSecurity : new boolean[] {true, false}) {
+                final Map<String, List<ScanResult>> expected = mapScanResultsToKey(scanResults,
+                        chooseSingleSecurity, wifiConfigsByKey, true /* isWpa3SaeSupported */,
+                        true /* isWpa3SuiteBSupported */, true /* isEnhancedOpenSupported */);
+                final Map<String, List<ScanResult>> cached = mapScanResultsToKey(scanResults,
+                        chooseSingleSecurity, wifiConfigsByKey, true /* isWpa3SaeSupported */,
+                        true /* isWpa3SuiteBSupported */, true /* isEnhancedOpenSupported */,
+                        scanResultUpdater);
+                assertThat(cached).isEqualTo(expected);
+            }
+        }
+    }
+
     @Test
     public void testGetAutoConnectDescription_autoJoinEnabled_returnEmptyString() {
         final WifiConfiguration config = new WifiConfiguration();
@@ -23,7 +23,10 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -49,6 +52,7 @@ import android.util.Pair;
 
 import androidx.lifecycle.Lifecycle;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -140,6 +144,11 @@ public class WifiPickerTrackerTest {
                 .thenReturn(mMockNetworkScoreManager);
     }
 
+    @After
+    public void tearDown() {
+        WifiTrackerDataSource.clearForTesting();
+    }
+
     /**
      * Tests that receiving a wifi state change broadcast updates getWifiState().
      */
@@ -731,4 +740,170 @@ public class WifiPickerTrackerTest {
 
         verify(mMockWifiManager, atLeastOnce()).getMatchingOsuProviders(any());
     }
+
+    /**
+     * Tests that the diff callback reports inserted, moved and removed entries as the list is
+     * updated.
+     */
+    @Test
+    public void testWifiEntriesDiff_reportsInsertedMovedAndRemovedEntries() {
+        final int goodRssi = -50;
+        final int badRssi = -80;
+        when(mMockWifiManager.calculateSignalLevel(goodRssi)).thenReturn(4);
+        when(mMockWifiManager.calculateSignalLevel(badRssi)).thenReturn(1);
+        final WifiPickerTracker wifiPickerTracker = createTestWifiPickerTracker();
+        wifiPickerTracker.onStart();
+        mTestLooper.dispatchAll();
+        verify(mMockContext).registerReceiver(mBroadcastReceiverCaptor.capture(),
+                any(), any(), any());
+        final ArgumentCaptor<WifiPickerTracker.WifiEntriesDiff> diffCaptor =
+                ArgumentCaptor.forClass(WifiPickerTracker.WifiEntriesDiff.class);
+
+        when(mMockWifiManager.getScanResults()).thenReturn(Arrays.asList(
+                buildScanResult("ssid0", "bssid0", START_MILLIS, badRssi),
+                buildScanResult("ssid1", "bssid1", START_MILLIS, goodRssi)));
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mTestLooper.dispatchAll();
+
+        verify(mMockCallback, atLeastOnce()).onWifiEntriesDiff(diffCaptor.capture());
+        assertThat(diffCaptor.getValue().inserted).hasSize(2);
+        List<WifiEntry> wifiEntries = wifiPickerTracker.getWifiEntries();
+        assertThat(wifiEntries.get(0).getTitle()).isEqualTo("ssid1");
+        assertThat(wifiEntries.get(1).getTitle()).isEqualTo("ssid0");
+
+        // Swap the signal strengths so that the entries swap places.
+        Mockito.clearInvocations(mMockCallback);
+        when(mMockClock.millis()).thenReturn(START_MILLIS + 1000);
+        when(mMockWifiManager.getScanResults()).thenReturn(Arrays.asList(
+                buildScanResult("ssid0", "bssid0", START_MILLIS + 1000, goodRssi),
+                buildScanResult("ssid1", "bssid1", START_MILLIS + 1000, badRssi)));
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mTestLooper.dispatchAll();
+
+        verify(mMockCallback, atLeastOnce()).onWifiEntriesDiff(diffCaptor.capture());
+        assertThat(diffCaptor.getValue().moved).hasSize(2);
+        assertThat(diffCaptor.getValue().inserted).isEmpty();
+        assertThat(diffCaptor.getValue().removed).isEmpty();
+        wifiEntries = wifiPickerTracker.getWifiEntries();
+        assertThat(wifiEntries.get(0).getTitle()).isEqualTo("ssid0");
+        assertThat(wifiEntries.get(1).getTitle()).isEqualTo("ssid1");
+
+        // Time out ssid1 only.
+        Mockito.clearInvocations(mMockCallback);
+        final long timeoutMillis = START_MILLIS + 1000 + MAX_SCAN_AGE_MILLIS + 1;
+        when(mMockClock.millis()).thenReturn(timeoutMillis);
+        when(mMockWifiManager.getScanResults()).thenReturn(Collections.singletonList(
+                buildScanResult("ssid0", "bssid0", timeoutMillis, goodRssi)));
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mTestLooper.dispatchAll();
+
+        verify(mMockCallback, atLeastOnce()).onWifiEntriesDiff(diffCaptor.capture());
+        assertThat(diffCaptor.getValue().removed).hasSize(1);
+        assertThat(diffCaptor.getValue().removed.get(0).getTitle()).isEqualTo("ssid1");
+        assertThat(diffCaptor.getValue().moved).isEmpty();
+        assertThat(wifiPickerTracker.getWifiEntries()).hasSize(1);
+    }
+
+    /**
+     * Tests that no diff is reported if an update does not change the list.
+     */
+    @Test
+    public void testWifiEntriesDiff_notReportedForUnchangedList() {
+        final WifiPickerTracker wifiPickerTracker = createTestWifiPickerTracker();
+        wifiPickerTracker.onStart();
+        mTestLooper.dispatchAll();
+        verify(mMockContext).registerReceiver(mBroadcastReceiverCaptor.capture(),
+                any(), any(), any());
+        when(mMockWifiManager.getScanResults()).thenReturn(Collections.singletonList(
+                buildScanResult("ssid0", "bssid0", START_MILLIS)));
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mTestLooper.dispatchAll();
+        Mockito.clearInvocations(mMockCallback);
+
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        mTestLooper.dispatchAll();
+
+        verify(mMockCallback, atLeastOnce()).onWifiEntriesChanged();
+        verify(mMockCallback, Mockito.never()).onWifiEntriesDiff(any());
+    }
+
+    /**
+     * Tests that several started trackers share a single broadcast receiver and fetch the scan
+     * results only once per broadcast.
+     */
+    @Test
+    public void testMultipleTrackers_shareReceiverAndScanResults() {
+        final WifiPickerTracker firstTracker = createTestWifiPickerTracker();
+        final WifiPickerTracker secondTracker = createTestWifiPickerTracker();
+        firstTracker.onStart();
+        secondTracker.onStart();
+        mTestLooper.dispatchAll();
+        verify(mMockContext, times(1)).registerReceiver(mBroadcastReceiverCaptor.capture(),
+                any(), any(), any());
+        verify(mMockWifiManager, times(1)).getScanResults();
+
+        clearInvocations(mMockWifiManager);
+        when(mMockWifiManager.getScanResults()).thenReturn(Collections.singletonList(
+                buildScanResult("ssid", "bssid", START_MILLIS)));
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+
+        verify(mMockWifiManager, times(1)).getScanResults();
+        assertThat(firstTracker.getWifiEntries()).hasSize(1);
+        assertThat(secondTracker.getWifiEntries()).hasSize(1);
+    }
+
+    /**
+     * Tests that a tracker started after the shared broadcast receiver is registered gets the last
+     * sticky broadcasts received, as it would with its own receiver.
+     */
+    @Test
+    public void testMultipleTrackers_laterTrackerGetsStickyBroadcasts() {
+        final WifiPickerTracker firstTracker = createTestWifiPickerTracker();
+        final WifiPickerTracker secondTracker = createTestWifiPickerTracker();
+        firstTracker.onStart();
+        verify(mMockContext).registerReceiver(mBroadcastReceiverCaptor.capture(),
+                any(), any(), any());
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.WIFI_STATE_CHANGED_ACTION));
+        mTestLooper.dispatchAll();
+        verify(mMockCallback, times(1)).onWifiStateChanged();
+
+        secondTracker.onStart();
+        mTestLooper.dispatchAll();
+
+        verify(mMockContext, times(1)).registerReceiver(any(), any(), any(), any());
+        verify(mMockCallback, times(2)).onWifiStateChanged();
+    }
+
+    /**
+     * Tests that the shared broadcast receiver is only unregistered once the last tracker stops.
+     */
+    @Test
+    public void testMultipleTrackers_unregistersReceiverAfterLastStop() {
+        final WifiPickerTracker firstTracker = createTestWifiPickerTracker();
+        final WifiPickerTracker secondTracker = createTestWifiPickerTracker();
+        firstTracker.onStart();
+        secondTracker.onStart();
+        verify(mMockContext).registerReceiver(mBroadcastReceiverCaptor.capture(),
+                any(), any(), any());
+
+        firstTracker.onStop();
+        verify(mMockContext, never()).unregisterReceiver(any());
+
+        // The remaining tracker still receives broadcasts.
+        when(mMockWifiManager.getScanResults()).thenReturn(Collections.singletonList(
+                buildScanResult("ssid", "bssid", START_MILLIS)));
+        mBroadcastReceiverCaptor.getValue().onReceive(mMockContext,
+                new Intent(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+        assertThat(secondTracker.getWifiEntries()).hasSize(1);
+
+        secondTracker.onStop();
+        verify(mMockContext).unregisterReceiver(mBroadcastReceiverCaptor.getValue());
+    }
 }
@@ -132,6 +132,7 @@ public class BssidBlocklistMonitor {
     private final WifiConnectivityHelper mConnectivityHelper;
     private final Clock mClock;
     private final LocalLog mLocalLog;
+    private final WifiEventJournal mWifiEventJournal;
     private final Calendar mCalendar;
     private final WifiScoreCard mWifiScoreCard;
     private final ScoringParams mScoringParams;
@@ -147,12 +148,14 @@ public class BssidBlocklistMonitor {
      */
     BssidBlocklistMonitor(Context context, WifiConnectivityHelper connectivityHelper,
             WifiLastResortWatchdog wifiLastResortWatchdog, Clock clock, LocalLog localLog,
-            WifiScoreCard wifiScoreCard, ScoringParams scoringParams) {
+            WifiEventJournal wifiEventJournal, WifiScoreCard wifiScoreCard,
+            ScoringParams scoringParams) {
         mContext = context;
         mConnectivityHelper = connectivityHelper;
         mWifiLastResortWatchdog = wifiLastResortWatchdog;
         mClock = clock;
         mLocalLog = localLog;
+        mWifiEventJournal = wifiEventJournal;
         mCalendar = Calendar.getInstance();
         mWifiScoreCard = wifiScoreCard;
         mScoringParams = scoringParams;
@@ -194,6 +197,8 @@ public class BssidBlocklistMonitor {
     private void addToBlocklist(@NonNull BssidStatus entry, long durationMs,
             @FailureReason int reason, int rssi) {
         entry.setAsBlocked(durationMs, reason, rssi);
+        mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST,
+                WifiEventJournal.EVENT_BSSID_BLOCKED, reason, rssi, entry.bssid);
         localLog(TAG + " addToBlocklist: bssid=" + entry.bssid + ", ssid=" + entry.ssid
                 + ", durationMs=" + durationMs + ", reason=" + getFailureReasonString(reason)
                 + ", rssi=" + rssi);
@@ -652,6 +657,9 @@ public class BssidBlocklistMonitor {
             if (bssidStatus == null || !bssidStatus.isInBlocklist) {
                 return;
             }
+            mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST,
+                    WifiEventJournal.EVENT_BSSID_UNBLOCKED, bssidStatus.blockReason,
+                    bssidStatus.lastRssi, bssidStatus.bssid);
             StringBuilder sb = new StringBuilder();
             mCalendar.setTimeInMillis(mClock.getWallClockMillis());
             sb.append(", logTimeMs="
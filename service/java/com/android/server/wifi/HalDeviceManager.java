@@ -53,6 +53,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -570,6 +571,23 @@ public class HalDeviceManager {
             new HashMap<>();
     private WifiChipInfo[] mDebugChipsInfo = null;
 
+    /*
+     * The modes supported by each chip are fixed for the lifetime of the HAL, so they are cached
+     * by chip ID (along with the expanded interface combinations of each mode) until Wi-Fi is
+     * stopped, fails or the HAL dies. The current mode and the interfaces are always read live.
+     */
+    private final SparseArray<ArrayList<IWifiChip.ChipMode>> mAvailableModesCache =
+            new SparseArray<>();
+    private final Map<IWifiChip.ChipIfaceCombination, int[][]> mExpandedIfaceCombosCache =
+            new IdentityHashMap<>();
+
+    // Statistics of the chip info queries and interface creations.
+    private int mNumChipInfoQueries = 0;
+    private int mNumAvailableModesCacheMisses = 0;
+    private int mNumIfaceCreations = 0;
+    private long mTotalIfaceCreationTimeMs = 0;
+    private long mMaxIfaceCreationTimeMs = 0;
+
     private class InterfaceCacheEntry {
         public IWifiChip chip;
         public int chipId;
@@ -651,6 +669,7 @@ public class HalDeviceManager {
     }
 
     private void teardownInternal() {
+        invalidateChipCapabilitiesCache();
         managerStatusListenerDispatch();
         dispatchAllDestroyedListeners();
         mInterfaceAvailableForRequestListeners.get(IfaceType.STA).clear();
@@ -925,8 +944,8 @@ public class HalDeviceManager {
      * Get current information about all the chips in the system: modes, current mode (if any), and
      * any existing interfaces.
      *
-     * Intended to be called whenever we need to configure the chips - information is NOT cached (to
-     * reduce the likelihood that we get out-of-sync).
+     * Intended to be called whenever we need to configure the chips - information other than the
+     * available modes is NOT cached (to reduce the likelihood that we get out-of-sync).
      */
     private WifiChipInfo[] getAllChipInfo() {
         if (VDBG) Log.d(TAG, "getAllChipInfo");
@@ -936,6 +955,7 @@ public class HalDeviceManager {
                 Log.e(TAG, "getAllChipInfo: called but mWifi is null!?");
                 return null;
             }
+            mNumChipInfoQueries++;
 
             try {
                 MutableBoolean statusOk = new MutableBoolean(false);
@@ -977,18 +997,26 @@ public class HalDeviceManager {
                         return null;
                     }
 
-                    Mutable<ArrayList<IWifiChip.ChipMode>> availableModesResp = new Mutable<>();
-                    chipResp.value.getAvailableModes(
-                            (WifiStatus status, ArrayList<IWifiChip.ChipMode> modes) -> {
-                                statusOk.value = status.code == WifiStatusCode.SUCCESS;
-                                if (statusOk.value) {
-                                    availableModesResp.value = modes;
-                                } else {
-                                    Log.e(TAG, "getAvailableModes failed: " + statusString(status));
-                                }
-                            });
-                    if (!statusOk.value) {
-                        return null;
+                    ArrayList<IWifiChip.ChipMode> availableModes = mAvailableModesCache.get(chipId);
+                    if (availableModes == null) {
+                        Mutable<ArrayList<IWifiChip.ChipMode>> availableModesResp =
+                                new Mutable<>();
+                        chipResp.value.getAvailableModes(
+                                (WifiStatus status, ArrayList<IWifiChip.ChipMode> modes) -> {
+                                    statusOk.value = status.code == WifiStatusCode.SUCCESS;
+                                    if (statusOk.value) {
+                                        availableModesResp.value = modes;
+                                    } else {
+                                        Log.e(TAG, "getAvailableModes failed: "
+                                                + statusString(status));
+                                    }
+                                });
+                        if (!statusOk.value) {
+                            return null;
+                        }
+                        availableModes = availableModesResp.value;
+                        mAvailableModesCache.put(chipId, availableModes);
+                        mNumAvailableModesCacheMisses++;
                     }
 
                     MutableBoolean currentModeValidResp = new MutableBoolean(false);
@@ -1147,7 +1175,7 @@ public class HalDeviceManager {
 
                     chipInfo.chip = chipResp.value;
                     chipInfo.chipId = chipId;
-                    chipInfo.availableModes = availableModesResp.value;
+                    chipInfo.availableModes = availableModes;
                     chipInfo.currentModeIdValid = currentModeValidResp.value;
                     chipInfo.currentModeId = currentModeResp.value;
                     chipInfo.ifaces[IfaceType.STA] = staIfaces;
@@ -1166,6 +1194,16 @@ public class HalDeviceManager {
         return null;
     }
 
+    /**
+     * Drops the cached chip modes and expanded interface combinations.
+     */
+    private void invalidateChipCapabilitiesCache() {
+        synchronized (mLock) {
+            mAvailableModesCache.clear();
+            mExpandedIfaceCombosCache.clear();
+        }
+    }
+
     /**
      * Checks the local state of this object (the cached state) against the input 'chipInfos'
      * state (which is a live representation of the Wi-Fi firmware status - read through the HAL).
@@ -1247,6 +1285,7 @@ public class HalDeviceManager {
                     while (triedCount <= START_HAL_RETRY_TIMES) {
                         WifiStatus status = mWifi.start();
                         if (status.code == WifiStatusCode.SUCCESS) {
+                            invalidateChipCapabilitiesCache();
                             initIWifiChipDebugListeners();
                             managerStatusListenerDispatch();
                             if (triedCount != 0) {
@@ -1409,6 +1448,7 @@ public class HalDeviceManager {
         }
 
         synchronized (mLock) {
+            long startTimeMs = mClock.getElapsedSinceBootMillis();
             WifiChipInfo[] chipInfos = getAllChipInfo();
             if (chipInfos == null) {
                 Log.e(TAG, "createIface: no chip info found");
@@ -1425,6 +1465,7 @@ public class HalDeviceManager {
             IWifiIface iface = createIfaceIfPossible(chipInfos, ifaceType, destroyedListener,
                     handler);
             if (iface != null) { // means that some configuration has changed
+                recordIfaceCreationTime(mClock.getElapsedSinceBootMillis() - startTimeMs);
                 if (!dispatchAvailableForRequestListeners()) {
                     return null; // catastrophic failure - shut down
                 }
@@ -1434,6 +1475,12 @@ public class HalDeviceManager {
         }
     }
 
+    private void recordIfaceCreationTime(long durationMs) {
+        mNumIfaceCreations++;
+        mTotalIfaceCreationTimeMs += durationMs;
+        mMaxIfaceCreationTimeMs = Math.max(mMaxIfaceCreationTimeMs, durationMs);
+    }
+
     private IWifiIface createIfaceIfPossible(WifiChipInfo[] chipInfos, int ifaceType,
             InterfaceDestroyedListener destroyedListener, Handler handler) {
         if (VDBG) {
@@ -1446,7 +1493,7 @@ public class HalDeviceManager {
                 for (IWifiChip.ChipMode chipMode: chipInfo.availableModes) {
                     for (IWifiChip.ChipIfaceCombination chipIfaceCombo : chipMode
                             .availableCombinations) {
-                        int[][] expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                        int[][] expandedIfaceCombos = getExpandedIfaceCombos(chipIfaceCombo);
                         if (VDBG) {
                             Log.d(TAG, chipIfaceCombo + " expands to "
                                     + Arrays.deepToString(expandedIfaceCombos));
@@ -1504,7 +1551,7 @@ public class HalDeviceManager {
             for (IWifiChip.ChipMode chipMode: chipInfo.availableModes) {
                 for (IWifiChip.ChipIfaceCombination chipIfaceCombo : chipMode
                         .availableCombinations) {
-                    int[][] expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                    int[][] expandedIfaceCombos = getExpandedIfaceCombos(chipIfaceCombo);
                     if (VDBG) {
                         Log.d(TAG, chipIfaceCombo + " expands to "
                                 + Arrays.deepToString(expandedIfaceCombos));
@@ -1523,6 +1570,21 @@ public class HalDeviceManager {
         return false;
     }
 
+    /**
+     * Returns the expansion of a ChipIfaceCombination of a cached chip mode, expanding it on first
+     * use only. See expandIfaceCombos().
+     */
+    private int[][] getExpandedIfaceCombos(IWifiChip.ChipIfaceCombination chipIfaceCombo) {
+        synchronized (mLock) {
+            int[][] expandedIfaceCombos = mExpandedIfaceCombosCache.get(chipIfaceCombo);
+            if (expandedIfaceCombos == null) {
+                expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                mExpandedIfaceCombosCache.put(chipIfaceCombo, expandedIfaceCombos);
+            }
+            return expandedIfaceCombos;
+        }
+    }
+
     /**
      * Expands (or provides an alternative representation) of the ChipIfaceCombination as all
      * possible combinations of interface.
@@ -1832,7 +1894,7 @@ public class HalDeviceManager {
             for (IWifiChip.ChipMode chipMode: chipInfo.availableModes) {
                 for (IWifiChip.ChipIfaceCombination chipIfaceCombo
                         : chipMode.availableCombinations) {
-                    int[][] expandedIfaceCombos = expandIfaceCombos(chipIfaceCombo);
+                    int[][] expandedIfaceCombos = getExpandedIfaceCombos(chipIfaceCombo);
                     if (VDBG) {
                         Log.d(TAG, chipIfaceCombo + " expands to "
                                 + Arrays.deepToString(expandedIfaceCombos));
@@ -2364,5 +2426,13 @@ public class HalDeviceManager {
                 + mInterfaceAvailableForRequestListeners);
         pw.println("  mInterfaceInfoCache: " + mInterfaceInfoCache);
         pw.println("  mDebugChipsInfo: " + Arrays.toString(mDebugChipsInfo));
+        synchronized (mLock) {
+            pw.println("  mAvailableModesCache: " + mAvailableModesCache);
+            pw.println("  mNumChipInfoQueries: " + mNumChipInfoQueries);
+            pw.println("  mNumAvailableModesCacheMisses: " + mNumAvailableModesCacheMisses);
+            pw.println("  mNumIfaceCreations: " + mNumIfaceCreations);
+            pw.println("  mTotalIfaceCreationTimeMs: " + mTotalIfaceCreationTimeMs);
+            pw.println("  mMaxIfaceCreationTimeMs: " + mMaxIfaceCreationTimeMs);
+        }
     }
 }
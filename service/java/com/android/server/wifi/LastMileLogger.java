@@ -20,15 +20,34 @@ package com.android.server.wifi;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.wifi.util.FileUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.nio.file.Files;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Provides a facility for capturing kernel trace events related to Wifi control and data paths.
+ *
+ * The trace buffer can be several megabytes, so it is never read into memory in one piece.
+ * On a connection failure the trace is read in bounded chunks and compressed into a small store
+ * that keeps the traces of the last {@link #MAX_FAILURE_TRACES} failures. Dumps stream both the
+ * stored traces and the live trace buffer straight to the PrintWriter.
  */
 public class LastMileLogger {
     public LastMileLogger(WifiInjector injector) {
@@ -62,11 +81,11 @@ public class LastMileLogger {
                 return;
             case BaseWifiDiagnostics.CONNECTION_EVENT_FAILED:
                 disableTracing();
-                mLastMileLogForLastFailure = readTrace();
+                captureTraceForFailure();
                 return;
             case BaseWifiDiagnostics.CONNECTION_EVENT_TIMEOUT:
                 disableTracing();
-                mLastMileLogForLastFailure = readTrace();
+                captureTraceForFailure();
                 return;
         }
     }
@@ -76,8 +95,17 @@ public class LastMileLogger {
      * @param pw the PrintWriter that will receive the dump
      */
     public void dump(PrintWriter pw) {
-        dumpInternal(pw, "Last failed last-mile log", mLastMileLogForLastFailure);
-        dumpInternal(pw, "Latest last-mile log", readTrace());
+        if (mFailureTraces.isEmpty()) {
+            printNoLog(pw, LAST_FAILURE_DESCRIPTION);
+        }
+        int index = 0;
+        for (Iterator<FailureTrace> it = mFailureTraces.descendingIterator(); it.hasNext(); ) {
+            String description = index == 0 ? LAST_FAILURE_DESCRIPTION
+                    : "Previous failed last-mile log #" + index;
+            dumpFailureTrace(pw, description, it.next());
+            index++;
+        }
+        dumpLiveTrace(pw, "Latest last-mile log");
     }
 
     private static final String TAG = "LastMileLogger";
@@ -93,13 +121,39 @@ public class LastMileLogger {
             "/sys/kernel/debug/tracing/instances/wifi/tracing_on";
     private static final String WIFI_EVENT_RELEASE_PATH_DEBUGFS =
             "/sys/kernel/debug/tracing/instances/wifi/free_buffer";
+    private static final String LAST_FAILURE_DESCRIPTION = "Last failed last-mile log";
+
+    /** Number of failure traces to keep. */
+    @VisibleForTesting
+    static final int MAX_FAILURE_TRACES = 3;
+    /** Upper bound on the uncompressed trace bytes captured for a single failure. */
+    @VisibleForTesting
+    static final int MAX_CAPTURED_TRACE_BYTES = 4 * 1024 * 1024;
+    /** Size of the chunks in which the trace buffer is read. */
+    private static final int READ_CHUNK_BYTES = 16 * 1024;
+
+    /** A compressed copy of the trace captured for a connection failure. */
+    private static class FailureTrace {
+        final byte[] compressedTrace;
+        final int traceLength;
+        final boolean truncated;
+
+        FailureTrace(byte[] compressedTrace, int traceLength, boolean truncated) {
+            this.compressedTrace = compressedTrace;
+            this.traceLength = traceLength;
+            this.truncated = truncated;
+        }
+    }
 
 
     private String mEventBufferPath;
     private String mEventEnablePath;
     private String mEventReleasePath;
     private WifiLog mLog;
-    private byte[] mLastMileLogForLastFailure;
+    // Oldest first.
+    private final ArrayDeque<FailureTrace> mFailureTraces = new ArrayDeque<>(MAX_FAILURE_TRACES);
+    // Reused for every read of the trace buffer.
+    private ByteBuffer mReadBuffer;
     private FileInputStream mLastMileTraceHandle;
 
     private void initLastMileLogger(WifiInjector injector, String bufferPath, String enablePath,
@@ -131,13 +185,84 @@ public class LastMileLogger {
         }
     }
 
-    private byte[] readTrace() {
-        try {
-            return Files.readAllBytes(Paths.get(mEventBufferPath));
+    private FileChannel openTrace() throws IOException {
+        return FileChannel.open(Paths.get(mEventBufferPath), StandardOpenOption.READ);
+    }
+
+    /**
+     * Reads the trace buffer in chunks of {@link #READ_CHUNK_BYTES}, compresses it and adds it to
+     * the failure store, evicting the oldest failure if the store is full.
+     *
+     * The trace buffer is oldest first, so if it exceeds {@link #MAX_CAPTURED_TRACE_BYTES}, the
+     * last lines that fit are kept: they hold the events closest to the failure. Tracing is
+     * already disabled here, so the buffer is read once to measure it and once to capture it.
+     */
+    private void captureTraceForFailure() {
+        if (mReadBuffer == null) {
+            mReadBuffer = ByteBuffer.allocate(READ_CHUNK_BYTES);
+        }
+        long totalLength;
+        try (FileChannel channel = openTrace()) {
+            totalLength = skipTrace(channel, Long.MAX_VALUE);
         } catch (IOException e) {
             mLog.warn("Failed to read event trace: %").r(e.getMessage()).flush();
-            return new byte[0];
+            // Keep the failure traces captured so far rather than evicting one for nothing.
+            return;
+        }
+        final long skipLength = Math.max(0, totalLength - MAX_CAPTURED_TRACE_BYTES);
+        final boolean truncated = skipLength > 0;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        int traceLength = 0;
+        try (FileChannel channel = openTrace();
+                DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+            skipTrace(channel, skipLength);
+            // Drop the partial line the skipped part ends in.
+            boolean atLineStart = !truncated;
+            while (traceLength < MAX_CAPTURED_TRACE_BYTES) {
+                mReadBuffer.clear();
+                mReadBuffer.limit(Math.min(READ_CHUNK_BYTES,
+                        MAX_CAPTURED_TRACE_BYTES - traceLength));
+                int count = channel.read(mReadBuffer);
+                if (count < 0) break;
+                int start = 0;
+                if (!atLineStart) {
+                    while (start < count && mReadBuffer.get(start) != '\n') start++;
+                    if (start < count) {
+                        start++;
+                        atLineStart = true;
+                    }
+                }
+                out.write(mReadBuffer.array(), start, count - start);
+                traceLength += count - start;
+            }
+        } catch (IOException e) {
+            mLog.warn("Failed to read event trace: %").r(e.getMessage()).flush();
+            return;
+        } finally {
+            deflater.end();
+        }
+        if (mFailureTraces.size() >= MAX_FAILURE_TRACES) {
+            mFailureTraces.removeFirst();
         }
+        mFailureTraces.addLast(new FailureTrace(
+                traceLength > 0 ? compressed.toByteArray() : new byte[0], traceLength, truncated));
+    }
+
+    /**
+     * Reads and discards up to maxBytes of the trace.
+     * @return the number of bytes skipped, less than maxBytes if the end of the trace was reached.
+     */
+    private long skipTrace(FileChannel channel, long maxBytes) throws IOException {
+        long skipped = 0;
+        while (skipped < maxBytes) {
+            mReadBuffer.clear();
+            mReadBuffer.limit((int) Math.min(READ_CHUNK_BYTES, maxBytes - skipped));
+            int count = channel.read(mReadBuffer);
+            if (count < 0) break;
+            skipped += count;
+        }
+        return skipped;
     }
 
     private boolean ensureFailSafeIsArmed() {
@@ -165,14 +290,64 @@ public class LastMileLogger {
         }
     }
 
-    private static void dumpInternal(PrintWriter pw, String description, byte[] lastMileLog) {
-        if (lastMileLog == null || lastMileLog.length < 1) {
-            pw.format("No last mile log for \"%s\"\n", description);
+    private void dumpFailureTrace(PrintWriter pw, String description, FailureTrace trace) {
+        if (trace.traceLength < 1) {
+            printNoLog(pw, description);
             return;
         }
+        printHeader(pw, description);
+        try (Reader reader = new InputStreamReader(new InflaterInputStream(
+                new ByteArrayInputStream(trace.compressedTrace)), StandardCharsets.UTF_8)) {
+            copy(reader, pw);
+        } catch (IOException e) {
+            pw.println("Failed to decompress last mile log: " + e.getMessage());
+        }
+        if (trace.truncated) {
+            pw.println("(truncated to the last " + MAX_CAPTURED_TRACE_BYTES + " bytes)");
+        }
+        printFooter(pw);
+    }
+
+    private void dumpLiveTrace(PrintWriter pw, String description) {
+        try (FileChannel channel = openTrace()) {
+            // Replace malformed bytes like the stored traces do, rather than failing mid-dump.
+            Reader reader = Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE), READ_CHUNK_BYTES);
+            char[] buffer = new char[READ_CHUNK_BYTES];
+            int count = reader.read(buffer);
+            if (count < 1) {
+                printNoLog(pw, description);
+                return;
+            }
+            printHeader(pw, description);
+            do {
+                pw.write(buffer, 0, count);
+            } while ((count = reader.read(buffer)) >= 0);
+            printFooter(pw);
+        } catch (IOException e) {
+            mLog.warn("Failed to read event trace: %").r(e.getMessage()).flush();
+            printNoLog(pw, description);
+        }
+    }
 
+    private static void copy(Reader reader, PrintWriter pw) throws IOException {
+        char[] buffer = new char[READ_CHUNK_BYTES];
+        int count;
+        while ((count = reader.read(buffer)) >= 0) {
+            pw.write(buffer, 0, count);
+        }
+    }
+
+    private static void printNoLog(PrintWriter pw, String description) {
+        pw.format("No last mile log for \"%s\"\n", description);
+    }
+
+    private static void printHeader(PrintWriter pw, String description) {
         pw.format("-------------------------- %s ---------------------------\n", description);
-        pw.print(new String(lastMileLog));
+    }
+
+    private static void printFooter(PrintWriter pw) {
         pw.println("--------------------------------------------------------------------");
     }
 }
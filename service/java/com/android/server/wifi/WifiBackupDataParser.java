@@ -22,7 +22,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Interface describing parser of WiFi backup data for each major version.
@@ -33,15 +33,17 @@ import java.util.List;
 interface WifiBackupDataParser {
 
     /**
-     * Parses the list of configurations from the provided XML stream.
+     * Parses the list of configurations from the provided XML stream, handing each configuration
+     * to the consumer as soon as it is parsed.
      *
      * @param in            XmlPullParser instance pointing to the XML stream.
      * @param outerTagDepth depth of the outer tag in the XML document.
      * @param minorVersion  minor version number parsed from incoming data.
-     * @return List<WifiConfiguration> object if parsing is successful, null otherwise.
+     * @param consumer      consumer of the parsed configurations.
      */
-    List<WifiConfiguration> parseNetworkConfigurationsFromXml(XmlPullParser in, int outerTagDepth,
-            int minorVersion) throws XmlPullParserException, IOException;
+    void parseNetworkConfigurationsFromXml(XmlPullParser in, int outerTagDepth,
+            int minorVersion, Consumer<WifiConfiguration> consumer)
+            throws XmlPullParserException, IOException;
 
     /**
      * Get the highest supported minor version for this major version.
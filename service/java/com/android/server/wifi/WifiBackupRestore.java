@@ -42,12 +42,14 @@ import java.io.ByteArrayOutputStream;
 import java.io.CharArrayReader;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Class used to backup/restore data using the SettingsBackupAgent.
@@ -251,13 +253,62 @@ public class WifiBackupRestore {
             Log.e(TAG, "Invalid backup data received");
             return null;
         }
-        try {
-            if (mVerboseLoggingEnabled) {
-                mDebugLastBackupDataRestored = data;
+        if (mVerboseLoggingEnabled) {
+            mDebugLastBackupDataRestored = data;
+        }
+        List<WifiConfiguration> configurations = new ArrayList<>();
+        if (!parseBackupData(new ByteArrayInputStream(data), configurations::add)) {
+            return null;
+        }
+        return configurations;
+    }
+
+    /**
+     * Parse out the configurations from the back up data, handing them to the consumer in
+     * batches as they are parsed, so that the whole list of configurations is never held in
+     * memory at once.
+     *
+     * Note that if the data turns out to be corrupt part way through, the batches parsed before
+     * the error have already been handed to the consumer.
+     *
+     * @param data raw byte stream representing the XML data.
+     * @param batchSize maximum number of configurations per batch.
+     * @param batchConsumer consumer of the batches of networks retrieved from the backed up data.
+     * @return true if the whole data was parsed, false otherwise.
+     */
+    public boolean retrieveConfigurationsFromBackupData(byte[] data, int batchSize,
+            Consumer<List<WifiConfiguration>> batchConsumer) {
+        if (data == null || data.length == 0 || batchSize <= 0) {
+            Log.e(TAG, "Invalid backup data received");
+            return false;
+        }
+        if (mVerboseLoggingEnabled) {
+            mDebugLastBackupDataRestored = data;
+        }
+        List<WifiConfiguration> batch = new ArrayList<>(batchSize);
+        boolean parsed = parseBackupData(new ByteArrayInputStream(data), configuration -> {
+            batch.add(configuration);
+            if (batch.size() >= batchSize) {
+                batchConsumer.accept(new ArrayList<>(batch));
+                batch.clear();
             }
+        });
+        if (parsed && !batch.isEmpty()) {
+            batchConsumer.accept(new ArrayList<>(batch));
+        }
+        return parsed;
+    }
 
+    /**
+     * Parse the back up data stream, handing each configuration to the consumer as soon as it is
+     * parsed.
+     *
+     * @return true if the whole data was parsed, false otherwise.
+     */
+    private boolean parseBackupData(InputStream inputStream,
+            Consumer<WifiConfiguration> consumer) {
+        try {
             final XmlPullParser in = Xml.newPullParser();
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
             in.setInput(inputStream, StandardCharsets.UTF_8.name());
 
             // Start parsing the XML stream.
@@ -291,15 +342,17 @@ public class WifiBackupRestore {
             if (parser == null) {
                 Log.w(TAG, "Major version of backup data is unknown to this Android"
                         + " version; not restoring");
-                return null;
+                return false;
             } else {
-                return parser.parseNetworkConfigurationsFromXml(in, rootTagDepth, minorVersion);
+                parser.parseNetworkConfigurationsFromXml(in, rootTagDepth, minorVersion,
+                        consumer);
+                return true;
             }
         } catch (XmlPullParserException | IOException | ClassCastException
                 | IllegalArgumentException e) {
             Log.e(TAG, "Error parsing the backup data: " + e);
         }
-        return null;
+        return false;
     }
 
     private WifiBackupDataParser getWifiBackupDataParser(int majorVersion) {
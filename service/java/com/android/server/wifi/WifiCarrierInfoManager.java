@@ -47,9 +47,12 @@ import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.view.WindowManager;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.messages.nano.SystemMessageProto;
 import com.android.wifi.resources.R;
@@ -62,6 +65,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -173,6 +177,27 @@ public class WifiCarrierInfoManager {
     private boolean mUserDataLoaded = false;
     private boolean mIsLastUserApprovalUiDialog = false;
 
+    private final boolean mIsSubscriptionCacheEnabled;
+    private final Object mSubscriptionCacheLock = new Object();
+    // Results of the subscription and SIM queries, valid until the next subscription, SIM state
+    // or carrier config change. Only used if mIsSubscriptionCacheEnabled is set.
+    @GuardedBy("mSubscriptionCacheLock")
+    private boolean mIsActiveSubInfoListCached = false;
+    @GuardedBy("mSubscriptionCacheLock")
+    private List<SubscriptionInfo> mActiveSubInfoList;
+    @GuardedBy("mSubscriptionCacheLock")
+    private final SparseIntArray mSimStateBySlotIndex = new SparseIntArray();
+    @GuardedBy("mSubscriptionCacheLock")
+    private final SparseIntArray mSimStateBySubId = new SparseIntArray();
+    @GuardedBy("mSubscriptionCacheLock")
+    private final SparseArray<String> mSubscriberIdBySubId = new SparseArray<>();
+    @GuardedBy("mSubscriptionCacheLock")
+    private final SparseArray<String> mSimOperatorBySubId = new SparseArray<>();
+    @GuardedBy("mSubscriptionCacheLock")
+    private int mNumSubscriptionCacheHits = 0;
+    @GuardedBy("mSubscriptionCacheLock")
+    private int mNumSubscriptionCacheMisses = 0;
+
     /**
      * Interface for other modules to listen to the user approve IMSI protection exemption.
      */
@@ -300,6 +325,8 @@ public class WifiCarrierInfoManager {
         mWifiMetrics = wifiMetrics;
         mNotificationManager =
                 (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        mIsSubscriptionCacheEnabled = mResources.getBoolean(
+                R.bool.config_wifiCarrierInfoCacheEnabled);
         // Register broadcast receiver for UI interactions.
         mIntentFilter = new IntentFilter();
         mIntentFilter.addAction(NOTIFICATION_USER_DISMISSED_INTENT_ACTION);
@@ -313,18 +340,34 @@ public class WifiCarrierInfoManager {
 
         updateImsiEncryptionInfo(context);
 
-        // Monitor for carrier config changes.
+        // Monitor for carrier config changes, and SIM state changes if the subscription cache is
+        // enabled.
         IntentFilter filter = new IntentFilter();
         filter.addAction(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        if (mIsSubscriptionCacheEnabled) {
+            filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+            filter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        }
         context.registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                invalidateSubscriptionCache();
                 if (CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED
                         .equals(intent.getAction())) {
                     updateImsiEncryptionInfo(context);
                 }
             }
         }, filter);
+        if (mIsSubscriptionCacheEnabled) {
+            mSubscriptionManager.addOnSubscriptionsChangedListener(
+                    command -> handler.post(command),
+                    new SubscriptionManager.OnSubscriptionsChangedListener() {
+                        @Override
+                        public void onSubscriptionsChanged() {
+                            invalidateSubscriptionCache();
+                        }
+                    });
+        }
 
         frameworkFacade.registerContentObserver(context, CONTENT_URI, false,
                 new ContentObserver(handler) {
@@ -355,8 +398,7 @@ public class WifiCarrierInfoManager {
         mImsiEncryptionRequired.clear();
         mImsiEncryptionInfoAvailable.clear();
         mEapMethodPrefixEnable.clear();
-        List<SubscriptionInfo> activeSubInfos =
-                mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> activeSubInfos = getActiveSubInfoList();
         if (activeSubInfos == null) {
             return;
         }
@@ -431,7 +473,7 @@ public class WifiCarrierInfoManager {
      * @return the matched SubscriptionId
      */
     public int getMatchingSubId(int carrierId) {
-        List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> subInfoList = getActiveSubInfoList();
         if (subInfoList == null || subInfoList.isEmpty()) {
             return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
         }
@@ -453,7 +495,7 @@ public class WifiCarrierInfoManager {
 
 
     private int getMatchingSubIdFromSimSlotIndex(int simSlotIndex) {
-        List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> subInfoList = getActiveSubInfoList();
         if (subInfoList == null || subInfoList.isEmpty()) {
             return SubscriptionManager.INVALID_SUBSCRIPTION_ID;
         }
@@ -500,7 +542,7 @@ public class WifiCarrierInfoManager {
         if (!SubscriptionManager.isValidSubscriptionId(subId)) {
             return false;
         }
-        List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> subInfoList = getActiveSubInfoList();
         if (subInfoList == null || subInfoList.isEmpty()) {
             return false;
         }
@@ -513,8 +555,7 @@ public class WifiCarrierInfoManager {
      * Check if SIM card for SubscriptionInfo is ready.
      */
     private boolean isSimStateReady(SubscriptionInfo info) {
-        int simSlotIndex = info.getSimSlotIndex();
-        return mTelephonyManager.getSimState(simSlotIndex) == TelephonyManager.SIM_STATE_READY;
+        return getSimStateForSlotIndex(info.getSimSlotIndex()) == TelephonyManager.SIM_STATE_READY;
     }
 
     /**
@@ -531,11 +572,11 @@ public class WifiCarrierInfoManager {
         }
 
         TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
-        String imsi = specifiedTm.getSubscriberId();
+        String imsi = getSubscriberId(subId);
         String mccMnc = "";
 
-        if (specifiedTm.getSimState() == TelephonyManager.SIM_STATE_READY) {
-            mccMnc = specifiedTm.getSimOperator();
+        if (getSimStateForSubId(subId) == TelephonyManager.SIM_STATE_READY) {
+            mccMnc = getSimOperator(subId);
         }
 
         String identity = buildIdentity(getSimMethodForConfig(config), imsi, mccMnc, false);
@@ -577,11 +618,10 @@ public class WifiCarrierInfoManager {
      */
     public String getAnonymousIdentityWith3GppRealm(@NonNull WifiConfiguration config) {
         int subId = getBestMatchSubscriptionId(config);
-        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
-        if (specifiedTm.getSimState() != TelephonyManager.SIM_STATE_READY) {
+        if (getSimStateForSubId(subId) != TelephonyManager.SIM_STATE_READY) {
             return null;
         }
-        String mccMnc = specifiedTm.getSimOperator();
+        String mccMnc = getSimOperator(subId);
         if (mccMnc == null || mccMnc.isEmpty()) {
             return null;
         }
@@ -1166,11 +1206,10 @@ public class WifiCarrierInfoManager {
         }
         int subId = getBestMatchSubscriptionId(config);
 
-        TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
-        if (specifiedTm.getSimState() != TelephonyManager.SIM_STATE_READY) {
+        if (getSimStateForSubId(subId) != TelephonyManager.SIM_STATE_READY) {
             return null;
         }
-        String mccMnc = specifiedTm.getSimOperator();
+        String mccMnc = getSimOperator(subId);
         if (mccMnc == null || mccMnc.isEmpty()) {
             return null;
         }
@@ -1224,14 +1263,13 @@ public class WifiCarrierInfoManager {
             vlogd("IMSI is not available or not full");
             return false;
         }
-        List<SubscriptionInfo> infos = mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> infos = getActiveSubInfoList();
         if (infos == null) {
             return false;
         }
         // Find the active matching SIM card with the full IMSI from passpoint profile.
         for (SubscriptionInfo subInfo : infos) {
-            String imsi = mTelephonyManager
-                    .createForSubscriptionId(subInfo.getSubscriptionId()).getSubscriberId();
+            String imsi = getSubscriberId(subInfo.getSubscriptionId());
             if (imsiParameter.matchesImsi(imsi)) {
                 config.setCarrierId(subInfo.getCarrierId());
                 return true;
@@ -1255,7 +1293,7 @@ public class WifiCarrierInfoManager {
                 vlogd("required IMSI encryption information is not available.");
                 return null;
             }
-            return mTelephonyManager.createForSubscriptionId(subId).getSubscriberId();
+            return getSubscriberId(subId);
         }
         vlogd("no active SIM card to match the carrier ID.");
         return null;
@@ -1275,7 +1313,7 @@ public class WifiCarrierInfoManager {
         if (imsiParameter == null) {
             return null;
         }
-        List<SubscriptionInfo> infos = mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> infos = getActiveSubInfoList();
         if (infos == null) {
             return null;
         }
@@ -1295,10 +1333,9 @@ public class WifiCarrierInfoManager {
                 vlogd("required IMSI encryption information is not available.");
                 continue;
             }
-            TelephonyManager specifiedTm = mTelephonyManager.createForSubscriptionId(subId);
-            String operatorNumeric = specifiedTm.getSimOperator();
+            String operatorNumeric = getSimOperator(subId);
             if (operatorNumeric != null && imsiParameter.matchesMccMnc(operatorNumeric)) {
-                String curImsi = specifiedTm.getSubscriberId();
+                String curImsi = getSubscriberId(subId);
                 if (TextUtils.isEmpty(curImsi)) {
                     continue;
                 }
@@ -1337,11 +1374,135 @@ public class WifiCarrierInfoManager {
         Log.d(TAG, msg);
     }
 
+    /**
+     * Get the active subscriptions, from the subscription cache if it is enabled.
+     */
+    private List<SubscriptionInfo> getActiveSubInfoList() {
+        if (!mIsSubscriptionCacheEnabled) {
+            return mSubscriptionManager.getActiveSubscriptionInfoList();
+        }
+        synchronized (mSubscriptionCacheLock) {
+            if (mIsActiveSubInfoListCached) {
+                mNumSubscriptionCacheHits++;
+                return mActiveSubInfoList;
+            }
+            mNumSubscriptionCacheMisses++;
+            List<SubscriptionInfo> subInfoList =
+                    mSubscriptionManager.getActiveSubscriptionInfoList();
+            mActiveSubInfoList = subInfoList == null
+                    ? null : Collections.unmodifiableList(new ArrayList<>(subInfoList));
+            mIsActiveSubInfoListCached = true;
+            return mActiveSubInfoList;
+        }
+    }
+
+    /**
+     * Get the state of the SIM card in the given slot, from the subscription cache if it is
+     * enabled.
+     */
+    private int getSimStateForSlotIndex(int simSlotIndex) {
+        if (!mIsSubscriptionCacheEnabled) {
+            return mTelephonyManager.getSimState(simSlotIndex);
+        }
+        synchronized (mSubscriptionCacheLock) {
+            int index = mSimStateBySlotIndex.indexOfKey(simSlotIndex);
+            if (index >= 0) {
+                mNumSubscriptionCacheHits++;
+                return mSimStateBySlotIndex.valueAt(index);
+            }
+            mNumSubscriptionCacheMisses++;
+            int simState = mTelephonyManager.getSimState(simSlotIndex);
+            mSimStateBySlotIndex.put(simSlotIndex, simState);
+            return simState;
+        }
+    }
+
+    /**
+     * Get the state of the SIM card of the given subscription, from the subscription cache if it
+     * is enabled.
+     */
+    private int getSimStateForSubId(int subId) {
+        if (!mIsSubscriptionCacheEnabled) {
+            return mTelephonyManager.createForSubscriptionId(subId).getSimState();
+        }
+        synchronized (mSubscriptionCacheLock) {
+            int index = mSimStateBySubId.indexOfKey(subId);
+            if (index >= 0) {
+                mNumSubscriptionCacheHits++;
+                return mSimStateBySubId.valueAt(index);
+            }
+            mNumSubscriptionCacheMisses++;
+            int simState = mTelephonyManager.createForSubscriptionId(subId).getSimState();
+            mSimStateBySubId.put(subId, simState);
+            return simState;
+        }
+    }
+
+    /**
+     * Get the IMSI of the given subscription, from the subscription cache if it is enabled.
+     */
+    private String getSubscriberId(int subId) {
+        if (!mIsSubscriptionCacheEnabled) {
+            return mTelephonyManager.createForSubscriptionId(subId).getSubscriberId();
+        }
+        synchronized (mSubscriptionCacheLock) {
+            int index = mSubscriberIdBySubId.indexOfKey(subId);
+            if (index >= 0) {
+                mNumSubscriptionCacheHits++;
+                return mSubscriberIdBySubId.valueAt(index);
+            }
+            mNumSubscriptionCacheMisses++;
+            String imsi = mTelephonyManager.createForSubscriptionId(subId).getSubscriberId();
+            mSubscriberIdBySubId.put(subId, imsi);
+            return imsi;
+        }
+    }
+
+    /**
+     * Get the MCC/MNC of the SIM card of the given subscription, from the subscription cache if
+     * it is enabled.
+     */
+    private String getSimOperator(int subId) {
+        if (!mIsSubscriptionCacheEnabled) {
+            return mTelephonyManager.createForSubscriptionId(subId).getSimOperator();
+        }
+        synchronized (mSubscriptionCacheLock) {
+            int index = mSimOperatorBySubId.indexOfKey(subId);
+            if (index >= 0) {
+                mNumSubscriptionCacheHits++;
+                return mSimOperatorBySubId.valueAt(index);
+            }
+            mNumSubscriptionCacheMisses++;
+            String mccMnc = mTelephonyManager.createForSubscriptionId(subId).getSimOperator();
+            mSimOperatorBySubId.put(subId, mccMnc);
+            return mccMnc;
+        }
+    }
+
+    /**
+     * Drop the cached subscription and SIM details, e.g. on subscription or SIM state change.
+     */
+    private void invalidateSubscriptionCache() {
+        synchronized (mSubscriptionCacheLock) {
+            mIsActiveSubInfoListCached = false;
+            mActiveSubInfoList = null;
+            mSimStateBySlotIndex.clear();
+            mSimStateBySubId.clear();
+            mSubscriberIdBySubId.clear();
+            mSimOperatorBySubId.clear();
+        }
+    }
+
     /** Dump state. */
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println(TAG + ": ");
         pw.println("mImsiEncryptionRequired=" + mImsiEncryptionRequired);
         pw.println("mImsiEncryptionInfoAvailable=" + mImsiEncryptionInfoAvailable);
+        synchronized (mSubscriptionCacheLock) {
+            pw.println("mIsSubscriptionCacheEnabled=" + mIsSubscriptionCacheEnabled);
+            pw.println("mNumSubscriptionCacheHits=" + mNumSubscriptionCacheHits);
+            pw.println("mNumSubscriptionCacheMisses=" + mNumSubscriptionCacheMisses);
+        }
     }
 
     /**
@@ -1353,7 +1514,7 @@ public class WifiCarrierInfoManager {
      *         by any available carrier, will return UNKNOWN_CARRIER_ID.
      */
     public int getCarrierIdForPackageWithCarrierPrivileges(String packageName) {
-        List<SubscriptionInfo> subInfoList = mSubscriptionManager.getActiveSubscriptionInfoList();
+        List<SubscriptionInfo> subInfoList = getActiveSubInfoList();
         if (subInfoList == null || subInfoList.isEmpty()) {
             if (mVerboseLogEnabled) Log.v(TAG, "No subs for carrier privilege check");
             return TelephonyManager.UNKNOWN_CARRIER_ID;
@@ -141,6 +141,14 @@ public class WifiConfigManager {
          */
         void onNetworkUpdated(
                 @NonNull WifiConfiguration newConfig, @NonNull WifiConfiguration oldConfig);
+        /**
+         * Invoked once at the end of a batch update, after the callbacks of all the networks
+         * changed in the batch. Listeners doing expensive work on every network change may defer
+         * it until then while {@link WifiConfigManager#isBatchUpdateInProgress()} is true.
+         *
+         * @see WifiConfigManager#startBatchUpdate()
+         */
+        default void onBatchUpdateFinished() { }
     }
     /**
      * Max size of scan details to cache in {@link #mScanDetailCaches}.
@@ -154,6 +162,10 @@ public class WifiConfigManager {
      */
     @VisibleForTesting
     public static final int SCAN_CACHE_ENTRIES_TRIM_SIZE = 128;
+    /**
+     * Value of {@link #mPendingBatchChangeReason} when no network changed in the batch.
+     */
+    private static final int BATCH_CHANGE_REASON_NONE = -1;
     /**
      * Link networks only if they have less than this number of scan cache entries.
      */
@@ -256,6 +268,7 @@ public class WifiConfigManager {
      * Local log used for debugging any WifiConfigManager issues.
      */
     private final LocalLog mLocalLog;
+    private final WifiEventJournal mWifiEventJournal;
     /**
      * Map of configured networks with network id as the key.
      */
@@ -326,6 +339,35 @@ public class WifiConfigManager {
     private int mLastSelectedNetworkId = WifiConfiguration.INVALID_NETWORK_ID;
     private long mLastSelectedTimeStamp =
             WifiConfiguration.NetworkSelectionStatus.INVALID_NETWORK_SELECTION_DISABLE_TIMESTAMP;
+    /**
+     * Nesting depth of the batch updates in progress, see {@link #startBatchUpdate()}.
+     */
+    private int mBatchUpdateDepth = 0;
+    /**
+     * Reason of the configured networks changed broadcast deferred until the end of the current
+     * batch update, or {@link #BATCH_CHANGE_REASON_NONE}.
+     */
+    private int mPendingBatchChangeReason = BATCH_CHANGE_REASON_NONE;
+    /**
+     * Whether the config store write of a network change was deferred until the end of the
+     * current batch update.
+     */
+    private boolean mIsBatchStoreWritePending = false;
+    private int mNumBatchUpdates = 0;
+    /**
+     * Version of the configured networks and of the state used to order them in the scan network
+     * lists (hidden networks, PNO networks). Incremented whenever they may have changed, i.e on
+     * every configured networks changed broadcast, config store write, change of the networks
+     * seen in the last network selection and reload of the networks.
+     */
+    private long mScanNetworkListVersion = 0;
+    /**
+     * SSIDs of the hidden network list returned by {@link #retrieveHiddenNetworkList()}, valid
+     * while {@link #mScanNetworkListVersion} equals {@link #mHiddenNetworkSsidsVersion}.
+     */
+    private List<String> mHiddenNetworkSsids;
+    private long mHiddenNetworkSsidsVersion = -1;
+    private int mNumHiddenNetworkListCacheHits = 0;
 
     // Store data for network list and deleted ephemeral SSID list.  Used for serializing
     // parsing data to/from the config store.
@@ -381,6 +423,7 @@ public class WifiConfigManager {
 
         mLocalLog = new LocalLog(
                 context.getSystemService(ActivityManager.class).isLowRamDevice() ? 128 : 256);
+        mWifiEventJournal = mWifiInjector.getWifiEventJournal();
         mMacAddressUtil = mWifiInjector.getMacAddressUtil();
         mLruConnectionTracker = lruConnectionTracker;
     }
@@ -839,6 +882,15 @@ public class WifiConfigManager {
      *                WifiManager.CHANGE_REASON_REMOVED, or WifiManager.CHANGE_REASON_CHANGE.
      */
     private void sendConfiguredNetworkChangedBroadcast(int reason) {
+        mScanNetworkListVersion++;
+        if (mBatchUpdateDepth > 0) {
+            // Aggregated into a single broadcast at the end of the batch.
+            mPendingBatchChangeReason =
+                    (mPendingBatchChangeReason == BATCH_CHANGE_REASON_NONE
+                            || mPendingBatchChangeReason == reason)
+                            ? reason : WifiManager.CHANGE_REASON_CONFIG_CHANGE;
+            return;
+        }
         Intent intent = new Intent(WifiManager.CONFIGURED_NETWORKS_CHANGED_ACTION);
         intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
         intent.putExtra(WifiManager.EXTRA_MULTIPLE_NETWORKS_CHANGED, true);
@@ -1353,13 +1405,17 @@ public class WifiConfigManager {
             return result;
         }
         WifiConfiguration newConfig = getInternalConfiguredNetwork(result.getNetworkId());
+        mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_CONFIG,
+                result.isNewNetwork() ? WifiEventJournal.EVENT_NETWORK_ADDED
+                        : WifiEventJournal.EVENT_NETWORK_UPDATED,
+                result.getNetworkId(), uid, newConfig.SSID);
         sendConfiguredNetworkChangedBroadcast(
                 result.isNewNetwork()
                         ? WifiManager.CHANGE_REASON_ADDED
                         : WifiManager.CHANGE_REASON_CONFIG_CHANGE);
         // Unless the added network is ephemeral or Passpoint, persist the network update/addition.
         if (!config.ephemeral && !config.isPasspoint()) {
-            saveToStore(true);
+            saveNetworkChangeToStore();
         }
 
         for (OnNetworkUpdateListener listener : mListeners) {
@@ -1412,6 +1468,8 @@ public class WifiConfigManager {
         // Stage the backup of the SettingsProvider package which backs this up.
         mBackupManagerProxy.notifyDataChanged();
         mWifiInjector.getBssidBlocklistMonitor().handleNetworkRemoved(config.SSID);
+        mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_CONFIG,
+                WifiEventJournal.EVENT_NETWORK_REMOVED, config.networkId, uid, config.SSID);
 
         localLog("removeNetworkInternal: removed config."
                 + " netId=" + config.networkId
@@ -1455,7 +1513,7 @@ public class WifiConfigManager {
         sendConfiguredNetworkChangedBroadcast(WifiManager.CHANGE_REASON_REMOVED);
         // Unless the removed network is ephemeral or Passpoint, persist the network removal.
         if (!config.ephemeral && !config.isPasspoint()) {
-            saveToStore(true);
+            saveNetworkChangeToStore();
         }
         for (OnNetworkUpdateListener listener : mListeners) {
             listener.onNetworkRemoved(
@@ -1464,6 +1522,99 @@ public class WifiConfigManager {
         return true;
     }
 
+    /**
+     * Start a batch update. Until the matching {@link #finishBatchUpdate()}, the network changes
+     * made through this class are applied to the in-memory lists right away, but the configured
+     * networks changed broadcast and the config store write they trigger are deferred, so that a
+     * batch of N changes sends a single broadcast and does a single store write instead of N.
+     * Explicit {@link #saveToStore(boolean)} calls still write right away.
+     * {@link OnNetworkUpdateListener#onBatchUpdateFinished()} is invoked at the end of the batch.
+     *
+     * Batch updates may be nested; only the outermost one flushes the deferred work. Callers must
+     * call {@link #finishBatchUpdate()} in a finally block.
+     */
+    public void startBatchUpdate() {
+        mBatchUpdateDepth++;
+    }
+
+    /**
+     * Finish a batch update started with {@link #startBatchUpdate()}.
+     */
+    public void finishBatchUpdate() {
+        if (mBatchUpdateDepth == 0) {
+            Log.wtf(TAG, "finishBatchUpdate called without startBatchUpdate");
+            return;
+        }
+        if (--mBatchUpdateDepth > 0) return;
+        mNumBatchUpdates++;
+        if (mPendingBatchChangeReason != BATCH_CHANGE_REASON_NONE) {
+            int reason = mPendingBatchChangeReason;
+            mPendingBatchChangeReason = BATCH_CHANGE_REASON_NONE;
+            sendConfiguredNetworkChangedBroadcast(reason);
+        }
+        if (mIsBatchStoreWritePending && !saveToStore(true)) {
+            Log.e(TAG, "Failed to save the network changes of the batch update");
+        }
+        for (OnNetworkUpdateListener listener : mListeners) {
+            listener.onBatchUpdateFinished();
+        }
+    }
+
+    /**
+     * Returns true while a batch update is in progress, see {@link #startBatchUpdate()}.
+     */
+    public boolean isBatchUpdateInProgress() {
+        return mBatchUpdateDepth > 0;
+    }
+
+    /**
+     * Add or update a list of networks in a single batch update, see
+     * {@link #startBatchUpdate()} and {@link #addOrUpdateNetwork(WifiConfiguration, int, String)}.
+     *
+     * @param configs list of provided WifiConfiguration objects.
+     * @param uid UID of the app requesting the network additions/modifications.
+     * @param packageName Package name of the app requesting the network additions/modifications.
+     * @return list of NetworkUpdateResult objects, in the order of |configs|.
+     */
+    public List<NetworkUpdateResult> addOrUpdateNetworks(List<WifiConfiguration> configs,
+            int uid, @Nullable String packageName) {
+        List<NetworkUpdateResult> results = new ArrayList<>(configs.size());
+        startBatchUpdate();
+        try {
+            for (WifiConfiguration config : configs) {
+                results.add(addOrUpdateNetwork(config, uid, packageName));
+            }
+        } finally {
+            finishBatchUpdate();
+        }
+        return results;
+    }
+
+    /**
+     * Remove a list of networks in a single batch update, see {@link #startBatchUpdate()} and
+     * {@link #removeNetwork(int, int, String)}.
+     *
+     * @param networkIds network IDs of the networks to remove.
+     * @param uid UID of the app requesting the network deletions.
+     * @param packageName Package name of the app requesting the network deletions.
+     * @return the {@link Set} of networks that were removed by this call.
+     */
+    public Set<Integer> removeNetworks(Collection<Integer> networkIds, int uid,
+            @Nullable String packageName) {
+        Set<Integer> removedNetworks = new ArraySet<>();
+        startBatchUpdate();
+        try {
+            for (int networkId : networkIds) {
+                if (removeNetwork(networkId, uid, packageName)) {
+                    removedNetworks.add(networkId);
+                }
+            }
+        } finally {
+            finishBatchUpdate();
+        }
+        return removedNetworks;
+    }
+
     private String getCreatorPackageName(WifiConfiguration config) {
         String creatorName = config.creatorName;
         // getNameForUid (Stored in WifiConfiguration.creatorName) returns a concatenation of name
@@ -1490,17 +1641,22 @@ public class WifiConfigManager {
         Set<Integer> removedNetworks = new ArraySet<>();
         WifiConfiguration[] copiedConfigs =
                 mConfiguredNetworks.valuesForAllUsers().toArray(new WifiConfiguration[0]);
-        for (WifiConfiguration config : copiedConfigs) {
-            if (app.uid != config.creatorUid
-                    || !app.packageName.equals(getCreatorPackageName(config))) {
-                continue;
-            }
-            localLog("Removing network " + config.SSID
-                    + ", application \"" + app.packageName + "\" uninstalled"
-                    + " from user " + UserHandle.getUserHandleForUid(app.uid));
-            if (removeNetwork(config.networkId, config.creatorUid, config.creatorName)) {
-                removedNetworks.add(config.networkId);
+        startBatchUpdate();
+        try {
+            for (WifiConfiguration config : copiedConfigs) {
+                if (app.uid != config.creatorUid
+                        || !app.packageName.equals(getCreatorPackageName(config))) {
+                    continue;
+                }
+                localLog("Removing network " + config.SSID
+                        + ", application \"" + app.packageName + "\" uninstalled"
+                        + " from user " + UserHandle.getUserHandleForUid(app.uid));
+                if (removeNetwork(config.networkId, config.creatorUid, config.creatorName)) {
+                    removedNetworks.add(config.networkId);
+                }
             }
+        } finally {
+            finishBatchUpdate();
         }
         return removedNetworks;
     }
@@ -1517,14 +1673,19 @@ public class WifiConfigManager {
         Set<Integer> removedNetworks = new ArraySet<>();
         WifiConfiguration[] copiedConfigs =
                 mConfiguredNetworks.valuesForAllUsers().toArray(new WifiConfiguration[0]);
-        for (WifiConfiguration config : copiedConfigs) {
-            if (userId != UserHandle.getUserHandleForUid(config.creatorUid).getIdentifier()) {
-                continue;
-            }
-            localLog("Removing network " + config.SSID + ", user " + userId + " removed");
-            if (removeNetwork(config.networkId, config.creatorUid, config.creatorName)) {
-                removedNetworks.add(config.networkId);
+        startBatchUpdate();
+        try {
+            for (WifiConfiguration config : copiedConfigs) {
+                if (userId != UserHandle.getUserHandleForUid(config.creatorUid).getIdentifier()) {
+                    continue;
+                }
+                localLog("Removing network " + config.SSID + ", user " + userId + " removed");
+                if (removeNetwork(config.networkId, config.creatorUid, config.creatorName)) {
+                    removedNetworks.add(config.networkId);
+                }
             }
+        } finally {
+            finishBatchUpdate();
         }
         return removedNetworks;
     }
@@ -2058,7 +2219,10 @@ public class WifiConfigManager {
         }
         config.getNetworkSelectionStatus().setCandidate(null);
         config.getNetworkSelectionStatus().setCandidateScore(Integer.MIN_VALUE);
-        config.getNetworkSelectionStatus().setSeenInLastQualifiedNetworkSelection(false);
+        if (config.getNetworkSelectionStatus().getSeenInLastQualifiedNetworkSelection()) {
+            config.getNetworkSelectionStatus().setSeenInLastQualifiedNetworkSelection(false);
+            mScanNetworkListVersion++;
+        }
         return true;
     }
 
@@ -2086,7 +2250,10 @@ public class WifiConfigManager {
         }
         config.getNetworkSelectionStatus().setCandidate(scanResult);
         config.getNetworkSelectionStatus().setCandidateScore(score);
-        config.getNetworkSelectionStatus().setSeenInLastQualifiedNetworkSelection(true);
+        if (!config.getNetworkSelectionStatus().getSeenInLastQualifiedNetworkSelection()) {
+            config.getNetworkSelectionStatus().setSeenInLastQualifiedNetworkSelection(true);
+            mScanNetworkListVersion++;
+        }
         return true;
     }
 
@@ -2640,21 +2807,54 @@ public class WifiConfigManager {
      * So, re-sort the network list based on the frequency of connection to those networks
      * and whether it was last seen in the scan results.
      *
+     * If enabled, the list is cached until the networks change, see
+     * {@link #getScanNetworkListVersion()}.
+     *
      * @return list of networks in the order of priority.
      */
     public List<WifiScanner.ScanSettings.HiddenNetwork> retrieveHiddenNetworkList() {
-        List<WifiScanner.ScanSettings.HiddenNetwork> hiddenList = new ArrayList<>();
-        List<WifiConfiguration> networks = getConfiguredNetworks();
-        // Remove any non hidden networks.
-        networks.removeIf(config -> !config.hiddenSSID);
+        boolean isCacheEnabled = mContext.getResources().getBoolean(
+                R.bool.config_wifiScanNetworkListCacheEnabled);
+        if (isCacheEnabled && mHiddenNetworkSsids != null
+                && mHiddenNetworkSsidsVersion == mScanNetworkListVersion) {
+            mNumHiddenNetworkListCacheHits++;
+            return createHiddenNetworkList(mHiddenNetworkSsids);
+        }
+        // Only the SSIDs and the ordering state are needed, so use the internal networks rather
+        // than external copies.
+        List<WifiConfiguration> networks = new ArrayList<>();
+        for (WifiConfiguration config : getInternalConfiguredNetworks()) {
+            if (config.hiddenSSID) networks.add(config);
+        }
         networks.sort(mScanListComparator);
         // The most frequently connected network has the highest priority now.
+        mHiddenNetworkSsids = new ArrayList<>(networks.size());
         for (WifiConfiguration config : networks) {
-            hiddenList.add(new WifiScanner.ScanSettings.HiddenNetwork(config.SSID));
+            mHiddenNetworkSsids.add(config.SSID);
+        }
+        mHiddenNetworkSsidsVersion = mScanNetworkListVersion;
+        return createHiddenNetworkList(mHiddenNetworkSsids);
+    }
+
+    private static List<WifiScanner.ScanSettings.HiddenNetwork> createHiddenNetworkList(
+            List<String> ssids) {
+        // New objects every time, the scan settings they are added to may be modified by callers.
+        List<WifiScanner.ScanSettings.HiddenNetwork> hiddenList = new ArrayList<>(ssids.size());
+        for (String ssid : ssids) {
+            hiddenList.add(new WifiScanner.ScanSettings.HiddenNetwork(ssid));
         }
         return hiddenList;
     }
 
+    /**
+     * Returns the version of the configured networks and of their state used to build the scan
+     * network lists. The version changes whenever the hidden network list or the saved networks
+     * part of the PNO network list may have changed, so that callers can cache these lists.
+     */
+    public long getScanNetworkListVersion() {
+        return mScanNetworkListVersion;
+    }
+
     /**
      * Check if the provided network was temporarily disabled by the user and still blocked.
      *
@@ -2905,6 +3105,7 @@ public class WifiConfigManager {
     private void clearInternalData() {
         localLog("clearInternalData: Clearing all internal data");
         mConfiguredNetworks.clear();
+        mScanNetworkListVersion++;
         mUserTemporarilyDisabledList.clear();
         mRandomizedMacAddressMapping.clear();
         mScanDetailCaches.clear();
@@ -2923,6 +3124,7 @@ public class WifiConfigManager {
      */
     private Set<Integer> clearInternalDataForCurrentUser() {
         localLog("clearInternalUserData: Clearing user internal data for " + mCurrentUserId);
+        mScanNetworkListVersion++;
         Set<Integer> removedNetworkIds = new HashSet<>();
         // Remove any private networks of the old user before switching the userId.
         for (WifiConfiguration config : getConfiguredNetworks()) {
@@ -2958,6 +3160,7 @@ public class WifiConfigManager {
     private void loadInternalDataFromSharedStore(
             List<WifiConfiguration> configurations,
             Map<String, String> macAddressMapping) {
+        mScanNetworkListVersion++;
         for (WifiConfiguration configuration : configurations) {
             configuration.networkId = mNextNetworkId++;
             configuration.staId = mWifiConfigStore.getStaId();
@@ -2980,6 +3183,7 @@ public class WifiConfigManager {
      * @param configurations list of configurations retrieved from store.
      */
     private void loadInternalDataFromUserStore(List<WifiConfiguration> configurations) {
+        mScanNetworkListVersion++;
         for (WifiConfiguration configuration : configurations) {
             configuration.networkId = mNextNetworkId++;
             configuration.staId = mWifiConfigStore.getStaId();
@@ -3128,6 +3332,19 @@ public class WifiConfigManager {
         return true;
     }
 
+    /**
+     * Force a config store write for a network addition, update or removal. Inside a batch update
+     * the write is deferred until the end of the batch, see {@link #startBatchUpdate()}.
+     */
+    private void saveNetworkChangeToStore() {
+        if (mBatchUpdateDepth > 0) {
+            mScanNetworkListVersion++;
+            mIsBatchStoreWritePending = true;
+            return;
+        }
+        saveToStore(true);
+    }
+
     /**
      * Save the current snapshot of the in-memory lists to the config store.
      *
@@ -3135,10 +3352,15 @@ public class WifiConfigManager {
      * @return Whether the write was successful or not, this is applicable only for force writes.
      */
     public boolean saveToStore(boolean forceWrite) {
+        mScanNetworkListVersion++;
         if (mPendingStoreRead) {
             Log.e(TAG, "Cannot save to store before store is read!");
             return false;
         }
+        if (forceWrite) {
+            // This write includes any network change deferred by the current batch update.
+            mIsBatchStoreWritePending = false;
+        }
         ArrayList<WifiConfiguration> sharedConfigurations = new ArrayList<>();
         ArrayList<WifiConfiguration> userConfigurations = new ArrayList<>();
         // List of network IDs for legacy Passpoint configuration to be removed.
@@ -3229,6 +3451,9 @@ public class WifiConfigManager {
         pw.println("WifiConfigManager - ConfigurationMap End ----");
         pw.println("WifiConfigManager - Next network ID to be allocated " + mNextNetworkId);
         pw.println("WifiConfigManager - Last selected network ID " + mLastSelectedNetworkId);
+        pw.println("WifiConfigManager - Number of batch updates " + mNumBatchUpdates);
+        pw.println("WifiConfigManager - Scan network list version " + mScanNetworkListVersion
+                + ", hidden network list cache hits " + mNumHiddenNetworkListCacheHits);
         pw.println("WifiConfigManager - PNO scan frequency culling enabled = "
                 + mContext.getResources().getBoolean(R.bool.config_wifiPnoFrequencyCullingEnabled));
         pw.println("WifiConfigManager - PNO scan recency sorting enabled = "
@@ -390,7 +390,7 @@ public class WifiConfigurationUtil {
             }
         }
         try {
-            NativeUtil.decodeSsid(ssid);
+            NativeUtil.decodeSsidToByteArray(ssid);
         } catch (IllegalArgumentException e) {
             Log.e(TAG, "validateSsid failed: malformed string: " + ssid);
             return false;
@@ -151,6 +151,7 @@ public class WifiConnectivityManager {
     private final Clock mClock;
     private final ScoringParams mScoringParams;
     private final LocalLog mLocalLog;
+    private final WifiEventJournal mWifiEventJournal;
     private final LinkedList<Long> mConnectionAttemptTimeStamps;
     private final BssidBlocklistMonitor mBssidBlocklistMonitor;
     private WifiScanner mScanner;
@@ -205,6 +206,13 @@ public class WifiConnectivityManager {
 
     private int mCurrentSingleScanScheduleIndex;
     private WifiChannelUtilization mWifiChannelUtilization;
+    private final WifiResourceCache mWifiResourceCache;
+    // Cached result of retrievePnoNetworkList(), valid for the scan network list versions of
+    // WifiConfigManager and WifiNetworkSuggestionsManager it was built with.
+    private List<PnoSettings.PnoNetwork> mCachedPnoNetworkList = null;
+    private long mCachedPnoNetworkListConfigVersion;
+    private long mCachedPnoNetworkListSuggestionVersion;
+    private int mNumPnoNetworkListCacheHits = 0;
     // Cached WifiCandidates used in high mobility state to avoid connecting to APs that are
     // moving relative to the user.
     private CachedWifiCandidates mCachedWifiCandidates = null;
@@ -322,8 +330,7 @@ public class WifiConnectivityManager {
         }
 
         if (isPartialScanResults) {
-            if (!mContext.getResources().getBoolean(
-                    R.bool.config_wifi_framework_enable_quick_connect)) {
+            if (!mWifiResourceCache.get().quickConnectEnabled) {
                 return false;
             }
             if (mAllowConnectionOnPartialScanResults ||
@@ -363,6 +370,9 @@ public class WifiConnectivityManager {
         mWifiMetrics.countScanResults(scanDetails);
         if (candidate != null) {
             localLog(listenerName + ":  WNS candidate-" + candidate.SSID);
+            mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_NETWORK_SELECTION,
+                    WifiEventJournal.EVENT_NETWORK_SELECTED, candidate.networkId,
+                    candidates == null ? 0 : candidates.size(), candidate.SSID);
             connectToNetwork(candidate);
             mWasLastConnectionAttemptedWithPartialResults = isPartialScanResults;
             return true;
@@ -603,8 +613,7 @@ public class WifiConnectivityManager {
 
             // When the scan result has radio chain info, ensure we throw away scan results
             // not received with both radio chains (if |mUseSingleRadioChainScanResults| is false).
-            if (!mContext.getResources().getBoolean(
-                    R.bool.config_wifi_framework_use_single_radio_chain_scan_results_network_selection)
+            if (!mWifiResourceCache.get().useSingleRadioChainScanResults
                     && fullScanResult.radioChainInfos != null
                     && fullScanResult.radioChainInfos.length == 1) {
                 // Keep track of the number of dropped scan results for logging.
@@ -759,27 +768,48 @@ public class WifiConnectivityManager {
 
     private class OnNetworkUpdateListener implements
             WifiConfigManager.OnNetworkUpdateListener {
+        // Set when networks changed during a batch update of WifiConfigManager.
+        private boolean mIsBatchScanTriggerPending = false;
+
         @Override
         public void onNetworkAdded(WifiConfiguration config) {
-            triggerScanOnNetworkChanges();
+            onNetworkChanged();
         }
         @Override
         public void onNetworkEnabled(WifiConfiguration config) {
-            triggerScanOnNetworkChanges();
+            onNetworkChanged();
         }
         @Override
         public void onNetworkRemoved(WifiConfiguration config) {
-            triggerScanOnNetworkChanges();
+            onNetworkChanged();
         }
         @Override
         public void onNetworkUpdated(WifiConfiguration newConfig, WifiConfiguration oldConfig) {
-            triggerScanOnNetworkChanges();
+            onNetworkChanged();
         }
         @Override
         public void onNetworkTemporarilyDisabled(WifiConfiguration config, int disableReason) { }
 
         @Override
         public void onNetworkPermanentlyDisabled(WifiConfiguration config, int disableReason) {
+            onNetworkChanged();
+        }
+
+        @Override
+        public void onBatchUpdateFinished() {
+            if (mIsBatchScanTriggerPending) {
+                mIsBatchScanTriggerPending = false;
+                triggerScanOnNetworkChanges();
+            }
+        }
+
+        private void onNetworkChanged() {
+            // Update the scan schedule / PNO list once at the end of a batch update instead of
+            // for every network in it.
+            if (mConfigManager.isBatchUpdateInProgress()) {
+                mIsBatchScanTriggerPending = true;
+                return;
+            }
             triggerScanOnNetworkChanges();
         }
     }
@@ -817,6 +847,7 @@ public class WifiConnectivityManager {
         mNetworkSelector = networkSelector;
         mConnectivityHelper = connectivityHelper;
         mLocalLog = localLog;
+        mWifiEventJournal = injector.getWifiEventJournal();
         mWifiLastResortWatchdog = wifiLastResortWatchdog;
         mOpenNetworkNotifier = openNetworkNotifier;
         mWifiMetrics = wifiMetrics;
@@ -833,6 +864,7 @@ public class WifiConnectivityManager {
                 new OnSuggestionUpdateListener());
         mBssidBlocklistMonitor = mWifiInjector.getBssidBlocklistMonitor();
         mWifiChannelUtilization = mWifiInjector.getWifiChannelUtilizationScan();
+        mWifiResourceCache = mWifiInjector.getWifiResourceCache();
         mNetworkSelector.setWifiChannelUtilization(mWifiChannelUtilization);
         mWifiScoreCard = scoreCard;
     }
@@ -953,6 +985,8 @@ public class WifiConnectivityManager {
             return;
         }
         noteConnectionAttempt(elapsedTimeMillis);
+        mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_CONNECT_STARTED, candidate.networkId, 0, targetBssid);
 
         mLastConnectionAttemptBssid = targetBssid;
 
@@ -1071,8 +1105,8 @@ public class WifiConnectivityManager {
         if (config == null) {
             return null;
         }
-        final int maxNumActiveChannelsForPartialScans = mContext.getResources().getInteger(
-                R.integer.config_wifi_framework_associated_partial_scan_max_num_active_channels);
+        final int maxNumActiveChannelsForPartialScans =
+                mWifiResourceCache.get().associatedPartialScanMaxNumActiveChannels;
         Set<Integer> channelSet = new HashSet<>();
         // First add the currently connected network channel.
         if (mWifiInfo.getFrequency() > 0) {
@@ -1343,6 +1377,9 @@ public class WifiConnectivityManager {
                 new SingleScanListener(isFullBandScan);
         mScanner.startScan(
                 settings, new HandlerExecutor(mEventHandler), singleScanListener, workSource);
+        mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_SCAN_STARTED, settings.type,
+                settings.channels == null ? 0 : settings.channels.length, null);
         mWifiMetrics.incrementConnectivityOneshotScanCount();
     }
 
@@ -1475,17 +1512,56 @@ public class WifiConnectivityManager {
 
     /**
      * Retrieve the PnoNetworks from Saved and suggestion non-passpoint network.
+     *
+     * If enabled, the list is cached until the saved networks or the suggestions change. It is
+     * not cached with PNO frequency culling, since the frequencies come from the score card.
      */
     @VisibleForTesting
     public List<PnoSettings.PnoNetwork> retrievePnoNetworkList() {
+        WifiResourceCache.Snapshot resources = mWifiResourceCache.get();
+        boolean pnoFrequencyCullingEnabled = resources.pnoFrequencyCullingEnabled;
+        long configVersion = mConfigManager.getScanNetworkListVersion();
+        long suggestionVersion = mWifiNetworkSuggestionsManager.getScanNetworkListVersion();
+        boolean isCacheEnabled = resources.scanNetworkListCacheEnabled
+                && !pnoFrequencyCullingEnabled;
+        if (isCacheEnabled && mCachedPnoNetworkList != null
+                && mCachedPnoNetworkListConfigVersion == configVersion
+                && mCachedPnoNetworkListSuggestionVersion == suggestionVersion) {
+            mNumPnoNetworkListCacheHits++;
+            return copyPnoNetworkList(mCachedPnoNetworkList);
+        }
+        List<PnoSettings.PnoNetwork> pnoList = buildPnoNetworkList(pnoFrequencyCullingEnabled);
+        if (isCacheEnabled) {
+            mCachedPnoNetworkList = copyPnoNetworkList(pnoList);
+            mCachedPnoNetworkListConfigVersion = configVersion;
+            mCachedPnoNetworkListSuggestionVersion = suggestionVersion;
+        } else {
+            mCachedPnoNetworkList = null;
+        }
+        return pnoList;
+    }
+
+    private static List<PnoSettings.PnoNetwork> copyPnoNetworkList(
+            List<PnoSettings.PnoNetwork> pnoList) {
+        // The PNO settings built from the list may be modified down the line, so hand out copies.
+        List<PnoSettings.PnoNetwork> copy = new ArrayList<>(pnoList.size());
+        for (PnoSettings.PnoNetwork pnoNetwork : pnoList) {
+            PnoSettings.PnoNetwork pnoNetworkCopy = new PnoSettings.PnoNetwork(pnoNetwork.ssid);
+            pnoNetworkCopy.flags = pnoNetwork.flags;
+            pnoNetworkCopy.authBitField = pnoNetwork.authBitField;
+            pnoNetworkCopy.frequencies = pnoNetwork.frequencies.clone();
+            copy.add(pnoNetworkCopy);
+        }
+        return copy;
+    }
+
+    private List<PnoSettings.PnoNetwork> buildPnoNetworkList(boolean pnoFrequencyCullingEnabled) {
         List<WifiConfiguration> networks = getAllScanOptimizationNetworks();
 
         if (networks.isEmpty()) {
             return Collections.EMPTY_LIST;
         }
         Collections.sort(networks, mConfigManager.getScanListComparator());
-        boolean pnoFrequencyCullingEnabled = mContext.getResources()
-                .getBoolean(R.bool.config_wifiPnoFrequencyCullingEnabled);
 
         List<PnoSettings.PnoNetwork> pnoList = new ArrayList<>();
         Set<WifiScanner.PnoSettings.PnoNetwork> pnoSet = new HashSet<>();
@@ -1755,6 +1831,8 @@ public class WifiConnectivityManager {
      */
     public void handleConnectionStateChanged(int state) {
         localLog("handleConnectionStateChanged: state=" + stateToString(state));
+        mWifiEventJournal.record(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_CONNECTION_STATE, state, 0, null);
 
         if (mConnectedSingleScanScheduleSec == null) {
             mConnectedSingleScanScheduleSec = initializeScanningSchedule(WIFI_STATE_CONNECTED);
@@ -2057,6 +2135,8 @@ public class WifiConnectivityManager {
         pw.println("WifiConnectivityManager - Log Begin ----");
         mLocalLog.dump(fd, pw, args);
         pw.println("WifiConnectivityManager - Log End ----");
+        pw.println("WifiConnectivityManager - PNO network list cache hits "
+                + mNumPnoNetworkListCacheHits);
         mOpenNetworkNotifier.dump(fd, pw, args);
         mBssidBlocklistMonitor.dump(fd, pw, args);
     }
@@ -48,7 +48,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.zip.Deflater;
@@ -61,7 +63,10 @@ class WifiDiagnostics extends BaseWifiDiagnostics {
      * Thread-safety:
      * 1) All non-private methods are |synchronized|.
      * 2) Callbacks into WifiDiagnostics use non-private (and hence, synchronized) methods. See, e.g,
-     *    onRingBufferData(), onWifiAlert().
+     *    onWifiAlert().
+     * 3) The exception is onRingBufferData(), which only appends to a ByteArrayRingBuffer. The ring
+     *    buffers synchronize on themselves and |mRingBufferData| is a concurrent map, so ring
+     *    buffer ingestion does not contend with dump() or bug report capture.
      */
 
     private static final String TAG = "WifiDiags";
@@ -430,25 +435,33 @@ class WifiDiagnostics extends BaseWifiDiagnostics {
     }
 
     class LimitedCircularArray<E> {
-        private ArrayList<E> mArrayList;
-        private int mMax;
+        private final Object[] mElements;
+        private int mHead;
+        private int mSize;
         LimitedCircularArray(int max) {
-            mArrayList = new ArrayList<E>(max);
-            mMax = max;
+            mElements = new Object[max];
         }
 
         public final void addLast(E e) {
-            if (mArrayList.size() >= mMax)
-                mArrayList.remove(0);
-            mArrayList.add(e);
+            if (mSize < mElements.length) {
+                mElements[(mHead + mSize) % mElements.length] = e;
+                mSize++;
+            } else {
+                mElements[mHead] = e;
+                mHead = (mHead + 1) % mElements.length;
+            }
         }
 
         public final int size() {
-            return mArrayList.size();
+            return mSize;
         }
 
+        @SuppressWarnings("unchecked")
         public final E get(int i) {
-            return mArrayList.get(i);
+            if (i < 0 || i >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + mSize);
+            }
+            return (E) mElements[(mHead + i) % mElements.length];
         }
     }
 
@@ -456,7 +469,7 @@ class WifiDiagnostics extends BaseWifiDiagnostics {
             new LimitedCircularArray<BugReport>(MAX_ALERT_REPORTS);
     private final LimitedCircularArray<BugReport> mLastBugReports =
             new LimitedCircularArray<BugReport>(MAX_BUG_REPORTS);
-    private final HashMap<String, ByteArrayRingBuffer> mRingBufferData = new HashMap();
+    private final Map<String, ByteArrayRingBuffer> mRingBufferData = new ConcurrentHashMap<>();
 
     private final WifiNative.WifiLoggerEventHandler mHandler =
             new WifiNative.WifiLoggerEventHandler() {
@@ -471,7 +484,7 @@ class WifiDiagnostics extends BaseWifiDiagnostics {
         }
     };
 
-    synchronized void onRingBufferData(WifiNative.RingBufferStatus status, byte[] buffer) {
+    void onRingBufferData(WifiNative.RingBufferStatus status, byte[] buffer) {
         ByteArrayRingBuffer ring = mRingBufferData.get(status.name);
         if (ring != null) {
             ring.appendBuffer(buffer);
@@ -658,11 +671,7 @@ class WifiDiagnostics extends BaseWifiDiagnostics {
                 /* this will push data in mRingBuffers */
                 mWifiNative.getRingBufferData(buffer.name);
                 ByteArrayRingBuffer data = mRingBufferData.get(buffer.name);
-                byte[][] buffers = new byte[data.getNumBuffers()][];
-                for (int i = 0; i < data.getNumBuffers(); i++) {
-                    buffers[i] = data.getBuffer(i).clone();
-                }
-                report.ringBuffers.put(buffer.name, buffers);
+                report.ringBuffers.put(buffer.name, data.getBuffers());
             }
         }
 
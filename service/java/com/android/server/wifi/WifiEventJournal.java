@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.annotation.IntDef;
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * A shared, memory-bounded journal of typed wifi events.
+ *
+ * Each subsystem owns a fixed-size ring of preallocated primitive records, so appending is O(1)
+ * and never allocates. When a subsystem exceeds its quota its oldest records are overwritten,
+ * which keeps a chatty subsystem from evicting the history of the others. Records are stamped
+ * with a global sequence number so that the dump can merge all subsystems back into a single
+ * timeline, optionally filtered by subsystem and time range.
+ *
+ * The journal only holds the key connection events of each subsystem, the detailed history is
+ * still kept by the subsystems' own logs. It is dumped on its own with "dumpsys wifi journal"
+ * rather than as part of the full dump, which already contains those logs.
+ */
+public class WifiEventJournal {
+    /** Argument used to request only the journal from "dumpsys wifi". */
+    public static final String DUMP_ARG = "journal";
+    /** Dump option restricting the output to the last N milliseconds. */
+    public static final String DUMP_OPTION_SINCE_MS = "--since-ms";
+    /** Dump option restricting the output to the timeline of the latest connection attempt. */
+    public static final String DUMP_OPTION_LAST_CONNECTION = "--last-connection";
+
+    public static final int SUBSYSTEM_CONNECTIVITY = 0;
+    public static final int SUBSYSTEM_NETWORK_SELECTION = 1;
+    public static final int SUBSYSTEM_BSSID_BLOCKLIST = 2;
+    public static final int SUBSYSTEM_CONFIG = 3;
+    @VisibleForTesting
+    static final int NUM_SUBSYSTEMS = 4;
+
+    @IntDef(prefix = { "SUBSYSTEM_" }, value = {
+            SUBSYSTEM_CONNECTIVITY,
+            SUBSYSTEM_NETWORK_SELECTION,
+            SUBSYSTEM_BSSID_BLOCKLIST,
+            SUBSYSTEM_CONFIG
+    })
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface Subsystem {}
+
+    private static final String[] SUBSYSTEM_NAMES = {
+            "connectivity",
+            "selection",
+            "blocklist",
+            "config"
+    };
+
+    // Share of the record budget given to each subsystem, in percent.
+    private static final int[] SUBSYSTEM_QUOTA_PERCENT = {40, 25, 10, 25};
+
+    /** Free form message, only |detail| is meaningful. */
+    public static final int EVENT_MESSAGE = 0;
+    /** A connectivity scan was started. arg1: scan type, arg2: number of channels (0 = all). */
+    public static final int EVENT_SCAN_STARTED = 1;
+    /** Network selection picked a candidate. arg1: network id, arg2: number of candidates. */
+    public static final int EVENT_NETWORK_SELECTED = 2;
+    /** A connection attempt was triggered. arg1: network id, detail: target BSSID. */
+    public static final int EVENT_CONNECT_STARTED = 3;
+    /** Connection state changed. arg1: new state. */
+    public static final int EVENT_CONNECTION_STATE = 4;
+    /** A BSSID was blocked. arg1: failure reason, arg2: rssi, detail: BSSID. */
+    public static final int EVENT_BSSID_BLOCKED = 5;
+    /** A BSSID was removed from the blocklist. arg1: failure reason, detail: BSSID. */
+    public static final int EVENT_BSSID_UNBLOCKED = 6;
+    /** A network was added. arg1: network id, arg2: creator uid. */
+    public static final int EVENT_NETWORK_ADDED = 7;
+    /** A network was updated. arg1: network id, arg2: last updater uid. */
+    public static final int EVENT_NETWORK_UPDATED = 8;
+    /** A network was removed. arg1: network id, arg2: calling uid. */
+    public static final int EVENT_NETWORK_REMOVED = 9;
+
+    private static final String[] EVENT_NAMES = {
+            "MESSAGE",
+            "SCAN_STARTED",
+            "NETWORK_SELECTED",
+            "CONNECT_STARTED",
+            "CONNECTION_STATE",
+            "BSSID_BLOCKED",
+            "BSSID_UNBLOCKED",
+            "NETWORK_ADDED",
+            "NETWORK_UPDATED",
+            "NETWORK_REMOVED"
+    };
+
+    // Record budgets; each record costs roughly 32 bytes plus its optional detail string.
+    static final int DEFAULT_MAX_RECORDS = 4096;
+    static final int LOW_RAM_MAX_RECORDS = 1024;
+
+    private final Clock mClock;
+    private final Ring[] mRings = new Ring[NUM_SUBSYSTEMS];
+    private final Calendar mCalendar = Calendar.getInstance();
+    private long mNextSequence = 0;
+
+    /**
+     * Fixed capacity ring of records, stored as parallel primitive arrays.
+     */
+    private static class Ring {
+        final long[] sequence;
+        final long[] timeMs;
+        final int[] type;
+        final int[] arg1;
+        final int[] arg2;
+        final String[] detail;
+        int head = 0;   // index of the oldest record
+        int size = 0;
+
+        Ring(int capacity) {
+            sequence = new long[capacity];
+            timeMs = new long[capacity];
+            type = new int[capacity];
+            arg1 = new int[capacity];
+            arg2 = new int[capacity];
+            detail = new String[capacity];
+        }
+
+        int capacity() {
+            return sequence.length;
+        }
+
+        /** Returns the physical index of the |i|th oldest record. */
+        int indexOf(int i) {
+            int index = head + i;
+            return index >= capacity() ? index - capacity() : index;
+        }
+
+        /** Returns the physical slot to write the next record to, evicting if full. */
+        int claimSlot() {
+            int slot;
+            if (size < capacity()) {
+                slot = indexOf(size);
+                size++;
+            } else {
+                slot = head;
+                head = indexOf(1);
+            }
+            return slot;
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+            Arrays.fill(detail, null);
+        }
+    }
+
+    /**
+     * Creates a journal holding at most |maxRecords| records, split between the subsystems
+     * according to their quota.
+     */
+    public WifiEventJournal(Clock clock, int maxRecords) {
+        if (maxRecords < NUM_SUBSYSTEMS) {
+            throw new IllegalArgumentException("maxRecords too small: " + maxRecords);
+        }
+        mClock = clock;
+        for (int i = 0; i < NUM_SUBSYSTEMS; i++) {
+            mRings[i] = new Ring(Math.max(1, maxRecords * SUBSYSTEM_QUOTA_PERCENT[i] / 100));
+        }
+    }
+
+    /**
+     * Appends a typed record to the journal of |subsystem|.
+     *
+     * @param detail optional detail string. Callers should prefer constants or strings that are
+     *               already allocated (e.g. a BSSID) to keep the hot path allocation free.
+     */
+    public synchronized void record(@Subsystem int subsystem, int eventType, int arg1, int arg2,
+            @Nullable String detail) {
+        Ring ring = mRings[subsystem];
+        int slot = ring.claimSlot();
+        ring.sequence[slot] = mNextSequence++;
+        ring.timeMs[slot] = mClock.getElapsedSinceBootMillis();
+        ring.type[slot] = eventType;
+        ring.arg1[slot] = arg1;
+        ring.arg2[slot] = arg2;
+        ring.detail[slot] = detail;
+    }
+
+    /**
+     * Returns the number of records currently held for |subsystem|.
+     */
+    public synchronized int size(@Subsystem int subsystem) {
+        return mRings[subsystem].size;
+    }
+
+    /**
+     * Returns the maximum number of records that can be held for |subsystem|.
+     */
+    public int getQuota(@Subsystem int subsystem) {
+        return mRings[subsystem].capacity();
+    }
+
+    /**
+     * Drops all records.
+     */
+    public synchronized void clear() {
+        for (Ring ring : mRings) {
+            ring.clear();
+        }
+    }
+
+    /**
+     * Returns the elapsed time of the most recent record of |eventType| in |subsystem|, or -1
+     * if there is no such record.
+     */
+    public synchronized long getLastEventTimeMs(@Subsystem int subsystem, int eventType) {
+        Ring ring = mRings[subsystem];
+        for (int i = ring.size - 1; i >= 0; i--) {
+            int index = ring.indexOf(i);
+            if (ring.type[index] == eventType) {
+                return ring.timeMs[index];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the records of the subsystems selected by |subsystemMask| (bit N selects subsystem
+     * N) whose timestamp lies in [|fromMs|, |toMs|] to |pw|, oldest first.
+     *
+     * Records are streamed straight from the rings in global sequence order without building an
+     * intermediate copy.
+     *
+     * @return number of records written.
+     */
+    public synchronized int dump(PrintWriter pw, int subsystemMask, long fromMs, long toMs) {
+        int[] cursor = new int[NUM_SUBSYSTEMS];
+        long wallOffsetMs = mClock.getWallClockMillis() - mClock.getElapsedSinceBootMillis();
+        int written = 0;
+        while (true) {
+            int next = -1;
+            long nextSequence = Long.MAX_VALUE;
+            for (int s = 0; s < NUM_SUBSYSTEMS; s++) {
+                if ((subsystemMask & (1 << s)) == 0) continue;
+                Ring ring = mRings[s];
+                if (cursor[s] >= ring.size) continue;
+                long sequence = ring.sequence[ring.indexOf(cursor[s])];
+                if (sequence < nextSequence) {
+                    nextSequence = sequence;
+                    next = s;
+                }
+            }
+            if (next < 0) break;
+            Ring ring = mRings[next];
+            int index = ring.indexOf(cursor[next]++);
+            long timeMs = ring.timeMs[index];
+            if (timeMs < fromMs || timeMs > toMs) continue;
+            printRecord(pw, next, ring, index, wallOffsetMs);
+            written++;
+        }
+        return written;
+    }
+
+    private void printRecord(PrintWriter pw, int subsystem, Ring ring, int index,
+            long wallOffsetMs) {
+        mCalendar.setTimeInMillis(ring.timeMs[index] + wallOffsetMs);
+        pw.print(String.format("%tm-%td %tH:%tM:%tS.%tL", mCalendar, mCalendar, mCalendar,
+                mCalendar, mCalendar, mCalendar));
+        pw.print(" [");
+        pw.print(SUBSYSTEM_NAMES[subsystem]);
+        pw.print("] ");
+        int type = ring.type[index];
+        if (type != EVENT_MESSAGE) {
+            pw.print(type >= 0 && type < EVENT_NAMES.length ? EVENT_NAMES[type] : "EVENT_" + type);
+            pw.print(" arg1=");
+            pw.print(ring.arg1[index]);
+            pw.print(" arg2=");
+            pw.print(ring.arg2[index]);
+            pw.print(' ');
+        }
+        String detail = ring.detail[index];
+        pw.println(detail == null ? "" : detail);
+    }
+
+    /**
+     * Dump the journal, honoring the filters given in |args|:
+     * <pre>
+     *   journal [subsystem ...] [--since-ms N] [--last-connection]
+     * </pre>
+     * Without any subsystem name all subsystems are included.
+     */
+    public void dump(PrintWriter pw, String[] args) {
+        int mask = 0;
+        long nowMs = mClock.getElapsedSinceBootMillis();
+        long fromMs = Long.MIN_VALUE;
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (DUMP_ARG.equals(arg)) {
+                    continue;
+                } else if (DUMP_OPTION_SINCE_MS.equals(arg) && i + 1 < args.length) {
+                    try {
+                        fromMs = Math.max(fromMs, nowMs - Long.parseLong(args[++i]));
+                    } catch (NumberFormatException e) {
+                        pw.println("Invalid " + DUMP_OPTION_SINCE_MS + " value: " + args[i]);
+                        return;
+                    }
+                } else if (DUMP_OPTION_LAST_CONNECTION.equals(arg)) {
+                    long lastConnectMs = getLastEventTimeMs(SUBSYSTEM_CONNECTIVITY,
+                            EVENT_CONNECT_STARTED);
+                    if (lastConnectMs >= 0) {
+                        fromMs = Math.max(fromMs, lastConnectMs);
+                    }
+                } else {
+                    int subsystem = getSubsystemByName(arg);
+                    if (subsystem < 0) {
+                        pw.println("Unknown journal subsystem: " + arg);
+                        return;
+                    }
+                    mask |= 1 << subsystem;
+                }
+            }
+        }
+        if (mask == 0) {
+            mask = (1 << NUM_SUBSYSTEMS) - 1;
+        }
+        pw.println("WifiEventJournal - begin ----");
+        dump(pw, mask, fromMs, Long.MAX_VALUE);
+        pw.println("WifiEventJournal - end ----");
+    }
+
+    /**
+     * Returns the subsystem with the given dump name, or -1 if unknown.
+     */
+    @VisibleForTesting
+    static int getSubsystemByName(String name) {
+        for (int i = 0; i < NUM_SUBSYSTEMS; i++) {
+            if (SUBSYSTEM_NAMES[i].equals(name)) return i;
+        }
+        return -1;
+    }
+}
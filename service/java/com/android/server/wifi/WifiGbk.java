@@ -339,7 +339,7 @@ public class WifiGbk {
         boolean gbkSsidValid = false;
 
         // utfSsid
-        utfBytes = NativeUtil.byteArrayFromArrayList(NativeUtil.decodeSsid(SSID));
+        utfBytes = NativeUtil.decodeSsidToByteArray(SSID);
         if (utfBytes == null || (utfBytes.length > MAX_SSID_UTF_LENGTH)) {
             // Important! check if ssidBytes exceed max length
             throw new IllegalArgumentException("Exceed max length " +
@@ -58,6 +58,7 @@ import com.android.server.wifi.util.NetdWrapper;
 import com.android.server.wifi.util.SettingsMigrationDataHolder;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 import com.android.server.wifi.util.WifiPermissionsWrapper;
+import com.android.wifi.resources.R;
 
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -86,6 +87,7 @@ public class WifiInjector {
     private final BatteryStatsManager mBatteryStats;
     private final FrameworkFacade mFrameworkFacade;
     private final DeviceConfigFacade mDeviceConfigFacade;
+    private final WifiResourceCache mWifiResourceCache;
     private final UserManager mUserManager;
     private final HandlerThread mAsyncChannelHandlerThread;
     private final HandlerThread mWifiHandlerThread;
@@ -125,6 +127,7 @@ public class WifiInjector {
     private WifiConfigManager mQtiWifiConfigManager = null;
     private final WifiConnectivityHelper mWifiConnectivityHelper;
     private final LocalLog mConnectivityLocalLog;
+    private final WifiEventJournal mWifiEventJournal;
     private final WifiNetworkSelector mWifiNetworkSelector;
     private final SavedNetworkNominator mSavedNetworkNominator;
     private final NetworkSuggestionNominator mNetworkSuggestionNominator;
@@ -193,6 +196,10 @@ public class WifiInjector {
         mFrameworkFacade = new FrameworkFacade();
         mMacAddressUtil = new MacAddressUtil();
         mContext = context;
+        mWifiEventJournal = new WifiEventJournal(mClock,
+                mContext.getSystemService(ActivityManager.class).isLowRamDevice()
+                        ? WifiEventJournal.LOW_RAM_MAX_RECORDS
+                        : WifiEventJournal.DEFAULT_MAX_RECORDS);
         mScoringParams = new ScoringParams(mContext);
         mSettingsMigrationDataHolder = new SettingsMigrationDataHolder(mContext);
         mConnectionFailureNotificationBuilder = new ConnectionFailureNotificationBuilder(
@@ -224,8 +231,11 @@ public class WifiInjector {
                 awareMetrics, rttMetrics, new WifiPowerMetrics(mBatteryStats), mWifiP2pMetrics,
                 mDppMetrics);
         mDeviceConfigFacade = new DeviceConfigFacade(mContext, wifiHandler, mWifiMetrics);
+        mWifiResourceCache = new WifiResourceCache(mContext, wifiHandler);
         // Modules interacting with Native.
         mWifiMonitor = new WifiMonitor(this);
+        mWifiMonitor.enableEventCoalescing(mContext.getResources().getBoolean(
+                R.bool.config_wifiMonitorEventCoalescingEnabled));
         mHalDeviceManager = new HalDeviceManager(mClock, wifiHandler);
         mWifiVendorHal = new WifiVendorHal(mHalDeviceManager, wifiHandler);
         mSupplicantStaIfaceHal = new SupplicantStaIfaceHal(
@@ -622,8 +632,8 @@ public class WifiInjector {
                 mWifiMetrics, clientModeImpl, mWifiHandlerThread.getLooper(), mDeviceConfigFacade,
                 mWifiThreadRunner);
         mBssidBlocklistMonitor = new BssidBlocklistMonitor(mContext, mWifiConnectivityHelper,
-                mWifiLastResortWatchdog, mClock, mConnectivityLocalLog, mWifiScoreCard,
-                mScoringParams);
+                mWifiLastResortWatchdog, mClock, mConnectivityLocalLog, mWifiEventJournal,
+                mWifiScoreCard, mScoringParams);
         mWifiMetrics.setBssidBlocklistMonitor(mBssidBlocklistMonitor);
         mWifiChannelUtilizationScan = new WifiChannelUtilization(mClock, mContext);
         return new WifiConnectivityManager(mContext, getScoringParams(),
@@ -799,6 +809,10 @@ public class WifiInjector {
         return mIpMemoryStore;
     }
 
+    public WifiEventJournal getWifiEventJournal() {
+        return mWifiEventJournal;
+    }
+
     public BssidBlocklistMonitor getBssidBlocklistMonitor() {
         return mBssidBlocklistMonitor;
     }
@@ -855,6 +869,10 @@ public class WifiInjector {
         return mDeviceConfigFacade;
     }
 
+    public WifiResourceCache getWifiResourceCache() {
+        return mWifiResourceCache;
+    }
+
     /**
      * Create QtiWifiConfigManager
      */
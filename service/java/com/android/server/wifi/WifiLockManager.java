@@ -32,10 +32,12 @@ import android.util.SparseArray;
 
 import com.android.server.wifi.proto.WifiStatsLog;
 import com.android.server.wifi.util.WorkSourceUtil;
+import com.android.wifi.resources.R;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -65,10 +67,17 @@ public class WifiLockManager {
     private final WifiMetrics mWifiMetrics;
     private final WifiNative mWifiNative;
 
-    private final List<WifiLock> mWifiLocks = new ArrayList<>();
+    // Held locks by binder, in acquisition order
+    private final Map<IBinder, WifiLock> mWifiLocks = new LinkedHashMap<>();
     // map UIDs to their corresponding records (for low-latency locks)
     private final SparseArray<UidRec> mLowLatencyUidWatchList = new SparseArray<>();
+    // Number of UIDs in mLowLatencyUidWatchList running in foreground
+    private int mNumFgLowLatencyUids = 0;
     private int mCurrentOpMode;
+    // Delay before leaving the current mode once its last lock is released, so that locks that
+    // are released and re-acquired right away don't toggle the firmware modes.
+    private final int mOpModeReleaseDelayMs;
+    private boolean mIsOpModeUpdatePending = false;
     private boolean mScreenOn = false;
     private boolean mWifiConnected = false;
 
@@ -82,6 +91,10 @@ public class WifiLockManager {
     private int mFullLowLatencyLocksAcquired;
     private int mFullLowLatencyLocksReleased;
     private long mCurrentSessionStartTimeMs;
+    private int mNumOpModeSwitches;
+    private int mNumHalModeCalls;
+    private long mTotalOpModeSwitchTimeMs;
+    private long mMaxOpModeSwitchTimeMs;
 
     WifiLockManager(Context context, BatteryStatsManager batteryStats,
             ClientModeImpl clientModeImpl, FrameworkFacade frameworkFacade, Handler handler,
@@ -96,6 +109,8 @@ public class WifiLockManager {
         mHandler = handler;
         mClock = clock;
         mWifiMetrics = wifiMetrics;
+        mOpModeReleaseDelayMs = mContext.getResources().getInteger(
+                R.integer.config_wifiLockModeReleaseDelayMs);
 
         // Register for UID fg/bg transitions
         registerUidImportanceTransitions();
@@ -148,26 +163,33 @@ public class WifiLockManager {
             @Override
             public void onUidImportance(final int uid, final int importance) {
                 mHandler.post(() -> {
-                    UidRec uidRec = mLowLatencyUidWatchList.get(uid);
-                    if (uidRec == null) {
-                        // Not a uid in the watch list
-                        return;
-                    }
-
-                    boolean newModeIsFg = (importance
-                            == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
-                    if (uidRec.mIsFg == newModeIsFg) {
-                        return; // already at correct state
-                    }
-
-                    uidRec.mIsFg = newModeIsFg;
-                    updateOpMode();
-
-                    // If conditions for lock activation are met,
-                    // then UID either share the blame, or removed from sharing
-                    // whether to start or stop the blame based on UID fg/bg state
-                    if (canActivateLowLatencyLock()) {
-                        setBlameLowLatencyUid(uid, uidRec.mIsFg);
+                    synchronized (WifiLockManager.this) {
+                        UidRec uidRec = mLowLatencyUidWatchList.get(uid);
+                        if (uidRec == null) {
+                            // Not a uid in the watch list
+                            return;
+                        }
+
+                        boolean newModeIsFg = (importance
+                                == ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND);
+                        if (uidRec.mIsFg == newModeIsFg) {
+                            return; // already at correct state
+                        }
+
+                        uidRec.mIsFg = newModeIsFg;
+                        mNumFgLowLatencyUids += newModeIsFg ? 1 : -1;
+                        if (newModeIsFg) {
+                            updateOpMode();
+                        } else {
+                            updateOpModeAfterRelease();
+                        }
+
+                        // If conditions for lock activation are met,
+                        // then UID either share the blame, or removed from sharing
+                        // whether to start or stop the blame based on UID fg/bg state
+                        if (canActivateLowLatencyLock()) {
+                            setBlameLowLatencyUid(uid, uidRec.mIsFg);
+                        }
                     }
                 });
             }
@@ -226,7 +248,7 @@ public class WifiLockManager {
             return WifiManager.WIFI_MODE_FULL_LOW_LATENCY;
         }
 
-        if (mScreenOn && countFgLowLatencyUids() > 0) {
+        if (mScreenOn && mNumFgLowLatencyUids > 0) {
             return WifiManager.WIFI_MODE_FULL_LOW_LATENCY;
         }
 
@@ -242,7 +264,7 @@ public class WifiLockManager {
      */
     public synchronized WorkSource createMergedWorkSource() {
         WorkSource mergedWS = new WorkSource();
-        for (WifiLock lock : mWifiLocks) {
+        for (WifiLock lock : mWifiLocks.values()) {
             mergedWS.add(lock.getWorkSource());
         }
         return mergedWS;
@@ -287,7 +309,7 @@ public class WifiLockManager {
             case WifiManager.WIFI_MODE_FULL_LOW_LATENCY:
                 addWsToLlWatchList(newWorkSource);
                 removeWsFromLlWatchList(wl.mWorkSource);
-                updateOpMode();
+                updateOpModeAfterRelease();
                 break;
             default:
                 // Do nothing
@@ -375,7 +397,7 @@ public class WifiLockManager {
     }
 
     private synchronized void setBlameHiPerfLocks(boolean shouldBlame) {
-        for (WifiLock lock : mWifiLocks) {
+        for (WifiLock lock : mWifiLocks.values()) {
             if (lock.mMode == WifiManager.WIFI_MODE_FULL_HIGH_PERF) {
                 setBlameHiPerfWs(lock.getWorkSource(), shouldBlame);
             }
@@ -410,6 +432,7 @@ public class WifiLockManager {
             // Now check if the uid is running in foreground
             if (mFrameworkFacade.isAppForeground(mContext, uid)) {
                 uidRec.mIsFg = true;
+                mNumFgLowLatencyUids++;
             }
 
             if (canActivateLowLatencyLock(0, uidRec)) {
@@ -433,6 +456,9 @@ public class WifiLockManager {
         }
         if (uidRec.mLockCount == 0) {
             mLowLatencyUidWatchList.remove(uid);
+            if (uidRec.mIsFg) {
+                mNumFgLowLatencyUids--;
+            }
 
             // Remove blame for this UID if it was alerady set
             // Note that blame needs to be stopped only if it was started before
@@ -489,7 +515,7 @@ public class WifiLockManager {
             return false;
         }
 
-        mWifiLocks.add(lock);
+        mWifiLocks.put(lock.getBinder(), lock);
 
         switch(lock.mMode) {
             case WifiManager.WIFI_MODE_FULL_HIGH_PERF:
@@ -515,9 +541,8 @@ public class WifiLockManager {
     }
 
     private synchronized WifiLock removeLock(IBinder binder) {
-        WifiLock lock = findLockByBinder(binder);
+        WifiLock lock = mWifiLocks.remove(binder);
         if (lock != null) {
-            mWifiLocks.remove(lock);
             lock.unlinkDeathRecipient();
         }
         return lock;
@@ -558,11 +583,46 @@ public class WifiLockManager {
         }
 
         // Recalculate the operating mode
-        updateOpMode();
+        updateOpModeAfterRelease();
 
         return true;
     }
 
+    /**
+     * Recalculate the operating mode after a lock (or the foreground UID of a low-latency lock)
+     * is gone. If the current mode is no longer needed, it is only left after
+     * {@link #mOpModeReleaseDelayMs}, unless a lock needing it is acquired in the meantime.
+     */
+    private synchronized void updateOpModeAfterRelease() {
+        if (mOpModeReleaseDelayMs <= 0
+                || getOpModeRank(getStrongestLockMode()) >= getOpModeRank(mCurrentOpMode)) {
+            updateOpMode();
+            return;
+        }
+        if (mIsOpModeUpdatePending) {
+            return;
+        }
+        mIsOpModeUpdatePending = true;
+        mHandler.postDelayed(() -> {
+            synchronized (WifiLockManager.this) {
+                mIsOpModeUpdatePending = false;
+                updateOpMode();
+            }
+        }, mOpModeReleaseDelayMs);
+    }
+
+    // Rank of the operating modes, from the least to the most power consuming
+    private static int getOpModeRank(int opMode) {
+        switch (opMode) {
+            case WifiManager.WIFI_MODE_FULL_LOW_LATENCY:
+                return 2;
+            case WifiManager.WIFI_MODE_FULL_HIGH_PERF:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
     private synchronized boolean updateOpMode() {
         final int newLockMode = getStrongestLockMode();
 
@@ -575,10 +635,22 @@ public class WifiLockManager {
             Log.d(TAG, "Current opMode: " + mCurrentOpMode + " New LockMode: " + newLockMode);
         }
 
+        final long switchStartTimeMs = mClock.getElapsedSinceBootMillis();
+        if (!switchOpMode(newLockMode)) {
+            return false;
+        }
+        long switchTimeMs = mClock.getElapsedSinceBootMillis() - switchStartTimeMs;
+        mNumOpModeSwitches++;
+        mTotalOpModeSwitchTimeMs += switchTimeMs;
+        mMaxOpModeSwitchTimeMs = Math.max(mMaxOpModeSwitchTimeMs, switchTimeMs);
+        return true;
+    }
+
+    private boolean switchOpMode(int newLockMode) {
         // Otherwise, we need to change current mode, first reset it to normal
         switch (mCurrentOpMode) {
             case WifiManager.WIFI_MODE_FULL_HIGH_PERF:
-                if (!mClientModeImpl.setPowerSave(true)) {
+                if (!setPowerSave(true)) {
                     Log.e(TAG, "Failed to reset the OpMode from hi-perf to Normal");
                     return false;
                 }
@@ -607,7 +679,7 @@ public class WifiLockManager {
         // Now switch to the new opMode
         switch (newLockMode) {
             case WifiManager.WIFI_MODE_FULL_HIGH_PERF:
-                if (!mClientModeImpl.setPowerSave(false)) {
+                if (!setPowerSave(false)) {
                     Log.e(TAG, "Failed to set the OpMode to hi-perf");
                     return false;
                 }
@@ -666,20 +738,20 @@ public class WifiLockManager {
         }
 
         if (lowLatencySupport == LOW_LATENCY_SUPPORTED) {
-            if (!mClientModeImpl.setLowLatencyMode(enabled)) {
+            if (!setClientLowLatencyMode(enabled)) {
                 Log.e(TAG, "Failed to set low latency mode");
                 return false;
             }
 
-            if (!mClientModeImpl.setPowerSave(!enabled)) {
+            if (!setPowerSave(!enabled)) {
                 Log.e(TAG, "Failed to set power save mode");
                 // Revert the low latency mode
-                mClientModeImpl.setLowLatencyMode(!enabled);
+                setClientLowLatencyMode(!enabled);
                 return false;
             }
         } else if (lowLatencySupport == LOW_LATENCY_NOT_SUPPORTED) {
             // Only set power save mode
-            if (!mClientModeImpl.setPowerSave(!enabled)) {
+            if (!setPowerSave(!enabled)) {
                 Log.e(TAG, "Failed to set power save mode");
                 return false;
             }
@@ -688,25 +760,18 @@ public class WifiLockManager {
         return true;
     }
 
-    private synchronized WifiLock findLockByBinder(IBinder binder) {
-        for (WifiLock lock : mWifiLocks) {
-            if (lock.getBinder() == binder) {
-                return lock;
-            }
-        }
-        return null;
+    private boolean setPowerSave(boolean enabled) {
+        mNumHalModeCalls++;
+        return mClientModeImpl.setPowerSave(enabled);
     }
 
-    private int countFgLowLatencyUids() {
-        int uidCount = 0;
-        int listSize = mLowLatencyUidWatchList.size();
-        for (int idx = 0; idx < listSize; idx++) {
-            UidRec uidRec = mLowLatencyUidWatchList.valueAt(idx);
-            if (uidRec.mIsFg) {
-                uidCount++;
-            }
-        }
-        return uidCount;
+    private boolean setClientLowLatencyMode(boolean enabled) {
+        mNumHalModeCalls++;
+        return mClientModeImpl.setLowLatencyMode(enabled);
+    }
+
+    private synchronized WifiLock findLockByBinder(IBinder binder) {
+        return mWifiLocks.get(binder);
     }
 
     private void setBlameHiPerfWs(WorkSource ws, boolean shouldBlame) {
@@ -770,9 +835,14 @@ public class WifiLockManager {
                 + mFullHighPerfLocksReleased + " full high perf, "
                 + mFullLowLatencyLocksReleased + " full low latency");
 
+        pw.println("Op mode switches: " + mNumOpModeSwitches
+                + ", HAL mode calls: " + mNumHalModeCalls
+                + ", total switch time: " + mTotalOpModeSwitchTimeMs + " ms"
+                + ", max switch time: " + mMaxOpModeSwitchTimeMs + " ms");
+
         pw.println();
         pw.println("Locks held:");
-        for (WifiLock lock : mWifiLocks) {
+        for (WifiLock lock : mWifiLocks.values()) {
             pw.print("    ");
             pw.println(lock);
         }
@@ -23,7 +23,7 @@ import android.net.wifi.WifiSsid;
 import android.net.wifi.WifiDppConfig.DppResult;
 import android.os.Handler;
 import android.os.Message;
-import android.util.ArraySet;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
 import static android.net.wifi.WifiScanner.ON_PARTIAL_SCAN_RESULTS;
@@ -36,9 +36,11 @@ import com.android.server.wifi.hotspot2.AnqpEvent;
 import com.android.server.wifi.hotspot2.IconEvent;
 import com.android.server.wifi.hotspot2.WnmData;
 
-import java.util.HashMap;
+import java.io.PrintWriter;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Listen for events from the wpa_supplicant & wificond and broadcast them on
@@ -113,9 +115,19 @@ public class WifiMonitor {
     private static final int REASON_TKIP_ONLY_PROHIBITED = 1;
     private static final int REASON_WEP_PROHIBITED = 2;
 
+    // Tokens carried in |Message.obj| of coalescable events which have no payload of their own,
+    // so that a pending copy can be looked up with Handler#hasMessages(int, Object).
+    private static final Object FULL_SCAN_RESULTS_TOKEN = new Object();
+    private static final Object PARTIAL_SCAN_RESULTS_TOKEN = new Object();
+    private static final Object PNO_SCAN_RESULTS_TOKEN = new Object();
+
     private final WifiInjector mWifiInjector;
     private boolean mVerboseLoggingEnabled = false;
     private boolean mConnected = false;
+    private volatile boolean mEventCoalescingEnabled = false;
+
+    private final AtomicLong mNumEventsDispatched = new AtomicLong();
+    private final AtomicLong mNumEventsCoalesced = new AtomicLong();
 
     public WifiMonitor(WifiInjector wifiInjector) {
         mWifiInjector = wifiInjector;
@@ -129,19 +141,41 @@ public class WifiMonitor {
         }
     }
 
-    private final Map<String, SparseArray<Set<Handler>>> mHandlerMap = new HashMap<>();
+    /**
+     * Enable/Disable coalescing of redundant events.
+     *
+     * When enabled, a scan result event is not posted to a handler which still has an identical
+     * scan result event pending.
+     */
+    public void enableEventCoalescing(boolean enabled) {
+        mEventCoalescingEnabled = enabled;
+    }
+
+    /**
+     * Subscription table: iface -> what -> handlers.
+     *
+     * The table is copy-on-write: registration builds a new table under the WifiMonitor lock and
+     * publishes it through this volatile field, so the dispatch path reads it without locking.
+     * Published tables are never modified.
+     */
+    private volatile Map<String, SparseArray<Handler[]>> mHandlerMap = Collections.emptyMap();
+
     public synchronized void registerHandler(String iface, int what, Handler handler) {
-        SparseArray<Set<Handler>> ifaceHandlers = mHandlerMap.get(iface);
-        if (ifaceHandlers == null) {
-            ifaceHandlers = new SparseArray<>();
-            mHandlerMap.put(iface, ifaceHandlers);
+        Handler[] handlers = getHandlers(mHandlerMap, iface, what);
+        if (handlers != null) {
+            for (Handler h : handlers) {
+                if (h == handler) return;
+            }
         }
-        Set<Handler> ifaceWhatHandlers = ifaceHandlers.get(what);
-        if (ifaceWhatHandlers == null) {
-            ifaceWhatHandlers = new ArraySet<>();
-            ifaceHandlers.put(what, ifaceWhatHandlers);
+        Handler[] newHandlers;
+        if (handlers == null) {
+            newHandlers = new Handler[] {handler};
+        } else {
+            newHandlers = new Handler[handlers.length + 1];
+            System.arraycopy(handlers, 0, newHandlers, 0, handlers.length);
+            newHandlers[handlers.length] = handler;
         }
-        ifaceWhatHandlers.add(handler);
+        publishHandlers(iface, what, newHandlers);
     }
 
     /**
@@ -151,19 +185,59 @@ public class WifiMonitor {
      * @param handler
      */
     public synchronized void deregisterHandler(String iface, int what, Handler handler) {
-        SparseArray<Set<Handler>> ifaceHandlers = mHandlerMap.get(iface);
-        if (ifaceHandlers == null) {
+        Handler[] handlers = getHandlers(mHandlerMap, iface, what);
+        if (handlers == null) {
             return;
         }
-        Set<Handler> ifaceWhatHandlers = ifaceHandlers.get(what);
-        if (ifaceWhatHandlers == null) {
+        int index = -1;
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] == handler) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
             return;
         }
-        ifaceWhatHandlers.remove(handler);
+        Handler[] newHandlers = new Handler[handlers.length - 1];
+        System.arraycopy(handlers, 0, newHandlers, 0, index);
+        System.arraycopy(handlers, index + 1, newHandlers, index, newHandlers.length - index);
+        publishHandlers(iface, what, newHandlers.length == 0 ? null : newHandlers);
+    }
+
+    private static Handler[] getHandlers(Map<String, SparseArray<Handler[]>> handlerMap,
+            String iface, int what) {
+        SparseArray<Handler[]> ifaceHandlers = handlerMap.get(iface);
+        return ifaceHandlers == null ? null : ifaceHandlers.get(what);
+    }
+
+    /**
+     * Publishes a copy of the subscription table with the handlers of (|iface|, |what|) replaced
+     * by |handlers|. Must be called with the WifiMonitor lock held.
+     */
+    private void publishHandlers(String iface, int what, Handler[] handlers) {
+        Map<String, SparseArray<Handler[]>> newMap = new ArrayMap<>(mHandlerMap.size() + 1);
+        newMap.putAll(mHandlerMap);
+        SparseArray<Handler[]> ifaceHandlers = newMap.get(iface);
+        ifaceHandlers = ifaceHandlers == null ? new SparseArray<>() : ifaceHandlers.clone();
+        if (handlers == null) {
+            ifaceHandlers.remove(what);
+        } else {
+            ifaceHandlers.put(what, handlers);
+        }
+        if (ifaceHandlers.size() == 0) {
+            newMap.remove(iface);
+        } else {
+            newMap.put(iface, ifaceHandlers);
+        }
+        mHandlerMap = newMap;
     }
 
-    private final Map<String, Boolean> mMonitoringMap = new HashMap<>();
+    private final Map<String, Boolean> mMonitoringMap = new ConcurrentHashMap<>();
     private boolean isMonitoring(String iface) {
+        if (iface == null) {
+            return false;
+        }
         Boolean val = mMonitoringMap.get(iface);
         if (val == null) {
             return false;
@@ -223,10 +297,35 @@ public class WifiMonitor {
     }
 
 
+    /**
+     * Returns the number of messages posted to handlers.
+     */
+    public long getNumEventsDispatched() {
+        return mNumEventsDispatched.get();
+    }
+
+    /**
+     * Returns the number of messages not posted because they were coalesced with a pending or
+     * previous identical event.
+     */
+    public long getNumEventsCoalesced() {
+        return mNumEventsCoalesced.get();
+    }
+
+    /**
+     * Dump the internal state of WifiMonitor.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("Dump of WifiMonitor");
+        pw.println("mEventCoalescingEnabled " + mEventCoalescingEnabled);
+        pw.println("mNumEventsDispatched " + mNumEventsDispatched.get());
+        pw.println("mNumEventsCoalesced " + mNumEventsCoalesced.get());
+    }
+
     /**
      * Similar functions to Handler#sendMessage that send the message to the registered handler
      * for the given interface and message what.
-     * All of these should be called with the WifiMonitor class lock
+     * The subscription table is copy-on-write, so these do not need the WifiMonitor lock.
      */
     private void sendMessage(String iface, int what) {
         sendMessage(iface, Message.obtain(null, what));
@@ -249,17 +348,11 @@ public class WifiMonitor {
     }
 
     private void sendMessage(String iface, Message message) {
-        SparseArray<Set<Handler>> ifaceHandlers = mHandlerMap.get(iface);
+        Map<String, SparseArray<Handler[]>> handlerMap = mHandlerMap;
+        SparseArray<Handler[]> ifaceHandlers = iface == null ? null : handlerMap.get(iface);
         if (iface != null && ifaceHandlers != null) {
             if (isMonitoring(iface)) {
-                Set<Handler> ifaceWhatHandlers = ifaceHandlers.get(message.what);
-                if (ifaceWhatHandlers != null) {
-                    for (Handler handler : ifaceWhatHandlers) {
-                        if (handler != null) {
-                            sendMessage(handler, Message.obtain(message));
-                        }
-                    }
-                }
+                sendMessage(ifaceHandlers.get(message.what), message);
             } else {
                 if (mVerboseLoggingEnabled) {
                     Log.d(TAG, "Dropping event because (" + iface + ") is stopped");
@@ -269,16 +362,9 @@ public class WifiMonitor {
             if (mVerboseLoggingEnabled) {
                 Log.d(TAG, "Sending to all monitors because there's no matching iface");
             }
-            for (Map.Entry<String, SparseArray<Set<Handler>>> entry : mHandlerMap.entrySet()) {
+            for (Map.Entry<String, SparseArray<Handler[]>> entry : handlerMap.entrySet()) {
                 if (isMonitoring(entry.getKey())) {
-                    Set<Handler> ifaceWhatHandlers = entry.getValue().get(message.what);
-                    if (ifaceWhatHandlers != null) {
-                        for (Handler handler : ifaceWhatHandlers) {
-                            if (handler != null) {
-                                sendMessage(handler, Message.obtain(message));
-                            }
-                        }
-                    }
+                    sendMessage(entry.getValue().get(message.what), message);
                 }
             }
         }
@@ -286,9 +372,34 @@ public class WifiMonitor {
         message.recycle();
     }
 
+    /** Posts a copy of |message| to each of |handlers|. */
+    private void sendMessage(Handler[] handlers, Message message) {
+        if (handlers == null) {
+            return;
+        }
+        for (Handler handler : handlers) {
+            if (isCoalescable(message) && handler.hasMessages(message.what, message.obj)) {
+                mNumEventsCoalesced.incrementAndGet();
+                continue;
+            }
+            sendMessage(handler, Message.obtain(message));
+        }
+    }
+
     private void sendMessage(Handler handler, Message message) {
         message.setTarget(handler);
         message.sendToTarget();
+        mNumEventsDispatched.incrementAndGet();
+    }
+
+    /**
+     * Whether a copy of |message| still waiting in a handler's queue makes |message| redundant.
+     */
+    private boolean isCoalescable(Message message) {
+        return mEventCoalescingEnabled
+                && (message.obj == FULL_SCAN_RESULTS_TOKEN
+                        || message.obj == PARTIAL_SCAN_RESULTS_TOKEN
+                        || message.obj == PNO_SCAN_RESULTS_TOKEN);
     }
 
     /**
@@ -431,7 +542,8 @@ public class WifiMonitor {
      * @param iface Name of iface on which this occurred.
      */
     public void broadcastScanResultEvent(String iface) {
-        sendMessage(iface, SCAN_RESULTS_EVENT);
+        sendMessage(iface, SCAN_RESULTS_EVENT,
+                mEventCoalescingEnabled ? FULL_SCAN_RESULTS_TOKEN : null);
     }
 
     /**
@@ -439,7 +551,8 @@ public class WifiMonitor {
      * @param iface Name of iface on which this occurred.
      */
     public void broadcastPartialScanResultEvent(String iface) {
-        sendMessage(iface, SCAN_RESULTS_EVENT, ON_PARTIAL_SCAN_RESULTS);
+        sendMessage(iface, SCAN_RESULTS_EVENT, ON_PARTIAL_SCAN_RESULTS, 0,
+                mEventCoalescingEnabled ? PARTIAL_SCAN_RESULTS_TOKEN : null);
     }
 
     /**
@@ -447,7 +560,8 @@ public class WifiMonitor {
      * @param iface Name of iface on which this occurred.
      */
     public void broadcastPnoScanResultEvent(String iface) {
-        sendMessage(iface, PNO_SCAN_RESULTS_EVENT);
+        sendMessage(iface, PNO_SCAN_RESULTS_EVENT,
+                mEventCoalescingEnabled ? PNO_SCAN_RESULTS_TOKEN : null);
     }
 
     /**
@@ -47,6 +47,7 @@ import android.net.wifi.WifiScanner;
 import android.net.wifi.hotspot2.PasspointConfiguration;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.UserHandle;
@@ -69,6 +70,7 @@ import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -149,6 +151,7 @@ public class WifiNetworkSuggestionsManager {
     private final WifiKeyStore mWifiKeyStore;
     // Keep order of network connection.
     private final LruConnectionTracker mLruConnectionTracker;
+    private final Clock mClock;
 
     /**
      * Per app meta data to store network suggestions, status, etc for each app providing network
@@ -257,6 +260,9 @@ public class WifiNetworkSuggestionsManager {
         // Store the pointer to the corresponding app's meta data.
         public final PerAppInfo perAppInfo;
         public boolean isAutojoinEnabled;
+        // The suggestion as supplied by the app, marshalled before installing it changes the carrier
+        // id, keystore aliases or Passpoint autojoin. Only set if unchanged suggestions are skipped.
+        private byte[] appSuppliedBytes;
 
         public ExtendedWifiNetworkSuggestion(@NonNull WifiNetworkSuggestion wns,
                                              @NonNull PerAppInfo perAppInfo,
@@ -394,6 +400,26 @@ public class WifiNetworkSuggestionsManager {
 
     private boolean mUserDataLoaded = false;
 
+    // Stats of the suggestions added, for dump.
+    private int mNumSuggestionsAdded = 0;
+    private int mNumUnchangedSuggestionsSkipped = 0;
+    private long mTotalAddDurationMs = 0;
+
+    /**
+     * Version of the active suggestions, incremented whenever they or their approval may have
+     * changed, see {@link #getScanNetworkListVersion()}.
+     */
+    private long mScanNetworkListVersion = 0;
+    // Active scorer seen on the last version check, it changes which apps are approved.
+    private String mLastActiveScorerPackage;
+    /**
+     * SSIDs of the hidden network list returned by {@link #retrieveHiddenNetworkList()}, valid
+     * while {@link #mScanNetworkListVersion} equals {@link #mHiddenNetworkSsidsVersion}.
+     */
+    private List<String> mHiddenNetworkSsids;
+    private long mHiddenNetworkSsidsVersion = -1;
+    private int mNumHiddenNetworkListCacheHits = 0;
+
     /**
      * Listener for app-ops changes for active suggestor apps.
      */
@@ -457,6 +483,7 @@ public class WifiNetworkSuggestionsManager {
 
         @Override
         public void fromDeserialized(Map<String, PerAppInfo> networkSuggestionsMap) {
+            mScanNetworkListVersion++;
             mActiveNetworkSuggestionsPerApp.clear();
             mActiveNetworkSuggestionsPerApp.putAll(networkSuggestionsMap);
             // Build the scan cache.
@@ -487,6 +514,7 @@ public class WifiNetworkSuggestionsManager {
         @Override
         public void reset() {
             mUserDataLoaded = false;
+            mScanNetworkListVersion++;
             mActiveNetworkSuggestionsPerApp.clear();
             mActiveScanResultMatchInfoWithBssid.clear();
             mActiveScanResultMatchInfoWithNoBssid.clear();
@@ -598,6 +626,7 @@ public class WifiNetworkSuggestionsManager {
         mPackageManager = context.getPackageManager();
         mWifiInjector = wifiInjector;
         mFrameworkFacade = mWifiInjector.getFrameworkFacade();
+        mClock = mWifiInjector.getClock();
         mWifiPermissionsUtil = wifiPermissionsUtil;
         mWifiConfigManager = wifiConfigManager;
         mWifiMetrics = wifiMetrics;
@@ -629,6 +658,7 @@ public class WifiNetworkSuggestionsManager {
     }
 
     private void saveToStore() {
+        mScanNetworkListVersion++;
         // Set the flag to let WifiConfigStore that we have new data to write.
         mHasNewDataToSerialize = true;
         if (!mWifiConfigManager.saveToStore(true)) {
@@ -920,49 +950,41 @@ public class WifiNetworkSuggestionsManager {
             startTrackingAppOpsChange(packageName, uid);
         }
 
-        for (ExtendedWifiNetworkSuggestion ewns: extNetworkSuggestions) {
-            if (carrierId != TelephonyManager.UNKNOWN_CARRIER_ID) {
-                ewns.setCarrierId(carrierId);
+        long startTimeMs = mClock.getElapsedSinceBootMillis();
+        boolean isBulkIngestEnabled =
+                mResources.getBoolean(R.bool.config_wifiSuggestionBulkIngestEnabled);
+        Map<ExtendedWifiNetworkSuggestion, ExtendedWifiNetworkSuggestion> existingSuggestions =
+                new HashMap<>();
+        if (isBulkIngestEnabled) {
+            for (ExtendedWifiNetworkSuggestion ewns : perAppInfo.extNetworkSuggestions) {
+                existingSuggestions.put(ewns, ewns);
             }
-            // If network has no IMSI protection and user didn't approve exemption, make it initial
-            // auto join disabled
-            if (isSimBasedSuggestion(ewns)) {
-                int subId = mWifiCarrierInfoManager
-                        .getMatchingSubId(getCarrierIdFromSuggestion(ewns));
-                if (!(mWifiCarrierInfoManager.requiresImsiEncryption(subId)
-                        || mWifiCarrierInfoManager.hasUserApprovedImsiPrivacyExemptionForCarrier(
-                        getCarrierIdFromSuggestion(ewns)))) {
-                    ewns.isAutojoinEnabled = false;
-                }
+            for (ExtendedWifiNetworkSuggestion ewns : extNetworkSuggestions) {
+                ewns.appSuppliedBytes = marshall(ewns.wns);
             }
-            if (ewns.wns.passpointConfiguration == null) {
-                if (ewns.wns.wifiConfiguration.isEnterprise()) {
-                    if (!mWifiKeyStore.updateNetworkKeys(ewns.wns.wifiConfiguration, null)) {
-                        Log.e(TAG, "Enterprise network install failure for SSID: "
-                                + ewns.wns.wifiConfiguration.SSID);
-                        continue;
-                    }
-                }
-                // If we have a config in WifiConfigManager for this suggestion, update
-                // WifiConfigManager with the latest WifiConfig.
-                // Note: Similar logic is present in PasspointManager for passpoint networks.
-                updateWifiConfigInWcmIfPresent(
-                        ewns.createInternalWifiConfiguration(), uid, packageName);
-                addToScanResultMatchInfoMap(ewns);
-            } else {
-                ewns.wns.passpointConfiguration.setAutojoinEnabled(ewns.isAutojoinEnabled);
-                // Install Passpoint config, if failure, ignore that suggestion
-                if (!mWifiInjector.getPasspointManager().addOrUpdateProvider(
-                        ewns.wns.passpointConfiguration, uid,
-                        packageName, true, !ewns.wns.isUntrusted())) {
-                    Log.e(TAG, "Passpoint profile install failure for FQDN: "
-                            + ewns.wns.wifiConfiguration.FQDN);
-                    continue;
+            // Single broadcast and store write for the saved networks updated below.
+            mWifiConfigManager.startBatchUpdate();
+        }
+        int numUnchangedSuggestions = 0;
+        try {
+            for (ExtendedWifiNetworkSuggestion ewns : extNetworkSuggestions) {
+                if (!addSuggestion(ewns, existingSuggestions.get(ewns), carrierId, uid,
+                        packageName)) {
+                    numUnchangedSuggestions++;
                 }
-                addToPasspointInfoMap(ewns);
             }
-            perAppInfo.extNetworkSuggestions.remove(ewns);
-            perAppInfo.extNetworkSuggestions.add(ewns);
+        } finally {
+            if (isBulkIngestEnabled) {
+                mWifiConfigManager.finishBatchUpdate();
+            }
+        }
+        mNumSuggestionsAdded += extNetworkSuggestions.size();
+        mNumUnchangedSuggestionsSkipped += numUnchangedSuggestions;
+        mTotalAddDurationMs += mClock.getElapsedSinceBootMillis() - startTimeMs;
+        if (numUnchangedSuggestions == extNetworkSuggestions.size()) {
+            // Nothing changed, no need to notify the listeners or write the store.
+            mWifiMetrics.incrementNetworkSuggestionApiNumModification();
+            return WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS;
         }
         for (OnSuggestionUpdateListener listener : mListeners) {
             listener.onSuggestionsAddedOrUpdated(networkSuggestions);
@@ -991,6 +1013,84 @@ public class WifiNetworkSuggestionsManager {
         return WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS;
     }
 
+    /**
+     * Add a single suggestion of {@link #add} to the app's active list and to the lookup maps.
+     *
+     * @param ewns the suggestion to add.
+     * @param existingEwns the matching suggestion already in the app's active list, only provided
+     *                     if unchanged suggestions should be skipped.
+     * @return false if the suggestion was skipped because it is unchanged, true otherwise
+     *         (including if it was ignored because its installation failed).
+     */
+    private boolean addSuggestion(ExtendedWifiNetworkSuggestion ewns,
+            @Nullable ExtendedWifiNetworkSuggestion existingEwns, int carrierId, int uid,
+            String packageName) {
+        if (carrierId != TelephonyManager.UNKNOWN_CARRIER_ID) {
+            ewns.setCarrierId(carrierId);
+        }
+        // If network has no IMSI protection and user didn't approve exemption, make it initial
+        // auto join disabled
+        if (isSimBasedSuggestion(ewns)) {
+            int subId = mWifiCarrierInfoManager
+                    .getMatchingSubId(getCarrierIdFromSuggestion(ewns));
+            if (!(mWifiCarrierInfoManager.requiresImsiEncryption(subId)
+                    || mWifiCarrierInfoManager.hasUserApprovedImsiPrivacyExemptionForCarrier(
+                    getCarrierIdFromSuggestion(ewns)))) {
+                ewns.isAutojoinEnabled = false;
+            }
+        }
+        if (existingEwns != null && existingEwns.appSuppliedBytes != null
+                && existingEwns.isAutojoinEnabled == ewns.isAutojoinEnabled
+                && getCarrierIdFromSuggestion(existingEwns) == getCarrierIdFromSuggestion(ewns)
+                && Arrays.equals(existingEwns.appSuppliedBytes, ewns.appSuppliedBytes)) {
+            // Keys, saved network and Passpoint provider are already up to date.
+            return false;
+        }
+        if (ewns.wns.passpointConfiguration == null) {
+            if (ewns.wns.wifiConfiguration.isEnterprise()) {
+                if (!mWifiKeyStore.updateNetworkKeys(ewns.wns.wifiConfiguration, null)) {
+                    Log.e(TAG, "Enterprise network install failure for SSID: "
+                            + ewns.wns.wifiConfiguration.SSID);
+                    return true;
+                }
+            }
+            // If we have a config in WifiConfigManager for this suggestion, update
+            // WifiConfigManager with the latest WifiConfig.
+            // Note: Similar logic is present in PasspointManager for passpoint networks.
+            updateWifiConfigInWcmIfPresent(
+                    ewns.createInternalWifiConfiguration(), uid, packageName);
+            addToScanResultMatchInfoMap(ewns);
+        } else {
+            ewns.wns.passpointConfiguration.setAutojoinEnabled(ewns.isAutojoinEnabled);
+            // Install Passpoint config, if failure, ignore that suggestion
+            if (!mWifiInjector.getPasspointManager().addOrUpdateProvider(
+                    ewns.wns.passpointConfiguration, uid,
+                    packageName, true, !ewns.wns.isUntrusted())) {
+                Log.e(TAG, "Passpoint profile install failure for FQDN: "
+                        + ewns.wns.wifiConfiguration.FQDN);
+                return true;
+            }
+            addToPasspointInfoMap(ewns);
+        }
+        ewns.perAppInfo.extNetworkSuggestions.remove(ewns);
+        ewns.perAppInfo.extNetworkSuggestions.add(ewns);
+        return true;
+    }
+
+    /**
+     * Marshalls every field of the suggestion, so that two suggestions can be compared in full,
+     * unlike {@link WifiNetworkSuggestion#equals(Object)} which only compares the network identity.
+     */
+    private static byte[] marshall(@NonNull WifiNetworkSuggestion suggestion) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            suggestion.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     private int getCarrierIdFromSuggestion(ExtendedWifiNetworkSuggestion ewns) {
         if (ewns.wns.passpointConfiguration == null) {
             return ewns.wns.wifiConfiguration.carrierId;
@@ -1262,6 +1362,7 @@ public class WifiNetworkSuggestionsManager {
      * configure. If user already change it to enabled, keep that choice.
      */
     private void restoreInitialAutojoinForCarrierId(int carrierId) {
+        mScanNetworkListVersion++;
         for (PerAppInfo appInfo : mActiveNetworkSuggestionsPerApp.values()) {
             for (ExtendedWifiNetworkSuggestion ewns : appInfo.extNetworkSuggestions) {
                 if (!(isSimBasedSuggestion(ewns)
@@ -1694,25 +1795,56 @@ public class WifiNetworkSuggestionsManager {
     /**
      * Get hidden network from active network suggestions.
      * Todo(): Now limit by a fixed number, maybe we can try rotation?
+     * If enabled, the list is cached until the suggestions change.
      * @return set of WifiConfigurations
      */
     public List<WifiScanner.ScanSettings.HiddenNetwork> retrieveHiddenNetworkList() {
-        List<WifiScanner.ScanSettings.HiddenNetwork> hiddenNetworks = new ArrayList<>();
+        boolean isCacheEnabled =
+                mResources.getBoolean(R.bool.config_wifiScanNetworkListCacheEnabled);
+        if (isCacheEnabled && mHiddenNetworkSsids != null
+                && mHiddenNetworkSsidsVersion == mScanNetworkListVersion) {
+            mNumHiddenNetworkListCacheHits++;
+            return createHiddenNetworkList(mHiddenNetworkSsids);
+        }
+        mHiddenNetworkSsids = new ArrayList<>();
+        mHiddenNetworkSsidsVersion = mScanNetworkListVersion;
         for (PerAppInfo appInfo : mActiveNetworkSuggestionsPerApp.values()) {
             if (!appInfo.hasUserApproved) continue;
             for (ExtendedWifiNetworkSuggestion ewns : appInfo.extNetworkSuggestions) {
                 if (!ewns.wns.wifiConfiguration.hiddenSSID) continue;
-                hiddenNetworks.add(
-                        new WifiScanner.ScanSettings.HiddenNetwork(
-                                ewns.wns.wifiConfiguration.SSID));
-                if (hiddenNetworks.size() >= NUMBER_OF_HIDDEN_NETWORK_FOR_ONE_SCAN) {
-                    return hiddenNetworks;
+                mHiddenNetworkSsids.add(ewns.wns.wifiConfiguration.SSID);
+                if (mHiddenNetworkSsids.size() >= NUMBER_OF_HIDDEN_NETWORK_FOR_ONE_SCAN) {
+                    return createHiddenNetworkList(mHiddenNetworkSsids);
                 }
             }
         }
+        return createHiddenNetworkList(mHiddenNetworkSsids);
+    }
+
+    private static List<WifiScanner.ScanSettings.HiddenNetwork> createHiddenNetworkList(
+            List<String> ssids) {
+        List<WifiScanner.ScanSettings.HiddenNetwork> hiddenNetworks =
+                new ArrayList<>(ssids.size());
+        for (String ssid : ssids) {
+            hiddenNetworks.add(new WifiScanner.ScanSettings.HiddenNetwork(ssid));
+        }
         return hiddenNetworks;
     }
 
+    /**
+     * Returns the version of the active suggestions and of their approval. The version changes
+     * whenever the hidden network list or the scan optimization suggestion networks may have
+     * changed, so that callers can cache the scan network lists built from them.
+     */
+    public long getScanNetworkListVersion() {
+        String activeScorerPackage = mNetworkScoreManager.getActiveScorerPackage();
+        if (!TextUtils.equals(activeScorerPackage, mLastActiveScorerPackage)) {
+            mLastActiveScorerPackage = activeScorerPackage;
+            mScanNetworkListVersion++;
+        }
+        return mScanNetworkListVersion;
+    }
+
     /**
      * Helper method to send the post connection broadcast to specified package.
      */
@@ -2243,5 +2375,14 @@ public class WifiNetworkSuggestionsManager {
         pw.println("WifiNetworkSuggestionsManager - Networks End ----");
         pw.println("WifiNetworkSuggestionsManager - Network Suggestions matching connection: "
                 + mActiveNetworkSuggestionsMatchingConnection);
+        pw.println("WifiNetworkSuggestionsManager - Scan network list version "
+                + mScanNetworkListVersion + ", hidden network list cache hits "
+                + mNumHiddenNetworkListCacheHits);
+        pw.println("WifiNetworkSuggestionsManager - Suggestions added: " + mNumSuggestionsAdded
+                + ", unchanged skipped: " + mNumUnchangedSuggestionsSkipped
+                + ", total duration: " + mTotalAddDurationMs + "ms"
+                + (mTotalAddDurationMs > 0
+                        ? ", rate: " + (mNumSuggestionsAdded * 1000L / mTotalAddDurationMs) + "/s"
+                        : ""));
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import android.annotation.NonNull;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.os.Handler;
+
+import com.android.wifi.resources.R;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Snapshot of the wifi overlay values read on hot paths (e.g. for every scan result), so that
+ * callers read plain fields instead of going through {@link Resources} each time.
+ *
+ * The snapshot is loaded from the resources on first use and dropped on configuration change and
+ * whenever a package or runtime resource overlay changes, so that it is reloaded with the new
+ * overlay values on next use.
+ */
+public class WifiResourceCache {
+    // Intent.ACTION_OVERLAY_CHANGED, sent when a runtime resource overlay is enabled, disabled or
+    // updated for the package in the intent data.
+    private static final String ACTION_OVERLAY_CHANGED = "android.intent.action.OVERLAY_CHANGED";
+
+    /**
+     * Immutable set of overlay values.
+     */
+    public static class Snapshot {
+        /** R.integer.config_wifi_framework_associated_partial_scan_max_num_active_channels */
+        public final int associatedPartialScanMaxNumActiveChannels;
+        /** R.bool.config_wifiPnoFrequencyCullingEnabled */
+        public final boolean pnoFrequencyCullingEnabled;
+        /** R.bool.config_wifi_framework_enable_quick_connect */
+        public final boolean quickConnectEnabled;
+        /** R.bool.config_wifi_framework_use_single_radio_chain_scan_results_network_selection */
+        public final boolean useSingleRadioChainScanResults;
+        /** R.bool.config_wifiScanNetworkListCacheEnabled */
+        public final boolean scanNetworkListCacheEnabled;
+
+        Snapshot(@NonNull Resources resources) {
+            associatedPartialScanMaxNumActiveChannels = resources.getInteger(
+                    R.integer.config_wifi_framework_associated_partial_scan_max_num_active_channels);
+            pnoFrequencyCullingEnabled = resources.getBoolean(
+                    R.bool.config_wifiPnoFrequencyCullingEnabled);
+            quickConnectEnabled = resources.getBoolean(
+                    R.bool.config_wifi_framework_enable_quick_connect);
+            useSingleRadioChainScanResults = resources.getBoolean(
+                    R.bool.config_wifi_framework_use_single_radio_chain_scan_results_network_selection);
+            scanNetworkListCacheEnabled = resources.getBoolean(
+                    R.bool.config_wifiScanNetworkListCacheEnabled);
+        }
+
+        @Override
+        public String toString() {
+            return "associatedPartialScanMaxNumActiveChannels="
+                    + associatedPartialScanMaxNumActiveChannels
+                    + ", pnoFrequencyCullingEnabled=" + pnoFrequencyCullingEnabled
+                    + ", quickConnectEnabled=" + quickConnectEnabled
+                    + ", useSingleRadioChainScanResults=" + useSingleRadioChainScanResults
+                    + ", scanNetworkListCacheEnabled=" + scanNetworkListCacheEnabled;
+        }
+    }
+
+    private final Context mContext;
+    // Null until first use and after a configuration, overlay or package change.
+    private volatile Snapshot mSnapshot;
+    private final AtomicInteger mNumLoads = new AtomicInteger();
+
+    public WifiResourceCache(@NonNull Context context, @NonNull Handler handler) {
+        mContext = context;
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_CONFIGURATION_CHANGED);
+        context.registerReceiver(receiver, filter, null, handler);
+        // The name of the wifi resources APK differs between builds, so drop the snapshot on any
+        // overlay or package change. Reloading it is cheap and these broadcasts are rare.
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(ACTION_OVERLAY_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addDataScheme("package");
+        context.registerReceiver(receiver, packageFilter, null, handler);
+    }
+
+    /**
+     * Returns the current snapshot of the overlay values, loading it if needed.
+     */
+    @NonNull
+    public Snapshot get() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            snapshot = new Snapshot(mContext.getResources());
+            mSnapshot = snapshot;
+            mNumLoads.incrementAndGet();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drop the current snapshot, so that the overlay values are read again on next use.
+     */
+    public void invalidate() {
+        mSnapshot = null;
+    }
+
+    /**
+     * Dump the internal state of the cache.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("WifiResourceCache:");
+        pw.println("  mNumLoads " + mNumLoads.get());
+        pw.println("  mSnapshot " + mSnapshot);
+    }
+}
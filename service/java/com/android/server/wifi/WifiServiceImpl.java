@@ -3496,6 +3496,8 @@ public class WifiServiceImpl extends BaseWifiService {
         } else if (args != null && args.length > 0 && WifiScoreReport.DUMP_ARG.equals(args[0])) {
             WifiScoreReport wifiScoreReport = mClientModeImpl.getWifiScoreReport();
             if (wifiScoreReport != null) wifiScoreReport.dump(fd, pw, args);
+        } else if (args != null && args.length > 0 && WifiEventJournal.DUMP_ARG.equals(args[0])) {
+            mWifiInjector.getWifiEventJournal().dump(pw, args);
         } else if (args != null && args.length > 0 && WifiScoreCard.DUMP_ARG.equals(args[0])) {
             WifiScoreCard wifiScoreCard = mWifiInjector.getWifiScoreCard();
             String networkListBase64 = mWifiThreadRunner.call(() ->
@@ -3538,8 +3540,12 @@ public class WifiServiceImpl extends BaseWifiService {
             pw.println();
             mWifiBackupRestore.dump(fd, pw, args);
             pw.println();
+            mWifiInjector.getWifiMonitor().dump(pw);
+            pw.println();
             pw.println("ScoringParams: " + mWifiInjector.getScoringParams());
             pw.println();
+            mWifiInjector.getWifiResourceCache().dump(pw);
+            pw.println();
             pw.println("WifiScoreReport:");
             WifiScoreReport wifiScoreReport = mClientModeImpl.getWifiScoreReport();
             wifiScoreReport.dump(fd, pw, args);
@@ -3804,18 +3810,26 @@ public class WifiServiceImpl extends BaseWifiService {
         int callingUid = Binder.getCallingUid();
         mWifiThreadRunner.run(
                 () -> {
-                    for (WifiConfiguration configuration : configurations) {
-                        int networkId =
-                                mWifiConfigManager.addOrUpdateNetwork(configuration, callingUid)
-                                        .getNetworkId();
-                        if (networkId == WifiConfiguration.INVALID_NETWORK_ID) {
-                            Log.e(TAG, "Restore network failed: " + configuration.getKey());
-                            continue;
+                    // Single broadcast and store write for all the restored networks.
+                    mWifiConfigManager.startBatchUpdate();
+                    try {
+                        for (WifiConfiguration configuration : configurations) {
+                            int networkId = mWifiConfigManager
+                                    .addOrUpdateNetwork(configuration, callingUid)
+                                    .getNetworkId();
+                            if (networkId == WifiConfiguration.INVALID_NETWORK_ID) {
+                                Log.e(TAG, "Restore network failed: "
+                                        + configuration.getKey());
+                                continue;
+                            }
+                            // Enable all networks restored.
+                            mWifiConfigManager.enableNetwork(networkId, false, callingUid, null);
+                            // Restore auto-join param.
+                            mWifiConfigManager.allowAutojoin(
+                                    networkId, configuration.allowAutojoin);
                         }
-                        // Enable all networks restored.
-                        mWifiConfigManager.enableNetwork(networkId, false, callingUid, null);
-                        // Restore auto-join param.
-                        mWifiConfigManager.allowAutojoin(networkId, configuration.allowAutojoin);
+                    } finally {
+                        mWifiConfigManager.finishBatchUpdate();
                     }
                 });
     }
@@ -3835,9 +3849,20 @@ public class WifiServiceImpl extends BaseWifiService {
         }
 
         Log.d(TAG, "Restoring backup data");
-        List<WifiConfiguration> wifiConfigurations =
-                mWifiBackupRestore.retrieveConfigurationsFromBackupData(data);
-        restoreNetworks(wifiConfigurations);
+        int batchSize = mContext.getResources().getInteger(
+                R.integer.config_wifiBackupRestoreBatchSize);
+        if (batchSize > 0 && data != null && data.length > 0) {
+            // Add the networks to WifiConfigManager as they are parsed, so that only one batch
+            // of them is held in memory at a time.
+            if (!mWifiBackupRestore.retrieveConfigurationsFromBackupData(
+                    data, batchSize, this::restoreNetworks)) {
+                Log.e(TAG, "Backup data parse failed");
+            }
+        } else {
+            List<WifiConfiguration> wifiConfigurations =
+                    mWifiBackupRestore.retrieveConfigurationsFromBackupData(data);
+            restoreNetworks(wifiConfigurations);
+        }
         Log.d(TAG, "Restored backup data");
     }
 
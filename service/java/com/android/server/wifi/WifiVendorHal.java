@@ -2295,8 +2295,7 @@ public class WifiVendorHal {
                 // parse the whitelist SSIDs if any
                 if (config.whitelistSsids != null) {
                     for (String ssidStr : config.whitelistSsids) {
-                        byte[] ssid = NativeUtil.byteArrayFromArrayList(
-                                NativeUtil.decodeSsid(ssidStr));
+                        byte[] ssid = NativeUtil.decodeSsidToByteArray(ssidStr);
                         if (ssid.length > 32) {
                             throw new IllegalArgumentException("configureRoaming: ssid too long");
                         }
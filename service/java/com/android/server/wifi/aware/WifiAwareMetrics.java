@@ -131,6 +131,14 @@ public class WifiAwareMetrics {
 
     private SparseIntArray mHistogramNdpDuration = new SparseIntArray();
 
+    // follow-up messages
+    private int mNumFollowupMessagesSent = 0;
+    private long mNumFollowupMessageBytesSent = 0;
+    private SparseIntArray mFollowupMessageStatusData = new SparseIntArray();
+    private SparseIntArray mHistogramFollowupMessageLatency = new SparseIntArray();
+    private int mMaxFollowupMessagesInFlight = 0;
+    private int mNumFollowupQueueFull = 0;
+
     public WifiAwareMetrics(Clock clock) {
         mClock = clock;
     }
@@ -491,6 +499,66 @@ public class WifiAwareMetrics {
         }
     }
 
+    /**
+     * Record the final result of a follow-up message transmission: success or the failure reason
+     * (after any retransmissions).
+     *
+     * @param status NanStatusType of the transmission.
+     * @param sizeBytes Size of the message payload.
+     * @param latencyMs Time between the message being queued by the host and its result, or a
+     *                  negative value if the message was rejected before being queued.
+     */
+    public void recordFollowupMessageResult(int status, int sizeBytes, long latencyMs) {
+        synchronized (mLock) {
+            addNanHalStatusToHistogram(status, mFollowupMessageStatusData);
+            if (status == NanStatusType.SUCCESS) {
+                mNumFollowupMessagesSent++;
+                mNumFollowupMessageBytesSent += sizeBytes;
+            }
+            if (latencyMs >= 0) {
+                MetricsUtils.addValueToLogHistogram(latencyMs, mHistogramFollowupMessageLatency,
+                        DURATION_LOG_HISTOGRAM);
+            }
+        }
+    }
+
+    /**
+     * Record the number of follow-up messages queued in the firmware after a new one was
+     * accepted.
+     */
+    public void recordFollowupMessageInFlight(int numInFlight) {
+        synchronized (mLock) {
+            mMaxFollowupMessagesInFlight = Math.max(mMaxFollowupMessagesInFlight, numInFlight);
+        }
+    }
+
+    /**
+     * Record the firmware rejecting a follow-up message because its queue is full.
+     */
+    public void recordFollowupQueueFull() {
+        synchronized (mLock) {
+            mNumFollowupQueueFull++;
+        }
+    }
+
+    /**
+     * Returns the number of follow-up messages successfully transmitted.
+     */
+    public int getNumFollowupMessagesSent() {
+        synchronized (mLock) {
+            return mNumFollowupMessagesSent;
+        }
+    }
+
+    /**
+     * Returns the maximum number of follow-up messages queued in the firmware at once.
+     */
+    public int getMaxFollowupMessagesInFlight() {
+        synchronized (mLock) {
+            return mMaxFollowupMessagesInFlight;
+        }
+    }
+
     /**
      * Consolidate all metrics into the proto.
      */
@@ -651,6 +719,13 @@ public class WifiAwareMetrics {
             mNdpCreationTimeNumSamples = 0;
 
             mHistogramNdpDuration.clear();
+
+            mNumFollowupMessagesSent = 0;
+            mNumFollowupMessageBytesSent = 0;
+            mFollowupMessageStatusData.clear();
+            mHistogramFollowupMessageLatency.clear();
+            mMaxFollowupMessagesInFlight = 0;
+            mNumFollowupQueueFull = 0;
         }
     }
 
@@ -786,6 +861,21 @@ public class WifiAwareMetrics {
                 pw.println("  " + mHistogramNdpDuration.keyAt(i) + ": "
                         + mHistogramNdpDuration.valueAt(i));
             }
+
+            pw.println("mNumFollowupMessagesSent:" + mNumFollowupMessagesSent);
+            pw.println("mNumFollowupMessageBytesSent:" + mNumFollowupMessageBytesSent);
+            pw.println("mFollowupMessageStatusData:");
+            for (int i = 0; i < mFollowupMessageStatusData.size(); ++i) {
+                pw.println("  " + mFollowupMessageStatusData.keyAt(i) + ": "
+                        + mFollowupMessageStatusData.valueAt(i));
+            }
+            pw.println("mHistogramFollowupMessageLatency:");
+            for (int i = 0; i < mHistogramFollowupMessageLatency.size(); ++i) {
+                pw.println("  " + mHistogramFollowupMessageLatency.keyAt(i) + ": "
+                        + mHistogramFollowupMessageLatency.valueAt(i));
+            }
+            pw.println("mMaxFollowupMessagesInFlight:" + mMaxFollowupMessagesInFlight);
+            pw.println("mNumFollowupQueueFull:" + mNumFollowupQueueFull);
         }
     }
 
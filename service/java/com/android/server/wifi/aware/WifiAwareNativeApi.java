@@ -45,6 +45,7 @@ import android.util.Log;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.server.wifi.util.NativeUtil;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -1267,12 +1268,8 @@ public class WifiAwareNativeApi implements WifiAwareShellCommand.DelegatedShellC
 
         if (to == null) {
             to = new ArrayList<>(from.length);
-        } else {
-            to.ensureCapacity(from.length);
-        }
-        for (int i = 0; i < from.length; ++i) {
-            to.add(from[i]);
         }
+        NativeUtil.appendByteArrayToArrayList(from, to);
         return to;
     }
 
@@ -35,6 +35,8 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
+import com.android.server.wifi.util.NativeUtil;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -421,24 +423,25 @@ public class WifiAwareNativeCallback extends IWifiNanIfaceEventCallback.Stub imp
 
     @Override
     public void eventMatch(NanMatchInd event) {
+        // TODO: b/69428593 get rid of conversion once HAL moves from CM to MM
+        // Converted once and shared with the debug log: discovery bursts can deliver many matches.
+        byte[] serviceSpecificInfo = convertArrayListToNativeByteArray(event.serviceSpecificInfo);
+        byte[] matchFilter = convertArrayListToNativeByteArray(event.matchFilter);
         if (mDbg) {
             Log.v(TAG, "eventMatch: discoverySessionId=" + event.discoverySessionId + ", peerId="
                     + event.peerId + ", addr=" + String.valueOf(HexEncoding.encode(event.addr))
-                    + ", serviceSpecificInfo=" + Arrays.toString(
-                    convertArrayListToNativeByteArray(event.serviceSpecificInfo)) + ", ssi.size()="
-                    + (event.serviceSpecificInfo == null ? 0 : event.serviceSpecificInfo.size())
-                    + ", matchFilter=" + Arrays.toString(
-                    convertArrayListToNativeByteArray(event.matchFilter)) + ", mf.size()=" + (
-                    event.matchFilter == null ? 0 : event.matchFilter.size())
+                    + ", serviceSpecificInfo=" + Arrays.toString(serviceSpecificInfo)
+                    + ", ssi.size()=" + (serviceSpecificInfo == null ? 0
+                    : serviceSpecificInfo.length)
+                    + ", matchFilter=" + Arrays.toString(matchFilter) + ", mf.size()=" + (
+                    matchFilter == null ? 0 : matchFilter.length)
                     + ", rangingIndicationType=" + event.rangingIndicationType
                     + ", rangingMeasurementInCm=" + event.rangingMeasurementInCm);
         }
         incrementCbCount(CB_EV_MATCH);
 
-        // TODO: b/69428593 get rid of conversion once HAL moves from CM to MM
         mWifiAwareStateManager.onMatchNotification(event.discoverySessionId, event.peerId,
-                event.addr, convertArrayListToNativeByteArray(event.serviceSpecificInfo),
-                convertArrayListToNativeByteArray(event.matchFilter), event.rangingIndicationType,
+                event.addr, serviceSpecificInfo, matchFilter, event.rangingIndicationType,
                 event.rangingMeasurementInCm * 10);
     }
 
@@ -455,17 +458,18 @@ public class WifiAwareNativeCallback extends IWifiNanIfaceEventCallback.Stub imp
 
     @Override
     public void eventFollowupReceived(NanFollowupReceivedInd event) {
+        byte[] serviceSpecificInfo = convertArrayListToNativeByteArray(event.serviceSpecificInfo);
         if (mDbg) {
             Log.v(TAG, "eventFollowupReceived: discoverySessionId=" + event.discoverySessionId
                     + ", peerId=" + event.peerId + ", addr=" + String.valueOf(
                     HexEncoding.encode(event.addr)) + ", serviceSpecificInfo=" + Arrays.toString(
-                    convertArrayListToNativeByteArray(event.serviceSpecificInfo)) + ", ssi.size()="
-                    + (event.serviceSpecificInfo == null ? 0 : event.serviceSpecificInfo.size()));
+                    serviceSpecificInfo) + ", ssi.size()="
+                    + (serviceSpecificInfo == null ? 0 : serviceSpecificInfo.length));
         }
         incrementCbCount(CB_EV_FOLLOWUP_RECEIVED);
 
         mWifiAwareStateManager.onMessageReceivedNotification(event.discoverySessionId, event.peerId,
-                event.addr, convertArrayListToNativeByteArray(event.serviceSpecificInfo));
+                event.addr, serviceSpecificInfo);
     }
 
     @Override
@@ -597,12 +601,7 @@ public class WifiAwareNativeCallback extends IWifiNanIfaceEventCallback.Stub imp
         if (from == null) {
             return null;
         }
-
-        byte[] to = new byte[from.size()];
-        for (int i = 0; i < from.size(); ++i) {
-            to[i] = from.get(i);
-        }
-        return to;
+        return NativeUtil.byteArrayFromArrayList(from);
     }
 
     private static String statusString(WifiNanStatus status) {
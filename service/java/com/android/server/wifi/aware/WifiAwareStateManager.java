@@ -64,6 +64,7 @@ import org.json.JSONObject;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -178,6 +179,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     private static final String MESSAGE_BUNDLE_KEY_MESSAGE_DATA = "message_data";
     private static final String MESSAGE_BUNDLE_KEY_REQ_INSTANCE_ID = "req_instance_id";
     private static final String MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME = "message_queue_time";
+    private static final String MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME =
+            "message_host_queue_time";
     private static final String MESSAGE_BUNDLE_KEY_RETRY_COUNT = "retry_count";
     private static final String MESSAGE_BUNDLE_KEY_SUCCESS_FLAG = "success_flag";
     private static final String MESSAGE_BUNDLE_KEY_STATUS_CODE = "status_code";
@@ -260,6 +263,14 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
      */
     public static final String PARAM_ON_IDLE_DISABLE_AWARE = "on_idle_disable_aware";
     public static final int PARAM_ON_IDLE_DISABLE_AWARE_DEFAULT = 1; // 0 = false, 1 = true
+    // maximum number of follow-up messages queued in the firmware at once: 0 = only limited by
+    // the firmware queue
+    public static final String PARAM_MAX_IN_FLIGHT_MESSAGES = "max_in_flight_messages";
+    public static final int PARAM_MAX_IN_FLIGHT_MESSAGES_DEFAULT = 0;
+    // order in which host queued follow-up messages are transmitted: 0 = arrival order,
+    // 1 = round-robin across UIDs
+    public static final String PARAM_FAIR_MESSAGE_QUEUE = "fair_message_queue";
+    public static final int PARAM_FAIR_MESSAGE_QUEUE_DEFAULT = 0;
 
     private Map<String, Integer> mSettableParameters = new HashMap<>();
 
@@ -359,6 +370,9 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
     @Override
     public void onReset() {
         mSettableParameters.put(PARAM_ON_IDLE_DISABLE_AWARE, PARAM_ON_IDLE_DISABLE_AWARE_DEFAULT);
+        mSettableParameters.put(PARAM_MAX_IN_FLIGHT_MESSAGES,
+                PARAM_MAX_IN_FLIGHT_MESSAGES_DEFAULT);
+        mSettableParameters.put(PARAM_FAIR_MESSAGE_QUEUE, PARAM_FAIR_MESSAGE_QUEUE_DEFAULT);
         if (mDataPathMgr != null) {
             mDataPathMgr.mAllowNdpResponderFromAnyOverride = false;
         }
@@ -1213,6 +1227,12 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         private int mSendArrivalSequenceCounter = 0;
         private boolean mSendQueueBlocked = false;
         private final SparseArray<Message> mHostQueuedSendMessages = new SparseArray<>();
+        // the host queued messages of each UID, in arrival order - their sizes are the per-UID
+        // queue depths
+        private final SparseArray<SparseArray<Message>> mHostQueuedSendMessagesByUid =
+                new SparseArray<>();
+        // the UIDs with host queued messages, in round-robin order
+        private final ArrayDeque<Integer> mHostQueuedSendUids = new ArrayDeque<>();
         private final Map<Short, Message> mFwQueuedSendMessages = new LinkedHashMap<>();
         private WakeupMessage mSendMessageTimeoutMessage = new WakeupMessage(mContext, getHandler(),
                 HAL_SEND_MESSAGE_TIMEOUT_TAG, MESSAGE_TYPE_SEND_MESSAGE_TIMEOUT);
@@ -1234,6 +1254,8 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         public void onAwareDownCleanupSendQueueState() {
             mSendQueueBlocked = false;
             mHostQueuedSendMessages.clear();
+            mHostQueuedSendMessagesByUid.clear();
+            mHostQueuedSendUids.clear();
             mFwQueuedSendMessages.clear();
         }
 
@@ -1483,9 +1505,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                             sentMessage.getData().putInt(MESSAGE_BUNDLE_KEY_RETRY_COUNT,
                                     retryCount - 1);
 
-                            int arrivalSeq = sentMessage.getData().getInt(
-                                    MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ);
-                            mHostQueuedSendMessages.put(arrivalSeq, sentMessage);
+                            addHostQueuedSendMessage(sentMessage, true);
                         } else {
                             onMessageSendFailLocal(sentMessage, reason);
                         }
@@ -1666,7 +1686,9 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     sendMsg.copyFrom(msg);
                     sendMsg.getData().putInt(MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ,
                             mSendArrivalSequenceCounter);
-                    mHostQueuedSendMessages.put(mSendArrivalSequenceCounter, sendMsg);
+                    sendMsg.getData().putLong(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME,
+                            SystemClock.elapsedRealtime());
+                    addHostQueuedSendMessage(sendMsg, false);
                     mSendArrivalSequenceCounter++;
                     waitForResponse = false;
 
@@ -1677,20 +1699,20 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     break;
                 }
                 case COMMAND_TYPE_TRANSMIT_NEXT_MESSAGE: {
-                    if (mSendQueueBlocked || mHostQueuedSendMessages.size() == 0) {
+                    if (mSendQueueBlocked || mHostQueuedSendMessages.size() == 0
+                            || isSendWindowFull()) {
                         if (mDbg) {
-                            Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - blocked or "
-                                    + "empty host queue");
+                            Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - blocked, "
+                                    + "window full or empty host queue");
                         }
                         waitForResponse = false;
                     } else {
+                        Message sendMessage = removeNextHostQueuedSendMessage();
                         if (mDbg) {
                             Log.v(TAG, "processCommand: SEND_TOP_OF_QUEUE_MESSAGE - "
-                                    + "sendArrivalSequenceCounter="
-                                    + mHostQueuedSendMessages.keyAt(0));
+                                    + "sendArrivalSequenceCounter=" + sendMessage.getData().getInt(
+                                    MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ));
                         }
-                        Message sendMessage = mHostQueuedSendMessages.valueAt(0);
-                        mHostQueuedSendMessages.removeAt(0);
 
                         Bundle data = sendMessage.getData();
                         int clientId = sendMessage.arg2;
@@ -1859,6 +1881,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                     sentMessage.getData().putLong(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_ENQUEUE_TIME,
                             SystemClock.elapsedRealtime());
                     mFwQueuedSendMessages.put(mCurrentTransactionId, sentMessage);
+                    mAwareMetrics.recordFollowupMessageInFlight(mFwQueuedSendMessages.size());
                     updateSendMessageTimeout();
                     if (!mSendQueueBlocked) {
                         transmitNextMessage();
@@ -1881,8 +1904,9 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
                                 MESSAGE_BUNDLE_KEY_SENT_MESSAGE);
                         int arrivalSeq = sentMessage.getData().getInt(
                                 MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ);
-                        mHostQueuedSendMessages.put(arrivalSeq, sentMessage);
+                        addHostQueuedSendMessage(sentMessage, true);
                         mSendQueueBlocked = true;
+                        mAwareMetrics.recordFollowupQueueFull();
 
                         if (mDbg) {
                             Log.v(TAG, "processResponse: ON_MESSAGE_SEND_QUEUED_FAIL - arrivalSeq="
@@ -2123,21 +2147,66 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         }
 
         private boolean isUidExceededMessageQueueDepthLimit(int uid) {
-            int size = mHostQueuedSendMessages.size();
-            int numOfMessages = 0;
-            if (size < MESSAGE_QUEUE_DEPTH_PER_UID) {
-                return false;
-            }
-            for (int i = 0; i < size; ++i) {
-                if (mHostQueuedSendMessages.valueAt(i).getData()
-                        .getInt(MESSAGE_BUNDLE_KEY_UID) == uid) {
-                    numOfMessages++;
-                    if (numOfMessages >= MESSAGE_QUEUE_DEPTH_PER_UID) {
-                        return true;
-                    }
+            SparseArray<Message> uidQueuedSendMessages = mHostQueuedSendMessagesByUid.get(uid);
+            return uidQueuedSendMessages != null
+                    && uidQueuedSendMessages.size() >= MESSAGE_QUEUE_DEPTH_PER_UID;
+        }
+
+        private boolean isSendWindowFull() {
+            int maxInFlight = mSettableParameters.get(PARAM_MAX_IN_FLIGHT_MESSAGES);
+            return maxInFlight > 0 && mFwQueuedSendMessages.size() >= maxInFlight;
+        }
+
+        /**
+         * Add a message to the host queue, ordered by its arrival sequence number. A message put
+         * back into the queue (requeue: retransmission or firmware queue full) is transmitted
+         * before the other messages of its UID, and its UID is served next if it had no other
+         * message queued.
+         */
+        private void addHostQueuedSendMessage(Message sendMessage, boolean requeue) {
+            int arrivalSeq = sendMessage.getData().getInt(MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ);
+            int uid = sendMessage.getData().getInt(MESSAGE_BUNDLE_KEY_UID);
+            mHostQueuedSendMessages.put(arrivalSeq, sendMessage);
+
+            SparseArray<Message> uidQueuedSendMessages = mHostQueuedSendMessagesByUid.get(uid);
+            if (uidQueuedSendMessages == null) {
+                uidQueuedSendMessages = new SparseArray<>();
+                mHostQueuedSendMessagesByUid.put(uid, uidQueuedSendMessages);
+                if (requeue) {
+                    mHostQueuedSendUids.addFirst(uid);
+                } else {
+                    mHostQueuedSendUids.addLast(uid);
                 }
             }
-            return false;
+            uidQueuedSendMessages.put(arrivalSeq, sendMessage);
+        }
+
+        /**
+         * Remove and return the next message to transmit: the oldest message in the host queue
+         * or, with a fair message queue, the oldest message of the UID whose turn it is. The host
+         * queue must not be empty.
+         */
+        private Message removeNextHostQueuedSendMessage() {
+            Message sendMessage;
+            if (mSettableParameters.get(PARAM_FAIR_MESSAGE_QUEUE) != 0) {
+                int nextUid = mHostQueuedSendUids.peekFirst();
+                sendMessage = mHostQueuedSendMessagesByUid.get(nextUid).valueAt(0);
+            } else {
+                sendMessage = mHostQueuedSendMessages.valueAt(0);
+            }
+
+            int arrivalSeq = sendMessage.getData().getInt(MESSAGE_BUNDLE_KEY_MESSAGE_ARRIVAL_SEQ);
+            int uid = sendMessage.getData().getInt(MESSAGE_BUNDLE_KEY_UID);
+            mHostQueuedSendMessages.delete(arrivalSeq);
+            SparseArray<Message> uidQueuedSendMessages = mHostQueuedSendMessagesByUid.get(uid);
+            uidQueuedSendMessages.delete(arrivalSeq);
+            mHostQueuedSendUids.remove(uid);
+            if (uidQueuedSendMessages.size() == 0) {
+                mHostQueuedSendMessagesByUid.remove(uid);
+            } else {
+                mHostQueuedSendUids.addLast(uid);
+            }
+            return sendMessage;
         }
 
         @Override
@@ -2162,6 +2231,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
             pw.println("  mSendQueueBlocked: " + mSendQueueBlocked);
             pw.println("  mSendArrivalSequenceCounter: " + mSendArrivalSequenceCounter);
             pw.println("  mHostQueuedSendMessages: [" + mHostQueuedSendMessages + "]");
+            pw.println("  mHostQueuedSendUids: " + mHostQueuedSendUids);
             pw.println("  mFwQueuedSendMessages: [" + mFwQueuedSendMessages + "]");
             super.dump(fd, pw, args);
         }
@@ -2863,6 +2933,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         if (mDbg) {
             Log.v(TAG, "onMessageSendSuccess: completedCommand=" + completedCommand);
         }
+        recordFollowupMessageResult(completedCommand, NanStatusType.SUCCESS);
 
         int clientId = completedCommand.arg2;
         int sessionId = completedCommand.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
@@ -2892,6 +2963,7 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         if (mDbg) {
             Log.v(TAG, "onMessageSendFail: failedCommand=" + failedCommand + ", reason=" + reason);
         }
+        recordFollowupMessageResult(failedCommand, reason);
 
         int clientId = failedCommand.arg2;
         int sessionId = failedCommand.getData().getInt(MESSAGE_BUNDLE_KEY_SESSION_ID);
@@ -2917,6 +2989,18 @@ public class WifiAwareStateManager implements WifiAwareShellCommand.DelegatedShe
         }
     }
 
+    private void recordFollowupMessageResult(Message sendCommand, int status) {
+        Bundle data = sendCommand.getData();
+        byte[] message = data.getByteArray(MESSAGE_BUNDLE_KEY_MESSAGE);
+        long latencyMs = -1;
+        if (data.containsKey(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME)) {
+            latencyMs = SystemClock.elapsedRealtime()
+                    - data.getLong(MESSAGE_BUNDLE_KEY_SEND_MESSAGE_HOST_ENQUEUE_TIME);
+        }
+        mAwareMetrics.recordFollowupMessageResult(status, message == null ? 0 : message.length,
+                latencyMs);
+    }
+
     private void onCapabilitiesUpdatedResponseLocal(Capabilities capabilities) {
         if (mDbg) {
             Log.v(TAG, "onCapabilitiesUpdatedResponseLocal: capabilites=" + capabilities);
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import android.annotation.NonNull;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last peer list reported to clients, so that a coalesced peers changed broadcast
+ * can be skipped if the peer list ended up unchanged.
+ *
+ * Not thread-safe: only used from the P2P state machine thread.
+ */
+public class WifiP2pPeerListTracker {
+    // Details of each peer by address. toString() covers every field of WifiP2pDevice, while
+    // equals() only compares addresses.
+    private final Map<String, String> mPeerDetails = new HashMap<>();
+    private int mNumUnchangedUpdates = 0;
+
+    /**
+     * Record the current peer list.
+     *
+     * @return true if the list differs from the one previously recorded.
+     */
+    public boolean update(@NonNull WifiP2pDeviceList peers) {
+        boolean changed = peers.getDeviceList().size() != mPeerDetails.size();
+        Map<String, String> peerDetails = new HashMap<>();
+        for (WifiP2pDevice device : peers.getDeviceList()) {
+            String details = device.toString();
+            peerDetails.put(device.deviceAddress, details);
+            if (!changed && !details.equals(mPeerDetails.get(device.deviceAddress))) {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            mNumUnchangedUpdates++;
+            return false;
+        }
+        mPeerDetails.clear();
+        mPeerDetails.putAll(peerDetails);
+        return true;
+    }
+
+    /**
+     * Dump the internal state of the tracker.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("WifiP2pPeerListTracker:");
+        pw.println("  number of peers " + mPeerDetails.size());
+        pw.println("  mNumUnchangedUpdates " + mNumUnchangedUpdates);
+    }
+}
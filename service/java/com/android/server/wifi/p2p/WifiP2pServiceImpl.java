@@ -92,6 +92,7 @@ import com.android.internal.util.AsyncChannel;
 import com.android.internal.util.Protocol;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import com.android.server.wifi.Clock;
 import com.android.server.wifi.FrameworkFacade;
 import com.android.server.wifi.WifiInjector;
 import com.android.server.wifi.WifiLog;
@@ -116,9 +117,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * WifiP2pService includes a state machine to perform Wi-Fi p2p operations. Applications
@@ -242,6 +245,9 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
 
     private static final int GROUP_OWNER_TETHER_READY       =   BASE + 35;
 
+    // Delayed message sending the coalesced peers changed broadcast.
+    private static final int PEERS_CHANGED_BROADCAST        =   BASE + 36;
+
     public static final int ENABLED                         = 1;
     public static final int DISABLED                        = 0;
 
@@ -285,6 +291,9 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
     // Service discovery request ID of wpa_supplicant.
     // null means it's not set yet.
     private String mServiceDiscReqId;
+    // Query of the service discovery request of wpa_supplicant, and when it was made.
+    private String mServiceDiscQuery;
+    private long mServiceDiscReqTimeMs;
 
     // clients(application) information list
     private HashMap<Messenger, ClientInfo> mClientInfoList = new HashMap<Messenger, ClientInfo>();
@@ -795,6 +804,13 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
         private WifiP2pMonitor mWifiMonitor = mWifiInjector.getWifiP2pMonitor();
         private WifiNative mWifNative = mWifiInjector.getWifiNative();
         private final WifiP2pDeviceList mPeers = new WifiP2pDeviceList();
+        // Whether a coalesced peers changed broadcast is scheduled.
+        private boolean mPeersChangedBroadcastPending = false;
+        // Peer list of the last coalesced peers changed broadcast.
+        private final WifiP2pPeerListTracker mPeerListTracker = new WifiP2pPeerListTracker();
+        private final Clock mClock = mWifiInjector.getClock();
+        private final WifiP2pServiceResponseCache mServiceResponseCache =
+                new WifiP2pServiceResponseCache(mClock);
         private String mInterfaceName;
 
         // During a connection, supplicant can tell us that a device was lost. From a supplicant's
@@ -1230,6 +1246,9 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                     case ENABLE_P2P:
                         // Enable is lazy and has no response
                         break;
+                    case PEERS_CHANGED_BROADCAST:
+                        sendCoalescedPeersChangedBroadcast();
+                        break;
                     case DISABLE_P2P:
                         // If we end up handling in default, p2p is not enabled
                         break;
@@ -1568,6 +1587,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         if (mGroups.clear()) sendP2pPersistentGroupsChangedBroadcast();
                         // clear services list for all clients since interface will teardown soon.
                         clearServicesForAllClients();
+                        mServiceResponseCache.clear();
                         mWifiMonitor.stopMonitoring(mInterfaceName);
                         mWifiNative.teardownInterface();
                         transitionTo(mP2pDisablingState);
@@ -1707,6 +1727,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         if (mWifiNative.p2pFind(DISCOVER_TIMEOUT_S)) {
                             mWifiP2pMetrics.incrementServiceScans();
                             replyToMessage(message, WifiP2pManager.DISCOVER_SERVICES_SUCCEEDED);
+                            sendCachedServiceResponses(message.replyTo);
                         } else {
                             replyToMessage(message, WifiP2pManager.DISCOVER_SERVICES_FAILED,
                                     WifiP2pManager.ERROR);
@@ -1728,6 +1749,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                             break;
                         }
                         device = (WifiP2pDevice) message.obj;
+                        mServiceResponseCache.removePeer(device.deviceAddress);
                         // Gets current details for the one removed
                         device = mPeers.remove(device.deviceAddress);
                         if (device != null) {
@@ -1789,6 +1811,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                         }
                         List<WifiP2pServiceResponse> sdRespList =
                                 (List<WifiP2pServiceResponse>) message.obj;
+                        cacheServiceResponses(sdRespList);
                         for (WifiP2pServiceResponse resp : sdRespList) {
                             WifiP2pDevice dev =
                                     mPeers.get(resp.getSrcDevice().deviceAddress);
@@ -3147,6 +3170,10 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             pw.println("mSavedPeerConfig " + mSavedPeerConfig);
             pw.println("mGroups" + mGroups);
             pw.println();
+            mServiceResponseCache.dump(pw);
+            pw.println();
+            mPeerListTracker.dump(pw);
+            pw.println();
         }
 
         // Check & re-enable P2P if needed.
@@ -3222,7 +3249,33 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             sendBroadcastMultiplePermissions(intent);
         }
 
+        /**
+         * Notify clients that the peer list changed. If config_wifiP2pPeersChangedBroadcastDelayMs
+         * is set, changes within that window are coalesced into a single broadcast, which is
+         * skipped entirely if the peer list ended up unchanged.
+         */
         private void sendPeersChangedBroadcast() {
+            int delayMs = mContext.getResources().getInteger(
+                    R.integer.config_wifiP2pPeersChangedBroadcastDelayMs);
+            if (delayMs <= 0) {
+                sendPeersChangedBroadcastNow();
+                return;
+            }
+            if (mPeersChangedBroadcastPending) return;
+            mPeersChangedBroadcastPending = true;
+            sendMessageDelayed(PEERS_CHANGED_BROADCAST, delayMs);
+        }
+
+        private void sendCoalescedPeersChangedBroadcast() {
+            mPeersChangedBroadcastPending = false;
+            if (!mPeerListTracker.update(mPeers)) {
+                if (mVerboseLoggingEnabled) logd("Peers unchanged, skip peers changed broadcast");
+                return;
+            }
+            sendPeersChangedBroadcastNow();
+        }
+
+        private void sendPeersChangedBroadcastNow() {
             final Intent intent = new Intent(WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION);
             intent.putExtra(WifiP2pManager.EXTRA_P2P_DEVICE_LIST, new WifiP2pDeviceList(mPeers));
             intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
@@ -3964,6 +4017,7 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
             mWifiNative.p2pServiceFlush();
             mServiceTransactionId = 0;
             mServiceDiscReqId = null;
+            mServiceResponseCache.clear();
 
             updatePersistentNetworks(RELOAD);
             enableVerboseLogging(mSettingsConfigStore.get(WIFI_VERBOSE_LOGGING_ENABLED));
@@ -4093,8 +4147,8 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
          * Update service discovery request to wpa_supplicant.
          */
         private boolean updateSupplicantServiceRequest() {
-            clearSupplicantServiceRequest();
-
+            final long cacheTtlMs = getServiceResponseCacheTtlMs();
+            Set<String> queryKeys = new HashSet<>();
             StringBuffer sb = new StringBuffer();
             for (ClientInfo c: mClientInfoList.values()) {
                 int key;
@@ -4102,22 +4156,107 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 for (int i = 0; i < c.mReqList.size(); i++) {
                     req = c.mReqList.valueAt(i);
                     if (req != null) {
+                        // With the response cache, an identical query of several clients is only
+                        // sent once, and its responses are forwarded to all of them.
+                        if (cacheTtlMs > 0 && !queryKeys.add(
+                                WifiP2pServiceResponseCache.getQueryKey(req))) {
+                            continue;
+                        }
                         sb.append(req.getSupplicantQuery());
                     }
                 }
             }
+            String query = sb.toString();
+
+            // Re-issuing the request makes wpa_supplicant query every peer again, including the
+            // ones that already answered it. Keep the current request until the cached
+            // responses expire.
+            if (cacheTtlMs > 0 && mServiceDiscReqId != null && query.equals(mServiceDiscQuery)
+                    && mClock.getElapsedSinceBootMillis() - mServiceDiscReqTimeMs < cacheTtlMs) {
+                if (mVerboseLoggingEnabled) logd("Service discovery request unchanged");
+                return true;
+            }
+
+            clearSupplicantServiceRequest();
 
             if (sb.length() == 0) {
                 return false;
             }
 
-            mServiceDiscReqId = mWifiNative.p2pServDiscReq("00:00:00:00:00:00", sb.toString());
+            mServiceDiscReqId = mWifiNative.p2pServDiscReq("00:00:00:00:00:00", query);
             if (mServiceDiscReqId == null) {
                 return false;
             }
+            mServiceDiscQuery = query;
+            mServiceDiscReqTimeMs = mClock.getElapsedSinceBootMillis();
             return true;
         }
 
+        /**
+         * Returns how long service discovery responses are cached, or 0 if they aren't.
+         */
+        private long getServiceResponseCacheTtlMs() {
+            return mContext.getResources().getInteger(
+                    R.integer.config_wifiP2pServiceResponseCacheTtlMs);
+        }
+
+        /**
+         * Find the request, of any client, a service discovery response answers.
+         */
+        private WifiP2pServiceRequest findServiceRequest(int transactionId) {
+            for (ClientInfo c : mClientInfoList.values()) {
+                WifiP2pServiceRequest req = c.mReqList.get(transactionId);
+                if (req != null) return req;
+            }
+            return null;
+        }
+
+        private void cacheServiceResponses(List<WifiP2pServiceResponse> sdRespList) {
+            if (getServiceResponseCacheTtlMs() <= 0) return;
+            Set<String> addedKeys = new HashSet<>();
+            for (WifiP2pServiceResponse resp : sdRespList) {
+                if (resp.getSrcDevice() == null) continue;
+                WifiP2pServiceRequest req = findServiceRequest(resp.getTransactionId());
+                if (req == null) continue;
+                // Cache a copy, the response itself is handed to the clients.
+                WifiP2pServiceResponse copy = WifiP2pServiceResponseCache.copyWithTransactionId(
+                        resp, resp.getTransactionId(), resp.getSrcDevice());
+                if (copy == null) continue;
+                String peerAddress = resp.getSrcDevice().deviceAddress;
+                String queryKey = WifiP2pServiceResponseCache.getQueryKey(req);
+                mServiceResponseCache.add(peerAddress, queryKey, copy,
+                        addedKeys.add(peerAddress + "/" + queryKey));
+            }
+        }
+
+        /**
+         * Send the cached service responses matching the requests of a client to it. The cached
+         * responses are left untouched, the client gets copies with the transaction id of its
+         * request.
+         */
+        private void sendCachedServiceResponses(Messenger m) {
+            final long cacheTtlMs = getServiceResponseCacheTtlMs();
+            if (cacheTtlMs <= 0 || m == null) return;
+            ClientInfo clientInfo = getClientInfo(m, false);
+            if (clientInfo == null) return;
+            Set<String> queryKeys = new HashSet<>();
+            for (int i = 0; i < clientInfo.mReqList.size(); i++) {
+                WifiP2pServiceRequest req = clientInfo.mReqList.valueAt(i);
+                if (req == null) continue;
+                String queryKey = WifiP2pServiceResponseCache.getQueryKey(req);
+                if (!queryKeys.add(queryKey)) continue;
+                for (WifiP2pServiceResponse resp
+                        : mServiceResponseCache.getResponses(queryKey, cacheTtlMs)) {
+                    WifiP2pDevice dev = mPeers.get(resp.getSrcDevice().deviceAddress);
+                    if (dev == null) continue;
+                    WifiP2pServiceResponse copy = WifiP2pServiceResponseCache
+                            .copyWithTransactionId(resp, clientInfo.mReqList.keyAt(i), dev);
+                    if (copy == null) continue;
+                    if (!sendServiceResponseToClient(clientInfo, copy)) return;
+                }
+            }
+        }
+
         /**
          * Clear service discovery request in wpa_supplicant
          */
@@ -4288,26 +4427,64 @@ public class WifiP2pServiceImpl extends IWifiP2pManager.Stub {
                 Log.e(TAG, "sendServiceResponse with null response");
                 return;
             }
+            // Identical queries of several clients are only sent once with the response cache,
+            // so forward the response to every client with an identical request.
+            String queryKey = null;
+            if (getServiceResponseCacheTtlMs() > 0) {
+                WifiP2pServiceRequest req = findServiceRequest(resp.getTransactionId());
+                if (req != null) queryKey = WifiP2pServiceResponseCache.getQueryKey(req);
+            }
             for (ClientInfo c : mClientInfoList.values()) {
-                WifiP2pServiceRequest req = c.mReqList.get(resp.getTransactionId());
-                if (req != null) {
-                    Message msg = Message.obtain();
-                    msg.what = WifiP2pManager.RESPONSE_SERVICE;
-                    msg.arg1 = 0;
-                    msg.arg2 = 0;
-                    msg.obj = resp;
-                    if (c.mMessenger == null) {
-                        continue;
-                    }
-                    try {
-                        c.mMessenger.send(msg);
-                    } catch (RemoteException e) {
-                        if (mVerboseLoggingEnabled) logd("detect dead channel");
-                        clearClientInfo(c.mMessenger);
-                        return;
-                    }
+                if (c.mReqList.get(resp.getTransactionId()) != null) {
+                    if (!sendServiceResponseToClient(c, resp)) return;
+                    continue;
+                }
+                if (queryKey == null || resp.getSrcDevice() == null) continue;
+                int index = findServiceRequestIndex(c, queryKey);
+                if (index < 0) continue;
+                // Other clients get a copy with the transaction id of their own request.
+                WifiP2pServiceResponse copy = WifiP2pServiceResponseCache.copyWithTransactionId(
+                        resp, c.mReqList.keyAt(index), resp.getSrcDevice());
+                if (copy == null) continue;
+                if (!sendServiceResponseToClient(c, copy)) return;
+            }
+        }
+
+        /**
+         * Returns the index in the client's request list of its request with the given query, or
+         * -1 if the client has no such request.
+         */
+        private int findServiceRequestIndex(ClientInfo c, String queryKey) {
+            for (int i = 0; i < c.mReqList.size(); i++) {
+                WifiP2pServiceRequest req = c.mReqList.valueAt(i);
+                if (req != null && queryKey.equals(WifiP2pServiceResponseCache.getQueryKey(req))) {
+                    return i;
                 }
             }
+            return -1;
+        }
+
+        /**
+         * Send a service response to one client.
+         * @return false if the client's channel is dead and it has been removed.
+         */
+        private boolean sendServiceResponseToClient(ClientInfo c, WifiP2pServiceResponse resp) {
+            if (c.mMessenger == null) {
+                return true;
+            }
+            Message msg = Message.obtain();
+            msg.what = WifiP2pManager.RESPONSE_SERVICE;
+            msg.arg1 = 0;
+            msg.arg2 = 0;
+            msg.obj = resp;
+            try {
+                c.mMessenger.send(msg);
+            } catch (RemoteException e) {
+                if (mVerboseLoggingEnabled) logd("detect dead channel");
+                clearClientInfo(c.mMessenger);
+                return false;
+            }
+            return true;
         }
 
         /**
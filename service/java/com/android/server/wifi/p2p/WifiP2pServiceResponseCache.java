@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceResponse;
+
+import com.android.server.wifi.Clock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of the P2P service discovery responses received from peers, keyed by peer address and
+ * service query, so that repeated discovery of the same services can be answered locally.
+ *
+ * Not thread-safe: only used from the P2P state machine thread.
+ */
+public class WifiP2pServiceResponseCache {
+    // Length of the TLV header fields preceding the transaction id in a supplicant query:
+    // 2 bytes of length and 1 byte of service protocol type, hex encoded.
+    private static final int QUERY_TRANSACTION_ID_START = 6;
+    // The transaction id itself is 1 byte, hex encoded.
+    private static final int QUERY_TRANSACTION_ID_END = 8;
+
+    private static class Entry {
+        public final long timestampMs;
+        public final List<WifiP2pServiceResponse> responses = new ArrayList<>();
+
+        Entry(long timestampMs) {
+            this.timestampMs = timestampMs;
+        }
+    }
+
+    private final Clock mClock;
+    // Peer address -> query key -> responses of that peer to the query.
+    private final Map<String, Map<String, Entry>> mEntries = new HashMap<>();
+    private int mNumLocalResponses = 0;
+
+    public WifiP2pServiceResponseCache(@NonNull Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Returns a key identifying the service query of a request. Unlike the supplicant query, it
+     * leaves out the transaction id, so identical queries made by different clients map to the
+     * same key.
+     */
+    @NonNull
+    public static String getQueryKey(@NonNull WifiP2pServiceRequest req) {
+        String query = req.getSupplicantQuery();
+        if (query.length() < QUERY_TRANSACTION_ID_END) return query;
+        return query.substring(0, QUERY_TRANSACTION_ID_START)
+                + query.substring(QUERY_TRANSACTION_ID_END);
+    }
+
+    /**
+     * Returns a copy of the response with the given transaction id, so that a response can be sent
+     * to a client with the transaction id of its own request without changing the original.
+     *
+     * The copy is parsed from the response TLV rebuilt from the response, the same way responses
+     * from wpa_supplicant are, so that it has the subclass matching its service type.
+     *
+     * @param resp the response to copy.
+     * @param transactionId transaction id of the copy.
+     * @param srcDevice source device of the copy.
+     * @return the copy, or null if the response could not be copied.
+     */
+    @Nullable
+    public static WifiP2pServiceResponse copyWithTransactionId(
+            @NonNull WifiP2pServiceResponse resp, int transactionId,
+            @NonNull WifiP2pDevice srcDevice) {
+        byte[] data = resp.getRawData() == null ? new byte[0] : resp.getRawData();
+        // Length covers the service protocol type, transaction id and status bytes and the data.
+        int length = 3 + data.length;
+        byte[] tlv = new byte[2 + length];
+        tlv[0] = (byte) (length & 0xff);
+        tlv[1] = (byte) ((length >> 8) & 0xff);
+        tlv[2] = (byte) resp.getServiceType();
+        tlv[3] = (byte) transactionId;
+        tlv[4] = (byte) resp.getStatus();
+        System.arraycopy(data, 0, tlv, 5, data.length);
+        List<WifiP2pServiceResponse> copies =
+                WifiP2pServiceResponse.newInstance(srcDevice.deviceAddress, tlv);
+        if (copies == null || copies.size() != 1) return null;
+        WifiP2pServiceResponse copy = copies.get(0);
+        copy.setSrcDevice(srcDevice);
+        return copy;
+    }
+
+    /**
+     * Add a response of a peer to a query. Responses received for the same peer and query in
+     * an earlier service discovery response event are replaced.
+     *
+     * @param peerAddress address of the responding peer.
+     * @param queryKey key of the query the response answers, see {@link #getQueryKey}.
+     * @param resp the response.
+     * @param isNewEvent true for the first response of this peer and query in the event.
+     */
+    public void add(@NonNull String peerAddress, @NonNull String queryKey,
+            @NonNull WifiP2pServiceResponse resp, boolean isNewEvent) {
+        Map<String, Entry> peerEntries = mEntries.get(peerAddress);
+        if (peerEntries == null) {
+            peerEntries = new HashMap<>();
+            mEntries.put(peerAddress, peerEntries);
+        }
+        Entry entry = peerEntries.get(queryKey);
+        if (entry == null || isNewEvent) {
+            entry = new Entry(mClock.getElapsedSinceBootMillis());
+            peerEntries.put(queryKey, entry);
+        }
+        entry.responses.add(resp);
+    }
+
+    /**
+     * Returns the responses to the given query received from any peer within the last ttlMs.
+     * Expired entries are dropped.
+     */
+    @NonNull
+    public List<WifiP2pServiceResponse> getResponses(@NonNull String queryKey, long ttlMs) {
+        List<WifiP2pServiceResponse> responses = new ArrayList<>();
+        long nowMs = mClock.getElapsedSinceBootMillis();
+        Iterator<Map<String, Entry>> peerIt = mEntries.values().iterator();
+        while (peerIt.hasNext()) {
+            Map<String, Entry> peerEntries = peerIt.next();
+            Iterator<Entry> entryIt = peerEntries.values().iterator();
+            while (entryIt.hasNext()) {
+                if (nowMs - entryIt.next().timestampMs >= ttlMs) entryIt.remove();
+            }
+            if (peerEntries.isEmpty()) {
+                peerIt.remove();
+                continue;
+            }
+            Entry entry = peerEntries.get(queryKey);
+            if (entry != null) responses.addAll(entry.responses);
+        }
+        mNumLocalResponses += responses.size();
+        return responses;
+    }
+
+    /**
+     * Drop the responses of a peer, e.g. once it is lost.
+     */
+    public void removePeer(@NonNull String peerAddress) {
+        mEntries.remove(peerAddress);
+    }
+
+    /**
+     * Drop all responses.
+     */
+    public void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Dump the internal state of the cache.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("WifiP2pServiceResponseCache:");
+        pw.println("  number of peers " + mEntries.size());
+        pw.println("  mNumLocalResponses " + mNumLocalResponses);
+    }
+}
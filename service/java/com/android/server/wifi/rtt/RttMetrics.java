@@ -91,6 +91,10 @@ public class RttMetrics {
     private SparseIntArray mMeasurementDurationApOnlyHistogram = new SparseIntArray();
     private SparseIntArray mMeasurementDurationWithAwareHistogram = new SparseIntArray();
     private PerPeerTypeInfo[] mPerPeerTypeInfo;
+    private int mNumRangingExecutions = 0;
+    private int mNumRequestsExecuted = 0;
+    private SparseIntArray mQueueWaitTimeHistogram = new SparseIntArray();
+    private SparseArray<PerUidQueueInfo> mPerUidQueueInfo = new SparseArray<>();
 
     public RttMetrics(Clock clock) {
         mClock = clock;
@@ -110,6 +114,21 @@ public class RttMetrics {
         }
     }
 
+    private class PerUidQueueInfo {
+        public int numExecuted;
+        public long totalQueueWaitMs;
+        public long maxQueueWaitMs;
+        public int numSpammingThrottled;
+        public int numBackgroundThrottled;
+
+        @Override
+        public String toString() {
+            return "numExecuted=" + numExecuted + ", totalQueueWaitMs=" + totalQueueWaitMs
+                    + ", maxQueueWaitMs=" + maxQueueWaitMs + ", numSpammingThrottled="
+                    + numSpammingThrottled + ", numBackgroundThrottled=" + numBackgroundThrottled;
+        }
+    }
+
     private class PerPeerTypeInfo {
         public int numCalls;
         public int numIndividualCalls;
@@ -214,6 +233,91 @@ public class RttMetrics {
         }
     }
 
+    /**
+     * Record metrics for a ranging operation dispatched to the HAL. A single operation may serve
+     * several coalesced requests.
+     *
+     * @param uids             UID of each of the served requests.
+     * @param queueWaitTimesMs Time (in ms) each of the served requests waited in the queue before
+     *                         being dispatched.
+     */
+    public void recordRangingExecution(int[] uids, long[] queueWaitTimesMs) {
+        mNumRangingExecutions++;
+        mNumRequestsExecuted += queueWaitTimesMs.length;
+        for (int i = 0; i < queueWaitTimesMs.length; ++i) {
+            long queueWaitTimeMs = queueWaitTimesMs[i];
+            addValueToLogHistogram(queueWaitTimeMs, mQueueWaitTimeHistogram, COUNT_LOG_HISTOGRAM);
+
+            PerUidQueueInfo info = getOrCreatePerUidQueueInfo(uids[i]);
+            info.numExecuted++;
+            info.totalQueueWaitMs += queueWaitTimeMs;
+            info.maxQueueWaitMs = Math.max(info.maxQueueWaitMs, queueWaitTimeMs);
+        }
+    }
+
+    /**
+     * Record a request of the specified UID rejected by throttling: either because its requestors
+     * already have too many queued requests (spamming) or because they are running in the
+     * background and have ranged too recently.
+     */
+    public void recordThrottle(int uid, boolean isSpamming) {
+        PerUidQueueInfo info = getOrCreatePerUidQueueInfo(uid);
+        if (isSpamming) {
+            info.numSpammingThrottled++;
+        } else {
+            info.numBackgroundThrottled++;
+        }
+    }
+
+    private PerUidQueueInfo getOrCreatePerUidQueueInfo(int uid) {
+        PerUidQueueInfo info = mPerUidQueueInfo.get(uid);
+        if (info == null) {
+            info = new PerUidQueueInfo();
+            mPerUidQueueInfo.put(uid, info);
+        }
+        return info;
+    }
+
+    /**
+     * Returns the average time (in ms) the requests of the specified UID waited in the queue
+     * before being dispatched, or 0 if none was dispatched.
+     */
+    public long getAverageQueueWaitMs(int uid) {
+        synchronized (mLock) {
+            PerUidQueueInfo info = mPerUidQueueInfo.get(uid);
+            if (info == null || info.numExecuted == 0) {
+                return 0;
+            }
+            return info.totalQueueWaitMs / info.numExecuted;
+        }
+    }
+
+    /**
+     * Returns the number of requests of the specified UID rejected by throttling.
+     */
+    public int getNumThrottled(int uid) {
+        synchronized (mLock) {
+            PerUidQueueInfo info = mPerUidQueueInfo.get(uid);
+            if (info == null) {
+                return 0;
+            }
+            return info.numSpammingThrottled + info.numBackgroundThrottled;
+        }
+    }
+
+    /**
+     * Returns the average number of requests served by each ranging operation dispatched to the
+     * HAL (1 if no requests were ever coalesced).
+     */
+    public double getCoalescingRatio() {
+        synchronized (mLock) {
+            if (mNumRangingExecutions == 0) {
+                return 1;
+            }
+            return (double) mNumRequestsExecuted / mNumRangingExecutions;
+        }
+    }
+
     /**
      * Record metrics for the overall ranging request status.
      */
@@ -387,6 +491,10 @@ public class RttMetrics {
                     + mMeasurementDurationWithAwareHistogram);
             pw.println("AP:" + mPerPeerTypeInfo[PEER_AP]);
             pw.println("AWARE:" + mPerPeerTypeInfo[PEER_AWARE]);
+            pw.println("mNumRangingExecutions:" + mNumRangingExecutions);
+            pw.println("mNumRequestsExecuted:" + mNumRequestsExecuted);
+            pw.println("mQueueWaitTimeHistogram:" + mQueueWaitTimeHistogram);
+            pw.println("mPerUidQueueInfo:" + mPerUidQueueInfo);
         }
     }
 
@@ -401,6 +509,10 @@ public class RttMetrics {
             mPerPeerTypeInfo[PEER_AWARE] = new PerPeerTypeInfo();
             mMeasurementDurationApOnlyHistogram.clear();
             mMeasurementDurationWithAwareHistogram.clear();
+            mNumRangingExecutions = 0;
+            mNumRequestsExecuted = 0;
+            mQueueWaitTimeHistogram.clear();
+            mPerUidQueueInfo.clear();
         }
     }
 
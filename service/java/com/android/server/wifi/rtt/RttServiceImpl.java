@@ -51,6 +51,7 @@ import android.os.UserHandle;
 import android.os.WorkSource;
 import android.os.WorkSource.WorkChain;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -66,10 +67,12 @@ import org.json.JSONObject;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -92,6 +95,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
     private ActivityManager mActivityManager;
     private PowerManager mPowerManager;
     private int mBackgroundProcessExecGapMs;
+    private boolean mCoalescedRangingEnabled;
     private long mLastRequestTimestamp;
 
     private RttServiceSynchronized mRttServiceSynchronized;
@@ -282,6 +286,8 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
             mBackgroundProcessExecGapMs = mContext.getResources().getInteger(
                     R.integer.config_wifiRttBackgroundExecGapMs);
+            mCoalescedRangingEnabled = mContext.getResources().getBoolean(
+                    R.bool.config_wifiRttCoalescedRangingEnabled);
 
             intentFilter = new IntentFilter();
             intentFilter.addAction(LocationManager.MODE_CHANGED_ACTION);
@@ -553,7 +559,16 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         private RttNative mRttNative;
         private int mNextCommandId = 1000;
         private Map<Integer, RttRequesterInfo> mRttRequesterInfo = new HashMap<>();
-        private List<RttRequestInfo> mRttRequestQueue = new LinkedList<>();
+        // the request being executed: dispatched to the HAL or waiting for its Aware PeerHandles to
+        // be translated - null if none
+        private RttRequestInfo mActiveRequest = null;
+        // pending requests: one FIFO per requesting UID, UIDs are served round-robin so that a
+        // burst from one UID doesn't delay the requests of the others
+        private SparseArray<ArrayDeque<RttRequestInfo>> mPendingRequestsByUid = new SparseArray<>();
+        private ArrayDeque<Integer> mPendingUids = new ArrayDeque<>();
+        // number of queued (active, coalesced or pending) requests attributed to each UID of their
+        // work sources - maintained incrementally for the spamming check
+        private SparseIntArray mNumQueuedRequestsPerUid = new SparseIntArray();
         private WakeupMessage mRangingTimeoutMessage = null;
 
         RttServiceSynchronized(Looper looper, RttNative rttNative) {
@@ -568,7 +583,9 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
         private void cancelRanging(RttRequestInfo rri) {
             ArrayList<byte[]> macAddresses = new ArrayList<>();
-            for (ResponderConfig peer : rri.request.mRttPeers) {
+            RangingRequest request =
+                    rri.dispatchedRequest != null ? rri.dispatchedRequest : rri.request;
+            for (ResponderConfig peer : request.mRttPeers) {
                 macAddresses.add(peer.macAddress.toByteArray());
             }
 
@@ -577,7 +594,14 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
 
         private void cleanUpOnDisable() {
             if (VDBG) Log.v(TAG, "RttServiceSynchronized.cleanUpOnDisable");
-            for (RttRequestInfo rri : mRttRequestQueue) {
+            List<RttRequestInfo> requests = new ArrayList<>();
+            if (mActiveRequest != null) {
+                requests.add(mActiveRequest);
+            }
+            for (int i = 0; i < mPendingRequestsByUid.size(); ++i) {
+                requests.addAll(mPendingRequestsByUid.valueAt(i));
+            }
+            for (RttRequestInfo rri : requests) {
                 try {
                     if (rri.dispatchedToNative) {
                         // may not be necessary in some cases (e.g. Wi-Fi disable may already clear
@@ -593,9 +617,13 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                     Log.e(TAG, "RttServiceSynchronized.startRanging: disabled, callback failed -- "
                             + e);
                 }
-                rri.binder.unlinkToDeath(rri.dr, 0);
+                releaseRequest(rri);
+                failCoalescedRequests(rri, WifiMetricsProto.WifiRttLog.OVERALL_RTT_NOT_AVAILABLE,
+                        RangingResultCallback.STATUS_CODE_FAIL_RTT_NOT_AVAILABLE);
             }
-            mRttRequestQueue.clear();
+            mActiveRequest = null;
+            mPendingRequestsByUid.clear();
+            mPendingUids.clear();
             mRangingTimeoutMessage.cancel();
         }
 
@@ -610,56 +638,123 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         private void cleanUpClientRequests(int uid, WorkSource workSource) {
             if (VDBG) {
                 Log.v(TAG, "RttServiceSynchronized.cleanUpOnClientDeath: uid=" + uid
-                        + ", workSource=" + workSource + ", mRttRequestQueue=" + mRttRequestQueue);
+                        + ", workSource=" + workSource + ", mActiveRequest=" + mActiveRequest
+                        + ", mPendingRequestsByUid=" + mPendingRequestsByUid);
             }
             boolean dispatchedRequestAborted = false;
-            ListIterator<RttRequestInfo> it = mRttRequestQueue.listIterator();
-            while (it.hasNext()) {
-                RttRequestInfo rri = it.next();
-
-                boolean match = rri.uid == uid; // original UID will never be 0
-                if (rri.workSource != null && workSource != null) {
-                    rri.workSource.remove(workSource);
-                    if (rri.workSource.isEmpty()) {
-                        match = true;
+            boolean activeRequestRemoved = false;
+            if (mActiveRequest != null) {
+                // requests coalesced into a dispatched request are simply detached from it: the
+                // ranging operation is still needed by the other requests
+                ListIterator<RttRequestInfo> coalescedIt =
+                        mActiveRequest.coalescedRequests.listIterator();
+                while (coalescedIt.hasNext()) {
+                    RttRequestInfo coalesced = coalescedIt.next();
+                    if (isClientRequest(coalesced, uid, workSource)) {
+                        coalescedIt.remove();
+                        releaseRequest(coalesced);
                     }
                 }
 
-                if (match) {
-                    if (!rri.dispatchedToNative) {
-                        it.remove();
-                        rri.binder.unlinkToDeath(rri.dr, 0);
+                if (isClientRequest(mActiveRequest, uid, workSource)) {
+                    if (!mActiveRequest.dispatchedToNative) {
+                        // waiting for PeerHandle translation: nothing to cancel
+                        releaseRequest(mActiveRequest);
+                        mActiveRequest = null;
+                        activeRequestRemoved = true;
                     } else {
                         dispatchedRequestAborted = true;
                         Log.d(TAG, "Client death - cancelling RTT operation in progress: cmdId="
-                                + rri.cmdId);
+                                + mActiveRequest.cmdId);
                         mRangingTimeoutMessage.cancel();
-                        cancelRanging(rri);
+                        cancelRanging(mActiveRequest);
+                    }
+                }
+            }
+
+            for (int i = mPendingRequestsByUid.size() - 1; i >= 0; --i) {
+                ArrayDeque<RttRequestInfo> pendingRequests = mPendingRequestsByUid.valueAt(i);
+                Iterator<RttRequestInfo> it = pendingRequests.iterator();
+                while (it.hasNext()) {
+                    RttRequestInfo rri = it.next();
+                    if (isClientRequest(rri, uid, workSource)) {
+                        it.remove();
+                        releaseRequest(rri);
                     }
                 }
+                if (pendingRequests.isEmpty()) {
+                    mPendingUids.remove(mPendingRequestsByUid.keyAt(i));
+                    mPendingRequestsByUid.removeAt(i);
+                }
             }
 
             if (VDBG) {
                 Log.v(TAG, "RttServiceSynchronized.cleanUpOnClientDeath: uid=" + uid
                         + ", dispatchedRequestAborted=" + dispatchedRequestAborted
-                        + ", after cleanup - mRttRequestQueue=" + mRttRequestQueue);
+                        + ", after cleanup - mActiveRequest=" + mActiveRequest
+                        + ", mPendingRequestsByUid=" + mPendingRequestsByUid);
             }
 
             if (dispatchedRequestAborted) {
+                requeueCoalescedRequests(mActiveRequest);
                 executeNextRangingRequestIfPossible(true);
+            } else if (activeRequestRemoved) {
+                executeNextRangingRequestIfPossible(false);
+            }
+        }
+
+        private boolean isClientRequest(RttRequestInfo rri, int uid, WorkSource workSource) {
+            boolean match = rri.uid == uid; // original UID will never be 0
+            if (rri.workSource != null && workSource != null) {
+                rri.workSource.remove(workSource);
+                if (rri.workSource.isEmpty()) {
+                    match = true;
+                }
             }
+            return match;
+        }
+
+        /**
+         * Put the requests coalesced into the (aborted) dispatched request back at the head of
+         * their UIDs' queues, with their UIDs served first, so that they are executed next.
+         */
+        private void requeueCoalescedRequests(RttRequestInfo rri) {
+            for (int i = rri.coalescedRequests.size() - 1; i >= 0; --i) {
+                RttRequestInfo coalesced = rri.coalescedRequests.get(i);
+                coalesced.cmdId = 0;
+                coalesced.dispatchedToNative = false;
+                addPendingRequest(coalesced, true);
+            }
+            rri.coalescedRequests.clear();
+        }
+
+        /**
+         * Fail all the requests coalesced into the specified dispatched request.
+         */
+        private void failCoalescedRequests(RttRequestInfo rri, int overallStatus, int code) {
+            for (RttRequestInfo coalesced : rri.coalescedRequests) {
+                try {
+                    mRttMetrics.recordOverallStatus(overallStatus);
+                    coalesced.callback.onRangingFailure(code);
+                } catch (RemoteException e) {
+                    Log.e(TAG, "RttServiceSynchronized.failCoalescedRequests: callback failed -- "
+                            + e);
+                }
+                releaseRequest(coalesced);
+            }
+            rri.coalescedRequests.clear();
         }
 
         private void timeoutRangingRequest() {
             if (VDBG) {
-                Log.v(TAG, "RttServiceSynchronized.timeoutRangingRequest mRttRequestQueue="
-                        + mRttRequestQueue);
+                Log.v(TAG, "RttServiceSynchronized.timeoutRangingRequest mActiveRequest="
+                        + mActiveRequest);
             }
-            if (mRttRequestQueue.size() == 0) {
+            if (mActiveRequest == null) {
                 Log.w(TAG, "RttServiceSynchronized.timeoutRangingRequest: but nothing in queue!?");
                 return;
             }
-            RttRequestInfo rri = mRttRequestQueue.get(0);
+            RttRequestInfo rri = mActiveRequest;
             if (!rri.dispatchedToNative) {
                 Log.w(TAG, "RttServiceSynchronized.timeoutRangingRequest: command not dispatched "
                         + "to native!?");
@@ -672,6 +767,8 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             } catch (RemoteException e) {
                 Log.e(TAG, "RttServiceSynchronized.timeoutRangingRequest: callback failed: " + e);
             }
+            failCoalescedRequests(rri, WifiMetricsProto.WifiRttLog.OVERALL_TIMEOUT,
+                    RangingResultCallback.STATUS_CODE_FAIL);
             executeNextRangingRequestIfPossible(true);
         }
 
@@ -687,6 +784,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 binder.unlinkToDeath(dr, 0);
                 try {
                     mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_THROTTLE);
+                    mRttMetrics.recordThrottle(uid, /* isSpamming */ true);
                     callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
                 } catch (RemoteException e) {
                     Log.e(TAG, "RttServiceSynchronized.queueRangingRequest: spamming, callback "
@@ -705,7 +803,13 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             newRequest.request = request;
             newRequest.callback = callback;
             newRequest.isCalledFromPrivilegedContext = isCalledFromPrivilegedContext;
-            mRttRequestQueue.add(newRequest);
+            newRequest.queuedTimestamp = mClock.getElapsedSinceBootMillis();
+            newRequest.attributionUids = getAttributionUids(workSource);
+            for (int attributionUid : newRequest.attributionUids) {
+                mNumQueuedRequestsPerUid.put(attributionUid,
+                        mNumQueuedRequestsPerUid.get(attributionUid) + 1);
+            }
+            addPendingRequest(newRequest, false);
 
             if (VDBG) {
                 Log.v(TAG, "RttServiceSynchronized.queueRangingRequest: newRequest=" + newRequest);
@@ -714,28 +818,91 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             executeNextRangingRequestIfPossible(false);
         }
 
-        private boolean isRequestorSpamming(WorkSource ws) {
-            if (VDBG) Log.v(TAG, "isRequestorSpamming: ws" + ws);
+        /**
+         * Returns the UIDs a request is accounted to: the UIDs of its work source and the
+         * attribution UIDs of its work chains. Captured when the request is queued so that the
+         * per-UID counts can be decremented even if the work source is later modified.
+         */
+        private int[] getAttributionUids(WorkSource ws) {
+            final List<WorkChain> workChains = ws.getWorkChains();
+            int numWorkChains = workChains == null ? 0 : workChains.size();
+            int[] uids = new int[ws.size() + numWorkChains];
+            for (int i = 0; i < ws.size(); ++i) {
+                uids[i] = ws.getUid(i);
+            }
+            for (int i = 0; i < numWorkChains; ++i) {
+                uids[ws.size() + i] = workChains.get(i).getAttributionUid();
+            }
+            return uids;
+        }
 
-            SparseIntArray counts = new SparseIntArray();
+        /**
+         * Add a request to the queue of its UID. A UID which had no pending request is served
+         * last, unless atFront is set - in which case the request and its UID are served next.
+         */
+        private void addPendingRequest(RttRequestInfo rri, boolean atFront) {
+            ArrayDeque<RttRequestInfo> pendingRequests = mPendingRequestsByUid.get(rri.uid);
+            if (pendingRequests == null) {
+                pendingRequests = new ArrayDeque<>();
+                mPendingRequestsByUid.put(rri.uid, pendingRequests);
+            }
+            if (atFront) {
+                pendingRequests.addFirst(rri);
+                mPendingUids.remove(rri.uid);
+                mPendingUids.addFirst(rri.uid);
+            } else {
+                if (pendingRequests.isEmpty()) {
+                    mPendingUids.addLast(rri.uid);
+                }
+                pendingRequests.addLast(rri);
+            }
+        }
 
-            for (RttRequestInfo rri : mRttRequestQueue) {
-                for (int i = 0; i < rri.workSource.size(); ++i) {
-                    int uid = rri.workSource.getUid(i);
-                    counts.put(uid, counts.get(uid) + 1);
+        /**
+         * Remove and return the next pending request: the oldest request of the UID whose turn it
+         * is. The UID is then moved to the back of the round-robin if it has more requests.
+         */
+        private RttRequestInfo pollNextPendingRequest() {
+            while (!mPendingUids.isEmpty()) {
+                int uid = mPendingUids.pollFirst();
+                ArrayDeque<RttRequestInfo> pendingRequests = mPendingRequestsByUid.get(uid);
+                if (pendingRequests == null || pendingRequests.isEmpty()) {
+                    Log.w(TAG, "pollNextPendingRequest: no pending request for uid=" + uid);
+                    mPendingRequestsByUid.remove(uid);
+                    continue;
+                }
+                RttRequestInfo rri = pendingRequests.pollFirst();
+                if (pendingRequests.isEmpty()) {
+                    mPendingRequestsByUid.remove(uid);
+                } else {
+                    mPendingUids.addLast(uid);
                 }
+                return rri;
+            }
+            return null;
+        }
 
-                final List<WorkChain> workChains = rri.workSource.getWorkChains();
-                if (workChains != null) {
-                    for (int i = 0; i < workChains.size(); ++i) {
-                        final int uid = workChains.get(i).getAttributionUid();
-                        counts.put(uid, counts.get(uid) + 1);
-                    }
+        /**
+         * Release a request which is leaving the queue: stop tracking its binder and remove it from
+         * the per-UID counts.
+         */
+        private void releaseRequest(RttRequestInfo rri) {
+            rri.binder.unlinkToDeath(rri.dr, 0);
+            for (int attributionUid : rri.attributionUids) {
+                int count = mNumQueuedRequestsPerUid.get(attributionUid) - 1;
+                if (count > 0) {
+                    mNumQueuedRequestsPerUid.put(attributionUid, count);
+                } else {
+                    mNumQueuedRequestsPerUid.delete(attributionUid);
                 }
             }
+        }
+
+        private boolean isRequestorSpamming(WorkSource ws) {
+            if (VDBG) Log.v(TAG, "isRequestorSpamming: ws" + ws);
 
             for (int i = 0; i < ws.size(); ++i) {
-                if (counts.get(ws.getUid(i)) < MAX_QUEUED_PER_UID) {
+                if (mNumQueuedRequestsPerUid.get(ws.getUid(i)) < MAX_QUEUED_PER_UID) {
                     return false;
                 }
             }
@@ -744,14 +911,15 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             if (workChains != null) {
                 for (int i = 0; i < workChains.size(); ++i) {
                     final int uid = workChains.get(i).getAttributionUid();
-                    if (counts.get(uid) < MAX_QUEUED_PER_UID) {
+                    if (mNumQueuedRequestsPerUid.get(uid) < MAX_QUEUED_PER_UID) {
                         return false;
                     }
                 }
             }
 
             if (mDbg) {
-                Log.v(TAG, "isRequestorSpamming: ws=" + ws + ", someone is spamming: " + counts);
+                Log.v(TAG, "isRequestorSpamming: ws=" + ws + ", someone is spamming: "
+                        + mNumQueuedRequestsPerUid);
             }
             return true;
         }
@@ -760,30 +928,31 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             if (VDBG) Log.v(TAG, "executeNextRangingRequestIfPossible: popFirst=" + popFirst);
 
             if (popFirst) {
-                if (mRttRequestQueue.size() == 0) {
-                    Log.w(TAG, "executeNextRangingRequestIfPossible: pop requested - but empty "
-                            + "queue!? Ignoring pop.");
+                if (mActiveRequest == null) {
+                    Log.w(TAG, "executeNextRangingRequestIfPossible: pop requested - but no "
+                            + "active request!? Ignoring pop.");
                 } else {
-                    RttRequestInfo topOfQueueRequest = mRttRequestQueue.remove(0);
-                    topOfQueueRequest.binder.unlinkToDeath(topOfQueueRequest.dr, 0);
+                    releaseRequest(mActiveRequest);
+                    mActiveRequest = null;
                 }
             }
 
-            if (mRttRequestQueue.size() == 0) {
-                if (VDBG) Log.v(TAG, "executeNextRangingRequestIfPossible: no requests pending");
-                return;
-            }
-
-            // if top of list is in progress then do nothing
-            RttRequestInfo nextRequest = mRttRequestQueue.get(0);
-            if (nextRequest.peerHandlesTranslated || nextRequest.dispatchedToNative) {
+            // if a request is in progress then do nothing
+            if (mActiveRequest != null) {
                 if (VDBG) {
                     Log.v(TAG, "executeNextRangingRequestIfPossible: called but a command is "
-                            + "executing. topOfQueue=" + nextRequest);
+                            + "executing. mActiveRequest=" + mActiveRequest);
                 }
                 return;
             }
 
+            RttRequestInfo nextRequest = pollNextPendingRequest();
+            if (nextRequest == null) {
+                if (VDBG) Log.v(TAG, "executeNextRangingRequestIfPossible: no requests pending");
+                return;
+            }
+
+            mActiveRequest = nextRequest;
             startRanging(nextRequest);
         }
 
@@ -820,6 +989,7 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                         + nextRequest + ", mRttRequesterInfo=" + mRttRequesterInfo);
                 try {
                     mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_THROTTLE);
+                    mRttMetrics.recordThrottle(nextRequest.uid, /* isSpamming */ false);
                     nextRequest.callback.onRangingFailure(RangingResultCallback.STATUS_CODE_FAIL);
                 } catch (RemoteException e) {
                     Log.e(TAG, "RttServiceSynchronized.startRanging: throttled, callback failed -- "
@@ -830,11 +1000,14 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
             }
 
             nextRequest.cmdId = mNextCommandId++;
+            nextRequest.dispatchedRequest = mCoalescedRangingEnabled
+                    ? coalescePendingRequests(nextRequest) : nextRequest.request;
+            recordRangingExecution(nextRequest);
             mLastRequestTimestamp = mClock.getWallClockMillis();
-            if (mRttNative.rangeRequest(nextRequest.cmdId, nextRequest.request,
+            if (mRttNative.rangeRequest(nextRequest.cmdId, nextRequest.dispatchedRequest,
                     nextRequest.isCalledFromPrivilegedContext)) {
                 long timeout = HAL_RANGING_TIMEOUT_MS;
-                for (ResponderConfig responderConfig : nextRequest.request.mRttPeers) {
+                for (ResponderConfig responderConfig : nextRequest.dispatchedRequest.mRttPeers) {
                     if (responderConfig.responderType == ResponderConfig.RESPONDER_AWARE) {
                         timeout = HAL_AWARE_RANGING_TIMEOUT_MS;
                         break;
@@ -851,11 +1024,121 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                     Log.e(TAG, "RttServiceSynchronized.startRanging: HAL request failed, callback "
                             + "failed -- " + e);
                 }
+                failCoalescedRequests(nextRequest,
+                        WifiMetricsProto.WifiRttLog.OVERALL_HAL_FAILURE,
+                        RangingResultCallback.STATUS_CODE_FAIL);
                 executeNextRangingRequestIfPossible(true);
             }
             nextRequest.dispatchedToNative = true;
         }
 
+        /**
+         * Merge compatible pending requests into the request about to be dispatched so that a
+         * single ranging operation serves all of them. The merged requests are removed from the
+         * queue and attached to the dispatched request, whose results are demultiplexed back to
+         * each of them.
+         *
+         * A pending request is compatible if it has the same privilege level, only targets peers
+         * with known MAC addresses (no Aware peers), any peer it shares with the dispatched request
+         * is configured identically, the merged request does not exceed the maximum number of
+         * peers, and it passes its own throttling check.
+         *
+         * @return the request to dispatch to the HAL.
+         */
+        private RangingRequest coalescePendingRequests(RttRequestInfo nextRequest) {
+            if (!isCoalescable(nextRequest)) {
+                return nextRequest.request;
+            }
+
+            Map<MacAddress, ResponderConfig> peers = new LinkedHashMap<>();
+            for (ResponderConfig peer : nextRequest.request.mRttPeers) {
+                peers.put(peer.macAddress, peer);
+            }
+            // visit the pending requests in the order they would otherwise be executed
+            Iterator<Integer> uidIt = mPendingUids.iterator();
+            while (uidIt.hasNext()) {
+                int uid = uidIt.next();
+                ArrayDeque<RttRequestInfo> pendingRequests = mPendingRequestsByUid.get(uid);
+                Iterator<RttRequestInfo> it = pendingRequests.iterator();
+                while (it.hasNext()) {
+                    RttRequestInfo candidate = it.next();
+                    if (!isCoalescable(candidate)
+                            || candidate.isCalledFromPrivilegedContext
+                            != nextRequest.isCalledFromPrivilegedContext
+                            || !canMergePeers(peers, candidate.request)
+                            || !preExecThrottleCheck(candidate.workSource)) {
+                        continue;
+                    }
+                    for (ResponderConfig peer : candidate.request.mRttPeers) {
+                        peers.putIfAbsent(peer.macAddress, peer);
+                    }
+                    it.remove();
+                    candidate.cmdId = nextRequest.cmdId;
+                    candidate.dispatchedToNative = true;
+                    nextRequest.coalescedRequests.add(candidate);
+                }
+                if (pendingRequests.isEmpty()) {
+                    uidIt.remove();
+                    mPendingRequestsByUid.remove(uid);
+                }
+            }
+
+            if (nextRequest.coalescedRequests.isEmpty()) {
+                return nextRequest.request;
+            }
+            if (mDbg) {
+                Log.v(TAG, "coalescePendingRequests: cmdId=" + nextRequest.cmdId + " serves "
+                        + (nextRequest.coalescedRequests.size() + 1) + " requests, "
+                        + peers.size() + " peers");
+            }
+            RangingRequest.Builder builder = new RangingRequest.Builder();
+            for (ResponderConfig peer : peers.values()) {
+                builder.addResponder(peer);
+            }
+            return builder.build();
+        }
+
+        private boolean isCoalescable(RttRequestInfo rri) {
+            if (rri.dispatchedToNative || rri.peerHandlesTranslated) {
+                return false;
+            }
+            for (ResponderConfig peer : rri.request.mRttPeers) {
+                if (peer.macAddress == null || peer.peerHandle != null
+                        || peer.responderType == ResponderConfig.RESPONDER_AWARE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean canMergePeers(Map<MacAddress, ResponderConfig> peers,
+                RangingRequest request) {
+            int numNewPeers = 0;
+            for (ResponderConfig peer : request.mRttPeers) {
+                ResponderConfig existingPeer = peers.get(peer.macAddress);
+                if (existingPeer == null) {
+                    numNewPeers++;
+                } else if (!existingPeer.equals(peer)) {
+                    return false;
+                }
+            }
+            return peers.size() + numNewPeers <= RangingRequest.getMaxPeers();
+        }
+
+        private void recordRangingExecution(RttRequestInfo rri) {
+            long now = mClock.getElapsedSinceBootMillis();
+            int[] uids = new int[rri.coalescedRequests.size() + 1];
+            long[] queueWaitTimesMs = new long[rri.coalescedRequests.size() + 1];
+            uids[0] = rri.uid;
+            queueWaitTimesMs[0] = now - rri.queuedTimestamp;
+            for (int i = 0; i < rri.coalescedRequests.size(); ++i) {
+                RttRequestInfo coalesced = rri.coalescedRequests.get(i);
+                uids[i + 1] = coalesced.uid;
+                queueWaitTimesMs[i + 1] = now - coalesced.queuedTimestamp;
+            }
+            mRttMetrics.recordRangingExecution(uids, queueWaitTimesMs);
+        }
+
         /**
          * Perform pre-execution throttling checks:
          * - If all uids in ws are in background then check last execution and block if request is
@@ -1012,6 +1295,11 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 Log.v(TAG, "processReceivedAwarePeerMacAddresses: request=" + request
                         + ", peerIdToMacMap=" + peerIdToMacMap);
             }
+            if (request != mActiveRequest) {
+                Log.w(TAG, "processReceivedAwarePeerMacAddresses: request=" + request
+                        + " is no longer active - ignoring");
+                return;
+            }
 
             RangingRequest.Builder newRequestBuilder = new RangingRequest.Builder();
             for (ResponderConfig rttPeer : request.request.mRttPeers) {
@@ -1038,13 +1326,13 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         }
 
         private void onRangingResults(int cmdId, List<RangingResult> results) {
-            if (mRttRequestQueue.size() == 0) {
+            if (mActiveRequest == null) {
                 Log.e(TAG, "RttServiceSynchronized.onRangingResults: no current RTT request "
                         + "pending!?");
                 return;
             }
             mRangingTimeoutMessage.cancel();
-            RttRequestInfo topOfQueueRequest = mRttRequestQueue.get(0);
+            RttRequestInfo topOfQueueRequest = mActiveRequest;
 
             if (VDBG) {
                 Log.v(TAG, "RttServiceSynchronized.onRangingResults: cmdId=" + cmdId
@@ -1058,36 +1346,62 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                 return;
             }
 
+            int measurementDuration = (int) (mClock.getWallClockMillis() - mLastRequestTimestamp);
+            boolean resultRecorded = dispatchRangingResults(topOfQueueRequest, results,
+                    topOfQueueRequest.dispatchedRequest, measurementDuration, false);
+            for (RttRequestInfo coalesced : topOfQueueRequest.coalescedRequests) {
+                resultRecorded = dispatchRangingResults(coalesced, results,
+                        topOfQueueRequest.dispatchedRequest, measurementDuration, resultRecorded);
+                releaseRequest(coalesced);
+            }
+            topOfQueueRequest.coalescedRequests.clear();
+
+            executeNextRangingRequestIfPossible(true);
+        }
+
+        /**
+         * Dispatch the results of a ranging operation to one of the requests it served, keeping
+         * only the results for the peers of that request.
+         *
+         * The measurement itself is recorded in the metrics once per ranging operation: by the
+         * first request served which still has location permission.
+         *
+         * @return whether the measurement has been recorded.
+         */
+        private boolean dispatchRangingResults(RttRequestInfo rri, List<RangingResult> results,
+                RangingRequest dispatchedRequest, int measurementDuration,
+                boolean resultRecorded) {
             boolean permissionGranted = mWifiPermissionsUtil.checkCallersLocationPermission(
-                    topOfQueueRequest.callingPackage, topOfQueueRequest.callingFeatureId,
-                    topOfQueueRequest.uid, /* coarseForTargetSdkLessThanQ */ false, null)
+                    rri.callingPackage, rri.callingFeatureId,
+                    rri.uid, /* coarseForTargetSdkLessThanQ */ false, null)
                     && mWifiPermissionsUtil.isLocationModeEnabled();
             try {
                 if (permissionGranted) {
-                    List<RangingResult> finalResults = postProcessResults(topOfQueueRequest.request,
-                            results, topOfQueueRequest.isCalledFromPrivilegedContext);
+                    List<RangingResult> finalResults = postProcessResults(rri.request,
+                            results, rri.isCalledFromPrivilegedContext);
                     mRttMetrics.recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
-                    mRttMetrics.recordResult(topOfQueueRequest.request, results,
-                            (int) (mClock.getWallClockMillis() - mLastRequestTimestamp));
+                    if (!resultRecorded) {
+                        mRttMetrics.recordResult(dispatchedRequest, results, measurementDuration);
+                        resultRecorded = true;
+                    }
                     if (VDBG) {
                         Log.v(TAG, "RttServiceSynchronized.onRangingResults: finalResults="
                                 + finalResults);
                     }
-                    topOfQueueRequest.callback.onRangingResults(finalResults);
+                    rri.callback.onRangingResults(finalResults);
                 } else {
                     Log.w(TAG, "RttServiceSynchronized.onRangingResults: location permission "
                             + "revoked - not forwarding results");
                     mRttMetrics.recordOverallStatus(
                             WifiMetricsProto.WifiRttLog.OVERALL_LOCATION_PERMISSION_MISSING);
-                    topOfQueueRequest.callback.onRangingFailure(
+                    rri.callback.onRangingFailure(
                             RangingResultCallback.STATUS_CODE_FAIL);
                 }
             } catch (RemoteException e) {
                 Log.e(TAG,
                         "RttServiceSynchronized.onRangingResults: callback exception -- " + e);
             }
-
-            executeNextRangingRequestIfPossible(true);
+            return resultRecorded;
         }
 
         /*
@@ -1181,8 +1495,12 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             pw.println("  mNextCommandId: " + mNextCommandId);
             pw.println("  mRttRequesterInfo: " + mRttRequesterInfo);
-            pw.println("  mRttRequestQueue: " + mRttRequestQueue);
+            pw.println("  mActiveRequest: " + mActiveRequest);
+            pw.println("  mPendingRequestsByUid: " + mPendingRequestsByUid);
+            pw.println("  mPendingUids: " + mPendingUids);
+            pw.println("  mNumQueuedRequestsPerUid: " + mNumQueuedRequestsPerUid);
             pw.println("  mRangingTimeoutMessage: " + mRangingTimeoutMessage);
+            pw.println("  mCoalescedRangingEnabled: " + mCoalescedRangingEnabled);
             mRttMetrics.dump(fd, pw, args);
             mRttNative.dump(fd, pw, args);
         }
@@ -1199,9 +1517,17 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
         public IRttCallback callback;
         public boolean isCalledFromPrivilegedContext;
 
+        public long queuedTimestamp;
+        // UIDs the request is counted against in the per-UID queued request counts
+        public int[] attributionUids;
+
         public int cmdId = 0; // uninitialized cmdId value
         public boolean dispatchedToNative = false;
         public boolean peerHandlesTranslated = false;
+        // the request passed to the HAL: includes the peers of the coalesced requests (if any)
+        public RangingRequest dispatchedRequest;
+        // pending requests merged into this one's ranging operation
+        public List<RttRequestInfo> coalescedRequests = new ArrayList<>();
 
         @Override
         public String toString() {
@@ -1210,7 +1536,8 @@ public class RttServiceImpl extends IWifiRttManager.Stub {
                     ", dr=").append(dr).append(", callingPackage=").append(callingPackage).append(
                     ", callingFeatureId=").append(callingFeatureId).append(", request=").append(
                     request.toString()).append(", callback=").append(callback).append(
-                    ", cmdId=").append(cmdId).append(", peerHandlesTranslated=").append(
+                    ", cmdId=").append(cmdId).append(", coalescedRequests=").append(
+                    coalescedRequests.size()).append(", peerHandlesTranslated=").append(
                     peerHandlesTranslated).append(", isCalledFromPrivilegedContext=").append(
                     isCalledFromPrivilegedContext).toString();
         }
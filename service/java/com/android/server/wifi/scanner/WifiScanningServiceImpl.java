@@ -70,6 +70,7 @@ import com.android.server.wifi.util.ScanResultUtil;
 import com.android.server.wifi.util.WifiHandler;
 import com.android.server.wifi.util.WifiPermissionsUtil;
 import com.android.server.wifi.util.WorkSourceUtil;
+import com.android.wifi.resources.R;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -373,6 +374,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
     private static final int CMD_SCAN_FAILED                         = BASE + 10;
     private static final int CMD_PNO_NETWORK_FOUND                   = BASE + 11;
     private static final int CMD_PNO_SCAN_FAILED                     = BASE + 12;
+    private static final int CMD_RESET_HW_PNO                        = BASE + 13;
 
     private final Context mContext;
     private final Looper mLooper;
@@ -641,6 +643,14 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         // Scan results cached from the last full single scan request.
         private final List<ScanResult> mCachedScanResults = new ArrayList<>();
 
+        // Settings, results and completion time of the last successful single scan, used to
+        // serve the requests it satisfies for R.integer.config_wifiSingleScanResultsMaxAgeMs.
+        private WifiNative.ScanSettings mLastScanSettings = null;
+        private ScanData mLastScanData = null;
+        private long mLastScanTimeMs = 0;
+        private int mNumScanRequestsJoinedActiveScan = 0;
+        private int mNumScanRequestsServedFromLastScan = 0;
+
         // Tracks scan requests across multiple scanner impls.
         private final ScannerImplsTracker mScannerImplsTracker;
 
@@ -884,6 +894,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             public void exit() {
                 // clear scan results when scan mode is not active
                 mCachedScanResults.clear();
+                mLastScanSettings = null;
+                mLastScanData = null;
 
                 mWifiMetrics.incrementScanReturnEntry(
                         WifiMetricsProto.WifiLog.SCAN_FAILURE_INTERRUPTED,
@@ -941,10 +953,14 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                             // after finishing the current scan.
                             if (getCurrentState() == mScanningState) {
                                 if (activeScanSatisfies(scanSettings)) {
+                                    mNumScanRequestsJoinedActiveScan++;
                                     mActiveScans.addRequest(ci, handler, workSource, scanSettings);
                                 } else {
                                     mPendingScans.addRequest(ci, handler, workSource, scanSettings);
                                 }
+                            } else if (lastScanSatisfies(scanSettings)) {
+                                reportLastScanResults(
+                                        new RequestInfo<>(ci, handler, workSource, scanSettings));
                             } else {
                                 mPendingScans.addRequest(ci, handler, workSource, scanSettings);
                                 tryToStartNewScan();
@@ -1022,6 +1038,9 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                             if (msg.arg1 == WifiScanner.ON_COMPLETE_SCAN_RESULTS) {
                                 reportScanResults(latestScanResults, WifiScanner.ON_COMPLETE_SCAN_RESULTS);
                                 mActiveScans.clear();
+                                mLastScanSettings = mActiveScanSettings;
+                                mLastScanData = latestScanResults;
+                                mLastScanTimeMs = mClock.getElapsedSinceBootMillis();
                             } else
                                 reportScanResults(latestScanResults, WifiScanner.ON_PARTIAL_SCAN_RESULTS);
 
@@ -1088,8 +1107,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         // We can coalesce a LOW_POWER/LOW_LATENCY scan request into an ongoing HIGH_ACCURACY
         // scan request. But, we can't coalesce a HIGH_ACCURACY scan request into an ongoing
         // LOW_POWER/LOW_LATENCY scan request.
-        boolean activeScanTypeSatisfies(int requestScanType) {
-            switch(mActiveScanSettings.scanType) {
+        boolean scanTypeSatisfies(int scanType, int requestScanType) {
+            switch(scanType) {
                 case WifiScanner.SCAN_TYPE_LOW_LATENCY:
                 case WifiScanner.SCAN_TYPE_LOW_POWER:
                     return requestScanType != WifiScanner.SCAN_TYPE_HIGH_ACCURACY;
@@ -1098,8 +1117,7 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                 default:
                     // This should never happen becuase we've validated the incoming type in
                     // |validateScanType|.
-                    throw new IllegalArgumentException("Invalid scan type "
-                        + mActiveScanSettings.scanType);
+                    throw new IllegalArgumentException("Invalid scan type " + scanType);
             }
         }
 
@@ -1120,16 +1138,36 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
         }
 
         boolean activeScanSatisfies(ScanSettings settings) {
-            if (mActiveScanSettings == null) {
+            return scanSatisfies(mActiveScanSettings, settings);
+        }
+
+        /**
+         * Whether the last successful scan completed recently enough to serve its results to a
+         * new request it satisfies, instead of scanning again.
+         */
+        boolean lastScanSatisfies(ScanSettings settings) {
+            int maxAgeMs = mContext.getResources().getInteger(
+                    R.integer.config_wifiSingleScanResultsMaxAgeMs);
+            if (maxAgeMs <= 0 || mLastScanData == null) {
+                return false;
+            }
+            if (mClock.getElapsedSinceBootMillis() - mLastScanTimeMs >= maxAgeMs) {
                 return false;
             }
+            return scanSatisfies(mLastScanSettings, settings);
+        }
 
-            if (!activeScanTypeSatisfies(settings.type)) {
+        boolean scanSatisfies(WifiNative.ScanSettings scanSettings, ScanSettings settings) {
+            if (scanSettings == null) {
+                return false;
+            }
+
+            if (!scanTypeSatisfies(scanSettings.scanType, settings.type)) {
                 return false;
             }
 
             // there is always one bucket for a single scan
-            WifiNative.BucketSettings activeBucket = mActiveScanSettings.buckets[0];
+            WifiNative.BucketSettings activeBucket = scanSettings.buckets[0];
 
             // validate that all requested channels are being scanned
             ChannelCollection activeChannels = mChannelHelper.createChannelCollection();
@@ -1146,11 +1184,11 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
 
             if (!ArrayUtils.isEmpty(settings.hiddenNetworks)) {
-                if (ArrayUtils.isEmpty(mActiveScanSettings.hiddenNetworks)) {
+                if (ArrayUtils.isEmpty(scanSettings.hiddenNetworks)) {
                     return false;
                 }
                 List<WifiNative.HiddenNetwork> activeHiddenNetworks = new ArrayList<>();
-                for (WifiNative.HiddenNetwork hiddenNetwork : mActiveScanSettings.hiddenNetworks) {
+                for (WifiNative.HiddenNetwork hiddenNetwork : scanSettings.hiddenNetworks) {
                     activeHiddenNetworks.add(hiddenNetwork);
                 }
                 for (ScanSettings.HiddenNetwork hiddenNetwork : settings.hiddenNetworks) {
@@ -1299,9 +1337,61 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
         }
 
+        /**
+         * Report the results of the last successful scan to a request it satisfies and to the
+         * single scan listeners, as if the request had been part of that scan.
+         */
+        void reportLastScanResults(@NonNull RequestInfo<ScanSettings> entry) {
+            mNumScanRequestsServedFromLastScan++;
+            mWifiMetrics.incrementScanReturnEntry(WifiMetricsProto.WifiLog.SCAN_SUCCESS, 1);
+            ScanData[] allResults = new ScanData[] {mLastScanData};
+            ScanData[] resultsToDeliver = ScanScheduleUtil.filterResultsForSettings(
+                    mChannelHelper, allResults, entry.settings, -1);
+            if ((entry.settings.reportEvents & WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT) != 0) {
+                for (ScanData scanData : resultsToDeliver) {
+                    for (ScanResult result : scanData.getResults()) {
+                        entry.reportEvent(WifiScanner.CMD_FULL_SCAN_RESULT, 0, result);
+                    }
+                }
+            }
+            logCallback("singleScanResultsFromLastScan", entry.clientInfo, entry.handlerId,
+                    describeForLog(resultsToDeliver));
+            entry.reportEvent(WifiScanner.CMD_SCAN_RESULT, WifiScanner.ON_COMPLETE_SCAN_RESULTS,
+                    new WifiScanner.ParcelableScanData(resultsToDeliver));
+            // make sure the handler is removed
+            entry.reportEvent(WifiScanner.CMD_SINGLE_SCAN_COMPLETED,
+                    WifiScanner.ON_COMPLETE_SCAN_RESULTS, null);
+
+            // The listeners act on the results of every scan (e.g. scan results broadcast and
+            // network selection), so they get the full and complete results again, as they
+            // did when the last scan completed.
+            boolean reportFullScanResults = (mLastScanSettings.buckets[0].report_events
+                    & WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT) != 0;
+            WifiScanner.ParcelableScanData parcelableAllResults =
+                    new WifiScanner.ParcelableScanData(allResults);
+            for (RequestInfo<Void> listener : mSingleScanListeners) {
+                if (reportFullScanResults) {
+                    for (ScanResult result : mLastScanData.getResults()) {
+                        listener.reportEvent(WifiScanner.CMD_FULL_SCAN_RESULT, 0, result);
+                    }
+                }
+                logCallback("singleScanResultsFromLastScan", listener.clientInfo,
+                        listener.handlerId, describeForLog(allResults));
+                listener.reportEvent(WifiScanner.CMD_SCAN_RESULT,
+                        WifiScanner.ON_COMPLETE_SCAN_RESULTS, parcelableAllResults);
+            }
+        }
+
         List<ScanResult> getCachedScanResultsAsList() {
             return mCachedScanResults;
         }
+
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            super.dump(fd, pw, args);
+            pw.println("mNumScanRequestsJoinedActiveScan " + mNumScanRequestsJoinedActiveScan);
+            pw.println("mNumScanRequestsServedFromLastScan " + mNumScanRequestsServedFromLastScan);
+        }
     }
 
     // TODO(b/71855918): Remove this bg scan state machine and its dependencies.
@@ -1809,6 +1899,12 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             transitionTo(mStartedState);
         }
 
+        @Override
+        public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            super.dump(fd, pw, args);
+            mScannerImplsTracker.dump(pw);
+        }
+
         /**
          * Tracks a PNO scan request across all the available scanner impls.
          *
@@ -1842,23 +1938,49 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
 
             // Tracks scan status per impl.
             Map<String, Integer> mStatusPerImpl = new ArrayMap<>();
+            // Fingerprint of the PNO settings programmed on each impl, see getFingerprint().
+            // Entries outlive mStatusPerImpl while a reset is deferred, so that a PNO scan
+            // restarted with the same settings can reuse them. A null fingerprint marks an impl
+            // whose PNO scan failed, which must be reset before being programmed again.
+            private final Map<String, String> mFingerprintPerImpl = new ArrayMap<>();
+            private int mNumHwPnoProgrammed = 0;
+            private int mNumHwPnoProgrammingSkipped = 0;
+            private long mTotalHwPnoProgrammingDurationMs = 0;
 
             /**
              * Triggers a new PNO with the specified settings on all the available scanner impls.
+             * Impls still programmed with identical settings by a deferred reset are reused as
+             * is, the others are reset first if needed.
              * @return true if the PNO succeeded on any of the impl, false otherwise.
              */
             public boolean setHwPnoList(WifiNative.PnoSettings pnoSettings) {
+                removeMessages(CMD_RESET_HW_PNO);
                 mStatusPerImpl.clear();
+                String fingerprint = getFingerprint(pnoSettings);
                 boolean anySuccess = false;
                 for (Map.Entry<String, WifiScannerImpl> entry : mScannerImpls.entrySet()) {
                     String ifaceName = entry.getKey();
                     WifiScannerImpl impl = entry.getValue();
+                    if (mFingerprintPerImpl.containsKey(ifaceName)) {
+                        if (fingerprint.equals(mFingerprintPerImpl.get(ifaceName))) {
+                            mNumHwPnoProgrammingSkipped++;
+                            mStatusPerImpl.put(ifaceName, STATUS_PENDING);
+                            anySuccess = true;
+                            continue;
+                        }
+                        resetHwPnoListForImpl(ifaceName, impl);
+                    }
+                    long startMs = mClock.getElapsedSinceBootMillis();
                     boolean success = impl.setHwPnoList(
                             pnoSettings, new PnoEventHandler(ifaceName));
+                    mTotalHwPnoProgrammingDurationMs +=
+                            mClock.getElapsedSinceBootMillis() - startMs;
                     if (!success) {
                         Log.e(TAG, "Failed to start pno on " + ifaceName);
                         continue;
                     }
+                    mNumHwPnoProgrammed++;
+                    mFingerprintPerImpl.put(ifaceName, fingerprint);
                     mStatusPerImpl.put(ifaceName, STATUS_PENDING);
                     anySuccess = true;
                 }
@@ -1866,24 +1988,93 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
 
             /**
-             * Resets any ongoing PNO on all the available scanner impls.
+             * Stops reporting the ongoing PNO of all the available scanner impls, and resets it
+             * either right away or after R.integer.config_wifiPnoResetDelayMs, so that a PNO scan
+             * restarted with the same settings in the meantime doesn't reprogram the firmware.
              * @return true if the PNO stop succeeded on all of the impl, false otherwise.
              */
             public boolean resetHwPnoList() {
+                mStatusPerImpl.clear();
+                int resetDelayMs = mContext.getResources().getInteger(
+                        R.integer.config_wifiPnoResetDelayMs);
+                if (resetDelayMs > 0 && !mFingerprintPerImpl.isEmpty()) {
+                    removeMessages(CMD_RESET_HW_PNO);
+                    sendMessageDelayed(CMD_RESET_HW_PNO, resetDelayMs);
+                    return true;
+                }
+                return resetHwPnoListNow();
+            }
+
+            /**
+             * Resets any ongoing or deferred PNO on all the available scanner impls.
+             * @return true if the PNO stop succeeded on all of the impl, false otherwise.
+             */
+            public boolean resetHwPnoListNow() {
+                removeMessages(CMD_RESET_HW_PNO);
                 boolean allSuccess = true;
-                for (String ifaceName : mStatusPerImpl.keySet()) {
+                for (String ifaceName : new ArrayList<>(mFingerprintPerImpl.keySet())) {
                     WifiScannerImpl impl = mScannerImpls.get(ifaceName);
                     if (impl == null) continue;
-                    boolean success = impl.resetHwPnoList();
-                    if (!success) {
-                        Log.e(TAG, "Failed to stop pno on " + ifaceName);
+                    if (!resetHwPnoListForImpl(ifaceName, impl)) {
                         allSuccess = false;
                     }
                 }
+                mFingerprintPerImpl.clear();
                 mStatusPerImpl.clear();
                 return allSuccess;
             }
 
+            /**
+             * Dump the PNO programming stats.
+             */
+            public void dump(PrintWriter pw) {
+                pw.println("mNumHwPnoProgrammed " + mNumHwPnoProgrammed);
+                pw.println("mNumHwPnoProgrammingSkipped " + mNumHwPnoProgrammingSkipped);
+                pw.println("mTotalHwPnoProgrammingDurationMs "
+                        + mTotalHwPnoProgrammingDurationMs);
+                if (mNumHwPnoProgrammed > 0) {
+                    // Each skip saves a reset and a programming of the impl.
+                    pw.println("estimated saved programming time ms "
+                            + mTotalHwPnoProgrammingDurationMs * mNumHwPnoProgrammingSkipped
+                            / mNumHwPnoProgrammed);
+                }
+                pw.println("programmed impls " + mFingerprintPerImpl.keySet());
+            }
+
+            private boolean resetHwPnoListForImpl(@NonNull String ifaceName,
+                    @NonNull WifiScannerImpl impl) {
+                long startMs = mClock.getElapsedSinceBootMillis();
+                boolean success = impl.resetHwPnoList();
+                mTotalHwPnoProgrammingDurationMs += mClock.getElapsedSinceBootMillis() - startMs;
+                mFingerprintPerImpl.remove(ifaceName);
+                if (!success) {
+                    Log.e(TAG, "Failed to stop pno on " + ifaceName);
+                }
+                return success;
+            }
+
+            /**
+             * Returns a string identifying everything of the settings that is programmed in the
+             * firmware, so that identical settings have identical fingerprints.
+             */
+            private String getFingerprint(@NonNull WifiNative.PnoSettings pnoSettings) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(pnoSettings.periodInMs)
+                        .append(',').append(pnoSettings.min24GHzRssi)
+                        .append(',').append(pnoSettings.min5GHzRssi)
+                        .append(',').append(pnoSettings.min6GHzRssi)
+                        .append(',').append(pnoSettings.isConnected);
+                if (pnoSettings.networkList != null) {
+                    for (WifiNative.PnoNetwork network : pnoSettings.networkList) {
+                        sb.append(";").append(network.ssid)
+                                .append(',').append(network.flags)
+                                .append(',').append(network.auth_bit_field)
+                                .append(',').append(Arrays.toString(network.frequencies));
+                    }
+                }
+                return sb.toString();
+            }
+
             /**
              * @return true if HW PNO is supported on all the available scanner impls,
              * false otherwise.
@@ -1918,6 +2109,10 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             }
 
             private void reportPnoScanFailedForImpl(@NonNull String implIfaceName) {
+                if (mFingerprintPerImpl.containsKey(implIfaceName)) {
+                    // The impl must not be reused as is by the next PNO scan.
+                    mFingerprintPerImpl.put(implIfaceName, null);
+                }
                 Integer currentStatus = mStatusPerImpl.get(implIfaceName);
                 if (currentStatus != null && currentStatus == STATUS_PENDING) {
                     mStatusPerImpl.put(implIfaceName, STATUS_FAILED);
@@ -1960,6 +2155,12 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
                     case WifiScanner.CMD_OP_FAILED:
                         loge("Unexpected message " + msg.what);
                         break;
+                    case CMD_RESET_HW_PNO:
+                        // Canceled once a PNO scan is programmed, don't reset it if one runs.
+                        if (mActivePnoScans.isEmpty()) {
+                            mScannerImplsTracker.resetHwPnoListNow();
+                        }
+                        break;
                     default:
                         return NOT_HANDLED;
                 }
@@ -1977,6 +2178,8 @@ public class WifiScanningServiceImpl extends IWifiScanner.Stub {
             public void exit() {
                 sendPnoScanFailedToAllAndClear(
                         WifiScanner.REASON_UNSPECIFIED, "Scan was interrupted");
+                // Don't leave a deferred PNO reset behind once the scanner impls go away.
+                mScannerImplsTracker.resetHwPnoListNow();
             }
 
             @Override
@@ -16,16 +16,34 @@
 
 package com.android.server.wifi.util;
 
-import java.util.ArrayList;
-
 /**
  * A ring buffer where each element of the ring is itself a byte array.
+ *
+ * The payload of all elements is stored back to back in a single byte array, with the element
+ * boundaries kept in a separate ring of lengths. The byte array is allocated on first use and
+ * grown as needed up to the size limit, so rings that stay mostly empty don't reserve the whole
+ * limit. Appending copies the data into the ring, so no allocation happens per element once both
+ * arrays have grown to their steady state size.
+ *
+ * Thread-safety: all public methods are synchronized on the instance, so producers (e.g. HAL
+ * callbacks) only contend with readers of the same ring.
  */
 public class ByteArrayRingBuffer {
-    private ArrayList<byte[]> mArrayList;
+    private static final int INITIAL_RECORD_CAPACITY = 16;
+    private static final int INITIAL_DATA_CAPACITY = 256;
+    private static final byte[] EMPTY_DATA = new byte[0];
+
     private int mMaxBytes;
+    private byte[] mData = EMPTY_DATA;
+    // Start of the oldest element in |mData|.
+    private int mDataHead;
     private int mBytesUsed;
 
+    private int[] mRecordLengths;
+    // Index of the oldest element in |mRecordLengths|.
+    private int mRecordHead;
+    private int mNumRecords;
+
     /**
      * Creates a ring buffer that holds at most |maxBytes| of data. The overhead for each element
      * is not included in this limit.
@@ -35,9 +53,8 @@ public class ByteArrayRingBuffer {
         if (maxBytes < 1) {
             throw new IllegalArgumentException();
         }
-        mArrayList = new ArrayList<byte[]>();
         mMaxBytes = maxBytes;
-        mBytesUsed = 0;
+        mRecordLengths = new int[INITIAL_RECORD_CAPACITY];
     }
 
     /**
@@ -50,50 +67,147 @@ public class ByteArrayRingBuffer {
      * @return true if the data was added
      */
     public boolean appendBuffer(byte[] newData) {
-        pruneToSize(mMaxBytes - newData.length);
-        if (mBytesUsed + newData.length > mMaxBytes) {
+        return appendBuffer(newData, 0, newData.length);
+    }
+
+    /**
+     * Same as {@link #appendBuffer(byte[])}, but only appends |length| bytes of |newData|
+     * starting at |offset|. The data is copied, so the caller may reuse |newData| afterwards.
+     */
+    public synchronized boolean appendBuffer(byte[] newData, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > newData.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        pruneToSize(mMaxBytes - length);
+        if (mBytesUsed + length > mMaxBytes) {
             return false;
         }
+        ensureDataCapacity(mBytesUsed + length);
+
+        int capacity = mData.length;
+        int tail = wrap(mDataHead + mBytesUsed, capacity);
+        int firstChunk = Math.min(length, capacity - tail);
+        System.arraycopy(newData, offset, mData, tail, firstChunk);
+        System.arraycopy(newData, offset + firstChunk, mData, 0, length - firstChunk);
+        mBytesUsed += length;
 
-        mArrayList.add(newData);
-        mBytesUsed += newData.length;
+        if (mNumRecords == mRecordLengths.length) {
+            growRecordLengths();
+        }
+        mRecordLengths[wrap(mRecordHead + mNumRecords, mRecordLengths.length)] = length;
+        mNumRecords++;
         return true;
     }
 
     /**
-     * Returns the |i|-th element of the ring. The element retains its position in the ring.
+     * Returns a copy of the |i|-th element of the ring. The element retains its position in the
+     * ring.
+     * <p>This walks the ring from the oldest element; use {@link #getBuffers()} to retrieve all
+     * elements in a single pass.
      * @param i
      * @return the requested element
      */
-    public byte[] getBuffer(int i) {
-        return mArrayList.get(i);
+    public synchronized byte[] getBuffer(int i) {
+        if (i < 0 || i >= mNumRecords) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + mNumRecords);
+        }
+        int offset = mDataHead;
+        for (int j = 0; j < i; j++) {
+            offset += recordLength(j);
+        }
+        return copyOut(wrap(offset, mData.length), recordLength(i));
+    }
+
+    /**
+     * Returns a copy of all elements of the ring, oldest first.
+     */
+    public synchronized byte[][] getBuffers() {
+        byte[][] buffers = new byte[mNumRecords][];
+        int offset = mDataHead;
+        for (int i = 0; i < mNumRecords; i++) {
+            int length = recordLength(i);
+            buffers[i] = copyOut(offset, length);
+            offset = wrap(offset + length, mData.length);
+        }
+        return buffers;
     }
 
     /**
      * Returns the number of elements present in the ring.
      * @return the number of elements present
      */
-    public int getNumBuffers() {
-        return mArrayList.size();
+    public synchronized int getNumBuffers() {
+        return mNumRecords;
     }
 
     /**
      * Resize the buffer, removing existing data if necessary.
-     * @param maxBytes upper bound on the amount of data to hold
+     * @param maxBytes upper bound on the amount of data to hold. A negative limit is treated as 0,
+     *                 i.e. all data is removed and nothing can be added.
      */
-    public void resize(int maxBytes) {
+    public synchronized void resize(int maxBytes) {
+        maxBytes = Math.max(0, maxBytes);
         pruneToSize(maxBytes);
         mMaxBytes = maxBytes;
+        if (mData.length > maxBytes) {
+            reallocateData(maxBytes);
+        }
+    }
+
+    private int recordLength(int i) {
+        return mRecordLengths[wrap(mRecordHead + i, mRecordLengths.length)];
+    }
+
+    private byte[] copyOut(int offset, int length) {
+        byte[] out = new byte[length];
+        int firstChunk = Math.min(length, mData.length - offset);
+        System.arraycopy(mData, offset, out, 0, firstChunk);
+        System.arraycopy(mData, 0, out, firstChunk, length - firstChunk);
+        return out;
+    }
+
+    private void ensureDataCapacity(int capacity) {
+        if (capacity <= mData.length) {
+            return;
+        }
+        int newCapacity = Math.min(mMaxBytes,
+                Math.max(mData.length * 2, INITIAL_DATA_CAPACITY));
+        reallocateData(Math.max(capacity, newCapacity));
+    }
+
+    private void reallocateData(int capacity) {
+        byte[] newData = capacity == 0 ? EMPTY_DATA : new byte[capacity];
+        int firstChunk = Math.min(mBytesUsed, mData.length - mDataHead);
+        System.arraycopy(mData, mDataHead, newData, 0, firstChunk);
+        System.arraycopy(mData, 0, newData, firstChunk, mBytesUsed - firstChunk);
+        mData = newData;
+        mDataHead = 0;
+    }
+
+    private void growRecordLengths() {
+        int[] newLengths = new int[mRecordLengths.length * 2];
+        for (int i = 0; i < mNumRecords; i++) {
+            newLengths[i] = recordLength(i);
+        }
+        mRecordLengths = newLengths;
+        mRecordHead = 0;
     }
 
     private void pruneToSize(int sizeBytes) {
-        int newBytesUsed = mBytesUsed;
-        int i = 0;
-        while (i < mArrayList.size() && newBytesUsed > sizeBytes) {
-            newBytesUsed -= mArrayList.get(i).length;
-            i++;
+        while (mNumRecords > 0 && mBytesUsed > sizeBytes) {
+            int length = mRecordLengths[mRecordHead];
+            mRecordHead = wrap(mRecordHead + 1, mRecordLengths.length);
+            mNumRecords--;
+            mDataHead = wrap(mDataHead + length, mData.length);
+            mBytesUsed -= length;
+        }
+        if (mNumRecords == 0) {
+            mDataHead = 0;
+            mRecordHead = 0;
         }
-        mArrayList.subList(0, i).clear();
-        mBytesUsed = newBytesUsed;
+    }
+
+    private static int wrap(int index, int capacity) {
+        return index >= capacity ? index - capacity : index;
     }
 }
@@ -49,6 +49,15 @@ public class NativeUtil {
      * @throws IllegalArgumentException if a null or unencodable string is sent.
      */
     public static ArrayList<Byte> stringToByteArrayList(String str) {
+        return byteArrayToArrayList(stringToUtf8ByteArray(str));
+    }
+
+    /**
+     * Convert the string to a byte array, ensuring that it is UTF_8 encodable.
+     *
+     * @throws IllegalArgumentException if a null or unencodable string is sent.
+     */
+    private static byte[] stringToUtf8ByteArray(String str) {
         if (str == null) {
             throw new IllegalArgumentException("null string");
         }
@@ -58,7 +67,7 @@ public class NativeUtil {
             ByteBuffer encoded = encoder.encode(CharBuffer.wrap(str));
             byte[] byteArray = new byte[encoded.remaining()];
             encoded.get(byteArray);
-            return byteArrayToArrayList(byteArray);
+            return byteArray;
         } catch (CharacterCodingException cce) {
             throw new IllegalArgumentException("cannot be utf-8 encoded", cce);
         }
@@ -74,13 +83,7 @@ public class NativeUtil {
         if (byteArrayList == null) {
             throw new IllegalArgumentException("null byte array list");
         }
-        byte[] byteArray = new byte[byteArrayList.size()];
-        int i = 0;
-        for (Byte b : byteArrayList) {
-            byteArray[i] = b;
-            i++;
-        }
-        return new String(byteArray, StandardCharsets.UTF_8);
+        return new String(byteArrayFromArrayList(byteArrayList), StandardCharsets.UTF_8);
     }
 
     /**
@@ -222,15 +225,25 @@ public class NativeUtil {
      * @throws IllegalArgumentException for null string.
      */
     public static ArrayList<Byte> hexOrQuotedStringToBytes(String str) {
+        return byteArrayToArrayList(hexOrQuotedStringToByteArray(str));
+    }
+
+    /**
+     * Same as {@link #hexOrQuotedStringToBytes(String)}, but returns an array of primitive bytes
+     * so that callers which don't hand the result to a HAL avoid the boxed list round trip.
+     *
+     * @param str String to be converted.
+     * @throws IllegalArgumentException for null string.
+     */
+    public static byte[] hexOrQuotedStringToByteArray(String str) {
         if (str == null) {
             throw new IllegalArgumentException("null string");
         }
         int length = str.length();
         if ((length > 1) && (str.charAt(0) == '"') && (str.charAt(length - 1) == '"')) {
-            str = str.substring(1, str.length() - 1);
-            return stringToByteArrayList(str);
+            return stringToUtf8ByteArray(str.substring(1, length - 1));
         } else {
-            return byteArrayToArrayList(hexStringToByteArray(str));
+            return hexStringToByteArray(str);
         }
     }
 
@@ -250,7 +263,7 @@ public class NativeUtil {
         }
         byte[] byteArray = byteArrayFromArrayList(bytes);
         // Check for 0's in the byte stream in which case we cannot convert this into a string.
-        if (!bytes.contains(Byte.valueOf((byte) 0))) {
+        if (!containsNullByte(byteArray)) {
             CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
             try {
                 CharBuffer decoded = decoder.decode(ByteBuffer.wrap(byteArray));
@@ -274,6 +287,16 @@ public class NativeUtil {
         return hexOrQuotedStringToBytes(ssidStr);
     }
 
+    /**
+     * Same as {@link #decodeSsid(String)}, but returns an array of primitive bytes.
+     *
+     * @param ssidStr String to be converted.
+     * @throws IllegalArgumentException for null string.
+     */
+    public static byte[] decodeSsidToByteArray(String ssidStr) {
+        return hexOrQuotedStringToByteArray(ssidStr);
+    }
+
     /**
      * Converts an ArrayList<Byte> of UTF_8 byte values to ssid string.
      * The string will either be:
@@ -292,25 +315,44 @@ public class NativeUtil {
      * Convert from an array of primitive bytes to an array list of Byte.
      */
     public static ArrayList<Byte> byteArrayToArrayList(byte[] bytes) {
-        ArrayList<Byte> byteList = new ArrayList<>();
-        for (Byte b : bytes) {
-            byteList.add(b);
-        }
+        ArrayList<Byte> byteList = new ArrayList<>(bytes.length);
+        appendByteArrayToArrayList(bytes, byteList);
         return byteList;
     }
 
+    /**
+     * Append an array of primitive bytes to an existing array list of Byte, e.g. a field of a HAL
+     * structure. The list is grown once up front instead of once per overflowing element.
+     */
+    public static void appendByteArrayToArrayList(byte[] bytes, ArrayList<Byte> byteList) {
+        byteList.ensureCapacity(byteList.size() + bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            // Byte.valueOf() returns cached instances, so this does not allocate per element.
+            byteList.add(Byte.valueOf(bytes[i]));
+        }
+    }
+
     /**
      * Convert from an array list of Byte to an array of primitive bytes.
      */
     public static byte[] byteArrayFromArrayList(ArrayList<Byte> bytes) {
-        byte[] byteArray = new byte[bytes.size()];
-        int i = 0;
-        for (Byte b : bytes) {
-            byteArray[i++] = b;
+        final int size = bytes.size();
+        byte[] byteArray = new byte[size];
+        for (int i = 0; i < size; i++) {
+            byteArray[i] = bytes.get(i);
         }
         return byteArray;
     }
 
+    private static boolean containsNullByte(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Converts a hex string to byte array.
      *
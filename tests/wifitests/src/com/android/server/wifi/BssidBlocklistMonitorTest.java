@@ -87,6 +87,7 @@ public class BssidBlocklistMonitorTest {
     @Mock private WifiLastResortWatchdog mWifiLastResortWatchdog;
     @Mock private Clock mClock;
     @Mock private LocalLog mLocalLog;
+    @Mock private WifiEventJournal mWifiEventJournal;
     @Mock private WifiScoreCard mWifiScoreCard;
     @Mock private ScoringParams mScoringParams;
 
@@ -147,7 +148,8 @@ public class BssidBlocklistMonitorTest {
 
         when(mContext.getResources()).thenReturn(mResources);
         mBssidBlocklistMonitor = new BssidBlocklistMonitor(mContext, mWifiConnectivityHelper,
-                mWifiLastResortWatchdog, mClock, mLocalLog, mWifiScoreCard, mScoringParams);
+                mWifiLastResortWatchdog, mClock, mLocalLog, mWifiEventJournal, mWifiScoreCard,
+                mScoringParams);
     }
 
     private void verifyAddTestBssidToBlocklist() {
@@ -647,6 +649,24 @@ public class BssidBlocklistMonitorTest {
 
     }
 
+    /**
+     * Verify that blocking and unblocking a BSSID are recorded in the event journal.
+     */
+    @Test
+    public void testBlocklistChangesRecordedInEventJournal() {
+        verifyAddTestBssidToBlocklist();
+        verify(mWifiEventJournal).record(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST,
+                WifiEventJournal.EVENT_BSSID_BLOCKED,
+                BssidBlocklistMonitor.REASON_AP_UNABLE_TO_HANDLE_NEW_STA, TEST_GOOD_RSSI,
+                TEST_BSSID_1);
+
+        mBssidBlocklistMonitor.clearBssidBlocklist();
+        verify(mWifiEventJournal).record(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST,
+                WifiEventJournal.EVENT_BSSID_UNBLOCKED,
+                BssidBlocklistMonitor.REASON_AP_UNABLE_TO_HANDLE_NEW_STA, TEST_GOOD_RSSI,
+                TEST_BSSID_1);
+    }
+
     /**
      * Verify that the BssidStatusHistoryLoggerSize is capped.
      */
@@ -28,6 +28,7 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
@@ -990,6 +991,50 @@ public class HalDeviceManagerTest extends WifiBaseTest {
         verifyNoMoreInteractions(mManagerStatusListenerMock, staIdl, staIafrl, apIdl, apIafrl);
     }
 
+    /**
+     * Validate that the chip modes are only read from the HAL once per Wi-Fi start, however many
+     * interfaces are created.
+     */
+    @Test
+    public void testChipAvailableModesAreCachedUntilStop() throws Exception {
+        TestChipV1 chipMock = new TestChipV1();
+        chipMock.initialize();
+        mInOrder = inOrder(mServiceManagerMock, mWifiMock, chipMock.chip,
+                mManagerStatusListenerMock);
+        executeAndValidateInitializationSequence();
+        executeAndValidateStartupSequence();
+
+        IWifiStaIface staIface = mock(IWifiStaIface.class);
+        doAnswer(new GetNameAnswer("wlan0")).when(staIface).getName(
+                any(IWifiIface.getNameCallback.class));
+        doAnswer(new GetTypeAnswer(IfaceType.STA)).when(staIface).getType(
+                any(IWifiIface.getTypeCallback.class));
+        doAnswer(new CreateXxxIfaceAnswer(chipMock, mStatusOk, staIface)).when(
+                chipMock.chip).createStaIface(any(IWifiChip.createStaIfaceCallback.class));
+        IWifiApIface apIface = mock(IWifiApIface.class);
+        doAnswer(new GetNameAnswer("wlan1")).when(apIface).getName(
+                any(IWifiIface.getNameCallback.class));
+        doAnswer(new GetTypeAnswer(IfaceType.AP)).when(apIface).getType(
+                any(IWifiIface.getTypeCallback.class));
+        doAnswer(new CreateXxxIfaceAnswer(chipMock, mStatusOk, apIface)).when(
+                chipMock.chip).createApIface(any(IWifiChip.createApIfaceCallback.class));
+
+        assertEquals(staIface, mDut.createStaIface(null, null));
+        assertEquals(apIface, mDut.createApIface(null, null));
+        assertEquals(staIface, mDut.createStaIface(null, null));
+        verify(chipMock.chip, times(1)).getAvailableModes(
+                any(IWifiChip.getAvailableModesCallback.class));
+        // The current mode is still read live for every creation.
+        verify(chipMock.chip, atLeast(3)).getMode(any(IWifiChip.getModeCallback.class));
+
+        // Restarting Wi-Fi reads the modes again.
+        mDut.stop();
+        assertTrue(mDut.start());
+        assertEquals(staIface, mDut.createStaIface(null, null));
+        verify(chipMock.chip, times(2)).getAvailableModes(
+                any(IWifiChip.getAvailableModesCallback.class));
+    }
+
     /**
      * Validate creation of AP interface when in AP mode - but with no interface created. Expect
      * no change in chip mode.
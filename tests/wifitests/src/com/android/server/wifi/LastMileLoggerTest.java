@@ -17,6 +17,7 @@
 package com.android.server.wifi;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.contains;
@@ -39,6 +40,8 @@ import org.mockito.Spy;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 /**
  * Unit tests for {@link LastMileLogger}.
@@ -165,6 +168,21 @@ public class LastMileLoggerTest extends WifiBaseTest {
         mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
     }
 
+    @Test
+    public void connectionEventFailedKeepsLastFailureTraceIfDataFileIsMissing() throws Exception {
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_STARTED);
+        FileUtils.stringToFile(mTraceDataFile.getPath(), "rdev_connect try #1");
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_STARTED);
+        mTraceDataFile.delete();
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
+
+        String dumpString = getDumpString();
+        assertTrue(dumpString.contains("--- Last failed"));
+        assertTrue(dumpString.contains("rdev_connect try #1"));
+        assertFalse(dumpString.contains("Previous failed"));
+    }
+
     @Test
     public void connectionEventFailedDoesNotCrashOnRepeatedCalls() throws Exception {
         mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
@@ -238,6 +256,77 @@ public class LastMileLoggerTest extends WifiBaseTest {
         assertTrue(dumpString.contains("rdev_connect"));
     }
 
+    @Test
+    public void dumpKeepsOnlyMostRecentFailureTraces() throws Exception {
+        int numFailures = LastMileLogger.MAX_FAILURE_TRACES + 1;
+        for (int i = 0; i < numFailures; i++) {
+            mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_STARTED);
+            FileUtils.stringToFile(mTraceDataFile.getPath(), "rdev_connect try #" + i + "\n");
+            mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
+        }
+        FileUtils.stringToFile(mTraceDataFile.getPath(), "");
+
+        String dumpString = getDumpString();
+        assertFalse(dumpString.contains("rdev_connect try #0"));
+        for (int i = 1; i < numFailures; i++) {
+            assertTrue(dumpString.contains("rdev_connect try #" + i));
+        }
+        // The most recent failure is listed first.
+        int lastFailureIndex = dumpString.indexOf("--- Last failed");
+        assertTrue(lastFailureIndex >= 0);
+        assertTrue(lastFailureIndex < dumpString.indexOf("rdev_connect try #" + (numFailures - 1)));
+        assertTrue(dumpString.indexOf("rdev_connect try #" + (numFailures - 1))
+                < dumpString.indexOf("rdev_connect try #1"));
+        assertTrue(dumpString.contains("No last mile log for \"Latest"));
+    }
+
+    @Test
+    public void dumpShowsLargeFailureTrace() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append("rdev_connect line ").append(i).append('\n');
+        }
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_STARTED);
+        FileUtils.stringToFile(mTraceDataFile.getPath(), sb.toString());
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
+        FileUtils.stringToFile(mTraceDataFile.getPath(), "");
+
+        assertTrue(getDumpString().contains(sb.toString()));
+    }
+
+    @Test
+    public void dumpShowsEndOfFailureTraceLargerThanCap() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        int numLines = 0;
+        while (sb.length() <= LastMileLogger.MAX_CAPTURED_TRACE_BYTES) {
+            sb.append("rdev_connect line ").append(numLines++).append('\n');
+        }
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_STARTED);
+        FileUtils.stringToFile(mTraceDataFile.getPath(), sb.toString());
+        mLastMileLogger.reportConnectionEvent(BaseWifiDiagnostics.CONNECTION_EVENT_FAILED);
+        FileUtils.stringToFile(mTraceDataFile.getPath(), "");
+
+        String dumpString = getDumpString();
+        assertTrue(dumpString.contains("rdev_connect line " + (numLines - 1) + "\n"));
+        assertFalse(dumpString.contains("rdev_connect line 0\n"));
+        assertTrue(dumpString.contains("(truncated to the last "));
+    }
+
+    @Test
+    public void dumpShowsLiveTraceWithMalformedBytes() throws Exception {
+        byte[] prefix = "rdev_connect ".getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[prefix.length + 2];
+        System.arraycopy(prefix, 0, data, 0, prefix.length);
+        data[prefix.length] = (byte) 0xff;
+        data[prefix.length + 1] = '\n';
+        Files.write(mTraceDataFile.toPath(), data);
+
+        String dumpString = getDumpString();
+        assertTrue(dumpString.contains("--- Latest"));
+        assertTrue(dumpString.contains("rdev_connect"));
+        assertFalse(dumpString.contains("No last mile log for \"Latest"));
+    }
+
     @Test
     public void dumpDoesNotCrashIfDataFileIsEmpty() throws Exception {
         getDumpString();
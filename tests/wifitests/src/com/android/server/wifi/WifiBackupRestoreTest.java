@@ -582,6 +582,38 @@ public class WifiBackupRestoreTest extends WifiBaseTest {
                 configurations, retrievedConfigurations);
     }
 
+    /**
+     * Verify that the restored networks are handed out in batches of at most the given size,
+     * which together hold all the backed up networks, and that the restored data is dumped.
+     */
+    @Test
+    public void testMultipleNetworksBatchedRestore() {
+        List<WifiConfiguration> configurations = new ArrayList<>();
+        configurations.add(WifiConfigurationTestUtil.createWepNetwork());
+        configurations.add(WifiConfigurationTestUtil.createWepNetwork());
+        configurations.add(WifiConfigurationTestUtil.createPskNetwork());
+        configurations.add(WifiConfigurationTestUtil.createOpenNetwork());
+        configurations.add(WifiConfigurationTestUtil.createOweNetwork());
+        configurations.add(WifiConfigurationTestUtil.createSaeNetwork());
+
+        byte[] backupData = mWifiBackupRestore.retrieveBackupDataFromConfigurations(configurations);
+        List<List<WifiConfiguration>> batches = new ArrayList<>();
+        assertTrue(mWifiBackupRestore.retrieveConfigurationsFromBackupData(
+                backupData, 4, batches::add));
+        assertEquals(2, batches.size());
+        assertEquals(4, batches.get(0).size());
+        assertEquals(2, batches.get(1).size());
+
+        List<WifiConfiguration> retrievedConfigurations = new ArrayList<>();
+        batches.forEach(retrievedConfigurations::addAll);
+        WifiConfigurationTestUtil.assertConfigurationsEqualForBackup(
+                configurations, retrievedConfigurations);
+
+        StringWriter stringWriter = new StringWriter();
+        mWifiBackupRestore.dump(new FileDescriptor(), new PrintWriter(stringWriter), new String[0]);
+        assertTrue(stringWriter.toString().contains("Last backup data restored: "));
+    }
+
     /**
      * Verify that multiple networks of different types except enterprise ones are serialized and
      * deserialized correctly
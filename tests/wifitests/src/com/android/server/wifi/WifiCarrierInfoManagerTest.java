@@ -1115,6 +1115,37 @@ public class WifiCarrierInfoManagerTest extends WifiBaseTest {
                 mWifiCarrierInfoManager.getMatchingImsi(DATA_CARRIER_ID));
     }
 
+    /**
+     * Verify that when the subscription cache is enabled, telephony is queried once until the
+     * subscriptions change.
+     */
+    @Test
+    public void getMatchingImsiWithSubscriptionCache() {
+        when(mResources.getBoolean(R.bool.config_wifiCarrierInfoCacheEnabled)).thenReturn(true);
+        WifiCarrierInfoManager wifiCarrierInfoManager = new WifiCarrierInfoManager(
+                mTelephonyManager, mSubscriptionManager, mWifiInjector, mFrameworkFacade,
+                mContext, mWifiConfigStore, new Handler(mLooper.getLooper()), mWifiMetrics);
+        ArgumentCaptor<SubscriptionManager.OnSubscriptionsChangedListener> listenerCaptor =
+                ArgumentCaptor.forClass(SubscriptionManager.OnSubscriptionsChangedListener.class);
+        verify(mSubscriptionManager).addOnSubscriptionsChangedListener(any(),
+                listenerCaptor.capture());
+        clearInvocations(mSubscriptionManager, mDataTelephonyManager);
+
+        assertEquals(DATA_FULL_IMSI, wifiCarrierInfoManager.getMatchingImsi(DATA_CARRIER_ID));
+        assertEquals(DATA_FULL_IMSI, wifiCarrierInfoManager.getMatchingImsi(DATA_CARRIER_ID));
+        assertTrue(wifiCarrierInfoManager.isSimPresent(DATA_SUBID));
+        verify(mSubscriptionManager).getActiveSubscriptionInfoList();
+        verify(mDataTelephonyManager).getSubscriberId();
+
+        // The IMSI changes along with the subscriptions.
+        when(mDataTelephonyManager.getSubscriberId()).thenReturn(NON_DATA_FULL_IMSI);
+        listenerCaptor.getValue().onSubscriptionsChanged();
+        assertEquals(NON_DATA_FULL_IMSI,
+                wifiCarrierInfoManager.getMatchingImsi(DATA_CARRIER_ID));
+        verify(mSubscriptionManager, times(2)).getActiveSubscriptionInfoList();
+        verify(mDataTelephonyManager, times(2)).getSubscriberId();
+    }
+
     /**
      * Verify that if there is no SIM, it should match nothing.
      */
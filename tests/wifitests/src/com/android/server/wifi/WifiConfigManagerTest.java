@@ -139,6 +139,7 @@ public class WifiConfigManagerTest extends WifiBaseTest {
     @Mock private FrameworkFacade mFrameworkFacade;
     @Mock private DeviceConfigFacade mDeviceConfigFacade;
     @Mock private MacAddressUtil mMacAddressUtil;
+    @Mock private WifiEventJournal mWifiEventJournal;
     @Mock private BssidBlocklistMonitor mBssidBlocklistMonitor;
     @Mock private WifiNetworkSuggestionsManager mWifiNetworkSuggestionsManager;
     @Mock private WifiScoreCard mWifiScoreCard;
@@ -221,6 +222,7 @@ public class WifiConfigManagerTest extends WifiBaseTest {
         when(mWifiInjector.getWifiLastResortWatchdog().shouldIgnoreSsidUpdate())
                 .thenReturn(false);
         when(mWifiInjector.getMacAddressUtil()).thenReturn(mMacAddressUtil);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
         when(mWifiInjector.getWifiMetrics()).thenReturn(mWifiMetrics);
         when(mWifiPermissionsUtil.doesUidBelongToCurrentUser(anyInt())).thenReturn(true);
         when(mMacAddressUtil.calculatePersistentMac(any(), any())).thenReturn(TEST_RANDOMIZED_MAC);
@@ -3670,6 +3672,101 @@ public class WifiConfigManagerTest extends WifiBaseTest {
         assertTrue(mWifiConfigManager.getConfiguredNetworks().isEmpty());
     }
 
+    /**
+     * Verifies that provisioning and then removing 1000 networks with
+     * {@link WifiConfigManager#addOrUpdateNetworks} and
+     * {@link WifiConfigManager#removeNetworks} sends a single broadcast,
+     * does a single config store write and a single batch listener notification for each batch.
+     */
+    @Test
+    public void testAddAndRemoveNetworksInBatch() throws Exception {
+        final int numNetworks = 1000;
+        triggerStoreReadIfNeeded();
+        List<WifiConfiguration> configs = new ArrayList<>();
+        for (int i = 0; i < numNetworks; i++) {
+            configs.add(WifiConfigurationTestUtil.createPskNetwork("\"batch" + i + "\""));
+        }
+        clearInvocations(mContext, mWifiConfigStore, mWcmListener);
+
+        List<NetworkUpdateResult> results = mWifiConfigManager.addOrUpdateNetworks(
+                configs, TEST_CREATOR_UID, TEST_CREATOR_NAME);
+        assertFalse(mWifiConfigManager.isBatchUpdateInProgress());
+        assertEquals(numNetworks, results.size());
+        List<Integer> networkIds = new ArrayList<>();
+        for (NetworkUpdateResult result : results) {
+            assertTrue(result.isSuccess());
+            assertTrue(result.isNewNetwork());
+            networkIds.add(result.getNetworkId());
+        }
+        assertEquals(numNetworks, mWifiConfigManager.getConfiguredNetworks().size());
+        verify(mWcmListener, times(numNetworks)).onNetworkAdded(any());
+        verify(mWcmListener).onBatchUpdateFinished();
+        verify(mWifiConfigStore).write(true);
+        assertEquals(WifiManager.CHANGE_REASON_ADDED, verifyNetworkInBroadcastAndReturnReason());
+        clearInvocations(mContext, mWifiConfigStore, mWcmListener);
+
+        assertEquals(numNetworks, mWifiConfigManager.removeNetworks(
+                networkIds, TEST_CREATOR_UID, TEST_CREATOR_NAME).size());
+        assertTrue(mWifiConfigManager.getConfiguredNetworks().isEmpty());
+        verify(mWcmListener, times(numNetworks)).onNetworkRemoved(any());
+        verify(mWcmListener).onBatchUpdateFinished();
+        verify(mWifiConfigStore).write(true);
+        assertEquals(WifiManager.CHANGE_REASON_REMOVED, verifyNetworkInBroadcastAndReturnReason());
+    }
+
+    /**
+     * Verifies that a nested batch update defers the broadcast and the config store write until
+     * the outermost batch update finishes, and that changes of different kinds are reported as a
+     * config change.
+     */
+    @Test
+    public void testNestedBatchUpdate() throws Exception {
+        NetworkUpdateResult result =
+                verifyAddNetworkToWifiConfigManager(WifiConfigurationTestUtil.createOpenNetwork());
+        clearInvocations(mContext, mWifiConfigStore, mWcmListener);
+
+        mWifiConfigManager.startBatchUpdate();
+        mWifiConfigManager.addOrUpdateNetworks(
+                Arrays.asList(WifiConfigurationTestUtil.createPskNetwork()),
+                TEST_CREATOR_UID, TEST_CREATOR_NAME);
+        assertTrue(mWifiConfigManager.removeNetwork(
+                result.getNetworkId(), TEST_CREATOR_UID, TEST_CREATOR_NAME));
+        verify(mContext, never()).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class),
+                anyString());
+        verify(mWifiConfigStore, never()).write(anyBoolean());
+        verify(mWcmListener, never()).onBatchUpdateFinished();
+        assertTrue(mWifiConfigManager.isBatchUpdateInProgress());
+
+        mWifiConfigManager.finishBatchUpdate();
+        assertFalse(mWifiConfigManager.isBatchUpdateInProgress());
+        verify(mWcmListener).onBatchUpdateFinished();
+        verify(mWifiConfigStore).write(true);
+        assertEquals(WifiManager.CHANGE_REASON_CONFIG_CHANGE,
+                verifyNetworkInBroadcastAndReturnReason());
+    }
+
+    /**
+     * Verifies that an explicit forced config store write is not deferred by a batch update and
+     * that it includes the network changes already made in the batch.
+     */
+    @Test
+    public void testForcedSaveToStoreInBatchUpdateWritesImmediately() throws Exception {
+        triggerStoreReadIfNeeded();
+        clearInvocations(mWifiConfigStore);
+
+        mWifiConfigManager.startBatchUpdate();
+        mWifiConfigManager.addOrUpdateNetworks(
+                Arrays.asList(WifiConfigurationTestUtil.createPskNetwork()),
+                TEST_CREATOR_UID, TEST_CREATOR_NAME);
+        verify(mWifiConfigStore, never()).write(anyBoolean());
+
+        assertTrue(mWifiConfigManager.saveToStore(true));
+        verify(mWifiConfigStore).write(true);
+
+        mWifiConfigManager.finishBatchUpdate();
+        verify(mWifiConfigStore).write(anyBoolean());
+    }
+
     /**
      * Verifies that the connect choice is removed from all networks when
      * {@link WifiConfigManager#removeNetwork(int, int)} is invoked.
@@ -3916,6 +4013,43 @@ public class WifiConfigManagerTest extends WifiBaseTest {
         assertEquals(network1.SSID, hiddenNetworks.get(2).ssid);
     }
 
+    /**
+     * Verifies that the hidden network list is cached with the scan network list cache enabled,
+     * and rebuilt once the state used to order the networks changes.
+     */
+    @Test
+    public void testRetrieveHiddenListCached() {
+        mResources.setBoolean(R.bool.config_wifiScanNetworkListCacheEnabled, true);
+        WifiConfiguration network1 = WifiConfigurationTestUtil.createPskHiddenNetwork();
+        WifiConfiguration network2 = WifiConfigurationTestUtil.createOpenHiddenNetwork();
+        verifyAddNetworkToWifiConfigManager(network1);
+        verifyAddNetworkToWifiConfigManager(network2);
+
+        long version = mWifiConfigManager.getScanNetworkListVersion();
+        List<WifiScanner.ScanSettings.HiddenNetwork> hiddenNetworks =
+                mWifiConfigManager.retrieveHiddenNetworkList();
+        assertEquals(2, hiddenNetworks.size());
+        assertEquals(network1.SSID, hiddenNetworks.get(0).ssid);
+        assertEquals(network2.SSID, hiddenNetworks.get(1).ssid);
+
+        // Nothing changed, same list but new objects.
+        List<WifiScanner.ScanSettings.HiddenNetwork> cachedHiddenNetworks =
+                mWifiConfigManager.retrieveHiddenNetworkList();
+        assertEquals(version, mWifiConfigManager.getScanNetworkListVersion());
+        assertEquals(2, cachedHiddenNetworks.size());
+        assertEquals(network1.SSID, cachedHiddenNetworks.get(0).ssid);
+        assertEquals(network2.SSID, cachedHiddenNetworks.get(1).ssid);
+        assertNotSame(hiddenNetworks.get(0), cachedHiddenNetworks.get(0));
+
+        // network2 seen in the last network selection now comes first.
+        assertTrue(mWifiConfigManager.setNetworkCandidateScanResult(network2.networkId,
+                createScanDetailForNetwork(network2).getScanResult(), 54));
+        assertNotEquals(version, mWifiConfigManager.getScanNetworkListVersion());
+        hiddenNetworks = mWifiConfigManager.retrieveHiddenNetworkList();
+        assertEquals(network2.SSID, hiddenNetworks.get(0).ssid);
+        assertEquals(network1.SSID, hiddenNetworks.get(1).ssid);
+    }
+
     /**
      * Verifies the addition of network configurations using
      * {@link WifiConfigManager#addOrUpdateNetwork(WifiConfiguration, int)} with same SSID and
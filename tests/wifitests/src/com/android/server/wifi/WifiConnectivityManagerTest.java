@@ -112,11 +112,16 @@ public class WifiConnectivityManagerTest extends WifiBaseTest {
         when(mWifiNetworkSuggestionsManager.getAllApprovedNetworkSuggestions())
                 .thenReturn(new HashSet<>());
         when(mWifiInjector.getBssidBlocklistMonitor()).thenReturn(mBssidBlocklistMonitor);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
         when(mWifiInjector.getWifiChannelUtilizationScan()).thenReturn(mWifiChannelUtilization);
         when(mWifiInjector.getWifiScoreCard()).thenReturn(mWifiScoreCard);
         when(mWifiInjector.getWifiNetworkSuggestionsManager())
                 .thenReturn(mWifiNetworkSuggestionsManager);
         when(mWifiInjector.getPasspointManager()).thenReturn(mPasspointManager);
+        // Read the resources on every use, so that tests can change them at any point.
+        when(mWifiResourceCache.get()).thenAnswer(
+                invocation -> new WifiResourceCache.Snapshot(mResources));
+        when(mWifiInjector.getWifiResourceCache()).thenReturn(mWifiResourceCache);
         when(mPasspointManager.getProviderConfigs(anyInt(), anyBoolean()))
                 .thenReturn(new ArrayList<>());
         mWifiConnectivityManager = createConnectivityManager();
@@ -190,6 +195,8 @@ public class WifiConnectivityManagerTest extends WifiBaseTest {
     private LocalLog mLocalLog;
     private LruConnectionTracker mLruConnectionTracker;
     @Mock private WifiInjector mWifiInjector;
+    @Mock private WifiEventJournal mWifiEventJournal;
+    @Mock private WifiResourceCache mWifiResourceCache;
     @Mock private NetworkScoreManager mNetworkScoreManager;
     @Mock private Clock mClock;
     @Mock private WifiLastResortWatchdog mWifiLastResortWatchdog;
@@ -3035,6 +3042,39 @@ public class WifiConnectivityManagerTest extends WifiBaseTest {
         assertEquals(network2.SSID, pnoNetworks.get(0).ssid);
     }
 
+    /**
+     * Verifies that the PNO network list is cached with the scan network list cache enabled, and
+     * rebuilt once the saved networks change.
+     */
+    @Test
+    public void testRetrievePnoListCached() {
+        mResources.setBoolean(R.bool.config_wifiScanNetworkListCacheEnabled, true);
+        WifiConfiguration network1 = WifiConfigurationTestUtil.createPskNetwork();
+        WifiConfiguration network2 = WifiConfigurationTestUtil.createOpenHiddenNetwork();
+        when(mWifiConfigManager.getSavedNetworks(anyInt()))
+                .thenAnswer(invocation -> new ArrayList<>(Arrays.asList(network1, network2)));
+        when(mWifiConfigManager.getScanNetworkListVersion()).thenReturn(1L);
+        when(mWifiNetworkSuggestionsManager.getScanNetworkListVersion()).thenReturn(1L);
+
+        List<WifiScanner.PnoSettings.PnoNetwork> pnoNetworks =
+                mWifiConnectivityManager.retrievePnoNetworkList();
+        assertEquals(2, pnoNetworks.size());
+        List<WifiScanner.PnoSettings.PnoNetwork> cachedPnoNetworks =
+                mWifiConnectivityManager.retrievePnoNetworkList();
+        verify(mWifiConfigManager).getSavedNetworks(anyInt());
+        assertEquals(2, cachedPnoNetworks.size());
+        for (int i = 0; i < pnoNetworks.size(); i++) {
+            assertEquals(pnoNetworks.get(i).ssid, cachedPnoNetworks.get(i).ssid);
+            assertEquals(pnoNetworks.get(i).flags, cachedPnoNetworks.get(i).flags);
+            assertNotSame(pnoNetworks.get(i), cachedPnoNetworks.get(i));
+        }
+
+        // The saved networks changed, the list is rebuilt.
+        when(mWifiConfigManager.getScanNetworkListVersion()).thenReturn(2L);
+        mWifiConnectivityManager.retrievePnoNetworkList();
+        verify(mWifiConfigManager, times(2)).getSavedNetworks(anyInt());
+    }
+
     /**
      * Verifies frequencies are populated correctly for pno networks.
      * {@link WifiConnectivityManager#retrievePnoNetworkList()}.
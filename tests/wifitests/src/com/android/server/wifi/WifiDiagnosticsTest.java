@@ -287,6 +287,20 @@ public class WifiDiagnosticsTest extends WifiBaseTest {
         assertArrayEquals(data, ringBufferData[0]);
     }
 
+    /**
+     * Verifies that only the most recent bug reports are kept, oldest first.
+     */
+    @Test
+    public void bugReportsAreCappedAndKeptInOrder() throws Exception {
+        for (int i = 0; i < WifiDiagnostics.MAX_BUG_REPORTS + 2; i++) {
+            mWifiDiagnostics.captureBugReportData(i);
+        }
+        assertEquals(WifiDiagnostics.MAX_BUG_REPORTS, mWifiDiagnostics.getBugReports().size());
+        for (int i = 0; i < WifiDiagnostics.MAX_BUG_REPORTS; i++) {
+            assertEquals(i + 2, mWifiDiagnostics.getBugReports().get(i).errorCode);
+        }
+    }
+
     /**
      * Verifies that we discard extraneous ring-buffer data.
      */
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import androidx.test.filters.SmallTest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Unit tests for {@link WifiEventJournal}.
+ */
+@SmallTest
+public class WifiEventJournalTest extends WifiBaseTest {
+    private static final int TEST_MAX_RECORDS = 100;
+    private static final String TEST_BSSID = "6c:f3:7f:ae:8c:f3";
+
+    @Mock private Clock mClock;
+    private WifiEventJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(0L);
+        when(mClock.getWallClockMillis()).thenReturn(0L);
+        mJournal = new WifiEventJournal(mClock, TEST_MAX_RECORDS);
+    }
+
+    private void logMessage(int subsystem, String message) {
+        mJournal.record(subsystem, WifiEventJournal.EVENT_MESSAGE, 0, 0, message);
+    }
+
+    private String dump(String... args) {
+        StringWriter sw = new StringWriter();
+        mJournal.dump(new PrintWriter(sw), args);
+        return sw.toString();
+    }
+
+    /**
+     * Verify that each subsystem is capped at its quota and only its own oldest records are
+     * evicted.
+     */
+    @Test
+    public void testSubsystemQuotaIsEnforcedIndependently() {
+        int quota = mJournal.getQuota(WifiEventJournal.SUBSYSTEM_CONNECTIVITY);
+        logMessage(WifiEventJournal.SUBSYSTEM_CONFIG, "config");
+        for (int i = 0; i < quota * 3; i++) {
+            logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "msg" + i);
+        }
+        assertEquals(quota, mJournal.size(WifiEventJournal.SUBSYSTEM_CONNECTIVITY));
+        assertEquals(1, mJournal.size(WifiEventJournal.SUBSYSTEM_CONFIG));
+
+        String output = dump();
+        assertTrue(output.contains("config"));
+        assertFalse(output.contains("msg" + (quota * 2 - 1) + "\n"));
+        assertTrue(output.contains("msg" + (quota * 2) + "\n"));
+        assertTrue(output.contains("msg" + (quota * 3 - 1) + "\n"));
+    }
+
+    /**
+     * Verify that the dump merges the subsystems back into their original order.
+     */
+    @Test
+    public void testDumpIsInRecordOrder() {
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "first");
+        logMessage(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST, "second");
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "third");
+        logMessage(WifiEventJournal.SUBSYSTEM_CONFIG, "fourth");
+
+        String output = dump();
+        assertTrue(output.indexOf("first") < output.indexOf("second"));
+        assertTrue(output.indexOf("second") < output.indexOf("third"));
+        assertTrue(output.indexOf("third") < output.indexOf("fourth"));
+    }
+
+    /**
+     * Verify that typed records are rendered with their event name and arguments.
+     */
+    @Test
+    public void testTypedRecordDump() {
+        mJournal.record(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST,
+                WifiEventJournal.EVENT_BSSID_BLOCKED, 4, -70, TEST_BSSID);
+
+        assertTrue(dump().contains("[blocklist] BSSID_BLOCKED arg1=4 arg2=-70 " + TEST_BSSID));
+    }
+
+    /**
+     * Verify that the dump can be filtered by subsystem.
+     */
+    @Test
+    public void testDumpFilteredBySubsystem() {
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "connectivity message");
+        logMessage(WifiEventJournal.SUBSYSTEM_CONFIG, "config message");
+
+        String output = dump(WifiEventJournal.DUMP_ARG, "config");
+        assertTrue(output.contains("config message"));
+        assertFalse(output.contains("connectivity message"));
+    }
+
+    /**
+     * Verify that the dump can be filtered by time.
+     */
+    @Test
+    public void testDumpFilteredByTime() {
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "old message");
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(5000L);
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "new message");
+
+        String output = dump(WifiEventJournal.DUMP_ARG, WifiEventJournal.DUMP_OPTION_SINCE_MS,
+                "2000");
+        assertTrue(output.contains("new message"));
+        assertFalse(output.contains("old message"));
+    }
+
+    /**
+     * Verify that --last-connection only dumps records from the latest connection attempt on.
+     */
+    @Test
+    public void testDumpLastConnection() {
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        mJournal.record(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_CONNECT_STARTED, 1, 0, TEST_BSSID);
+        logMessage(WifiEventJournal.SUBSYSTEM_CONFIG, "before last connection");
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        mJournal.record(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_CONNECT_STARTED, 2, 0, TEST_BSSID);
+        logMessage(WifiEventJournal.SUBSYSTEM_BSSID_BLOCKLIST, "after last connection");
+
+        assertEquals(2000L, mJournal.getLastEventTimeMs(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_CONNECT_STARTED));
+        String output = dump(WifiEventJournal.DUMP_ARG,
+                WifiEventJournal.DUMP_OPTION_LAST_CONNECTION);
+        assertFalse(output.contains("before last connection"));
+        assertTrue(output.contains("CONNECT_STARTED arg1=2"));
+        assertTrue(output.contains("after last connection"));
+    }
+
+    /**
+     * Verify that an unknown subsystem name is reported and nothing is dumped.
+     */
+    @Test
+    public void testDumpUnknownSubsystem() {
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "message");
+
+        String output = dump(WifiEventJournal.DUMP_ARG, "bogus");
+        assertTrue(output.contains("Unknown journal subsystem: bogus"));
+        assertFalse(output.contains("message\n"));
+    }
+
+    /**
+     * Verify that clear() drops all records.
+     */
+    @Test
+    public void testClear() {
+        logMessage(WifiEventJournal.SUBSYSTEM_CONNECTIVITY, "message");
+        mJournal.clear();
+        assertEquals(0, mJournal.size(WifiEventJournal.SUBSYSTEM_CONNECTIVITY));
+        assertEquals(-1, mJournal.getLastEventTimeMs(WifiEventJournal.SUBSYSTEM_CONNECTIVITY,
+                WifiEventJournal.EVENT_MESSAGE));
+    }
+}
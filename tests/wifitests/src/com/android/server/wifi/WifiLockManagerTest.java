@@ -22,6 +22,7 @@ import static org.mockito.Mockito.*;
 
 import android.app.ActivityManager;
 import android.content.Context;
+import android.content.res.Resources;
 import android.net.wifi.WifiManager;
 import android.os.BatteryStatsManager;
 import android.os.Binder;
@@ -32,6 +33,8 @@ import android.os.test.TestLooper;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.wifi.resources.R;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -65,6 +68,7 @@ public class WifiLockManagerTest extends WifiBaseTest {
     WorkSource mWorkSource;
     WorkSource mChainedWorkSource;
     @Mock Context mContext;
+    @Mock Resources mResources;
     @Mock ClientModeImpl mClientModeImpl;
     @Mock FrameworkFacade mFrameworkFacade;
     @Mock ActivityManager mActivityManager;
@@ -89,6 +93,7 @@ public class WifiLockManagerTest extends WifiBaseTest {
         mLooper = new TestLooper();
         mHandler = new Handler(mLooper.getLooper());
         when(mContext.getSystemService(Context.ACTIVITY_SERVICE)).thenReturn(mActivityManager);
+        when(mContext.getResources()).thenReturn(mResources);
         when(mWifiNative.getClientInterfaceName()).thenReturn(INTERFACE_NAME);
 
         mWifiLockManager = new WifiLockManager(mContext, mBatteryStats,
@@ -441,6 +446,42 @@ public class WifiLockManagerTest extends WifiBaseTest {
                 anyLong());
     }
 
+    /**
+     * Test that with a release delay, a hi-perf lock released and re-acquired within the delay
+     * does not toggle the power save mechanism, and that power save is enabled once the delay
+     * expires without any hi-perf lock.
+     */
+    @Test
+    public void testHiPerfLockReleaseDelayed() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiLockModeReleaseDelayMs))
+                .thenReturn(1000);
+        mWifiLockManager = new WifiLockManager(mContext, mBatteryStats,
+                mClientModeImpl, mFrameworkFacade, mHandler, mWifiNative, mClock, mWifiMetrics);
+        InOrder inOrder = inOrder(mClientModeImpl);
+        when(mClientModeImpl.setPowerSave(anyBoolean())).thenReturn(true);
+
+        acquireWifiLockSuccessful(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "",
+                mBinder, mWorkSource);
+        inOrder.verify(mClientModeImpl).setPowerSave(false);
+
+        // Release and re-acquire within the delay.
+        releaseWifiLockSuccessful(mBinder);
+        assertEquals(WifiManager.WIFI_MODE_NO_LOCKS_HELD,
+                mWifiLockManager.getStrongestLockMode());
+        acquireWifiLockSuccessful(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "",
+                mBinder2, mWorkSource);
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        inOrder.verify(mClientModeImpl, never()).setPowerSave(anyBoolean());
+
+        // Release for good.
+        releaseWifiLockSuccessful(mBinder2);
+        inOrder.verify(mClientModeImpl, never()).setPowerSave(anyBoolean());
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        inOrder.verify(mClientModeImpl).setPowerSave(true);
+    }
+
     /**
      * Test when acquiring/releasing deprecated locks does not result in any action .
      */
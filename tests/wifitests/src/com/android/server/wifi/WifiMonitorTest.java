@@ -20,7 +20,10 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -30,6 +33,7 @@ import android.hardware.wifi.supplicant.V1_0.ISupplicantStaIfaceCallback.WpsErro
 import android.net.wifi.SupplicantState;
 import android.net.wifi.WifiEnterpriseConfig;
 import android.net.wifi.WifiManager;
+import android.net.wifi.WifiScanner;
 import android.net.wifi.WifiSsid;
 import android.os.Handler;
 import android.os.Message;
@@ -45,6 +49,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 /**
  * Unit tests for {@link com.android.server.wifi.WifiMonitor}.
  */
@@ -628,4 +635,100 @@ public class WifiMonitorTest extends WifiBaseTest {
         assertEquals(1, messageCaptor.getValue().arg2);
         assertEquals(bssid, (String) messageCaptor.getValue().obj);
     }
+
+    /**
+     * Verify that with coalescing enabled, a scan result event is not queued again to a handler
+     * which has not yet processed the previous one, while other handlers still get it.
+     */
+    @Test
+    public void testScanResultsEventCoalescedWhilePending() {
+        mWifiMonitor.enableEventCoalescing(true);
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SCAN_RESULTS_EVENT, mHandlerSpy);
+        mWifiMonitor.broadcastScanResultEvent(WLAN_IFACE_NAME);
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SCAN_RESULTS_EVENT, mSecondHandlerSpy);
+        mWifiMonitor.broadcastScanResultEvent(WLAN_IFACE_NAME);
+        mWifiMonitor.broadcastScanResultEvent(WLAN_IFACE_NAME);
+        mLooper.dispatchAll();
+
+        verify(mHandlerSpy, times(1)).handleMessage(any(Message.class));
+        verify(mSecondHandlerSpy, times(1)).handleMessage(any(Message.class));
+        assertEquals(2, mWifiMonitor.getNumEventsDispatched());
+        assertEquals(3, mWifiMonitor.getNumEventsCoalesced());
+
+        // Once processed, the next event is delivered again.
+        mWifiMonitor.broadcastScanResultEvent(WLAN_IFACE_NAME);
+        mLooper.dispatchAll();
+        verify(mHandlerSpy, times(2)).handleMessage(any(Message.class));
+    }
+
+    /**
+     * Verify that partial and full scan results are not coalesced with each other.
+     */
+    @Test
+    public void testPartialAndFullScanResultsEventsNotCoalescedTogether() {
+        mWifiMonitor.enableEventCoalescing(true);
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SCAN_RESULTS_EVENT, mHandlerSpy);
+        mWifiMonitor.broadcastPartialScanResultEvent(WLAN_IFACE_NAME);
+        mWifiMonitor.broadcastScanResultEvent(WLAN_IFACE_NAME);
+        mWifiMonitor.broadcastPartialScanResultEvent(WLAN_IFACE_NAME);
+        mLooper.dispatchAll();
+
+        ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mHandlerSpy, times(2)).handleMessage(messageCaptor.capture());
+        assertEquals(WifiScanner.ON_PARTIAL_SCAN_RESULTS,
+                messageCaptor.getAllValues().get(0).arg1);
+        assertEquals(0, messageCaptor.getAllValues().get(1).arg1);
+    }
+
+    /**
+     * Verify that every scan result event is delivered when coalescing is disabled.
+     */
+    @Test
+    public void testScanResultsEventNotCoalescedWhenDisabled() {
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.PNO_SCAN_RESULTS_EVENT, mHandlerSpy);
+        mWifiMonitor.broadcastPnoScanResultEvent(WLAN_IFACE_NAME);
+        mWifiMonitor.broadcastPnoScanResultEvent(WLAN_IFACE_NAME);
+        mLooper.dispatchAll();
+
+        verify(mHandlerSpy, times(2)).handleMessage(any(Message.class));
+        assertEquals(0, mWifiMonitor.getNumEventsCoalesced());
+    }
+
+    /**
+     * Verify that registering the same handler twice delivers an event once, and that removing
+     * one handler does not affect others registered for the same event.
+     */
+    @Test
+    public void testRegisterHandlerTwiceAndDeregisterOne() {
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SUP_DISCONNECTION_EVENT, mHandlerSpy);
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SUP_DISCONNECTION_EVENT, mHandlerSpy);
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SUP_DISCONNECTION_EVENT, mSecondHandlerSpy);
+        mWifiMonitor.deregisterHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SUP_DISCONNECTION_EVENT, mHandlerSpy);
+        mWifiMonitor.broadcastSupplicantDisconnectionEvent(WLAN_IFACE_NAME);
+        mLooper.dispatchAll();
+
+        verify(mHandlerSpy, never()).handleMessage(any(Message.class));
+        verify(mSecondHandlerSpy).handleMessage(any(Message.class));
+    }
+
+    /**
+     * Verify that the dump contains the event counters.
+     */
+    @Test
+    public void testDump() {
+        mWifiMonitor.registerHandler(
+                WLAN_IFACE_NAME, WifiMonitor.SCAN_RESULTS_EVENT, mHandlerSpy);
+        mWifiMonitor.broadcastScanResultEvent(WLAN_IFACE_NAME);
+        StringWriter sw = new StringWriter();
+        mWifiMonitor.dump(new PrintWriter(sw));
+        assertTrue(sw.toString().contains("mNumEventsDispatched 1"));
+    }
 }
@@ -152,6 +152,7 @@ public class WifiNetworkSuggestionsManagerTest extends WifiBaseTest {
     private @Mock Notification mNotification;
     private @Mock LruConnectionTracker mLruConnectionTracker;
     private @Mock UserManager mUserManager;
+    private @Mock Clock mClock;
     private TestLooper mLooper;
     private ArgumentCaptor<AppOpsManager.OnOpChangedListener> mAppOpChangedListenerCaptor =
             ArgumentCaptor.forClass(AppOpsManager.OnOpChangedListener.class);
@@ -181,6 +182,7 @@ public class WifiNetworkSuggestionsManagerTest extends WifiBaseTest {
         when(mWifiInjector.getFrameworkFacade()).thenReturn(mFrameworkFacade);
         when(mWifiInjector.getPasspointManager()).thenReturn(mPasspointManager);
         when(mWifiInjector.getWifiScoreCard()).thenReturn(mWifiScoreCard);
+        when(mWifiInjector.getClock()).thenReturn(mClock);
         when(mAlertDialogBuilder.setTitle(any())).thenReturn(mAlertDialogBuilder);
         when(mAlertDialogBuilder.setMessage(any())).thenReturn(mAlertDialogBuilder);
         when(mAlertDialogBuilder.setPositiveButton(any(), any())).thenReturn(mAlertDialogBuilder);
@@ -3806,6 +3808,89 @@ public class WifiNetworkSuggestionsManagerTest extends WifiBaseTest {
         verify(listener).onSuggestionsRemoved(networkSuggestionList1);
     }
 
+    /**
+     * Verify that with bulk ingestion enabled, suggestions added again unchanged are skipped,
+     * while suggestions added again with changes are updated, and that the saved network updates
+     * are applied in a single WifiConfigManager batch update.
+     */
+    @Test
+    public void testAddUnchangedNetworkSuggestionsSkippedWithBulkIngest() {
+        when(mResources.getBoolean(R.bool.config_wifiSuggestionBulkIngestEnabled))
+                .thenReturn(true);
+        WifiNetworkSuggestionsManager.OnSuggestionUpdateListener listener =
+                mock(WifiNetworkSuggestionsManager.OnSuggestionUpdateListener.class);
+        mWifiNetworkSuggestionsManager.addOnSuggestionUpdateListener(listener);
+        WifiConfiguration config = WifiConfigurationTestUtil.createOpenNetwork();
+
+        List<WifiNetworkSuggestion> networkSuggestionList1 = Arrays.asList(
+                new WifiNetworkSuggestion(new WifiConfiguration(config), null, false, false, true,
+                        true));
+        assertEquals(WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS,
+                mWifiNetworkSuggestionsManager.add(networkSuggestionList1, TEST_UID_1,
+                        TEST_PACKAGE_1, TEST_FEATURE));
+        verify(listener).onSuggestionsAddedOrUpdated(networkSuggestionList1);
+        verify(mWifiConfigManager).startBatchUpdate();
+        verify(mWifiConfigManager).finishBatchUpdate();
+        verify(mWifiConfigManager).saveToStore(true);
+
+        // Same suggestion added again, nothing to do.
+        List<WifiNetworkSuggestion> networkSuggestionList2 = Arrays.asList(
+                new WifiNetworkSuggestion(new WifiConfiguration(config), null, false, false, true,
+                        true));
+        assertEquals(WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS,
+                mWifiNetworkSuggestionsManager.add(networkSuggestionList2, TEST_UID_1,
+                        TEST_PACKAGE_1, TEST_FEATURE));
+        verify(listener, never()).onSuggestionsAddedOrUpdated(networkSuggestionList2);
+        verify(mWifiConfigManager).saveToStore(true);
+
+        // Same network with changed attributes, the suggestion is updated.
+        List<WifiNetworkSuggestion> networkSuggestionList3 = Arrays.asList(
+                new WifiNetworkSuggestion(new WifiConfiguration(config), null, true, false, true,
+                        true));
+        assertEquals(WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS,
+                mWifiNetworkSuggestionsManager.add(networkSuggestionList3, TEST_UID_1,
+                        TEST_PACKAGE_1, TEST_FEATURE));
+        verify(listener).onSuggestionsAddedOrUpdated(networkSuggestionList3);
+        verify(mWifiConfigManager, times(2)).saveToStore(true);
+        Set<WifiNetworkSuggestion> allNetworkSuggestions =
+                mWifiNetworkSuggestionsManager.getAllNetworkSuggestions();
+        assertEquals(1, allNetworkSuggestions.size());
+        assertTrue(allNetworkSuggestions.iterator().next().isAppInteractionRequired);
+    }
+
+    /**
+     * Verify that with bulk ingestion enabled, a Passpoint suggestion added again unchanged is
+     * skipped, even though installing it changed the stored Passpoint configuration.
+     */
+    @Test
+    public void testAddUnchangedPasspointSuggestionSkippedWithBulkIngest() {
+        when(mResources.getBoolean(R.bool.config_wifiSuggestionBulkIngestEnabled))
+                .thenReturn(true);
+        when(mPasspointManager.addOrUpdateProvider(any(PasspointConfiguration.class),
+                anyInt(), anyString(), eq(true), eq(true))).thenReturn(true);
+        WifiConfiguration dummyConfiguration = createDummyWifiConfigurationForPasspoint(TEST_FQDN);
+        dummyConfiguration.FQDN = TEST_FQDN;
+
+        // Initial auto join disabled, so installing it disables the stored config's autojoin.
+        List<WifiNetworkSuggestion> networkSuggestionList1 = Arrays.asList(
+                new WifiNetworkSuggestion(new WifiConfiguration(dummyConfiguration),
+                        createTestConfigWithUserCredential(TEST_FQDN, TEST_FRIENDLY_NAME),
+                        false, false, true, false));
+        assertEquals(WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS,
+                mWifiNetworkSuggestionsManager.add(networkSuggestionList1, TEST_UID_1,
+                        TEST_PACKAGE_1, TEST_FEATURE));
+
+        List<WifiNetworkSuggestion> networkSuggestionList2 = Arrays.asList(
+                new WifiNetworkSuggestion(new WifiConfiguration(dummyConfiguration),
+                        createTestConfigWithUserCredential(TEST_FQDN, TEST_FRIENDLY_NAME),
+                        false, false, true, false));
+        assertEquals(WifiManager.STATUS_NETWORK_SUGGESTIONS_SUCCESS,
+                mWifiNetworkSuggestionsManager.add(networkSuggestionList2, TEST_UID_1,
+                        TEST_PACKAGE_1, TEST_FEATURE));
+        verify(mPasspointManager).addOrUpdateProvider(any(PasspointConfiguration.class),
+                anyInt(), anyString(), anyBoolean(), anyBoolean());
+    }
+
     @Test
     public void testShouldNotBeIgnoredBySecureSuggestionFromSameCarrierWithoutSameOpenSuggestion() {
         when(mResources.getBoolean(
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.wifi.resources.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Unit tests for {@link WifiResourceCache}.
+ */
+@SmallTest
+public class WifiResourceCacheTest extends WifiBaseTest {
+    @Mock private Context mContext;
+
+    private MockResources mResources;
+    private TestLooper mLooper;
+    private WifiResourceCache mWifiResourceCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mResources = new MockResources();
+        setResources(5, true, false, true, false);
+        when(mContext.getResources()).thenReturn(mResources);
+        mLooper = new TestLooper();
+        mWifiResourceCache = new WifiResourceCache(mContext, new Handler(mLooper.getLooper()));
+    }
+
+    private void setResources(int maxNumActiveChannels, boolean pnoFrequencyCullingEnabled,
+            boolean quickConnectEnabled, boolean useSingleRadioChainScanResults,
+            boolean scanNetworkListCacheEnabled) {
+        mResources.setInteger(
+                R.integer.config_wifi_framework_associated_partial_scan_max_num_active_channels,
+                maxNumActiveChannels);
+        mResources.setBoolean(R.bool.config_wifiPnoFrequencyCullingEnabled,
+                pnoFrequencyCullingEnabled);
+        mResources.setBoolean(R.bool.config_wifi_framework_enable_quick_connect,
+                quickConnectEnabled);
+        mResources.setBoolean(
+                R.bool.config_wifi_framework_use_single_radio_chain_scan_results_network_selection,
+                useSingleRadioChainScanResults);
+        mResources.setBoolean(R.bool.config_wifiScanNetworkListCacheEnabled,
+                scanNetworkListCacheEnabled);
+    }
+
+    private void assertSnapshotMatchesResources(WifiResourceCache.Snapshot snapshot) {
+        assertEquals(mResources.getInteger(
+                R.integer.config_wifi_framework_associated_partial_scan_max_num_active_channels),
+                snapshot.associatedPartialScanMaxNumActiveChannels);
+        assertEquals(mResources.getBoolean(R.bool.config_wifiPnoFrequencyCullingEnabled),
+                snapshot.pnoFrequencyCullingEnabled);
+        assertEquals(mResources.getBoolean(R.bool.config_wifi_framework_enable_quick_connect),
+                snapshot.quickConnectEnabled);
+        assertEquals(mResources.getBoolean(
+                R.bool.config_wifi_framework_use_single_radio_chain_scan_results_network_selection),
+                snapshot.useSingleRadioChainScanResults);
+        assertEquals(mResources.getBoolean(R.bool.config_wifiScanNetworkListCacheEnabled),
+                snapshot.scanNetworkListCacheEnabled);
+    }
+
+    /**
+     * Verify that the snapshot holds the values of the resources and is loaded only once.
+     */
+    @Test
+    public void testSnapshotMatchesResources() throws Exception {
+        WifiResourceCache.Snapshot snapshot = mWifiResourceCache.get();
+        assertSnapshotMatchesResources(snapshot);
+        assertSame(snapshot, mWifiResourceCache.get());
+    }
+
+    private BroadcastReceiver getReceiverFor(String action) {
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        ArgumentCaptor<IntentFilter> filterCaptor = ArgumentCaptor.forClass(IntentFilter.class);
+        verify(mContext, times(2)).registerReceiver(receiverCaptor.capture(),
+                filterCaptor.capture(), isNull(), any(Handler.class));
+        for (int i = 0; i < filterCaptor.getAllValues().size(); i++) {
+            if (filterCaptor.getAllValues().get(i).hasAction(action)) {
+                return receiverCaptor.getAllValues().get(i);
+            }
+        }
+        throw new AssertionError("No receiver registered for " + action);
+    }
+
+    /**
+     * Verify that the snapshot is reloaded with the new values on configuration change.
+     */
+    @Test
+    public void testSnapshotReloadedOnConfigurationChange() throws Exception {
+        BroadcastReceiver receiver = getReceiverFor(Intent.ACTION_CONFIGURATION_CHANGED);
+        mWifiResourceCache.get();
+
+        setResources(8, false, true, false, true);
+        receiver.onReceive(mContext, new Intent(Intent.ACTION_CONFIGURATION_CHANGED));
+        assertSnapshotMatchesResources(mWifiResourceCache.get());
+    }
+
+    /**
+     * Verify that the snapshot is reloaded with the new values when a runtime resource overlay
+     * changes.
+     */
+    @Test
+    public void testSnapshotReloadedOnOverlayChange() throws Exception {
+        String action = "android.intent.action.OVERLAY_CHANGED";
+        BroadcastReceiver receiver = getReceiverFor(action);
+        mWifiResourceCache.get();
+
+        setResources(8, false, true, false, true);
+        receiver.onReceive(mContext, new Intent(action));
+        assertSnapshotMatchesResources(mWifiResourceCache.get());
+    }
+}
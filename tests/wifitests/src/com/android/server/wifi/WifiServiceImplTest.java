@@ -180,6 +180,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Unit tests for {@link WifiServiceImpl}.
@@ -305,6 +306,9 @@ public class WifiServiceImplTest extends WifiBaseTest {
     @Mock WifiConfigManager mWifiConfigManager;
     @Mock WifiScoreReport mWifiScoreReport;
     @Mock WifiScoreCard mWifiScoreCard;
+    @Mock WifiEventJournal mWifiEventJournal;
+    @Mock WifiMonitor mWifiMonitor;
+    @Mock WifiResourceCache mWifiResourceCache;
     @Mock WifiHealthMonitor mWifiHealthMonitor;
     @Mock PasspointManager mPasspointManager;
     @Mock IDppCallback mDppCallback;
@@ -385,6 +389,9 @@ public class WifiServiceImplTest extends WifiBaseTest {
         when(mWifiInjector.getPasspointManager()).thenReturn(mPasspointManager);
         when(mClientModeImpl.getWifiScoreReport()).thenReturn(mWifiScoreReport);
         when(mWifiInjector.getWifiScoreCard()).thenReturn(mWifiScoreCard);
+        when(mWifiInjector.getWifiEventJournal()).thenReturn(mWifiEventJournal);
+        when(mWifiInjector.getWifiMonitor()).thenReturn(mWifiMonitor);
+        when(mWifiInjector.getWifiResourceCache()).thenReturn(mWifiResourceCache);
         when(mWifiInjector.getWifiHealthMonitor()).thenReturn(mWifiHealthMonitor);
         when(mWifiInjector.getSarManager()).thenReturn(mSarManager);
         when(mWifiInjector.getWifiNetworkScoreCache())
@@ -522,6 +529,30 @@ public class WifiServiceImplTest extends WifiBaseTest {
                 .dump(any(FileDescriptor.class), any(PrintWriter.class), any(String[].class));
     }
 
+    /**
+     * Ensure only the event journal is dumped when 'dumpsys wifi journal' is called.
+     */
+    @Test
+    public void testWifiEventJournalDump() {
+        String[] args = new String[]{WifiEventJournal.DUMP_ARG, "blocklist"};
+        mWifiServiceImpl.dump(new FileDescriptor(), new PrintWriter(new StringWriter()), args);
+        verify(mWifiEventJournal).dump(any(PrintWriter.class), eq(args));
+        verify(mClientModeImpl, never())
+                .dump(any(FileDescriptor.class), any(PrintWriter.class), any(String[].class));
+    }
+
+    /**
+     * Ensure the event journal is left out of the full dump, which already has the subsystem logs.
+     */
+    @Test
+    public void testFullDumpDoesNotDumpWifiEventJournal() {
+        mLooper.startAutoDispatch();
+        mWifiServiceImpl.dump(new FileDescriptor(), new PrintWriter(new StringWriter()),
+                new String[]{"-a"});
+        mLooper.stopAutoDispatchAndIgnoreExceptions();
+        verify(mWifiEventJournal, never()).dump(any(PrintWriter.class), any(String[].class));
+    }
+
     /**
      * Ensure WifiServiceImpl.dump() doesn't throw an NPE when executed with null args
      */
@@ -3473,6 +3504,39 @@ public class WifiServiceImplTest extends WifiBaseTest {
         verify(mWifiBackupRestore, never()).retrieveConfigurationsFromBackupData(any(byte[].class));
     }
 
+    /**
+     * Verify that with config_wifiBackupRestoreBatchSize set, {@link
+     * WifiServiceImpl#restoreBackupData(byte[])} adds the restored networks batch by batch as they
+     * are parsed.
+     */
+    @Test
+    public void testRestoreBackupDataInBatches() {
+        when(mResources.getInteger(R.integer.config_wifiBackupRestoreBatchSize)).thenReturn(2);
+        mWifiServiceImpl.mClientModeImplChannel = mAsyncChannel;
+        WifiConfiguration network1 = WifiConfigurationTestUtil.createOpenNetwork();
+        WifiConfiguration network2 = WifiConfigurationTestUtil.createPskNetwork();
+        WifiConfiguration network3 = WifiConfigurationTestUtil.createSaeNetwork();
+        doAnswer(invocation -> {
+            Consumer<List<WifiConfiguration>> batchConsumer = invocation.getArgument(2);
+            batchConsumer.accept(Arrays.asList(network1, network2));
+            batchConsumer.accept(Arrays.asList(network3));
+            return true;
+        }).when(mWifiBackupRestore).retrieveConfigurationsFromBackupData(
+                any(byte[].class), eq(2), any());
+        when(mWifiConfigManager.addOrUpdateNetwork(any(), anyInt())).thenReturn(
+                new NetworkUpdateResult(0));
+
+        mWifiServiceImpl.restoreBackupData(new byte[] {1, 2, 3});
+        mLooper.dispatchAll();
+
+        verify(mWifiBackupRestore, never()).retrieveConfigurationsFromBackupData(any(byte[].class));
+        verify(mWifiConfigManager).addOrUpdateNetwork(eq(network1), anyInt());
+        verify(mWifiConfigManager).addOrUpdateNetwork(eq(network2), anyInt());
+        verify(mWifiConfigManager).addOrUpdateNetwork(eq(network3), anyInt());
+        verify(mWifiConfigManager, times(2)).startBatchUpdate();
+        verify(mWifiConfigManager, times(2)).finishBatchUpdate();
+    }
+
     /**
      * Verify that a call to {@link WifiServiceImpl#restoreSupplicantBackupData(byte[], byte[])} is
      * only allowed from callers with the signature only NETWORK_SETTINGS permission.
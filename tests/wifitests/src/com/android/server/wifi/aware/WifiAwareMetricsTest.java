@@ -629,6 +629,30 @@ public class WifiAwareMetricsTest extends WifiBaseTest {
                 WifiMetricsProto.WifiAwareLog.UNKNOWN_HAL_STATUS, 3);
     }
 
+    /**
+     * Validate the follow-up message transmission metrics.
+     */
+    @Test
+    public void testFollowupMessageMetrics() {
+        mDut.recordFollowupMessageInFlight(1);
+        mDut.recordFollowupMessageInFlight(3);
+        mDut.recordFollowupMessageInFlight(2);
+        mDut.recordFollowupMessageResult(NanStatusType.SUCCESS, 10, 5);
+        mDut.recordFollowupMessageResult(NanStatusType.SUCCESS, 20, 50);
+        mDut.recordFollowupMessageResult(NanStatusType.NO_OTA_ACK, 30, 500);
+        mDut.recordFollowupMessageResult(NanStatusType.INTERNAL_FAILURE, 40, -1);
+        mDut.recordFollowupQueueFull();
+
+        collector.checkThat("messages sent", mDut.getNumFollowupMessagesSent(), equalTo(2));
+        collector.checkThat("max in flight", mDut.getMaxFollowupMessagesInFlight(), equalTo(3));
+
+        mDut.clear();
+        collector.checkThat("messages sent after clear", mDut.getNumFollowupMessagesSent(),
+                equalTo(0));
+        collector.checkThat("max in flight after clear", mDut.getMaxFollowupMessagesInFlight(),
+                equalTo(0));
+    }
+
     // utilities
 
     /**
@@ -1522,6 +1522,12 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
         inOrder.verify(mockSessionCallback).onMessageSendSuccess(messageId2);
         validateInternalSendMessageQueuesCleanedUp(messageId);
         validateInternalSendMessageQueuesCleanedUp(messageId2);
+        verify(mAwareMetricsMock).recordFollowupMessageInFlight(1);
+        verify(mAwareMetricsMock).recordFollowupMessageInFlight(2);
+        verify(mAwareMetricsMock).recordFollowupMessageResult(eq(reasonFail),
+                eq(ssi.getBytes().length), anyLong());
+        verify(mAwareMetricsMock).recordFollowupMessageResult(eq(NanStatusType.SUCCESS),
+                eq(ssi.getBytes().length), anyLong());
 
         verifyNoMoreInteractions(mockCallback, mockSessionCallback, mMockNative, mAwareMetricsMock);
     }
@@ -2358,6 +2364,143 @@ public class WifiAwareStateManagerTest extends WifiBaseTest {
         verifyNoMoreInteractions(mockCallback, mockSessionCallback);
     }
 
+    /**
+     * Validate that with a fair message queue and an in-flight window the messages of multiple
+     * UIDs are transmitted round-robin, and that no more than the window of messages are queued in
+     * the firmware at once.
+     */
+    @Test
+    public void testSendMessageFairQueueInFlightWindow() throws Exception {
+        final int clientId1 = 1005;
+        final int clientId2 = 1006;
+        final int uid1 = 1000;
+        final int uid2 = 1500;
+        final int pid1 = 2000;
+        final int pid2 = 3000;
+        final String callingPackage1 = "com.google.somePackage1";
+        final String callingPackage2 = "com.google.somePackage2";
+        final String callingFeature = "com.google.someFeature";
+        final String serviceName1 = "some-service-name1";
+        final String serviceName2 = "some-service-name2";
+        final byte subscribeId1 = 15;
+        final byte subscribeId2 = 16;
+        final int requestorId1 = 22;
+        final int requestorId2 = 23;
+        final byte[] peerMac1 = HexEncoding.decode("060708090A0B".toCharArray(), false);
+        final byte[] peerMac2 = HexEncoding.decode("060708090A0C".toCharArray(), false);
+        final int messageIdBase1 = 6948;
+        final int messageIdBase2 = 7948;
+        final int numberOfMessages = 3;
+        final int queueDepth = 6;
+        final int inFlightWindow = 1;
+
+        ConfigRequest configRequest = new ConfigRequest.Builder().build();
+        SubscribeConfig subscribeConfig1 = new SubscribeConfig.Builder()
+                .setServiceName(serviceName1).build();
+        SubscribeConfig subscribeConfig2 = new SubscribeConfig.Builder()
+                .setServiceName(serviceName2).build();
+
+        IWifiAwareEventCallback mockCallback = mock(IWifiAwareEventCallback.class);
+        IWifiAwareDiscoverySessionCallback mockSessionCallback = mock(
+                IWifiAwareDiscoverySessionCallback.class);
+        ArgumentCaptor<Short> transactionId = ArgumentCaptor.forClass(Short.class);
+        ArgumentCaptor<Integer> sessionId1 = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> sessionId2 = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> messageIdCaptor = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> peerIdCaptor1 = ArgumentCaptor.forClass(Integer.class);
+        ArgumentCaptor<Integer> peerIdCaptor2 = ArgumentCaptor.forClass(Integer.class);
+        InOrder inOrder = inOrder(mockCallback, mockSessionCallback, mMockNative);
+
+        setSettableParam(WifiAwareStateManager.PARAM_FAIR_MESSAGE_QUEUE, Integer.toString(1),
+                true);
+        setSettableParam(WifiAwareStateManager.PARAM_MAX_IN_FLIGHT_MESSAGES,
+                Integer.toString(inFlightWindow), true);
+
+        mDut.enableUsage();
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).getCapabilities(transactionId.capture());
+        mDut.onCapabilitiesUpdateResponse(transactionId.getValue(), getCapabilities());
+        mMockLooper.dispatchAll();
+
+        // (0) connect
+        mDut.connect(clientId1, uid1, pid1, callingPackage1, callingFeature, mockCallback,
+                configRequest, false);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).enableAndConfigure(transactionId.capture(),
+                eq(configRequest), eq(false), eq(true), eq(true), eq(false), eq(false));
+        mDut.onConfigSuccessResponse(transactionId.getValue());
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockCallback).onConnectSuccess(clientId1);
+
+        mDut.connect(clientId2, uid2, pid2, callingPackage2, callingFeature, mockCallback,
+                configRequest, false);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockCallback).onConnectSuccess(clientId2);
+
+        // (1) subscribe
+        mDut.subscribe(clientId1, subscribeConfig1, mockSessionCallback);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).subscribe(transactionId.capture(), eq((byte) 0),
+                eq(subscribeConfig1));
+        mDut.onSessionConfigSuccessResponse(transactionId.getValue(), false, subscribeId1);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onSessionStarted(sessionId1.capture());
+
+        mDut.subscribe(clientId2, subscribeConfig2, mockSessionCallback);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mMockNative).subscribe(transactionId.capture(), eq((byte) 0),
+                eq(subscribeConfig2));
+        mDut.onSessionConfigSuccessResponse(transactionId.getValue(), false, subscribeId2);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onSessionStarted(sessionId2.capture());
+
+        // (2) match
+        mDut.onMatchNotification(subscribeId1, requestorId1, peerMac1, null, null, 0, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(peerIdCaptor1.capture(), isNull(), isNull());
+
+        mDut.onMatchNotification(subscribeId2, requestorId2, peerMac2, null, null, 0, 0);
+        mMockLooper.dispatchAll();
+        inOrder.verify(mockSessionCallback).onMatch(peerIdCaptor2.capture(), isNull(), isNull());
+
+        // (3) enqueue all the messages of uid1, then all the messages of uid2
+        SendMessageQueueModelAnswer answerObj = new SendMessageQueueModelAnswer(queueDepth,
+                null, null, null);
+        when(mMockNative.sendMessage(anyShort(), anyByte(), anyInt(), any(),
+                any(), anyInt())).thenAnswer(answerObj);
+
+        for (int i = 0; i < numberOfMessages; ++i) {
+            mDut.sendMessage(uid1, clientId1, sessionId1.getValue(), peerIdCaptor1.getValue(), null,
+                    messageIdBase1 + i, 0);
+        }
+        for (int i = 0; i < numberOfMessages; ++i) {
+            mDut.sendMessage(uid2, clientId2, sessionId2.getValue(), peerIdCaptor2.getValue(), null,
+                    messageIdBase2 + i, 0);
+        }
+        mMockLooper.dispatchAll();
+        assertEquals("in-flight window", inFlightWindow, answerObj.queueSize());
+
+        // (4) transmit messages: never more than the window in the firmware queue
+        for (int i = 0; i < numberOfMessages * 2; ++i) {
+            assertTrue(answerObj.process());
+            mMockLooper.dispatchAll();
+            assertTrue("in-flight window", answerObj.queueSize() <= inFlightWindow);
+        }
+        assertEquals("queue empty", 0, answerObj.queueSize());
+
+        // (5) messages are transmitted alternating between the UIDs
+        inOrder.verify(mockSessionCallback, times(numberOfMessages * 2)).onMessageSendSuccess(
+                messageIdCaptor.capture());
+        for (int i = 0; i < numberOfMessages; ++i) {
+            assertEquals("message ID: " + i, messageIdBase1 + i,
+                    (int) messageIdCaptor.getAllValues().get(2 * i));
+            assertEquals("message ID: " + i, messageIdBase2 + i,
+                    (int) messageIdCaptor.getAllValues().get(2 * i + 1));
+        }
+
+        verifyNoMoreInteractions(mockCallback, mockSessionCallback);
+    }
+
     /**
      * Validate that the host-side message queue functions. A combination of imperfect conditions:
      * - Failure to queue: synchronous firmware error
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.wifi.p2p;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.net.wifi.p2p.WifiP2pDevice;
+import android.net.wifi.p2p.WifiP2pDeviceList;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.wifi.WifiBaseTest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link WifiP2pPeerListTracker}.
+ */
+@SmallTest
+public class WifiP2pPeerListTrackerTest extends WifiBaseTest {
+    private static final String TEST_ADDRESS_1 = "aa:bb:cc:dd:ee:01";
+    private static final String TEST_ADDRESS_2 = "aa:bb:cc:dd:ee:02";
+
+    private WifiP2pPeerListTracker mTracker;
+    private WifiP2pDeviceList mPeers;
+
+    @Before
+    public void setUp() throws Exception {
+        mTracker = new WifiP2pPeerListTracker();
+        mPeers = new WifiP2pDeviceList();
+    }
+
+    private WifiP2pDevice createDevice(String address, String name) {
+        WifiP2pDevice device = new WifiP2pDevice();
+        device.deviceAddress = address;
+        device.deviceName = name;
+        return device;
+    }
+
+    /**
+     * Verify that added and modified peers are reported as changes.
+     */
+    @Test
+    public void testAddedAndModifiedPeers() throws Exception {
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_1, "device1"));
+        assertTrue(mTracker.update(mPeers));
+
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_2, "device2"));
+        assertTrue(mTracker.update(mPeers));
+
+        mPeers.updateStatus(TEST_ADDRESS_1, WifiP2pDevice.INVITED);
+        assertTrue(mTracker.update(mPeers));
+        assertFalse(mTracker.update(mPeers));
+    }
+
+    /**
+     * Verify that a peer found again with the same details is not reported as a change.
+     */
+    @Test
+    public void testUnchangedPeers() throws Exception {
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_1, "device1"));
+        assertTrue(mTracker.update(mPeers));
+
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_1, "device1"));
+        assertFalse(mTracker.update(mPeers));
+    }
+
+    /**
+     * Verify that removed peers are reported as changes, as is a peer replaced by another one.
+     */
+    @Test
+    public void testRemovedPeers() throws Exception {
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_1, "device1"));
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_2, "device2"));
+        assertTrue(mTracker.update(mPeers));
+
+        mPeers.remove(TEST_ADDRESS_1);
+        assertTrue(mTracker.update(mPeers));
+
+        mPeers.remove(TEST_ADDRESS_2);
+        mPeers.updateSupplicantDetails(createDevice(TEST_ADDRESS_1, "device1"));
+        assertTrue(mTracker.update(mPeers));
+    }
+}
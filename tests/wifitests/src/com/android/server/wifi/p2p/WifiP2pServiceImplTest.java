@@ -24,6 +24,7 @@ import static com.android.server.wifi.WifiSettingsConfigStore.WIFI_VERBOSE_LOGGI
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
@@ -71,6 +72,7 @@ import android.net.wifi.p2p.WifiP2pProvDiscEvent;
 import android.net.wifi.p2p.WifiP2pWfdInfo;
 import android.net.wifi.p2p.nsd.WifiP2pServiceInfo;
 import android.net.wifi.p2p.nsd.WifiP2pServiceRequest;
+import android.net.wifi.p2p.nsd.WifiP2pServiceResponse;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
@@ -83,6 +85,7 @@ import android.os.test.TestLooper;
 
 import androidx.test.filters.SmallTest;
 
+import com.android.server.wifi.Clock;
 import com.android.server.wifi.FakeWifiLog;
 import com.android.server.wifi.FrameworkFacade;
 import com.android.server.wifi.HalDeviceManager;
@@ -153,6 +156,7 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
     private ArgumentCaptor<Message> mMessageCaptor = ArgumentCaptor.forClass(Message.class);
     private MockitoSession mStaticMockSession = null;
 
+    @Mock Clock mClock;
     @Mock Context mContext;
     @Mock FrameworkFacade mFrameworkFacade;
     @Mock HandlerThread mHandlerThread;
@@ -785,6 +789,7 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
         }
         when(mResources.getString(R.string.config_wifi_p2p_device_type))
                 .thenReturn("10-0050F204-5");
+        when(mWifiInjector.getClock()).thenReturn(mClock);
         when(mWifiInjector.getFrameworkFacade()).thenReturn(mFrameworkFacade);
         when(mWifiInjector.getUserManager()).thenReturn(mUserManager);
         when(mWifiInjector.getWifiP2pMetrics()).thenReturn(mWifiP2pMetrics);
@@ -1520,6 +1525,52 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
         assertNotEquals(null, peers.get(mTestWifiP2pDevice.deviceAddress));
     }
 
+    private int countPeersChangedBroadcasts() {
+        ArgumentCaptor<Intent> intentCaptor = ArgumentCaptor.forClass(Intent.class);
+        verify(mContext, atLeastOnce()).sendBroadcastWithMultiplePermissions(
+                intentCaptor.capture(), any());
+        int count = 0;
+        for (Intent intent : intentCaptor.getAllValues()) {
+            if (WifiP2pManager.WIFI_P2P_PEERS_CHANGED_ACTION.equals(intent.getAction())) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Verify that peer changes within the configured delay are coalesced into one peers changed
+     * broadcast and that no broadcast is sent if the peers are unchanged.
+     */
+    @Test
+    public void testPeersChangedBroadcastCoalescing() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiP2pPeersChangedBroadcastDelayMs))
+                .thenReturn(100);
+        forceP2pEnabled(mClient1);
+        int broadcastCount = countPeersChangedBroadcasts();
+
+        WifiP2pDevice otherDevice = new WifiP2pDevice();
+        otherDevice.deviceName = "OtherDeviceName";
+        otherDevice.deviceAddress = "aa:bb:cc:dd:ee:00";
+        sendDeviceFoundEventMsg(mTestWifiP2pDevice);
+        sendDeviceFoundEventMsg(otherDevice);
+        sendDeviceFoundEventMsg(mTestWifiP2pDevice);
+        assertEquals(broadcastCount, countPeersChangedBroadcasts());
+
+        mLooper.moveTimeForward(100);
+        mLooper.dispatchAll();
+        assertEquals(broadcastCount + 1, countPeersChangedBroadcasts());
+
+        // Found again with the same details: nothing to broadcast.
+        sendDeviceFoundEventMsg(mTestWifiP2pDevice);
+        mLooper.moveTimeForward(100);
+        mLooper.dispatchAll();
+        assertEquals(broadcastCount + 1, countPeersChangedBroadcasts());
+
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_DEVICE_LOST_EVENT, otherDevice);
+        mLooper.moveTimeForward(100);
+        mLooper.dispatchAll();
+        assertEquals(broadcastCount + 2, countPeersChangedBroadcasts());
+    }
+
     /**
      * Verify WifiP2pManager.RESPONSE_GROUP_INFO is returned with null object when a caller
      * uses abnormal way to send WifiP2pManager.REQUEST_GROUP_INFO (i.e no channel info updated).
@@ -1817,6 +1868,140 @@ public class WifiP2pServiceImplTest extends WifiBaseTest {
                 .checkCanAccessWifiDirect(eq("testPkg1"), eq("testFeature"), anyInt(), eq(true));
     }
 
+    private int countServiceResponses() {
+        ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(mClientHandler, atLeastOnce()).sendMessage(messageCaptor.capture());
+        int count = 0;
+        for (Message message : messageCaptor.getAllValues()) {
+            if (message.what == WifiP2pManager.RESPONSE_SERVICE) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Verify that with the service response cache, repeated service discovery within the TTL
+     * is answered from the cache without re-issuing the supplicant service discovery request.
+     */
+    @Test
+    public void testServiceResponseCache() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiP2pServiceResponseCacheTtlMs))
+                .thenReturn(10000);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(0L);
+        when(mTestWifiP2pServiceRequest.getSupplicantQuery()).thenReturn("0300ff0155");
+        when(mWifiNative.p2pServDiscReq(anyString(), anyString()))
+                .thenReturn("mServiceDiscReqId");
+        when(mWifiNative.p2pFind(anyInt())).thenReturn(true);
+        forceP2pEnabled(mClient1);
+        sendChannelInfoUpdateMsg("testPkg1", "testFeature", mClient1, mClientMessenger);
+        sendAddServiceRequestMsg(mClientMessenger);
+        sendDiscoverServiceMsg(mClientMessenger);
+        verify(mWifiNative).p2pServDiscReq(anyString(), anyString());
+        mockPeersList();
+
+        // Vendor specific response to transaction id 1, with 1 byte of data.
+        List<WifiP2pServiceResponse> responses = WifiP2pServiceResponse.newInstance(
+                mTestWifiP2pDevice.deviceAddress,
+                new byte[] {0x04, 0x00, (byte) 0xff, 0x01, 0x00, 0x55});
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_SERV_DISC_RESP_EVENT, responses);
+        assertEquals(1, countServiceResponses());
+
+        // Discovery within the TTL is answered from the cache.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(5000L);
+        sendDiscoverServiceMsg(mClientMessenger);
+        verify(mWifiNative).p2pServDiscReq(anyString(), anyString());
+        assertEquals(2, countServiceResponses());
+
+        // Once the TTL expires, peers are queried again.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(10000L);
+        sendDiscoverServiceMsg(mClientMessenger);
+        verify(mWifiNative, times(2)).p2pServDiscReq(anyString(), anyString());
+        assertEquals(2, countServiceResponses());
+    }
+
+    private List<WifiP2pServiceResponse> getServiceResponses(Handler handler) {
+        ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(handler, atLeastOnce()).sendMessage(messageCaptor.capture());
+        List<WifiP2pServiceResponse> responses = new ArrayList<>();
+        for (Message message : messageCaptor.getAllValues()) {
+            if (message.what == WifiP2pManager.RESPONSE_SERVICE) {
+                responses.add((WifiP2pServiceResponse) message.obj);
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Verify that with the service response cache, each client gets the service responses with
+     * the transaction id of its own request, and that the responses handed out are copies.
+     */
+    @Test
+    public void testServiceResponseCacheUsesTransactionIdOfEachClient() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiP2pServiceResponseCacheTtlMs))
+                .thenReturn(10000);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(0L);
+        when(mTestWifiP2pServiceRequest.getSupplicantQuery()).thenReturn("0300ff0155");
+        when(mWifiNative.p2pServDiscReq(anyString(), anyString()))
+                .thenReturn("mServiceDiscReqId");
+        when(mWifiNative.p2pFind(anyInt())).thenReturn(true);
+        Handler client2Handler = spy(new Handler(mClientHanderLooper.getLooper()));
+        Messenger client2Messenger = new Messenger(client2Handler);
+        forceP2pEnabled(mClient1);
+        sendChannelInfoUpdateMsg("testPkg1", "testFeature", mClient1, mClientMessenger);
+        sendChannelInfoUpdateMsg("testPkg2", "testFeature", mClient2, client2Messenger);
+        // Identical requests, with transaction ids 1 and 2.
+        sendAddServiceRequestMsg(mClientMessenger);
+        sendAddServiceRequestMsg(client2Messenger);
+        sendDiscoverServiceMsg(mClientMessenger);
+        mockPeersList();
+
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_SERV_DISC_RESP_EVENT,
+                WifiP2pServiceResponse.newInstance(mTestWifiP2pDevice.deviceAddress,
+                        new byte[] {0x04, 0x00, (byte) 0xff, 0x01, 0x00, 0x55}));
+        List<WifiP2pServiceResponse> client1Responses = getServiceResponses(mClientHandler);
+        List<WifiP2pServiceResponse> client2Responses = getServiceResponses(client2Handler);
+        assertEquals(1, client1Responses.size());
+        assertEquals(1, client1Responses.get(0).getTransactionId());
+        assertEquals(1, client2Responses.size());
+        assertEquals(2, client2Responses.get(0).getTransactionId());
+        assertEquals(mTestWifiP2pDevice.deviceAddress,
+                client2Responses.get(0).getSrcDevice().deviceAddress);
+
+        // Replayed from the cache with the transaction id of client 2, as a new copy.
+        sendDiscoverServiceMsg(client2Messenger);
+        client2Responses = getServiceResponses(client2Handler);
+        assertEquals(2, client2Responses.size());
+        assertEquals(2, client2Responses.get(1).getTransactionId());
+        assertNotSame(client2Responses.get(0), client2Responses.get(1));
+        assertEquals(1, client1Responses.get(0).getTransactionId());
+    }
+
+    /**
+     * Verify that cached service responses of a lost peer are dropped.
+     */
+    @Test
+    public void testServiceResponseCacheDropsLostPeer() throws Exception {
+        when(mResources.getInteger(R.integer.config_wifiP2pServiceResponseCacheTtlMs))
+                .thenReturn(10000);
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(0L);
+        when(mTestWifiP2pServiceRequest.getSupplicantQuery()).thenReturn("0300ff0155");
+        when(mWifiNative.p2pServDiscReq(anyString(), anyString()))
+                .thenReturn("mServiceDiscReqId");
+        when(mWifiNative.p2pFind(anyInt())).thenReturn(true);
+        forceP2pEnabled(mClient1);
+        sendChannelInfoUpdateMsg("testPkg1", "testFeature", mClient1, mClientMessenger);
+        sendAddServiceRequestMsg(mClientMessenger);
+        sendDiscoverServiceMsg(mClientMessenger);
+        mockPeersList();
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_SERV_DISC_RESP_EVENT,
+                WifiP2pServiceResponse.newInstance(mTestWifiP2pDevice.deviceAddress,
+                        new byte[] {0x04, 0x00, (byte) 0xff, 0x01, 0x00, 0x55}));
+        assertEquals(1, countServiceResponses());
+
+        sendSimpleMsg(null, WifiP2pMonitor.P2P_DEVICE_LOST_EVENT, mTestWifiP2pDevice);
+        sendDiscoverServiceMsg(mClientMessenger);
+        assertEquals(1, countServiceResponses());
+    }
+
     /**
      * Verify the persistent group counter is updated while receiving
      * WifiP2pManager.FACTORY_RESET.
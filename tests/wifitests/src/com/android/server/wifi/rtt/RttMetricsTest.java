@@ -518,6 +518,47 @@ public class RttMetricsTest extends WifiBaseTest {
                 WifiMetricsProto.WifiRttLog.OVERALL_LOCATION_PERMISSION_MISSING, 12);
     }
 
+    /**
+     * Verify that the coalescing ratio reflects the number of requests served per ranging
+     * operation and is reset by clear().
+     */
+    @Test
+    public void testRecordRangingExecution() {
+        mDut.clear();
+        collector.checkThat("no executions", mDut.getCoalescingRatio(), equalTo(1.0));
+
+        mDut.recordRangingExecution(new int[] {10}, new long[] {5});
+        mDut.recordRangingExecution(new int[] {10, 20, 30}, new long[] {10, 2000, 30000});
+        collector.checkThat("4 requests / 2 executions", mDut.getCoalescingRatio(),
+                equalTo(2.0));
+
+        mDut.clear();
+        collector.checkThat("after clear", mDut.getCoalescingRatio(), equalTo(1.0));
+    }
+
+    /**
+     * Verify that the queue wait times and throttled requests are tracked per UID.
+     */
+    @Test
+    public void testPerUidQueueStats() {
+        mDut.clear();
+        mDut.recordRangingExecution(new int[] {10, 20}, new long[] {100, 4000});
+        mDut.recordRangingExecution(new int[] {10}, new long[] {300});
+        mDut.recordThrottle(20, true);
+        mDut.recordThrottle(20, false);
+        mDut.recordThrottle(30, true);
+
+        collector.checkThat("uid 10 wait", mDut.getAverageQueueWaitMs(10), equalTo(200L));
+        collector.checkThat("uid 20 wait", mDut.getAverageQueueWaitMs(20), equalTo(4000L));
+        collector.checkThat("uid 30 wait", mDut.getAverageQueueWaitMs(30), equalTo(0L));
+        collector.checkThat("uid 10 throttled", mDut.getNumThrottled(10), equalTo(0));
+        collector.checkThat("uid 20 throttled", mDut.getNumThrottled(20), equalTo(2));
+        collector.checkThat("uid 30 throttled", mDut.getNumThrottled(30), equalTo(1));
+
+        mDut.clear();
+        collector.checkThat("after clear", mDut.getNumThrottled(20), equalTo(0));
+    }
+
     // Utilities
 
     /**
@@ -34,6 +34,7 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -303,6 +304,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         }
         verify(mockMetrics, times(numIter)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(numIter)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -377,6 +379,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordResult(eq(finalRequest), eq(results.first),
                 eq(MEASUREMENT_DURATION));
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -444,12 +447,71 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_HAL_FAILURE);
         verify(mockMetrics, times(numIter - 1)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(numIter)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
                 mAlarmManager.getAlarmManager());
     }
 
+    /**
+     * Validate that compatible queued requests are coalesced into a single ranging operation when
+     * enabled, and that the results are demultiplexed back to each caller.
+     */
+    @Test
+    public void testCoalescedRangingFlow() throws Exception {
+        mMockResources.setBoolean(R.bool.config_wifiRttCoalescedRangingEnabled, true);
+        mDut.start(mMockLooper.getLooper(), mockClock, mockAwareManager, mockNative,
+                mockMetrics, mockPermissionUtil, mWifiSettingsConfigStore);
+        mMockLooper.dispatchAll();
+
+        RangingRequest request1 = RttTestUtils.getDummyRangingRequestMcOnly((byte) 1);
+        RangingRequest request2 = RttTestUtils.getDummyRangingRequestMcOnly((byte) 2);
+        RangingRequest request3 = RttTestUtils.getDummyRangingRequestMcOnly((byte) 3);
+        Pair<List<RangingResult>, List<RangingResult>> result1 =
+                RttTestUtils.getDummyRangingResults(request1);
+        Pair<List<RangingResult>, List<RangingResult>> result2 =
+                RttTestUtils.getDummyRangingResults(request2);
+        Pair<List<RangingResult>, List<RangingResult>> result3 =
+                RttTestUtils.getDummyRangingResults(request3);
+        IRttCallback mockCallback2 = mock(IRttCallback.class);
+        IRttCallback mockCallback3 = mock(IRttCallback.class);
+
+        // (1) request 1 is dispatched on its own, requests 2 & 3 (another app) are queued
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request1, mockCallback);
+        mDut.fakeUid = mDefaultUid + 1;
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request2, mockCallback2);
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, request3, mockCallback3);
+        mMockLooper.dispatchAll();
+
+        verify(mockNative).rangeRequest(mIntCaptor.capture(), eq(request1), eq(true));
+        mDut.onRangingResults(mIntCaptor.getValue(), result1.first);
+        mMockLooper.dispatchAll();
+        verify(mockCallback).onRangingResults(result1.second);
+
+        // (2) requests 2 & 3 are executed as a single ranging operation
+        verify(mockNative, times(2)).rangeRequest(mIntCaptor.capture(), mRequestCaptor.capture(),
+                eq(true));
+        RangingRequest coalescedRequest = mRequestCaptor.getValue();
+        assertEquals(2, coalescedRequest.mRttPeers.size());
+        assertEquals(request2.mRttPeers.get(0), coalescedRequest.mRttPeers.get(0));
+        assertEquals(request3.mRttPeers.get(0), coalescedRequest.mRttPeers.get(1));
+
+        // (3) the results are split between the 2 callers
+        List<RangingResult> halResults = new ArrayList<>(result2.first);
+        halResults.addAll(result3.first);
+        mDut.onRangingResults(mIntCaptor.getValue(), halResults);
+        mMockLooper.dispatchAll();
+
+        verify(mockCallback2).onRangingResults(result2.second);
+        verify(mockCallback3).onRangingResults(result3.second);
+        verify(mockMetrics).recordResult(eq(coalescedRequest), eq(halResults), anyInt());
+        verify(mockMetrics, times(3)).recordOverallStatus(
+                WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(2)).recordRangingExecution(any(), any());
+        verifyNoMoreInteractions(mockCallback, mockCallback2, mockCallback3);
+    }
+
     /**
      * Validate a ranging flow for an app whose LOCATION runtime permission is revoked.
      */
@@ -481,6 +543,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordRequest(eq(mDefaultWs), eq(request));
         verify(mockMetrics).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_LOCATION_PERMISSION_MISSING);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -563,12 +626,51 @@ public class RttServiceImplTest extends WifiBaseTest {
         }
         verify(mockMetrics, times(numIter / 2)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(numIter / 2 + 1)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
                 mAlarmManager.getAlarmManager());
     }
 
+    /**
+     * Validate that pending requests are served round-robin across UIDs: a burst of requests from
+     * one UID does not delay the requests of another UID queued after it.
+     */
+    @Test
+    public void testRoundRobinAcrossUids() throws Exception {
+        int otherUid = mDefaultUid + 1;
+        RangingRequest[] requests = new RangingRequest[4];
+        List<Pair<List<RangingResult>, List<RangingResult>>> results = new ArrayList<>();
+        for (int i = 0; i < requests.length; ++i) {
+            requests[i] = RttTestUtils.getDummyRangingRequest((byte) i);
+            results.add(RttTestUtils.getDummyRangingResults(requests[i]));
+        }
+
+        InOrder nativeInorder = inOrder(mockNative);
+
+        // (1) default UID queues 3 requests, then the other UID queues 1
+        for (int i = 0; i < 3; ++i) {
+            mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, requests[i],
+                    mockCallback);
+        }
+        mDut.fakeUid = otherUid;
+        mDut.startRanging(mockIbinder, mPackageName, mFeatureId, null, requests[3],
+                mockCallback);
+        mMockLooper.dispatchAll();
+
+        // (2) requests are executed: first of default UID, other UID, then rest of default UID
+        int[] expectedOrder = {0, 3, 1, 2};
+        for (int index : expectedOrder) {
+            nativeInorder.verify(mockNative).rangeRequest(mIntCaptor.capture(),
+                    eq(requests[index]), eq(true));
+            mDut.onRangingResults(mIntCaptor.getValue(), results.get(index).second);
+            mMockLooper.dispatchAll();
+            verify(mockCallback).onRangingResults(results.get(index).second);
+        }
+        nativeInorder.verify(mockNative, never()).rangeRequest(anyInt(), any(), anyBoolean());
+    }
+
     /**
      * Validate that a ranging app which uses WorkSource and dies (binder death) results in the
      * request cleanup.
@@ -602,6 +704,7 @@ public class RttServiceImplTest extends WifiBaseTest {
 
         // verify metrics
         verify(mockMetrics).recordRequest(eq(ws), eq(request));
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -653,6 +756,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         // (4) send results back from native
         mDut.onRangingResults(mIntCaptor.getValue(), results.second);
         mMockLooper.dispatchAll();
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -703,6 +807,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         // verify metrics
         verify(mockMetrics).recordResult(eq(request), eq(results.second), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -744,6 +849,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordRequest(eq(mDefaultWs), eq(request));
         verify(mockMetrics).recordResult(eq(request), eq(results.second), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -791,6 +897,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordRequest(eq(mDefaultWs), eq(request));
         verify(mockMetrics).recordResult(eq(request), eq(results.second), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -834,6 +941,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordRequest(eq(mDefaultWs), eq(request));
         verify(mockMetrics).recordResult(eq(request), eq(new ArrayList<>()), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -887,6 +995,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordRequest(eq(mDefaultWs), eq(request));
         verify(mockMetrics).recordResult(eq(request), eq(results.second), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -941,6 +1050,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordResult(eq(request2), eq(result2.second), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_TIMEOUT);
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(2)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -1053,8 +1163,10 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordResult(eq(request4), eq(result4.second), anyInt());
         verify(mockMetrics, times(2)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_THROTTLE);
+        verify(mockMetrics, times(2)).recordThrottle(anyInt(), eq(false));
         verify(mockMetrics, times(3)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(3)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -1153,8 +1265,10 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordResult(eq(request1), eq(result1.second), anyInt());
         verify(mockMetrics).recordResult(eq(request2), eq(result2.second), anyInt());
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_THROTTLE);
+        verify(mockMetrics).recordThrottle(anyInt(), eq(false));
         verify(mockMetrics, times(2)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(2)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -1229,6 +1343,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         }
         verify(mockMetrics, times(RttServiceImpl.MAX_QUEUED_PER_UID + 11))
                 .recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_RTT_NOT_AVAILABLE);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -1309,9 +1424,11 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordResult(eq(request), eq(result.second), anyInt());
         verify(mockMetrics, times(11)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_THROTTLE);
+        verify(mockMetrics, times(11)).recordThrottle(anyInt(), eq(true));
         verify(mockMetrics, times(RttServiceImpl.MAX_QUEUED_PER_UID)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_RTT_NOT_AVAILABLE);
         verify(mockMetrics).recordOverallStatus(WifiMetricsProto.WifiRttLog.OVERALL_SUCCESS);
+        verify(mockMetrics, times(2)).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback,
@@ -1418,6 +1535,7 @@ public class RttServiceImplTest extends WifiBaseTest {
         verify(mockMetrics).recordRequest(eq(mDefaultWs), eq(request2));
         verify(mockMetrics, times(3)).recordOverallStatus(
                 WifiMetricsProto.WifiRttLog.OVERALL_RTT_NOT_AVAILABLE);
+        verify(mockMetrics).recordRangingExecution(any(), any());
 
         verify(mockNative, atLeastOnce()).isReady();
         verifyNoMoreInteractions(mockNative, mockMetrics, mockCallback, mockCallback2,
@@ -94,6 +94,7 @@ import com.android.server.wifi.proto.nano.WifiMetricsProto;
 import com.android.server.wifi.rtt.RttMetrics;
 import com.android.server.wifi.util.WifiAsyncChannel;
 import com.android.server.wifi.util.WifiPermissionsUtil;
+import com.android.wifi.resources.R;
 
 import org.junit.After;
 import org.junit.Before;
@@ -147,6 +148,7 @@ public class WifiScanningServiceTest extends WifiBaseTest {
     TestLooper mLooper;
     WifiScanningServiceImpl mWifiScanningServiceImpl;
     @Mock WifiP2pMetrics mWifiP2pMetrics;
+    MockResources mResources;
 
     @Before
     public void setUp() throws Exception {
@@ -155,7 +157,8 @@ public class WifiScanningServiceTest extends WifiBaseTest {
         mAlarmManager = new TestAlarmManager();
         when(mContext.getSystemService(Context.ALARM_SERVICE))
                 .thenReturn(mAlarmManager.getAlarmManager());
-        when(mContext.getResources()).thenReturn(new MockResources());
+        mResources = new MockResources();
+        when(mContext.getResources()).thenReturn(mResources);
         when(mWifiInjector.getWifiPermissionsUtil())
                 .thenReturn(mWifiPermissionsUtil);
 
@@ -1259,6 +1262,133 @@ public class WifiScanningServiceTest extends WifiBaseTest {
         verifySingleScanCompletedReceived(order, handler, requestId2);
     }
 
+    /**
+     * Send a single scan request and then a second one satisfied by the first after the first
+     * completes. Verify that the second is served the results of the first while they are fresh
+     * enough, and that a new scan is started once they are too old.
+     */
+    @Test
+    public void sendSingleScanRequestServedFromLastScanWhileFresh() {
+        mResources.setInteger(R.integer.config_wifiSingleScanResultsMaxAgeMs, 1000);
+        WifiScanner.ScanSettings requestSettings1 = createRequest(channelsToSpec(2412, 2450), 0,
+                0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        int requestId1 = 12;
+        ScanResults results1 = ScanResults.create(0, WifiScanner.WIFI_BAND_UNSPECIFIED, 2412);
+
+        WifiScanner.ScanSettings requestSettings2 = createRequest(channelsToSpec(2412), 0,
+                0, 20, WifiScanner.REPORT_EVENT_AFTER_EACH_SCAN);
+        int requestId2 = 13;
+
+        startServiceAndLoadDriver();
+        mWifiScanningServiceImpl.setWifiHandlerLogForTest(mLog);
+
+        when(mWifiScannerImpl0.startSingleScan(any(WifiNative.ScanSettings.class),
+                        any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0, mContext);
+
+        // Run scan 1
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        sendSingleScanRequest(controlChannel, requestId1, requestSettings1, null);
+
+        mLooper.dispatchAll();
+        WifiNative.ScanEventHandler eventHandler1 = verifyStartSingleScan(order,
+                computeSingleScanNativeSettings(requestSettings1));
+        verifySuccessfulResponse(order, handler, requestId1);
+
+        // dispatch scan 1 results
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results1.getScanData());
+        eventHandler1.onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+
+        mLooper.dispatchAll();
+        verifyScanResultsReceived(order, handler, requestId1, results1.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId1);
+
+        // Request 2 is served the results of scan 1 without scanning.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1999L);
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings2, null);
+
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, requestId2);
+        verifyScanResultsReceived(order, handler, requestId2, results1.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId2);
+        verify(mWifiScannerImpl0, times(1)).startSingleScan(any(), any());
+
+        // The results of scan 1 are too old, request 2 starts a new scan.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(2000L);
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings2, null);
+
+        mLooper.dispatchAll();
+        verifyStartSingleScan(order, computeSingleScanNativeSettings(requestSettings2));
+        verifySuccessfulResponse(order, handler, requestId2);
+    }
+
+    /**
+     * Send a single scan request served from the last scan with a single scan listener
+     * registered, and verify that the listener gets the full and complete results again.
+     */
+    @Test
+    public void sendSingleScanRequestServedFromLastScanReportsToScanListener() {
+        mResources.setInteger(R.integer.config_wifiSingleScanResultsMaxAgeMs, 1000);
+        WifiScanner.ScanSettings requestSettings = createRequest(WifiScanner.WIFI_BAND_BOTH, 0,
+                0, 20, WifiScanner.REPORT_EVENT_FULL_SCAN_RESULT);
+        WifiNative.ScanSettings nativeSettings = computeSingleScanNativeSettings(requestSettings);
+        ScanResults results = ScanResults.create(0, 2412, 5160, 5175);
+        int requestId1 = 12;
+        int requestId2 = 13;
+        int listenerRequestId = 14;
+
+        startServiceAndLoadDriver();
+        mWifiScanningServiceImpl.setWifiHandlerLogForTest(mLog);
+
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0);
+
+        when(mWifiScannerImpl0.startSingleScan(any(WifiNative.ScanSettings.class),
+                        any(WifiNative.ScanEventHandler.class))).thenReturn(true);
+
+        registerScanListener(controlChannel, listenerRequestId);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, listenerRequestId);
+
+        // Run scan 1
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1000L);
+        sendSingleScanRequest(controlChannel, requestId1, requestSettings, null);
+
+        mLooper.dispatchAll();
+        WifiNative.ScanEventHandler eventHandler = verifyStartSingleScan(order, nativeSettings);
+        verifySuccessfulResponse(order, handler, requestId1);
+
+        when(mWifiScannerImpl0.getLatestSingleScanResults())
+                .thenReturn(results.getRawScanData());
+        eventHandler.onScanStatus(WifiNative.WIFI_SCAN_RESULTS_AVAILABLE);
+
+        mLooper.dispatchAll();
+        verifyScanResultsReceived(order, handler, requestId1, results.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId1);
+        verifyScanResultsReceived(order, handler, listenerRequestId, results.getScanData());
+
+        // Request 2 is served the results of scan 1, and so is the listener.
+        when(mClock.getElapsedSinceBootMillis()).thenReturn(1500L);
+        sendSingleScanRequest(controlChannel, requestId2, requestSettings, null);
+
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, requestId2);
+        verifyScanResultsReceived(order, handler, requestId2, results.getScanData());
+        verifySingleScanCompletedReceived(order, handler, requestId2);
+        for (int i = 0; i < results.getRawScanResults().length; i++) {
+            Message fullResultMessage = verifyHandleMessageAndGetMessage(order, handler,
+                    WifiScanner.CMD_FULL_SCAN_RESULT);
+            assertEquals("listenerId", listenerRequestId, fullResultMessage.arg2);
+        }
+        verifyScanResultsReceived(order, handler, listenerRequestId, results.getScanData());
+        verify(mWifiScannerImpl0, times(1)).startSingleScan(any(), any());
+    }
+
     /**
      * Send a single scan request and then a second one not satisfied by the first before the first
      * completes. Verify that both are scheduled and succeed.
@@ -2628,6 +2758,90 @@ public class WifiScanningServiceTest extends WifiBaseTest {
         verifyPnoNetworkFoundReceived(order, handler, requestId, scanResults.getRawScanResults());
     }
 
+    /**
+     * Verifies that a PNO scan restarted with the same settings before the deferred reset reuses
+     * the programmed firmware PNO scan, and that it is reset once the delay expires.
+     */
+    @Test
+    public void hwPnoScanRestartedWithSameSettingsIsNotReprogrammed() throws Exception {
+        mResources.setInteger(R.integer.config_wifiPnoResetDelayMs, 1000);
+        startServiceAndLoadDriver();
+        mWifiScanningServiceImpl.setWifiHandlerLogForTest(mLog);
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0);
+        int requestId = 12;
+
+        ScanResults scanResults = createScanResultsForPno();
+        Pair<WifiScanner.ScanSettings, WifiNative.ScanSettings> scanSettings =
+                createScanSettingsForHwPno();
+        Pair<WifiScanner.PnoSettings, WifiNative.PnoSettings> pnoSettings =
+                createPnoSettings(scanResults);
+
+        sendPnoScanRequest(controlChannel, requestId, scanSettings.first, pnoSettings.first);
+        expectHwPnoScan(order, handler, requestId, pnoSettings.second, scanResults);
+        verifyPnoNetworkFoundReceived(order, handler, requestId, scanResults.getRawScanResults());
+
+        controlChannel.sendMessage(
+                Message.obtain(null, WifiScanner.CMD_STOP_PNO_SCAN, 0, requestId));
+        mLooper.dispatchAll();
+        verify(mWifiScannerImpl0, never()).resetHwPnoList();
+
+        // Restart with the same settings, the firmware is not reprogrammed.
+        sendPnoScanRequest(controlChannel, requestId, scanSettings.first, pnoSettings.first);
+        mLooper.dispatchAll();
+        verifySuccessfulResponse(order, handler, requestId);
+        verify(mWifiScannerImpl0, times(1)).setHwPnoList(any(), any());
+        verify(mWifiScannerImpl0, never()).resetHwPnoList();
+
+        // Stop again, the firmware PNO scan is reset once the delay expires.
+        controlChannel.sendMessage(
+                Message.obtain(null, WifiScanner.CMD_STOP_PNO_SCAN, 0, requestId));
+        mLooper.dispatchAll();
+        verify(mWifiScannerImpl0, never()).resetHwPnoList();
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        verify(mWifiScannerImpl0).resetHwPnoList();
+    }
+
+    /**
+     * Verifies that a PNO scan restarted with different settings before the deferred reset
+     * resets the programmed firmware PNO scan before programming the new settings.
+     */
+    @Test
+    public void hwPnoScanRestartedWithDifferentSettingsIsReprogrammed() throws Exception {
+        mResources.setInteger(R.integer.config_wifiPnoResetDelayMs, 1000);
+        startServiceAndLoadDriver();
+        mWifiScanningServiceImpl.setWifiHandlerLogForTest(mLog);
+        Handler handler = mock(Handler.class);
+        BidirectionalAsyncChannel controlChannel = connectChannel(handler);
+        InOrder order = inOrder(handler, mWifiScannerImpl0);
+        int requestId = 12;
+
+        ScanResults scanResults = createScanResultsForPno();
+        Pair<WifiScanner.ScanSettings, WifiNative.ScanSettings> scanSettings =
+                createScanSettingsForHwPno();
+        Pair<WifiScanner.PnoSettings, WifiNative.PnoSettings> pnoSettings =
+                createPnoSettings(scanResults);
+
+        sendPnoScanRequest(controlChannel, requestId, scanSettings.first, pnoSettings.first);
+        expectHwPnoScan(order, handler, requestId, pnoSettings.second, scanResults);
+        verifyPnoNetworkFoundReceived(order, handler, requestId, scanResults.getRawScanResults());
+
+        controlChannel.sendMessage(
+                Message.obtain(null, WifiScanner.CMD_STOP_PNO_SCAN, 0, requestId));
+        mLooper.dispatchAll();
+
+        ScanResults newScanResults = ScanResults.create(0, 2412, 2412);
+        Pair<WifiScanner.PnoSettings, WifiNative.PnoSettings> newPnoSettings =
+                createPnoSettings(newScanResults);
+        sendPnoScanRequest(controlChannel, requestId, scanSettings.first, newPnoSettings.first);
+        mLooper.dispatchAll();
+        order.verify(mWifiScannerImpl0).resetHwPnoList();
+        verifyHwPnoForImpl(mWifiScannerImpl0, order, newPnoSettings.second);
+        verifySuccessfulResponse(order, handler, requestId);
+    }
+
     /**
      * Verifies that only clients with NETWORK_STACK permission can issues restricted messages
      * (from API's).
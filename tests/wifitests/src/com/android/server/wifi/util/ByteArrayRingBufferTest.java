@@ -18,7 +18,8 @@ package com.android.server.wifi.util;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import androidx.test.filters.SmallTest;
@@ -46,7 +47,7 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         final byte[] data = {0};
         assertTrue(rb.appendBuffer(data));
         assertEquals(1, rb.getNumBuffers());
-        assertSame(data, rb.getBuffer(0));
+        assertArrayEquals(data, rb.getBuffer(0));
     }
 
     @Test
@@ -57,8 +58,8 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         assertTrue(rb.appendBuffer(data1));
         assertTrue(rb.appendBuffer(data2));
         assertEquals(2, rb.getNumBuffers());
-        assertSame(data1, rb.getBuffer(0));
-        assertSame(data2, rb.getBuffer(1));
+        assertArrayEquals(data1, rb.getBuffer(0));
+        assertArrayEquals(data2, rb.getBuffer(1));
     }
 
     @Test
@@ -98,7 +99,7 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         final byte[] data2 = {11};
         assertTrue(rb.appendBuffer(data2));
         assertEquals(1, rb.getNumBuffers());
-        assertSame(data2, rb.getBuffer(0));
+        assertArrayEquals(data2, rb.getBuffer(0));
     }
 
     @Test
@@ -112,7 +113,7 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         final byte[] data3 = {11, 12, 13, 14, 15, 16};
         assertTrue(rb.appendBuffer(data3));
         assertEquals(1, rb.getNumBuffers());
-        assertSame(data3, rb.getBuffer(0));
+        assertArrayEquals(data3, rb.getBuffer(0));
     }
 
     @Test
@@ -137,8 +138,8 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         final byte[] data3 = {11};
         assertTrue(rb.appendBuffer(data3));
         assertEquals(2, rb.getNumBuffers());
-        assertSame(data2, rb.getBuffer(0));
-        assertSame(data3, rb.getBuffer(1));
+        assertArrayEquals(data2, rb.getBuffer(0));
+        assertArrayEquals(data3, rb.getBuffer(1));
     }
 
     @Test
@@ -187,6 +188,19 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         rb.resize(MAX_BYTES);
     }
 
+    /** Verifies that a negative size limit removes all data, like a limit of 0. */
+    @Test
+    public void resizeToNegativeSizeRemovesAllData() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        assertTrue(rb.appendBuffer(new byte[] {1, 2, 3}));
+        rb.resize(-1);
+        assertEquals(0, rb.getNumBuffers());
+        assertFalse(rb.appendBuffer(new byte[] {1}));
+        rb.resize(MAX_BYTES);
+        assertTrue(rb.appendBuffer(new byte[] {1}));
+        assertArrayEquals(new byte[] {1}, rb.getBuffer(0));
+    }
+
     /** Verifies that we don't crash when growing an empty buffer. */
     @Test
     public void growingEmptyBufferSucceeds() {
@@ -194,4 +208,71 @@ public class ByteArrayRingBufferTest extends WifiBaseTest {
         rb.resize(MAX_BYTES * 2);
     }
 
+    /** Verifies that the ring keeps a copy of the data, so callers may reuse their buffer. */
+    @Test
+    public void appendCopiesData() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        final byte[] data = {1, 2, 3};
+        assertTrue(rb.appendBuffer(data));
+        data[0] = 9;
+        assertArrayEquals(new byte[] {1, 2, 3}, rb.getBuffer(0));
+        assertNotSame(data, rb.getBuffer(0));
+    }
+
+    /** Verifies that only the requested slice is appended. */
+    @Test
+    public void canAppendSlice() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        final byte[] data = {1, 2, 3, 4, 5};
+        assertTrue(rb.appendBuffer(data, 1, 3));
+        assertEquals(1, rb.getNumBuffers());
+        assertArrayEquals(new byte[] {2, 3, 4}, rb.getBuffer(0));
+    }
+
+    /** Verifies that elements spanning the end of the backing array are read back intact. */
+    @Test
+    public void elementsWrapAroundBackingArray() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        final byte[] data1 = {1, 2, 3, 4, 5, 6};
+        final byte[] data2 = {7, 8, 9};
+        final byte[] data3 = {10, 11, 12, 13};
+        assertTrue(rb.appendBuffer(data1));
+        assertTrue(rb.appendBuffer(data2));
+        assertTrue(rb.appendBuffer(data3));
+        assertEquals(2, rb.getNumBuffers());
+        assertArrayEquals(data2, rb.getBuffer(0));
+        assertArrayEquals(data3, rb.getBuffer(1));
+        assertArrayEquals(new byte[][] {data2, data3}, rb.getBuffers());
+    }
+
+    /** Verifies that many small elements are retained in FIFO order past the initial capacity. */
+    @Test
+    public void canHoldManySmallElements() {
+        final int maxBytes = 100;
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(maxBytes);
+        for (int i = 0; i < maxBytes * 3; i++) {
+            assertTrue(rb.appendBuffer(new byte[] {(byte) i}));
+        }
+        assertEquals(maxBytes, rb.getNumBuffers());
+        byte[][] buffers = rb.getBuffers();
+        for (int i = 0; i < maxBytes; i++) {
+            assertArrayEquals(new byte[] {(byte) (maxBytes * 2 + i)}, buffers[i]);
+        }
+    }
+
+    /** Verifies that resizing keeps wrapped-around elements in order. */
+    @Test
+    public void resizeRetainsWrappedData() {
+        final ByteArrayRingBuffer rb = new ByteArrayRingBuffer(MAX_BYTES);
+        final byte[] data1 = {1, 2, 3, 4, 5, 6};
+        final byte[] data2 = {7, 8, 9};
+        final byte[] data3 = {10, 11, 12, 13};
+        assertTrue(rb.appendBuffer(data1));
+        assertTrue(rb.appendBuffer(data2));
+        assertTrue(rb.appendBuffer(data3));
+        rb.resize(MAX_BYTES * 2);
+        assertArrayEquals(new byte[][] {data2, data3}, rb.getBuffers());
+        rb.resize(data3.length);
+        assertArrayEquals(new byte[][] {data3}, rb.getBuffers());
+    }
 }
@@ -188,6 +188,47 @@ public class NativeUtilTest extends WifiBaseTest {
         assertEquals(ssid, NativeUtil.encodeSsid(NativeUtil.decodeSsid(ssid)));
     }
 
+    /**
+     * Test that decoding an ssid straight to a byte array matches the boxed list decoding.
+     */
+    @Test
+    public void testSsidDecodeToByteArray() throws Exception {
+        for (String ssid : new String[] {"\"ssid_test123\"", "\"AndroidAPください\"",
+                "f5e4ab78ab3432439a", "\"\""}) {
+            assertArrayEquals(NativeUtil.byteArrayFromArrayList(NativeUtil.decodeSsid(ssid)),
+                    NativeUtil.decodeSsidToByteArray(ssid));
+        }
+        try {
+            NativeUtil.decodeSsidToByteArray("\"\ud800\"");
+            fail("Expected ssid decode to fail");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            NativeUtil.decodeSsidToByteArray(null);
+            fail("Expected ssid decode to fail");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * Test the conversions between byte arrays and array lists of Byte.
+     */
+    @Test
+    public void testByteArrayArrayListConversion() throws Exception {
+        byte[] bytes = {(byte) 0xf5, 0x00, 0x7f, (byte) 0x80};
+        ArrayList<Byte> list = NativeUtil.byteArrayToArrayList(bytes);
+        assertEquals(Arrays.asList((byte) 0xf5, (byte) 0x00, (byte) 0x7f, (byte) 0x80), list);
+        assertArrayEquals(bytes, NativeUtil.byteArrayFromArrayList(list));
+
+        // Appending keeps the existing entries.
+        NativeUtil.appendByteArrayToArrayList(new byte[] {0x01, 0x02}, list);
+        assertArrayEquals(new byte[] {(byte) 0xf5, 0x00, 0x7f, (byte) 0x80, 0x01, 0x02},
+                NativeUtil.byteArrayFromArrayList(list));
+
+        assertTrue(NativeUtil.byteArrayToArrayList(new byte[0]).isEmpty());
+        assertArrayEquals(new byte[0], NativeUtil.byteArrayFromArrayList(new ArrayList<>()));
+    }
+
     /**
      * Test that the enclosing quotes are removed properly.
      */